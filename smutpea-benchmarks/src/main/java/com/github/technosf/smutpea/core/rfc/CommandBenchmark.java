@@ -0,0 +1,57 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.core.rfc;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import com.github.technosf.smutpea.core.rfc.Command.CommandLine;
+
+/**
+ * {@code CommandBenchmark}
+ * <p>
+ * Parsing a client line into a {@code CommandLine}. Lives in the {@code rfc}
+ * package to reach the package-private {@code Command.parseLine}.
+ *
+ * @author technosf
+ * @since 0.0.6
+ * @version 0.0.6
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+public class CommandBenchmark
+{
+
+    @Param(
+    { "EHLO client.example", "MAIL FROM:<from@client.example>",
+            "RCPT TO:<to@server.example>", "DATA", "WIBBLE" })
+    public String line;
+
+
+    @Benchmark
+    public CommandLine parseLine()
+    {
+        return Command.parseLine(line);
+    }
+}
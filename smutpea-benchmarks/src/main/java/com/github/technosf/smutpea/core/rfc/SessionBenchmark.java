@@ -0,0 +1,76 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.core.rfc;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.github.technosf.smutpea.core.exceptions.MTAException;
+import com.github.technosf.smutpea.core.exceptions.SmtpLineException;
+import com.github.technosf.smutpea.mta.impl.SinkMTA;
+
+/**
+ * {@code SessionBenchmark}
+ * <p>
+ * {@code Session} processing of a mail transaction, one operation per line,
+ * against a {@code SinkMTA}.
+ *
+ * @author technosf
+ * @since 0.0.6
+ * @version 0.0.6
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+public class SessionBenchmark
+{
+
+    private static final String[] TRANSACTION =
+    { "MAIL FROM:<from@client.example>", "RCPT TO:<to@server.example>",
+            "DATA", "Subject: Benchmark", "", "Body", "." };
+
+    private Session session;
+
+
+    @Setup(Level.Trial)
+    public void setup() throws SmtpLineException, MTAException
+    {
+        session = new Session(new SinkMTA("benchmark.example"));
+        session.process("EHLO client.example");
+    }
+
+
+    @Benchmark
+    @OperationsPerInvocation(7)
+    public void process(Blackhole blackhole)
+            throws SmtpLineException, MTAException
+    {
+        for (String line : TRANSACTION)
+        {
+            blackhole.consume(session.process(line));
+        }
+    }
+}
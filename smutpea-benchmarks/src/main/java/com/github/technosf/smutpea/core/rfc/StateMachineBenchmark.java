@@ -0,0 +1,68 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.core.rfc;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.github.technosf.smutpea.core.exceptions.SessionClosedException;
+import com.github.technosf.smutpea.core.exceptions.SessionStateException;
+
+/**
+ * {@code StateMachineBenchmark}
+ * <p>
+ * State transitions from connection to close, one operation per transition.
+ *
+ * @author technosf
+ * @since 0.0.6
+ * @version 0.0.6
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+public class StateMachineBenchmark
+{
+
+    /**
+     * A valid path from CONNECT to CLOSED
+     */
+    private static final Command[] TRANSITIONS =
+    { Command.EHLO, Command.NOOP, Command.MAIL, Command.RCPT, Command.RCPT,
+            Command.RSET, Command.QUIT };
+
+
+    @Benchmark
+    @OperationsPerInvocation(7)
+    public void nextState(Blackhole blackhole)
+            throws SessionClosedException, SessionStateException
+    {
+        SessionState state = SessionState.CONNECT;
+
+        for (Command command : TRANSITIONS)
+        {
+            state = StateMachine.nextState(state, command);
+            blackhole.consume(state);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.mta;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.github.technosf.smutpea.mta.impl.BasicBuffer;
+
+/**
+ * {@code BasicBufferBenchmark}
+ * <p>
+ * Appending a message to a {@code BasicBuffer}, one operation per line.
+ *
+ * @author technosf
+ * @since 0.0.6
+ * @version 0.0.6
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+public class BasicBufferBenchmark
+{
+
+    private static final int CONST_LINES = 100;
+
+    /**
+     * Line length, from typical to the RFC maximum
+     */
+    @Param(
+    { "78", "998" })
+    public int length;
+
+    private final BasicBuffer buffer = new BasicBuffer();
+    private String line;
+
+
+    @Setup
+    public void setup()
+    {
+        line = "x".repeat(length);
+    }
+
+
+    @Benchmark
+    @OperationsPerInvocation(CONST_LINES)
+    public BasicBuffer appendMailData()
+    {
+        buffer.clearMailData();
+
+        for (int i = 0; i < CONST_LINES; i++)
+        {
+            buffer.appendMailData(line);
+        }
+
+        return buffer;
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.mta;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import com.github.technosf.smutpea.core.rfc.ReplyCode;
+import com.github.technosf.smutpea.mta.impl.SinkMTA;
+
+/**
+ * {@code SinkDialogueBenchmark}
+ * <p>
+ * A complete SMTP session, connect to quit, against a new {@code SinkMTA}
+ * driven in-process by {@code MTADriver}. One operation per session.
+ *
+ * @author technosf
+ * @since 0.0.6
+ * @version 0.0.6
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+public class SinkDialogueBenchmark
+{
+
+    @Benchmark
+    public ReplyCode dialogue() throws Exception
+    {
+        try (MTADriver driver = new MTADriver(new SinkMTA("benchmark.example")))
+        {
+            return driver.connect().ehlo("client.example")
+                    .mailFrom("from@client.example")
+                    .rcptTo("one@server.example", "two@server.example")
+                    .data("Subject: Benchmark", "", "Body", ".leading dot")
+                    .quit().getReplyCode();
+        }
+    }
+}
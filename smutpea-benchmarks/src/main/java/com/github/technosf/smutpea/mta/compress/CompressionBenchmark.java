@@ -0,0 +1,132 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.mta.compress;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * {@code CompressionBenchmark}
+ * <p>
+ * Compressing and decompressing 1 MiB of message data, so results are in
+ * MiB per second, by level and content: plain text mail, or mail carrying a
+ * base64 attachment of random bytes. Reading a 4 KiB range, in reads per
+ * second, shows what block framing saves over inflating the whole message.
+ * The compression ratio of each trial is printed at teardown.
+ *
+ * @author technosf
+ * @since 0.0.6
+ * @version 0.0.6
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+public class CompressionBenchmark
+{
+    private static final int CONST_SIZE = 1024 * 1024;
+    private static final int CONST_RANGE = 4096;
+    private static final String[] CONST_WORDS = { "the", "invoice", "for",
+            "meeting", "attached", "please", "review", "and", "confirm", "by",
+            "Friday", "regards", "thanks", "schedule", "update", "project",
+            "delivery", "account", "report", "quarterly" };
+
+    /**
+     * Deflater level, fastest to smallest
+     */
+    @Param(
+    { "1", "6", "9" })
+    public int level;
+
+    /**
+     * Message content
+     */
+    @Param(
+    { "text", "base64" })
+    public String content;
+
+    private Compression compression;
+    private byte[] data;
+    private byte[] frame;
+
+
+    @Setup
+    public void setup()
+    {
+        Random random = new Random(42);
+        StringBuilder sb = new StringBuilder(CONST_SIZE);
+        sb.append("From: sender@client.test\r\nTo: recipient@server.test\r\n")
+                .append("Subject: Quarterly report\r\n\r\n");
+
+        if (content.equals("base64"))
+        {
+            byte[] attachment = new byte[CONST_SIZE];
+            random.nextBytes(attachment);
+            sb.append(Base64.getMimeEncoder().encodeToString(attachment));
+        }
+
+        while (sb.length() < CONST_SIZE)
+        {
+            sb.append(CONST_WORDS[random.nextInt(CONST_WORDS.length)]);
+            sb.append(random.nextInt(12) == 0 ? "\r\n" : " ");
+        }
+
+        data = sb.substring(0, CONST_SIZE).getBytes(StandardCharsets.US_ASCII);
+        compression = new Compression(level);
+        frame = compression.compress(data);
+    }
+
+
+    @TearDown
+    public void tearDown()
+    {
+        System.out.printf("%nRatio %1$.2f (%2$s, level %3$d)%n",
+                compression.getRatio(), content, level);
+    }
+
+
+    @Benchmark
+    public byte[] compress()
+    {
+        return compression.compress(data);
+    }
+
+
+    @Benchmark
+    public byte[] decompress() throws IOException
+    {
+        return Compression.decompress(frame);
+    }
+
+
+    @Benchmark
+    public byte[] decompressRange() throws IOException
+    {
+        return Compression.decompress(frame, CONST_SIZE / 2, CONST_RANGE);
+    }
+}
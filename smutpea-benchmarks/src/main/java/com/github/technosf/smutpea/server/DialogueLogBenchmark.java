@@ -0,0 +1,80 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.server;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * {@code DialogueLogBenchmark}
+ * <p>
+ * Dialogue lines per second on the connection thread in each
+ * {@code DialogueLog} mode. Dialogue is logged at INFO to /dev/null, so the
+ * cost is formatting and the write, not the disk. In async mode lines the
+ * drainer cannot keep up with are dropped, which is the connection-thread
+ * cost being measured.
+ *
+ * @author technosf
+ * @since 0.0.6
+ * @version 0.0.6
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(value = 1, jvmArgsAppend =
+{ "-Dorg.slf4j.simpleLogger.log.com.github.technosf.smutpea.server.DialogueLog=info",
+        "-Dorg.slf4j.simpleLogger.logFile=/dev/null" })
+public class DialogueLogBenchmark
+{
+
+    @Param(
+    { "OFF", "SYNC", "ASYNC" })
+    public DialogueLog.Mode mode;
+
+    private DialogueLog log;
+
+
+    @Setup
+    public void setup()
+    {
+        log = DialogueLog.open(1, mode, 0);
+    }
+
+
+    @Benchmark
+    @OperationsPerInvocation(2)
+    public void dialogue()
+    {
+        log.client("RCPT TO:<to@server.example>");
+        log.server("250 OK");
+    }
+
+
+    @TearDown
+    public void tearDown()
+    {
+        log.close();
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.server.transcripts;
+
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.github.technosf.smutpea.server.transcripts.Transcript.Entry;
+
+/**
+ * {@code DecoratorBenchmark}
+ * <p>
+ * Encoding a session transcript with the {@code PlainDecorator},
+ * {@code JsonDecorator} and {@code BinaryDecorator}. The decorators have no
+ * destination, so flushing writes nothing; one operation is one transcript
+ * encoded. Lives in the {@code transcripts} package to reach the
+ * package-private decorator API.
+ *
+ * @author technosf
+ * @since 0.0.6
+ * @version 0.0.6
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+public class DecoratorBenchmark
+{
+
+    private static final String[][] DIALOGUE =
+    {
+            { "S", "220 benchmark.example Service ready" },
+            { "C", "EHLO client.example" },
+            { "S", "250 benchmark.example" },
+            { "C", "MAIL FROM:<from@client.example>" },
+            { "S", "250 OK" },
+            { "C", "RCPT TO:<to@server.example>" },
+            { "S", "250 OK" },
+            { "C", "DATA" },
+            { "S", "354 Start mail input; end with <CRLF>.<CRLF>" },
+            { "C", "Subject: Benchmark" },
+            { "C", "" },
+            { "C", "Body" },
+            { "C", "." },
+            { "S", "250 OK" },
+            { "C", "QUIT" },
+            { "S", "221 benchmark.example Service closing transmission channel" } };
+
+    /**
+     * The transcript encoding
+     */
+    @Param(
+    { "plain", "json", "binary" })
+    public String format;
+
+    /**
+     * Number of transcript entries
+     */
+    @Param(
+    { "16", "256" })
+    public int entries;
+
+    private final LinkedList<Entry> stanzas = new LinkedList<>();
+
+
+    @Setup
+    public void setup()
+    {
+        stanzas.clear();
+
+        for (int i = 0; i < entries; i++)
+        {
+            String[] line = DIALOGUE[i % DIALOGUE.length];
+            stanzas.add(new Entry("C".equals(line[0]), i * 3L, line[1]));
+        }
+    }
+
+
+    @Benchmark
+    public byte[] encode()
+    {
+        AbstractDecorator decorator = switch (format)
+        {
+            case "json" -> new JsonDecorator("benchmark", "agent", "ephemeral", "");
+            case "binary" -> new BinaryDecorator("benchmark", "agent", "ephemeral", "");
+            default -> new PlainDecorator("");
+        };
+
+        decorator.flush(stanzas);
+        return decorator.getDialogueBytes();
+    }
+}
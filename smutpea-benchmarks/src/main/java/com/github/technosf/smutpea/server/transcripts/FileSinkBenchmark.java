@@ -0,0 +1,105 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.server.transcripts;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * {@code FileSinkBenchmark}
+ * <p>
+ * Concurrent sessions appending ten line transcripts to one
+ * {@code FileSink}, each waiting for its group commit. Results are in
+ * transcript lines per second. The file is rotated every 64 MiB and removed
+ * at teardown.
+ *
+ * @author technosf
+ * @since 0.0.6
+ * @version 0.0.6
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Threads(4)
+@Fork(1)
+public class FileSinkBenchmark
+{
+    private static final int LINES = 10;
+
+    /**
+     * Force mode: -1 never, 0 each commit, or a period in milliseconds
+     */
+    @Param(
+    { "-1", "1000" })
+    public long force;
+
+    private Path dir;
+    private FileSink sink;
+    private byte[] transcript;
+
+
+    @Setup
+    public void setup() throws IOException
+    {
+        dir = Files.createTempDirectory("FileSinkBenchmark");
+        sink = new FileSink(dir.resolve("transcripts.log"), force,
+                64L * 1024 * 1024, 0, false);
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < LINES; i++)
+        {
+            sb.append(String.format("2023-01-01T00:00:00.000Z [C] "
+                    + "Transcript line %1$02d of benchmark dialogue\r\n", i));
+        }
+        transcript = sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+
+    @TearDown
+    public void tearDown() throws Exception
+    {
+        sink.close();
+        try (Stream<Path> files = Files.walk(dir))
+        {
+            files.sorted(Comparator.reverseOrder())
+                    .forEach(p -> p.toFile().delete());
+        }
+    }
+
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public void write() throws IOException
+    {
+        sink.write(transcript);
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.core.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JFR event timing the processing of one SMTP command by an MTA
+ *
+ * @author technosf
+ * @since 0.0.6
+ * @version 0.0.6
+ */
+@Name("com.github.technosf.smutpea.Command")
+@Label("SMTP Command")
+@Category({ "SMuTPea", "SMTP" })
+@Description("A SMTP command line processed by an MTA, with the session state transition and reply")
+@StackTrace(false)
+public final class CommandEvent
+        extends jdk.jfr.Event
+{
+    @Label("MTA")
+    public String mta;
+
+    @Label("Command")
+    @Description("The command, or UNKNOWN if it was not recognized")
+    public String command;
+
+    @Label("Valid")
+    @Description("Was the command syntactically valid and in sequence")
+    public boolean valid;
+
+    @Label("Start State")
+    public String startState;
+
+    @Label("End State")
+    public String endState;
+
+    @Label("Reply Code")
+    public int replyCode;
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.core.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JFR event timing the DATA phase of a SMTP transaction, from the acceptance
+ * of the DATA command to the reply to the end-of-data marker
+ *
+ * @author technosf
+ * @since 0.0.6
+ * @version 0.0.6
+ */
+@Name("com.github.technosf.smutpea.Data")
+@Label("SMTP Data")
+@Category({ "SMuTPea", "SMTP" })
+@Description("The DATA phase of a SMTP transaction, including the MTA send")
+@StackTrace(false)
+public final class DataEvent
+        extends jdk.jfr.Event
+{
+    @Label("MTA")
+    public String mta;
+
+    @Label("Lines")
+    public long lines;
+
+    @Label("Bytes")
+    @Description("Message data received, counting each line and its CRLF")
+    @DataAmount
+    public long bytes;
+
+    @Label("Reply Code")
+    public int replyCode;
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.core.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JFR event marking the close of a SMTP session, timed from its opening
+ *
+ * @author technosf
+ * @since 0.0.6
+ * @version 0.0.6
+ */
+@Name("com.github.technosf.smutpea.SessionClose")
+@Label("SMTP Session Close")
+@Category({ "SMuTPea", "SMTP" })
+@Description("A client connection to a SMTP server was closed, with the session duration")
+@StackTrace(false)
+public final class SessionCloseEvent
+        extends jdk.jfr.Event
+{
+    @Label("Session")
+    @Description("Session identifier, as used in the dialogue log and transcript")
+    public long session;
+
+    @Label("Server")
+    @Description("Server identifier, including the client address for socket servers")
+    public String server;
+
+    @Label("MTA")
+    public String mta;
+
+    @Label("Lines")
+    @Description("Client and server lines exchanged")
+    public int lines;
+}
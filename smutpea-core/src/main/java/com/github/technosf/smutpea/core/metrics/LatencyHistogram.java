@@ -0,0 +1,213 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.core.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@code LatencyHistogram}
+ * <p>
+ * A lock-free, log-bucketed histogram of non-negative values, typically
+ * latencies in nanoseconds.
+ * <p>
+ * Each power of two is split into eight linear sub-buckets, so any recorded
+ * value is reported to within 12.5%, over the full range of {@code long},
+ * in a fixed 496 slot array. Recording is a couple of bit operations and an
+ * atomic increment.
+ *
+ * @author technosf
+ * @since 0.0.6
+ * @version 0.0.6
+ */
+public final class LatencyHistogram
+{
+    /*
+     * Constants
+     */
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = ((63 - SUB_BITS + 1) << SUB_BITS)
+            + SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+
+    /**
+     * Record a value. Negative values are recorded as zero.
+     *
+     * @param value
+     *            the value to record
+     */
+    public void record(long value)
+    {
+        if (value < 0) value = 0;
+
+        buckets.incrementAndGet(bucket(value));
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+
+    /**
+     * Returns the number of values recorded
+     *
+     * @return the count
+     */
+    public long getCount()
+    {
+        return count.sum();
+    }
+
+
+    /**
+     * Returns the sum of values recorded
+     *
+     * @return the sum
+     */
+    public long getSum()
+    {
+        return sum.sum();
+    }
+
+
+    /**
+     * Returns the largest value recorded
+     *
+     * @return the maximum, zero if none recorded
+     */
+    public long getMax()
+    {
+        return max.get();
+    }
+
+
+    /**
+     * Returns the mean of the values recorded
+     *
+     * @return the mean, zero if none recorded
+     */
+    public double getMean()
+    {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+
+    /**
+     * Returns the value at the given percentile, to bucket precision
+     *
+     * @param percentile
+     *            the percentile, 0 to 100
+     * @return the value at the percentile, zero if none recorded
+     */
+    public long getPercentile(double percentile)
+    {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            total += snapshot[i] = buckets.get(i);
+        }
+
+        if (total == 0) return 0;
+
+        long rank = (long) Math.ceil(Math.min(100, Math.max(0, percentile))
+                / 100 * total);
+        if (rank < 1) rank = 1;
+
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            seen += snapshot[i];
+            if (seen >= rank)
+            {
+                return Math.min(upperBound(i), getMax());
+            }
+        }
+
+        return getMax();
+    }
+
+
+    /**
+     * Clears the histogram. Not atomic with respect to concurrent recording.
+     */
+    public void reset()
+    {
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            buckets.set(i, 0);
+        }
+        count.reset();
+        sum.reset();
+        max.reset();
+    }
+
+
+    /**
+     * Returns the bucket index for a value
+     *
+     * @param value
+     *            the non-negative value
+     * @return the bucket index
+     */
+    static int bucket(long value)
+    {
+        if (value < SUB_BUCKETS) return (int) value;
+
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+
+        return ((exponent - SUB_BITS + 1) << SUB_BITS)
+                + (int) ((value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1));
+    }
+
+
+    /**
+     * Returns the smallest value that falls in a bucket
+     *
+     * @param bucket
+     *            the bucket index
+     * @return the lower bound
+     */
+    static long lowerBound(int bucket)
+    {
+        if (bucket < SUB_BUCKETS) return bucket;
+
+        int exponent = (bucket >>> SUB_BITS) + SUB_BITS - 1;
+
+        return ((long) (SUB_BUCKETS + (bucket & (SUB_BUCKETS - 1))))
+                << (exponent - SUB_BITS);
+    }
+
+
+    /**
+     * Returns the largest value that falls in a bucket
+     *
+     * @param bucket
+     *            the bucket index
+     * @return the upper bound
+     */
+    static long upperBound(int bucket)
+    {
+        return bucket + 1 >= BUCKETS ? Long.MAX_VALUE
+                : lowerBound(bucket + 1) - 1;
+    }
+}
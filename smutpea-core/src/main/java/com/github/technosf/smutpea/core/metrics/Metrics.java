@@ -0,0 +1,475 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.core.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.technosf.smutpea.core.rfc.Command;
+import com.github.technosf.smutpea.core.rfc.ReplyCode;
+import com.github.technosf.smutpea.core.rfc.SessionState;
+
+/**
+ * {@code Metrics}
+ * <p>
+ * JVM-wide registry of SMTP activity: sessions, commands, replies, invalid
+ * transitions, accepted messages and per-command processing latency.
+ * <p>
+ * Counters are {@code LongAdder}s, striped under contention, indexed by enum
+ * ordinal so recording an event is an array load and an add. Latencies are
+ * held in {@code LatencyHistogram}s. The registry is exposed over JMX as a
+ * {@code MetricsMXBean}.
+ *
+ * @author technosf
+ * @since 0.0.6
+ * @version 0.0.6
+ */
+public final class Metrics
+        implements MetricsMXBean
+{
+    private static final Logger logger = LoggerFactory
+            .getLogger(Metrics.class);
+
+    /*
+     * Constants
+     */
+    private static final String CONST_OBJECT_NAME =
+            "com.github.technosf.smutpea:type=Metrics";
+    private static final String CONST_ERR_JMX =
+            "Could not register metrics with JMX";
+
+    /**
+     * Key for commands that were not recognized
+     */
+    public static final String CONST_UNKNOWN = "UNKNOWN";
+
+    /**
+     * Key for the end-of-data, or message, processing latency
+     */
+    public static final String CONST_MESSAGE = "MESSAGE";
+
+    /*
+     * Index of unrecognized commands, after the known commands, so recording
+     * does not copy the Command values
+     */
+    private static final int CONST_UNKNOWN_INDEX = Command.values().length;
+
+    private static final Metrics INSTANCE = new Metrics();
+
+    static
+    // Register with JMX
+    {
+        try
+        {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE,
+                    new ObjectName(CONST_OBJECT_NAME));
+        }
+        catch (Exception e)
+        {
+            logger.warn(CONST_ERR_JMX, e);
+        }
+    }
+
+    /*
+     * Counters
+     */
+    private final LongAdder sessionsOpened = new LongAdder();
+    private final LongAdder sessionsClosed = new LongAdder();
+    private final LongAdder sessionsTimedOut = new LongAdder();
+    private final LongAdder messagesAccepted = new LongAdder();
+    private final LongAdder bytesAccepted = new LongAdder();
+
+    private final LongAdder[] commands = adders(CONST_UNKNOWN_INDEX + 1);
+    private final LongAdder[] replies = adders(ReplyCode.values().length);
+    private final LongAdder[] invalidTransitions =
+            adders(SessionState.values().length);
+
+    /*
+     * Latencies, by command with unknown and message last
+     */
+    private final LatencyHistogram[] latencies =
+            new LatencyHistogram[CONST_UNKNOWN_INDEX + 2];
+
+    {
+        for (int i = 0; i < latencies.length; i++)
+        {
+            latencies[i] = new LatencyHistogram();
+        }
+    }
+
+
+    /**
+     * Returns the JVM-wide metrics registry
+     *
+     * @return the metrics
+     */
+    public static Metrics get()
+    {
+        return INSTANCE;
+    }
+
+
+    /**
+     * Private constructor
+     */
+    private Metrics()
+    {
+    }
+
+
+    /*
+     * ------------------------------------------------------------------------
+     *
+     * Recording
+     *
+     * ------------------------------------------------------------------------
+     */
+
+    /**
+     * Record a session opened
+     */
+    public void sessionOpened()
+    {
+        sessionsOpened.increment();
+    }
+
+
+    /**
+     * Record a session closed
+     */
+    public void sessionClosed()
+    {
+        sessionsClosed.increment();
+    }
+
+
+    /**
+     * Record a session timed out
+     */
+    public void sessionTimedOut()
+    {
+        sessionsTimedOut.increment();
+    }
+
+
+    /**
+     * Record a command received
+     *
+     * @param command
+     *            the command, {@literal null} if not recognized
+     */
+    public void command(Command command)
+    {
+        commands[index(command)].increment();
+    }
+
+
+    /**
+     * Record a reply sent
+     *
+     * @param replyCode
+     *            the reply code
+     */
+    public void reply(ReplyCode replyCode)
+    {
+        if (replyCode != null) replies[replyCode.ordinal()].increment();
+    }
+
+
+    /**
+     * Record a command that was out of sequence for the session state
+     *
+     * @param state
+     *            the session state
+     */
+    public void invalidTransition(SessionState state)
+    {
+        if (state != null) invalidTransitions[state.ordinal()].increment();
+    }
+
+
+    /**
+     * Record an accepted message
+     *
+     * @param bytes
+     *            the size of the message
+     */
+    public void messageAccepted(long bytes)
+    {
+        messagesAccepted.increment();
+        bytesAccepted.add(bytes);
+    }
+
+
+    /**
+     * Record the time taken to process a command
+     *
+     * @param command
+     *            the command, {@literal null} if not recognized
+     * @param nanos
+     *            the processing time
+     */
+    public void commandLatency(Command command, long nanos)
+    {
+        latencies[index(command)].record(nanos);
+    }
+
+
+    /**
+     * Record the time taken to process the end of a message
+     *
+     * @param nanos
+     *            the processing time
+     */
+    public void messageLatency(long nanos)
+    {
+        latencies[latencies.length - 1].record(nanos);
+    }
+
+
+    /**
+     * Returns the latency histogram for a command
+     *
+     * @param command
+     *            the command, {@literal null} for unrecognized commands
+     * @return the histogram
+     */
+    public LatencyHistogram getLatency(Command command)
+    {
+        return latencies[index(command)];
+    }
+
+
+    /**
+     * Returns the latency histogram for end of message processing
+     *
+     * @return the histogram
+     */
+    public LatencyHistogram getMessageLatency()
+    {
+        return latencies[latencies.length - 1];
+    }
+
+
+    /**
+     * Returns the count of a command
+     *
+     * @param command
+     *            the command, {@literal null} for unrecognized commands
+     * @return the count
+     */
+    public long getCommand(Command command)
+    {
+        return commands[index(command)].sum();
+    }
+
+
+    /**
+     * Returns the count of a reply
+     *
+     * @param replyCode
+     *            the reply code
+     * @return the count
+     */
+    public long getReply(ReplyCode replyCode)
+    {
+        return replies[replyCode.ordinal()].sum();
+    }
+
+
+    /**
+     * Returns the count of invalid transitions from a state
+     *
+     * @param state
+     *            the session state
+     * @return the count
+     */
+    public long getInvalidTransition(SessionState state)
+    {
+        return invalidTransitions[state.ordinal()].sum();
+    }
+
+
+    /*
+     * ------------------------------------------------------------------------
+     *
+     * MetricsMXBean
+     *
+     * ------------------------------------------------------------------------
+     */
+
+    @Override
+    public long getSessionsOpened()
+    {
+        return sessionsOpened.sum();
+    }
+
+
+    @Override
+    public long getSessionsClosed()
+    {
+        return sessionsClosed.sum();
+    }
+
+
+    @Override
+    public long getSessionsTimedOut()
+    {
+        return sessionsTimedOut.sum();
+    }
+
+
+    @Override
+    public long getMessagesAccepted()
+    {
+        return messagesAccepted.sum();
+    }
+
+
+    @Override
+    public long getBytesAccepted()
+    {
+        return bytesAccepted.sum();
+    }
+
+
+    @Override
+    public Map<String, Long> getCommands()
+    {
+        Map<String, Long> map = new LinkedHashMap<>();
+        for (Command command : Command.values())
+        {
+            map.put(command.name(), commands[command.ordinal()].sum());
+        }
+        map.put(CONST_UNKNOWN, commands[index(null)].sum());
+        return map;
+    }
+
+
+    @Override
+    public Map<String, Long> getReplies()
+    {
+        Map<String, Long> map = new LinkedHashMap<>();
+        for (ReplyCode replyCode : ReplyCode.values())
+        {
+            map.put(String.valueOf(replyCode.getCode()),
+                    replies[replyCode.ordinal()].sum());
+        }
+        return map;
+    }
+
+
+    @Override
+    public Map<String, Long> getInvalidTransitions()
+    {
+        Map<String, Long> map = new LinkedHashMap<>();
+        for (SessionState state : SessionState.values())
+        {
+            map.put(state.name(), invalidTransitions[state.ordinal()].sum());
+        }
+        return map;
+    }
+
+
+    @Override
+    public Map<String, Long> getLatencyP50Nanos()
+    {
+        return latencies(h -> h.getPercentile(50));
+    }
+
+
+    @Override
+    public Map<String, Long> getLatencyP99Nanos()
+    {
+        return latencies(h -> h.getPercentile(99));
+    }
+
+
+    @Override
+    public Map<String, Long> getLatencyMaxNanos()
+    {
+        return latencies(LatencyHistogram::getMax);
+    }
+
+
+    @Override
+    public void reset()
+    {
+        sessionsOpened.reset();
+        sessionsClosed.reset();
+        sessionsTimedOut.reset();
+        messagesAccepted.reset();
+        bytesAccepted.reset();
+        for (LongAdder adder : commands) adder.reset();
+        for (LongAdder adder : replies) adder.reset();
+        for (LongAdder adder : invalidTransitions) adder.reset();
+        for (LatencyHistogram histogram : latencies) histogram.reset();
+    }
+
+
+    /*
+     * ------------------------------------------------------------------------
+     *
+     * Helpers
+     *
+     * ------------------------------------------------------------------------
+     */
+
+    /**
+     * Returns the array index for a command, unknown commands last
+     */
+    private static int index(Command command)
+    {
+        return command == null ? CONST_UNKNOWN_INDEX : command.ordinal();
+    }
+
+
+    /**
+     * Creates an array of adders
+     */
+    private static LongAdder[] adders(int size)
+    {
+        LongAdder[] adders = new LongAdder[size];
+        for (int i = 0; i < size; i++)
+        {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+
+    /**
+     * Maps a latency statistic by command
+     */
+    private Map<String, Long> latencies(ToLongFunction<LatencyHistogram> stat)
+    {
+        Map<String, Long> map = new LinkedHashMap<>();
+        for (Command command : Command.values())
+        {
+            map.put(command.name(),
+                    stat.applyAsLong(latencies[command.ordinal()]));
+        }
+        map.put(CONST_UNKNOWN, stat.applyAsLong(latencies[index(null)]));
+        map.put(CONST_MESSAGE, stat.applyAsLong(getMessageLatency()));
+        return map;
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.core.metrics;
+
+import java.util.Map;
+
+/**
+ * {@code MetricsMXBean}
+ * <p>
+ * JMX view of the SMuTPea {@code Metrics}, registered as
+ * <em>com.github.technosf.smutpea:type=Metrics</em>.
+ *
+ * @author technosf
+ * @since 0.0.6
+ * @version 0.0.6
+ */
+public interface MetricsMXBean
+{
+    long getSessionsOpened();
+
+    long getSessionsClosed();
+
+    long getSessionsTimedOut();
+
+    long getMessagesAccepted();
+
+    long getBytesAccepted();
+
+    /**
+     * @return commands received, by command name
+     */
+    Map<String, Long> getCommands();
+
+    /**
+     * @return replies sent, by reply code
+     */
+    Map<String, Long> getReplies();
+
+    /**
+     * @return out-of-sequence commands, by the session state they arrived in
+     */
+    Map<String, Long> getInvalidTransitions();
+
+    /**
+     * @return median processing latency in nanoseconds, by command
+     */
+    Map<String, Long> getLatencyP50Nanos();
+
+    /**
+     * @return 99th percentile processing latency in nanoseconds, by command
+     */
+    Map<String, Long> getLatencyP99Nanos();
+
+    /**
+     * @return maximum processing latency in nanoseconds, by command
+     */
+    Map<String, Long> getLatencyMaxNanos();
+
+    /**
+     * Zero all metrics
+     */
+    void reset();
+}
@@ -24,6 +24,7 @@ import com.github.technosf.smutpea.core.exceptions.MTAException;
 import com.github.technosf.smutpea.core.exceptions.SessionClosedException;
 import com.github.technosf.smutpea.core.exceptions.SessionStateException;
 import com.github.technosf.smutpea.core.exceptions.SmtpLineException;
+import com.github.technosf.smutpea.core.jfr.DataEvent;
 import com.github.technosf.smutpea.core.rfc.Command.CommandLine;
 
 /**
@@ -35,7 +36,7 @@ import com.github.technosf.smutpea.core.rfc.Command.CommandLine;
  * @see http://tools.ietf.org/html/rfc2821#section-3
  * @author technosf
  * @since 0.0.1
- * @version 0.0.5
+ * @version 0.0.6
  */
 public final class Session
 {
@@ -95,6 +96,16 @@ public final class Session
      */
     private final MTA mta;
 
+    /**
+     * Debug logging, sampled once per Session to keep the per-line cost down
+     */
+    private final boolean debug = logger.isDebugEnabled();
+
+    /**
+     * JFR event for the current DATA phase, {@literal null} unless recording
+     */
+    private DataEvent dataEvent;
+
 
     /**
      * Constructor for a {@code MTA} Session.
@@ -215,7 +226,7 @@ public final class Session
             throws MTAException
     {
 
-        logger.debug(CONST_MSG_PROCESS_CMD, line);
+        if (debug) logger.debug(CONST_MSG_PROCESS_CMD, line);
 
         if (SessionState.CLOSED == stateTable.getState()) throw new MTAException(ERR_SESSION_CLOSED);
 
@@ -230,7 +241,7 @@ public final class Session
                     StateMachine.nextState(stateTable.getState(),
                             requireNonNull(commandLine).getCommand());
 
-            logger.debug(CONST_MSG_STATE_TX, stateTable.getState(), nextState);
+            if (debug) logger.debug(CONST_MSG_STATE_TX, stateTable.getState(), nextState);
         }
         catch (NullPointerException e)
         // No command found
@@ -251,7 +262,7 @@ public final class Session
         /*
          * Process the command in the MTA
          */
-        logger.debug(CONST_MSG_MTA_CMD, commandLine);
+        if (debug) logger.debug(CONST_MSG_MTA_CMD, commandLine);
         mta.command(commandLine);
 
         /*
@@ -270,7 +281,7 @@ public final class Session
         if (!commandLine.isValid())
         // Command was not valid, do not update the state
         {
-            logger.debug(CONST_MSG_STATE_SAME, stateTable.getState());
+            if (debug) logger.debug(CONST_MSG_STATE_SAME, stateTable.getState());
         }
         else
         // Command was valid, update the state
@@ -280,9 +291,15 @@ public final class Session
              * Update the state table
              */
             {
-                logger.debug(CONST_MSG_STATE_UPDATE, stateTable.getState(),
+                if (debug) logger.debug(CONST_MSG_STATE_UPDATE, stateTable.getState(),
                         nextState);
                 stateTable.updateState(nextState);
+
+                if (SessionState.DATA == nextState)
+                // Start timing the DATA phase if JFR is recording it
+                {
+                    beginDataEvent();
+                }
             }
             catch (SessionStateException e)
             {
@@ -292,7 +309,7 @@ public final class Session
 
         String response = mta.getResponse();
 
-        logger.debug(CONST_MSG_RESPONSE, response);
+        if (debug) logger.debug(CONST_MSG_RESPONSE, response);
 
         return response;
     }
@@ -316,7 +333,7 @@ public final class Session
     private final String dataStateProcessor(final String line)
             throws MTAException
     {
-        logger.debug(CONST_MSG_PROCESS_DATA, line);
+        if (debug) logger.debug(CONST_MSG_PROCESS_DATA, line);
 
         if (SessionState.CLOSED == stateTable.getState()) throw new MTAException(ERR_SESSION_CLOSED);
 
@@ -326,20 +343,27 @@ public final class Session
          */
         {
             mta.getBuffer().appendMailData(line);
+
+            if (dataEvent != null)
+            {
+                dataEvent.lines++;
+                dataEvent.bytes += line.length() + CRLF.length();
+            }
+
             return "";
         }
 
         /*
          * The end of the mail body was signaled. Ask the MTA to <em>send</em> and return the MTA's reply.
          */
-        logger.debug(CONST_MSG_SEND);
+        if (debug) logger.debug(CONST_MSG_SEND);
         mta.send();
 
         try
         // Update State from DATA to COMMAND
         {
             stateTable.updateState(SessionState.COMMAND);
-            logger.debug(CONST_MSG_STATE_UPDATE, stateTable.getState(),
+            if (debug) logger.debug(CONST_MSG_STATE_UPDATE, stateTable.getState(),
                     SessionState.COMMAND);
         }
         catch (SessionStateException e)
@@ -347,6 +371,43 @@ public final class Session
             throw new MTAException(ERR_PROGRAM, e);
         }
 
+        commitDataEvent();
+
         return mta.getResponse();
     }
+
+
+    /**
+     * Begins a JFR {@code DataEvent} for the DATA phase, if it is enabled
+     */
+    private void beginDataEvent()
+    {
+        DataEvent event = new DataEvent();
+
+        if (event.isEnabled())
+        {
+            event.begin();
+            dataEvent = event;
+        }
+    }
+
+
+    /**
+     * Commits the JFR {@code DataEvent} for the DATA phase, if any
+     */
+    private void commitDataEvent()
+    {
+        if (dataEvent == null) return;
+
+        DataEvent event = dataEvent;
+        dataEvent = null;
+
+        if (event.shouldCommit())
+        {
+            event.mta = mta.getMTAName();
+            event.replyCode = mta.getReplyCode() == null ? 0
+                    : mta.getReplyCode().getCode();
+            event.commit();
+        }
+    }
 }
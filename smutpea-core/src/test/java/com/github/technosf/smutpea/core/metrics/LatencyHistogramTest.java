@@ -0,0 +1,76 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.core.metrics;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import org.testng.annotations.Test;
+
+/**
+ * Unit test for {@code LatencyHistogram}
+ *
+ * @author technosf
+ * @since 0.0.6
+ * @version 0.0.6
+ */
+public class LatencyHistogramTest
+{
+
+    @Test
+    public void buckets()
+    {
+        for (long value : new long[] { 0, 1, 7, 8, 9, 15, 16, 17, 1000,
+                123456789, Long.MAX_VALUE / 3 })
+        {
+            int bucket = LatencyHistogram.bucket(value);
+            assertTrue(LatencyHistogram.lowerBound(bucket) <= value,
+                    "Lower bound " + value);
+            assertTrue(LatencyHistogram.upperBound(bucket) >= value,
+                    "Upper bound " + value);
+        }
+
+        assertEquals(LatencyHistogram.bucket(Long.MAX_VALUE),
+                LatencyHistogram.bucket(Long.MAX_VALUE - 1));
+    }
+
+
+    @Test
+    public void percentiles()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        assertEquals(histogram.getPercentile(50), 0);
+
+        for (long i = 1; i <= 1000; i++)
+        {
+            histogram.record(i * 1000);
+        }
+
+        assertEquals(histogram.getCount(), 1000);
+        assertEquals(histogram.getMax(), 1000000);
+        assertEquals(histogram.getMean(), 500500.0, 0.001);
+
+        long p50 = histogram.getPercentile(50);
+        long p99 = histogram.getPercentile(99);
+
+        assertTrue(p50 >= 500000 && p50 <= 500000 * 1.125, "p50 " + p50);
+        assertTrue(p99 >= 990000 && p99 <= 1000000, "p99 " + p99);
+        assertEquals(histogram.getPercentile(100), 1000000);
+
+        histogram.reset();
+        assertEquals(histogram.getCount(), 0);
+        assertEquals(histogram.getMax(), 0);
+    }
+}
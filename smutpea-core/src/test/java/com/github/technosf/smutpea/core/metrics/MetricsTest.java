@@ -0,0 +1,86 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.core.metrics;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.ObjectName;
+
+import org.testng.annotations.Test;
+
+import com.github.technosf.smutpea.core.rfc.Command;
+import com.github.technosf.smutpea.core.rfc.ReplyCode;
+import com.github.technosf.smutpea.core.rfc.SessionState;
+
+/**
+ * Unit test for {@code Metrics}
+ *
+ * @author technosf
+ * @since 0.0.6
+ * @version 0.0.6
+ */
+public class MetricsTest
+{
+    private final Metrics classUnderTest = Metrics.get();
+
+
+    @Test
+    public void record()
+    {
+        long ehlo = classUnderTest.getCommand(Command.EHLO);
+        long unknown = classUnderTest.getCommand(null);
+        long ok = classUnderTest.getReply(ReplyCode._250);
+        long rcpt = classUnderTest.getInvalidTransition(SessionState.RCPT);
+        long messages = classUnderTest.getMessagesAccepted();
+        long bytes = classUnderTest.getBytesAccepted();
+
+        classUnderTest.command(Command.EHLO);
+        classUnderTest.command(null);
+        classUnderTest.reply(ReplyCode._250);
+        classUnderTest.invalidTransition(SessionState.RCPT);
+        classUnderTest.messageAccepted(100);
+        classUnderTest.commandLatency(Command.EHLO, 1000);
+
+        assertEquals(classUnderTest.getCommand(Command.EHLO), ehlo + 1);
+        assertEquals(classUnderTest.getCommand(null), unknown + 1);
+        assertEquals(classUnderTest.getReply(ReplyCode._250), ok + 1);
+        assertEquals(classUnderTest.getInvalidTransition(SessionState.RCPT),
+                rcpt + 1);
+        assertEquals(classUnderTest.getMessagesAccepted(), messages + 1);
+        assertEquals(classUnderTest.getBytesAccepted(), bytes + 100);
+        assertTrue(classUnderTest.getLatency(Command.EHLO).getCount() > 0);
+
+        assertEquals((long) classUnderTest.getCommands().get("EHLO"), ehlo + 1);
+        assertEquals((long) classUnderTest.getReplies().get("250"), ok + 1);
+        assertTrue(classUnderTest.getLatencyMaxNanos()
+                .containsKey(Metrics.CONST_MESSAGE));
+    }
+
+
+    @Test
+    public void jmx() throws Exception
+    {
+        ObjectName name =
+                new ObjectName("com.github.technosf.smutpea:type=Metrics");
+
+        assertTrue(ManagementFactory.getPlatformMBeanServer()
+                .isRegistered(name));
+        assertEquals(ManagementFactory.getPlatformMBeanServer()
+                .getAttribute(name, "SessionsOpened"),
+                classUnderTest.getSessionsOpened());
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.loadgen;
+
+import java.io.IOException;
+
+import com.github.technosf.smutpea.core.rfc.Command;
+
+/**
+ * {@code Dialogue}
+ * <p>
+ * The client behaviours a load run can mix:
+ * <ul>
+ * <li><em>normal</em> sends EHLO, MAIL, a RCPT per recipient, DATA with a
+ * sized body, and QUIT
+ * <li><em>idle</em> sends EHLO then holds the connection open before a NOOP
+ * and QUIT
+ * <li><em>abuse</em> sends commands out of sequence, expecting them to be
+ * refused, and QUIT
+ * </ul>
+ * A reply of the wrong class is counted as unexpected and the session quits.
+ *
+ * @author technosf
+ * @since 0.0.6
+ * @version 0.0.6
+ */
+public enum Dialogue
+{
+    NORMAL
+    {
+        @Override
+        void run(SmtpClient client, LoadGenerator load, Results results)
+                throws IOException
+        {
+            boolean ok = expect(results, 2,
+                    client.command(Command.EHLO, CONST_EHLO))
+                    && expect(results, 2,
+                            client.command(Command.MAIL, CONST_MAIL));
+
+            for (int i = 0; ok && i < load.getRecipients(); i++)
+            {
+                ok = expect(results, 2, client.command(Command.RCPT,
+                        String.format(CONST_FMT_RCPT, i)));
+            }
+
+            if (ok && expect(results, 3,
+                    client.command(Command.DATA, CONST_DATA)))
+            {
+                expect(results, 2, client.message(load.getBody()));
+            }
+
+            quit(client, results);
+        }
+    },
+
+    IDLE
+    {
+        @Override
+        void run(SmtpClient client, LoadGenerator load, Results results)
+                throws IOException
+        {
+            if (expect(results, 2, client.command(Command.EHLO, CONST_EHLO)))
+            {
+                try
+                {
+                    Thread.sleep(load.getIdle());
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+
+                expect(results, 2, client.command(Command.NOOP, CONST_NOOP));
+            }
+
+            quit(client, results);
+        }
+    },
+
+    ABUSE
+    {
+        @Override
+        void run(SmtpClient client, LoadGenerator load, Results results)
+                throws IOException
+        {
+            expect(results, 5, client.command(Command.DATA, CONST_DATA));
+            expect(results, 5, client.command(Command.MAIL, CONST_MAIL));
+            expect(results, 2, client.command(Command.EHLO, CONST_EHLO));
+            expect(results, 5, client.command(Command.RCPT,
+                    String.format(CONST_FMT_RCPT, 0)));
+            expect(results, 5, client.command(Command.DATA, CONST_DATA));
+
+            quit(client, results);
+        }
+    };
+
+    /*
+     * Constants
+     */
+    private static final String CONST_EHLO = "EHLO loadgen.example";
+    private static final String CONST_MAIL =
+            "MAIL FROM:<load@loadgen.example>";
+    private static final String CONST_FMT_RCPT =
+            "RCPT TO:<rcpt%1$d@server.example>";
+    private static final String CONST_DATA = "DATA";
+    private static final String CONST_NOOP = "NOOP";
+    private static final String CONST_QUIT = "QUIT";
+
+
+    /**
+     * Determine the Dialogue for the given string
+     *
+     * @param dialogue
+     *            the dialogue name
+     * @return the Dialogue
+     * @throws IllegalArgumentException
+     *             the name is not a Dialogue
+     */
+    public static Dialogue determine(String dialogue)
+    {
+        return valueOf(dialogue.strip().toUpperCase());
+    }
+
+
+    /**
+     * Run the dialogue over a connected client
+     *
+     * @param client
+     *            the connected client
+     * @param load
+     *            the load configuration
+     * @param results
+     *            the results
+     * @throws IOException
+     *             the connection failed
+     */
+    abstract void run(SmtpClient client, LoadGenerator load, Results results)
+            throws IOException;
+
+
+    /**
+     * Checks a reply code is of the expected class, counting it if not
+     */
+    private static boolean expect(Results results, int replyClass, int code)
+    {
+        if (code / 100 == replyClass) return true;
+
+        results.unexpected();
+        return false;
+    }
+
+
+    private static void quit(SmtpClient client, Results results)
+            throws IOException
+    {
+        expect(results, 2, client.command(Command.QUIT, CONST_QUIT));
+    }
+}
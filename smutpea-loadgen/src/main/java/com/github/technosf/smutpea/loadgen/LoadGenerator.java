@@ -0,0 +1,453 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.loadgen;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@code LoadGenerator}
+ * <p>
+ * Drives a mix of SMTP dialogues at a server over many connections and
+ * reports throughput and per-command reply latency.
+ * <p>
+ * In <em>closed-loop</em> mode, the default, each connection starts a new
+ * session as soon as the last one ends, measuring the throughput the server
+ * sustains. In <em>open-loop</em> mode sessions are started at a fixed rate
+ * whatever the server does, queueing for a free connection if needed, so
+ * latency is measured as a client population would see it.
+ * <p>
+ * From the command line the arguments are host and port, and the run is
+ * configured with System properties: <em>loadConnections</em>,
+ * <em>loadSeconds</em>, <em>loadRate</em> (sessions per second, 0 for closed
+ * loop), <em>loadMix</em> (e.g. {@code normal=8,idle=1,abuse=1}),
+ * <em>loadRecipients</em>, <em>loadBodyBytes</em> and <em>loadIdle</em>
+ * (milliseconds).
+ *
+ * @author technosf
+ * @since 0.0.6
+ * @version 0.0.6
+ */
+public final class LoadGenerator
+{
+    private static final Logger logger = LoggerFactory
+            .getLogger(LoadGenerator.class);
+
+    /*
+     * Constants
+     */
+    private static final String CONST_MSG_START =
+            "Load {} against {} with {} connections for {}";
+    private static final String CONST_MSG_SESSION_FAILED =
+            "Session failed: {}";
+    private static final String CONST_OPEN_LOOP = "open loop at %1$d/s";
+    private static final String CONST_CLOSED_LOOP = "closed loop";
+    private static final String CONST_THREAD_NAME = "SMuTPea load %1$d";
+    private static final String CONST_SUBJECT = "Subject: SMuTPea load";
+
+    private static final String CONST_DEFAULT_HOST = "localhost";
+    private static final int CONST_DEFAULT_PORT = 25;
+    private static final int CONST_LINE_LENGTH = 76;
+    private static final int CONST_READ_TIMEOUT = 30_000;
+    private static final int CONST_MAX_RATE =
+            (int) TimeUnit.SECONDS.toNanos(1);
+
+    private final InetSocketAddress address;
+    private final Map<Dialogue, Integer> mix = new EnumMap<>(Dialogue.class);
+
+    private int connections = 1;
+    private Duration duration = Duration.ofSeconds(10);
+    private int rate = 0;
+    private int recipients = 1;
+    private int bodyBytes = 1024;
+    private long idle = 1000;
+    private int timeout = CONST_READ_TIMEOUT;
+
+    private List<String> body;
+
+
+    /**
+     * Runs a load against a server from the command line
+     *
+     * @param args
+     *            the host and port, defaulting to localhost:25
+     * @throws InterruptedException
+     */
+    public static void main(String[] args) throws InterruptedException
+    {
+        LoadGenerator load = new LoadGenerator(
+                args.length > 0 ? args[0] : CONST_DEFAULT_HOST,
+                args.length > 1 ? Integer.parseInt(args[1])
+                        : CONST_DEFAULT_PORT)
+                .connections(Integer.getInteger("loadConnections", 1))
+                .duration(Duration.ofSeconds(Integer.getInteger("loadSeconds", 10)))
+                .rate(Integer.getInteger("loadRate", 0))
+                .recipients(Integer.getInteger("loadRecipients", 1))
+                .bodyBytes(Integer.getInteger("loadBodyBytes", 1024))
+                .idle(Integer.getInteger("loadIdle", 1000));
+
+        String mix = System.getProperty("loadMix");
+        if (mix != null)
+        {
+            for (String weight : mix.split(","))
+            {
+                String[] pair = weight.split("=");
+                load.mix(Dialogue.determine(pair[0]),
+                        pair.length > 1 ? Integer.parseInt(pair[1].strip())
+                                : 1);
+            }
+        }
+
+        load.run().report(System.out);
+    }
+
+
+    /**
+     * Constructor
+     *
+     * @param host
+     *            the server host
+     * @param port
+     *            the server port
+     */
+    public LoadGenerator(String host, int port)
+    {
+        this.address = new InetSocketAddress(host, port);
+    }
+
+
+    /*
+     * ------------------------------------------------------------------------
+     *
+     * Configuration
+     *
+     * ------------------------------------------------------------------------
+     */
+
+    /**
+     * Sets the number of concurrent connections
+     *
+     * @param connections
+     *            the number of connections
+     * @return this
+     */
+    public LoadGenerator connections(int connections)
+    {
+        this.connections = Math.max(1, connections);
+        return this;
+    }
+
+
+    /**
+     * Sets how long new sessions are started for
+     *
+     * @param duration
+     *            the run duration
+     * @return this
+     */
+    public LoadGenerator duration(Duration duration)
+    {
+        this.duration = duration;
+        return this;
+    }
+
+
+    /**
+     * Sets the open-loop session arrival rate
+     *
+     * @param sessionsPerSecond
+     *            the arrival rate, zero or less for closed loop, at most
+     *            one a nanosecond
+     * @return this
+     */
+    public LoadGenerator rate(int sessionsPerSecond)
+    {
+        this.rate = Math.min(CONST_MAX_RATE, Math.max(0, sessionsPerSecond));
+        return this;
+    }
+
+
+    /**
+     * Sets the relative weight of a dialogue in the mix. Without any weights
+     * every session is {@code NORMAL}.
+     *
+     * @param dialogue
+     *            the dialogue
+     * @param weight
+     *            the weight, zero to remove
+     * @return this
+     */
+    public LoadGenerator mix(Dialogue dialogue, int weight)
+    {
+        if (weight > 0) mix.put(dialogue, weight);
+        else mix.remove(dialogue);
+        return this;
+    }
+
+
+    /**
+     * Sets the number of recipients per message
+     *
+     * @param recipients
+     *            the number of recipients
+     * @return this
+     */
+    public LoadGenerator recipients(int recipients)
+    {
+        this.recipients = Math.max(1, recipients);
+        return this;
+    }
+
+
+    /**
+     * Sets the approximate message size
+     *
+     * @param bodyBytes
+     *            the message size in bytes
+     * @return this
+     */
+    public LoadGenerator bodyBytes(int bodyBytes)
+    {
+        this.bodyBytes = Math.max(0, bodyBytes);
+        return this;
+    }
+
+
+    /**
+     * Sets how long idle sessions hold their connection
+     *
+     * @param milliseconds
+     *            the idle time
+     * @return this
+     */
+    public LoadGenerator idle(long milliseconds)
+    {
+        this.idle = Math.max(0, milliseconds);
+        return this;
+    }
+
+
+    /**
+     * Sets the reply read timeout
+     *
+     * @param milliseconds
+     *            the timeout
+     * @return this
+     */
+    public LoadGenerator timeout(int milliseconds)
+    {
+        this.timeout = milliseconds;
+        return this;
+    }
+
+
+    int getRecipients()
+    {
+        return recipients;
+    }
+
+
+    long getIdle()
+    {
+        return idle;
+    }
+
+
+    List<String> getBody()
+    {
+        return body;
+    }
+
+
+    /*
+     * ------------------------------------------------------------------------
+     *
+     * Running
+     *
+     * ------------------------------------------------------------------------
+     */
+
+    /**
+     * Runs the load, returning when the duration has passed and sessions in
+     * progress have finished
+     *
+     * @return the results
+     * @throws InterruptedException
+     *             the run was interrupted
+     */
+    public Results run() throws InterruptedException
+    {
+        if (mix.isEmpty()) mix.put(Dialogue.NORMAL, 1);
+        body = body(bodyBytes);
+
+        logger.info(CONST_MSG_START,
+                rate > 0 ? String.format(CONST_OPEN_LOOP, rate)
+                        : CONST_CLOSED_LOOP,
+                address, connections, duration);
+
+        Results results = new Results();
+        long start = System.nanoTime();
+
+        if (rate > 0)
+            openLoop(results, start);
+        else
+            closedLoop(results, start);
+
+        results.elapsed(System.nanoTime() - start);
+        return results;
+    }
+
+
+    /**
+     * Each connection runs sessions back to back until the deadline
+     */
+    private void closedLoop(Results results, long start)
+            throws InterruptedException
+    {
+        long deadline = start + duration.toNanos();
+        List<Thread> threads = new ArrayList<>(connections);
+
+        for (int i = 0; i < connections; i++)
+        {
+            Thread thread = new Thread(() -> {
+                while (System.nanoTime() - deadline < 0)
+                {
+                    session(results, System.nanoTime());
+                }
+            }, String.format(CONST_THREAD_NAME, i));
+            thread.start();
+            threads.add(thread);
+        }
+
+        for (Thread thread : threads)
+        {
+            thread.join();
+        }
+    }
+
+
+    /**
+     * Sessions are due at a fixed rate and run on the next free connection.
+     * Sessions still queued once in-progress sessions have had the read
+     * timeout to finish are counted as not started.
+     */
+    private void openLoop(Results results, long start)
+            throws InterruptedException
+    {
+        long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+        long sessions = duration.toNanos() / interval;
+
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(connections,
+                connections, 0, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                runnable -> {
+                    Thread thread = new Thread(runnable);
+                    thread.setDaemon(true);
+                    return thread;
+                });
+
+        for (long i = 0; i < sessions; i++)
+        {
+            long due = start + i * interval;
+            long wait;
+
+            while ((wait = due - System.nanoTime()) > 0)
+            {
+                LockSupport.parkNanos(wait);
+            }
+
+            executor.execute(() -> session(results, due));
+        }
+
+        executor.shutdown();
+        if (!executor.awaitTermination(timeout + idle, TimeUnit.MILLISECONDS))
+        {
+            results.notStarted(executor.shutdownNow().size());
+        }
+    }
+
+
+    /**
+     * Runs one session of a dialogue chosen from the mix
+     *
+     * @param results
+     *            the results
+     * @param due
+     *            when the session was due to start
+     */
+    private void session(Results results, long due)
+    {
+        try (SmtpClient client = new SmtpClient(address, timeout, results))
+        {
+            pick().run(client, this, results);
+            results.session(System.nanoTime() - due);
+        }
+        catch (IOException e)
+        {
+            logger.debug(CONST_MSG_SESSION_FAILED, e.toString());
+            results.failed();
+        }
+    }
+
+
+    /**
+     * Picks a dialogue at random by weight
+     */
+    private Dialogue pick()
+    {
+        int total = 0;
+        for (int weight : mix.values()) total += weight;
+
+        int choice = ThreadLocalRandom.current().nextInt(total);
+
+        for (Map.Entry<Dialogue, Integer> entry : mix.entrySet())
+        {
+            if ((choice -= entry.getValue()) < 0) return entry.getKey();
+        }
+
+        return Dialogue.NORMAL;
+    }
+
+
+    /**
+     * Builds a message body of about the given size from fixed length lines
+     */
+    private static List<String> body(int bytes)
+    {
+        List<String> lines = new ArrayList<>();
+        lines.add(CONST_SUBJECT);
+        lines.add("");
+
+        String line = "x".repeat(CONST_LINE_LENGTH);
+        for (int size = 0; size < bytes; size += CONST_LINE_LENGTH + 2)
+        {
+            lines.add(line);
+        }
+
+        return Collections.unmodifiableList(lines);
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.loadgen;
+
+import java.io.PrintStream;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.github.technosf.smutpea.core.metrics.LatencyHistogram;
+import com.github.technosf.smutpea.core.rfc.Command;
+
+/**
+ * {@code Results}
+ * <p>
+ * Throughput counters and reply latency histograms for a load run. Safe for
+ * concurrent recording from every connection.
+ * <p>
+ * Session latency is measured from when the session was due to start, so in
+ * open-loop runs it includes any time spent queued behind a slow server.
+ *
+ * @author technosf
+ * @since 0.0.6
+ * @version 0.0.6
+ */
+public final class Results
+{
+    /*
+     * Constants
+     */
+    private static final String CONST_FMT_SUMMARY =
+            "Sessions: %1$d (%2$.1f/s)  Messages: %3$d (%4$.1f/s)  Failed: %5$d  Unexpected replies: %6$d  Not started: %7$d%n";
+    private static final String CONST_FMT_HEADER =
+            "%n%-10s %10s %10s %10s %10s %10s %10s%n";
+    private static final String CONST_FMT_ROW =
+            "%-10s %10d %10d %10d %10d %10d %10d%n";
+    private static final String CONST_MESSAGE = "MESSAGE";
+    private static final String CONST_SESSION = "SESSION";
+
+    private final Map<Command, LatencyHistogram> commands =
+            new EnumMap<>(Command.class);
+    private final LatencyHistogram message = new LatencyHistogram();
+    private final LatencyHistogram session = new LatencyHistogram();
+
+    private final LongAdder sessions = new LongAdder();
+    private final LongAdder messages = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder unexpected = new LongAdder();
+    private final LongAdder notStarted = new LongAdder();
+
+    private long elapsed;
+
+
+    /**
+     * Constructor
+     */
+    Results()
+    {
+        for (Command command : Command.values())
+        {
+            commands.put(command, new LatencyHistogram());
+        }
+    }
+
+
+    /*
+     * ------------------------------------------------------------------------
+     *
+     * Recording
+     *
+     * ------------------------------------------------------------------------
+     */
+
+    void reply(Command command, long nanos)
+    {
+        commands.get(command).record(nanos);
+    }
+
+
+    void message(int code, long nanos)
+    {
+        message.record(nanos);
+        if (code / 100 == 2) messages.increment();
+    }
+
+
+    void session(long nanos)
+    {
+        session.record(nanos);
+        sessions.increment();
+    }
+
+
+    void failed()
+    {
+        failed.increment();
+    }
+
+
+    void unexpected()
+    {
+        unexpected.increment();
+    }
+
+
+    void notStarted(long count)
+    {
+        notStarted.add(count);
+    }
+
+
+    void elapsed(long nanos)
+    {
+        elapsed = nanos;
+    }
+
+
+    /*
+     * ------------------------------------------------------------------------
+     *
+     * Accessors
+     *
+     * ------------------------------------------------------------------------
+     */
+
+    /**
+     * Returns the number of sessions completed
+     *
+     * @return the session count
+     */
+    public long getSessions()
+    {
+        return sessions.sum();
+    }
+
+
+    /**
+     * Returns the number of messages accepted
+     *
+     * @return the message count
+     */
+    public long getMessages()
+    {
+        return messages.sum();
+    }
+
+
+    /**
+     * Returns the number of sessions that failed on a connection error
+     *
+     * @return the failure count
+     */
+    public long getFailed()
+    {
+        return failed.sum();
+    }
+
+
+    /**
+     * Returns the number of replies that were not what the dialogue expected
+     *
+     * @return the unexpected reply count
+     */
+    public long getUnexpected()
+    {
+        return unexpected.sum();
+    }
+
+
+    /**
+     * Returns the number of open-loop sessions still queued when the run
+     * ended
+     *
+     * @return the count of sessions not started
+     */
+    public long getNotStarted()
+    {
+        return notStarted.sum();
+    }
+
+
+    /**
+     * Returns the reply latency histogram for a command, in nanoseconds
+     *
+     * @param command
+     *            the command, {@code CONNECT} for the greeting
+     * @return the histogram
+     */
+    public LatencyHistogram getLatency(Command command)
+    {
+        return commands.get(command);
+    }
+
+
+    /**
+     * Returns the end of data reply latency histogram, in nanoseconds
+     *
+     * @return the histogram
+     */
+    public LatencyHistogram getMessageLatency()
+    {
+        return message;
+    }
+
+
+    /**
+     * Returns the session latency histogram, in nanoseconds
+     *
+     * @return the histogram
+     */
+    public LatencyHistogram getSessionLatency()
+    {
+        return session;
+    }
+
+
+    /**
+     * Prints throughput and latency percentiles, in microseconds, for each
+     * command seen
+     *
+     * @param out
+     *            the stream to print to
+     */
+    public void report(PrintStream out)
+    {
+        double seconds = Math.max(1, elapsed) / 1e9;
+
+        out.printf(CONST_FMT_SUMMARY, getSessions(), getSessions() / seconds,
+                getMessages(), getMessages() / seconds, getFailed(),
+                getUnexpected(), getNotStarted());
+        out.printf(CONST_FMT_HEADER, "Latency us", "count", "p50", "p90",
+                "p99", "p99.9", "max");
+
+        for (Map.Entry<Command, LatencyHistogram> entry : commands.entrySet())
+        {
+            row(out, entry.getKey().name(), entry.getValue());
+        }
+        row(out, CONST_MESSAGE, message);
+        row(out, CONST_SESSION, session);
+    }
+
+
+    /**
+     * Prints one histogram, if it has values
+     */
+    private static void row(PrintStream out, String name,
+            LatencyHistogram histogram)
+    {
+        if (histogram.getCount() == 0) return;
+
+        out.printf(CONST_FMT_ROW, name, histogram.getCount(),
+                micros(histogram.getPercentile(50)),
+                micros(histogram.getPercentile(90)),
+                micros(histogram.getPercentile(99)),
+                micros(histogram.getPercentile(99.9)),
+                micros(histogram.getMax()));
+    }
+
+
+    private static long micros(long nanos)
+    {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+}
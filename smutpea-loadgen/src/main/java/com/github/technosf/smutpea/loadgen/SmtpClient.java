@@ -0,0 +1,196 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.loadgen;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import com.github.technosf.smutpea.core.rfc.Command;
+
+/**
+ * {@code SmtpClient}
+ * <p>
+ * A minimal, blocking SMTP client for one session that times each reply and
+ * records it in the {@code Results}. Message lines are written without
+ * waiting, only the end of data is timed.
+ *
+ * @author technosf
+ * @since 0.0.6
+ * @version 0.0.6
+ */
+final class SmtpClient
+        implements AutoCloseable
+{
+    /*
+     * Constants
+     */
+    private static final String CONST_CRLF = "\r\n";
+    private static final String CONST_END_OF_DATA = ".";
+    private static final String CONST_ERR_REPLY = "Malformed reply: [%1$s]";
+
+    private static final int CONST_CONNECT_TIMEOUT = 10_000;
+
+    private final Socket socket;
+    private final BufferedReader in;
+    private final Writer out;
+    private final Results results;
+
+    private String reply;
+
+
+    /**
+     * Connects to the server and times the greeting
+     *
+     * @param address
+     *            the server address
+     * @param timeout
+     *            the read timeout in milliseconds
+     * @param results
+     *            the results to record into
+     * @throws IOException
+     *             the connection failed
+     */
+    SmtpClient(InetSocketAddress address, int timeout, Results results)
+            throws IOException
+    {
+        this.results = results;
+
+        long start = System.nanoTime();
+
+        socket = new Socket();
+        try
+        {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(timeout);
+            socket.connect(address, CONST_CONNECT_TIMEOUT);
+            in = new BufferedReader(new InputStreamReader(
+                    socket.getInputStream(), StandardCharsets.US_ASCII));
+            out = new BufferedWriter(new OutputStreamWriter(
+                    socket.getOutputStream(), StandardCharsets.US_ASCII));
+        }
+        catch (IOException e)
+        {
+            socket.close();
+            throw e;
+        }
+
+        read();
+        results.reply(Command.CONNECT, System.nanoTime() - start);
+    }
+
+
+    /**
+     * Sends a command line and times the reply
+     *
+     * @param command
+     *            the command being sent, used to key the latency
+     * @param line
+     *            the command line
+     * @return the reply code
+     * @throws IOException
+     *             the connection failed
+     */
+    int command(Command command, String line) throws IOException
+    {
+        long start = System.nanoTime();
+
+        out.write(line);
+        out.write(CONST_CRLF);
+        out.flush();
+
+        int code = read();
+        results.reply(command, System.nanoTime() - start);
+        return code;
+    }
+
+
+    /**
+     * Sends message lines, dot-stuffed, and the end of data, timing the
+     * reply to the end of data
+     *
+     * @param lines
+     *            the message lines
+     * @return the reply code
+     * @throws IOException
+     *             the connection failed
+     */
+    int message(List<String> lines) throws IOException
+    {
+        for (String line : lines)
+        {
+            if (line.startsWith(CONST_END_OF_DATA)) out.write(CONST_END_OF_DATA);
+            out.write(line);
+            out.write(CONST_CRLF);
+        }
+
+        long start = System.nanoTime();
+
+        out.write(CONST_END_OF_DATA);
+        out.write(CONST_CRLF);
+        out.flush();
+
+        int code = read();
+        results.message(code, System.nanoTime() - start);
+        return code;
+    }
+
+
+    /**
+     * Returns the last reply line
+     *
+     * @return the reply
+     */
+    String getReply()
+    {
+        return reply;
+    }
+
+
+    /**
+     * Reads a reply, including continuation lines, returning its code
+     */
+    private int read() throws IOException
+    {
+        do
+        {
+            if ((reply = in.readLine()) == null) throw new EOFException();
+        }
+        while (reply.length() > 3 && reply.charAt(3) == '-');
+
+        try
+        {
+            return Integer.parseInt(reply.substring(0, 3));
+        }
+        catch (RuntimeException e)
+        {
+            throw new IOException(String.format(CONST_ERR_REPLY, reply), e);
+        }
+    }
+
+
+    @Override
+    public void close() throws IOException
+    {
+        socket.close();
+    }
+}
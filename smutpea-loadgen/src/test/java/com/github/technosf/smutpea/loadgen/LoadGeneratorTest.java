@@ -0,0 +1,143 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.loadgen;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import com.github.technosf.smutpea.core.rfc.Command;
+import com.github.technosf.smutpea.server.example.SocketSinkServer;
+
+/**
+ * Unit test for {@code LoadGenerator} against an in-process
+ * {@code SocketSinkServer}
+ *
+ * @author technosf
+ * @since 0.0.6
+ * @version 0.0.6
+ */
+public class LoadGeneratorTest
+{
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private ServerSocket serverSocket;
+
+
+    @BeforeClass
+    public void beforeClass() throws IOException
+    {
+        serverSocket = new ServerSocket(0);
+        executor.submit(() -> {
+            while (!serverSocket.isClosed())
+            {
+                try
+                {
+                    Socket socket = serverSocket.accept();
+                    executor.submit(new SocketSinkServer(socket));
+                }
+                catch (IOException e)
+                {
+                    // Closed
+                }
+            }
+        });
+    }
+
+
+    @AfterClass
+    public void afterClass() throws IOException
+    {
+        serverSocket.close();
+        executor.shutdownNow();
+    }
+
+
+    @Test
+    public void closedLoop() throws InterruptedException
+    {
+        Results results = load().connections(2)
+                .duration(Duration.ofSeconds(2)).recipients(2).run();
+
+        assertTrue(results.getSessions() > 0, "Sessions");
+        assertEquals(results.getMessages(), results.getSessions());
+        assertEquals(results.getFailed(), 0);
+        assertEquals(results.getUnexpected(), 0);
+        assertEquals(results.getLatency(Command.RCPT).getCount(),
+                2 * results.getSessions());
+        assertEquals(results.getLatency(Command.CONNECT).getCount(),
+                results.getSessions());
+    }
+
+
+    @Test
+    public void openLoopMix() throws InterruptedException
+    {
+        Results results = load().connections(4).rate(4)
+                .duration(Duration.ofSeconds(2)).idle(100)
+                .mix(Dialogue.IDLE, 1).mix(Dialogue.ABUSE, 1).run();
+
+        assertEquals(results.getSessions(), 8);
+        assertEquals(results.getFailed(), 0);
+        assertEquals(results.getUnexpected(), 0,
+                "Out of sequence commands should be refused");
+        assertEquals(results.getMessages(), 0);
+        assertEquals(results.getSessionLatency().getCount(), 8);
+    }
+
+
+    @Test
+    public void refused() throws InterruptedException, IOException
+    {
+        int port;
+        try (ServerSocket closed = new ServerSocket(0))
+        {
+            port = closed.getLocalPort();
+        }
+
+        Results results = new LoadGenerator("localhost", port)
+                .duration(Duration.ofMillis(100)).run();
+
+        assertTrue(results.getFailed() > 0, "Failed");
+        assertEquals(results.getSessions(), 0);
+    }
+
+
+    @Test
+    public void rateClamped() throws InterruptedException
+    {
+        Results results = load().rate(Integer.MAX_VALUE)
+                .duration(Duration.ofNanos(10)).run();
+
+        assertEquals(results.getSessions() + results.getFailed(), 10,
+                "One session a nanosecond");
+    }
+
+
+    private LoadGenerator load()
+    {
+        return new LoadGenerator("localhost", serverSocket.getLocalPort())
+                .bodyBytes(512);
+    }
+}
@@ -0,0 +1,452 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.mta;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.technosf.smutpea.core.Buffer;
+import com.github.technosf.smutpea.core.exceptions.MTAException;
+import com.github.technosf.smutpea.core.rfc.Command.CommandLine;
+import com.github.technosf.smutpea.core.rfc.ReplyCode;
+import com.github.technosf.smutpea.core.rfc.Session;
+import com.github.technosf.smutpea.mta.mime.MimeScanner;
+import com.github.technosf.smutpea.mta.mime.PartStage;
+
+/**
+ * {@code AbstractDeliveryMTA}
+ * <p>
+ * An {@code MTA} that accepts mail, as {@code SinkMTA} does, but keeps the
+ * envelope of each transaction: the HELO domain, the reverse path and every
+ * forward path, and the message data. At the end of the data the
+ * {@code Envelope} is handed to {@link #deliver(Envelope)}; the client is
+ * replied <em>250</em> with the id delivery returns, or <em>451</em> if
+ * delivery failed, or the code of a {@code DeliveryDeferredException} if it
+ * deferred the message. A transaction with no recipients is replied
+ * <em>554</em>.
+ * <p>
+ * The envelope is reset by HELO, EHLO, MAIL and RSET, and after each message.
+ * <p>
+ * The MIME structure of the data is scanned as it arrives; a
+ * {@code PartStage} given to the constructor can take part bodies out of
+ * the data as they stream in. The bodies taken from a message that is not
+ * delivered, or whose session closes before the end of the data, are
+ * deleted.
+ *
+ * @author technosf
+ * @since 0.0.6
+ * @version 0.0.6
+ */
+public abstract class AbstractDeliveryMTA
+        extends AbstractMTA
+{
+    private static final Logger logger = LoggerFactory
+            .getLogger(AbstractDeliveryMTA.class);
+
+    /*
+     * Constants
+     */
+    private static final String CONST_MSG_DELIVERED =
+            "Mail from:[{}] to:{} delivered as:[{}]";
+    private static final String CONST_MSG_FAILED =
+            "Mail from:[{}] to:{} could not be delivered";
+    private static final String CONST_MSG_DEFERRED =
+            "Mail from:[{}] to:{} deferred: {}";
+    private static final String CONST_MSG_DISCARD =
+            "Could not release the extracted parts of an undelivered message";
+    private static final String CONST_FMT_ACCEPTED = "%1$s OK queued as %2$s";
+    private static final String CONST_FMT_NO_RCPT = "%1$s No valid recipients";
+
+    private static final byte[] CONST_CRLF =
+            Session.CRLF.getBytes(StandardCharsets.US_ASCII);
+
+    /*
+     * The transaction envelope
+     */
+    private final EnvelopeBuffer buffer;
+    private final PartStage stage;
+    private String helo;
+
+
+    /**
+     * Constructor setting the domain and mta name.
+     *
+     * @param mtaName
+     *            The MTA name
+     * @param mtaDomain
+     *            The domain the MTA is answering for
+     * @throws MTAException
+     *             Session creation failed.
+     */
+    protected AbstractDeliveryMTA(final String mtaName,
+            final String mtaDomain) throws MTAException
+    {
+        this(mtaName, mtaDomain, null);
+    }
+
+
+    /**
+     * Constructor setting the domain, mta name and DATA-phase part stage.
+     *
+     * @param mtaName
+     *            The MTA name
+     * @param mtaDomain
+     *            The domain the MTA is answering for
+     * @param stage
+     *            The stage offered each part, {@literal null} for none
+     * @throws MTAException
+     *             Session creation failed.
+     */
+    protected AbstractDeliveryMTA(final String mtaName,
+            final String mtaDomain, final PartStage stage)
+            throws MTAException
+    {
+        super(mtaName, mtaDomain);
+        this.stage = stage;
+        buffer = new EnvelopeBuffer(stage);
+    }
+
+
+    /**
+     * <em>Deliver</em> an accepted message.
+     * <p>
+     * Delivery must be complete, durable if the MTA promises that, before
+     * this returns, as the client is told the message is accepted.
+     *
+     * @param envelope
+     *            the message and its envelope
+     * @return an id for the message, given to the client
+     * @throws DeliveryDeferredException
+     *             the message cannot be taken now
+     * @throws IOException
+     *             the message could not be delivered
+     */
+    protected abstract String deliver(final Envelope envelope)
+            throws IOException;
+
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see com.github.technosf.smutpea.mta.AbstractMTA#processValidCommand(com.github.technosf.smutpea.core.rfc.Command.CommandLine)
+     */
+    @Override
+    protected void processValidCommand(CommandLine commandLine)
+            throws MTAException
+    {
+        ReplyCode replyCode = ReplyCode._250;
+        String[] params = commandLine.getParams();
+
+        switch (commandLine.getCommand())
+        {
+            case EHLO:
+            case HELO:
+                helo = params.length > 0 ? params[0] : null;
+                buffer.clear();
+                break;
+            case MAIL:
+                buffer.clear();
+                buffer.setReversePath(params.length > 0 ? params[0] : "");
+                break;
+            case RCPT:
+                if (params.length > 0) buffer.setForwardPath(params[0]);
+                break;
+            case RSET:
+                buffer.clear();
+                break;
+            case DATA:
+                buffer.clearMailData();
+                replyCode = ReplyCode._354;
+                break;
+            case HELP:
+                replyCode = ReplyCode._214;
+                break;
+            case QUIT:
+                replyCode = ReplyCode._221;
+                break;
+            default:
+                break;
+        }
+
+        setResponse(replyCode);
+    }
+
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see com.github.technosf.smutpea.mta.AbstractMTA#processInvalidCommand(com.github.technosf.smutpea.core.rfc.Command.CommandLine)
+     */
+    @Override
+    protected void processInvalidCommand(final CommandLine commandLine)
+            throws MTAException
+    {
+        ReplyCode replyCode = ReplyCode._503;
+
+        if (commandLine != null && commandLine.getCommand() != null)
+        {
+            switch (commandLine.getCommand())
+            {
+                case RSET:
+                case VRFY:
+                    replyCode = ReplyCode._501;
+                    break;
+                case EHLO:
+                case HELO:
+                    replyCode = commandLine.getParams().length > 0
+                            ? ReplyCode._503 : ReplyCode._501;
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        setResponse(replyCode);
+    }
+
+
+    /**
+     * Hands the envelope to {@code deliver} and replies with the outcome
+     *
+     * @see com.github.technosf.smutpea.mta.AbstractMTA#sendMessage(java.lang.String)
+     */
+    @Override
+    protected final void sendMessage(final String message)
+    {
+        List<String> forwardPaths = buffer.forwardPaths;
+
+        if (forwardPaths.isEmpty())
+        {
+            setResponse(ReplyCode._554, String.format(CONST_FMT_NO_RCPT,
+                    ReplyCode._554.getCode()));
+            buffer.clear();
+            return;
+        }
+
+        String reversePath = buffer.getReversePath();
+        forwardPaths = List.copyOf(forwardPaths);
+        Envelope envelope = null;
+
+        try
+        {
+            envelope = new Envelope(Instant.now(), helo, reversePath,
+                    forwardPaths, buffer.toByteArray(),
+                    buffer.scanner.finish(buffer.size()));
+            buffer.clear();
+
+            String id = deliver(envelope);
+            logger.debug(CONST_MSG_DELIVERED, reversePath, forwardPaths, id);
+            setResponse(ReplyCode._250, String.format(CONST_FMT_ACCEPTED,
+                    ReplyCode._250.getCode(), id));
+        }
+        catch (DeliveryDeferredException e)
+        {
+            logger.debug(CONST_MSG_DEFERRED, reversePath, forwardPaths,
+                    e.getMessage());
+            setResponse(e.getReplyCode());
+            buffer.clear();
+            discard(envelope);
+        }
+        catch (IOException | RuntimeException e)
+        {
+            logger.warn(CONST_MSG_FAILED, reversePath, forwardPaths, e);
+            setResponse(ReplyCode._451);
+            buffer.clear();
+            discard(envelope);
+        }
+    }
+
+
+    /**
+     * Abandons any transaction in progress, so the parts of a message cut off
+     * mid-data by a disconnect or timeout are deleted
+     *
+     * @see com.github.technosf.smutpea.mta.AbstractMTA#close()
+     */
+    @Override
+    public void close()
+    {
+        buffer.clear();
+        super.close();
+    }
+
+
+    /**
+     * Releases the extracted parts of an undelivered message
+     */
+    private void discard(final Envelope envelope)
+    {
+        if (envelope == null || envelope.structure() == null) return;
+
+        try
+        {
+            envelope.structure().release(stage);
+        }
+        catch (IOException e)
+        {
+            logger.warn(CONST_MSG_DISCARD, e);
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see com.github.technosf.smutpea.core.MTA#getBuffer()
+     */
+    @Override
+    public final Buffer getBuffer()
+    {
+        return buffer;
+    }
+
+
+    /**
+     * Returns the HELO or EHLO domain the client gave
+     *
+     * @return the domain, {@literal null} if none
+     */
+    protected final String getHelo()
+    {
+        return helo;
+    }
+
+
+    /**
+     * {@code Buffer} for the envelope of one transaction, collecting every
+     * forward path and the message data as bytes
+     */
+    private static final class EnvelopeBuffer
+            extends ByteArrayOutputStream
+            implements Buffer
+    {
+        private final List<String> forwardPaths = new ArrayList<>();
+        private final MimeScanner scanner;
+        private String reversePath = "";
+
+
+        EnvelopeBuffer(PartStage stage)
+        {
+            scanner = new MimeScanner(stage);
+        }
+
+
+        /**
+         * Appends a line of message data, removing dot-stuffing, and scans
+         * it for MIME structure
+         */
+        @Override
+        public void appendMailData(String mailData)
+        {
+            String line = mailData.startsWith("..") ? mailData.substring(1)
+                    : mailData;
+            byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+            if (!scanner.line(line, count, count + bytes.length))
+            {
+                writeBytes(bytes);
+                writeBytes(CONST_CRLF);
+            }
+        }
+
+
+        /**
+         * Adds a forward path
+         */
+        @Override
+        public void setForwardPath(String forwardPath)
+        {
+            forwardPaths.add(forwardPath);
+        }
+
+
+        @Override
+        public void setReversePath(String reversePath)
+        {
+            this.reversePath = reversePath;
+        }
+
+
+        @Override
+        public String getMailData()
+        {
+            return toString(StandardCharsets.UTF_8);
+        }
+
+
+        /**
+         * Returns the forward paths, comma separated
+         */
+        @Override
+        public String getForwardPath()
+        {
+            return String.join(",", forwardPaths);
+        }
+
+
+        @Override
+        public String getReversePath()
+        {
+            return reversePath;
+        }
+
+
+        @Override
+        public void clear()
+        {
+            clearMailData();
+            clearForwardPath();
+            clearReversePath();
+        }
+
+
+        @Override
+        public void clearMailData()
+        {
+            reset();
+            scanner.reset();
+        }
+
+
+        @Override
+        public void clearForwardPath()
+        {
+            forwardPaths.clear();
+        }
+
+
+        @Override
+        public void clearReversePath()
+        {
+            reversePath = "";
+        }
+
+
+        /**
+         * Returns the paths only, as the data goes to {@code deliver} in the
+         * envelope rather than to {@code sendMessage} as a String
+         */
+        @Override
+        public String toString()
+        {
+            return reversePath + " -> " + getForwardPath();
+        }
+    }
+}
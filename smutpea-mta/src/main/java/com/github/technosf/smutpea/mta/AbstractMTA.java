@@ -22,6 +22,9 @@ import com.github.technosf.smutpea.core.MTA;
 import com.github.technosf.smutpea.core.exceptions.MTAException;
 import com.github.technosf.smutpea.core.exceptions.SessionStateException;
 import com.github.technosf.smutpea.core.exceptions.SmtpLineException;
+import com.github.technosf.smutpea.core.jfr.CommandEvent;
+import com.github.technosf.smutpea.core.metrics.Metrics;
+import com.github.technosf.smutpea.core.rfc.Command;
 import com.github.technosf.smutpea.core.rfc.ReplyCode;
 import com.github.technosf.smutpea.core.rfc.Session;
 import com.github.technosf.smutpea.core.rfc.SessionState;
@@ -62,6 +65,13 @@ implements MTA
     private static final String CONST_MSG_CLOSE_ERR =
             "Exception closing session";
 
+    private static final String CONST_DATA_END = ".";
+
+    /**
+     * JVM-wide metrics
+     */
+    private static final Metrics metrics = Metrics.get();
+
     /**
      * Command response format - code, message, extra
      */
@@ -93,12 +103,38 @@ implements MTA
     private ReplyCode replyCode;
 
 
+    /**
+     * Debug logging, sampled once per MTA to keep the per-line cost down
+     */
+    private final boolean debug = logger.isDebugEnabled();
+
+
     /**
      * The approximate time the MTA has been idle
      * waiting for Client input
      */
     protected long clientIdleTimeMillis;
 
+    /**
+     * The command found on the line being processed, for metrics
+     */
+    private Command lineCommand;
+
+    /**
+     * Was the command on the line being processed valid and in sequence
+     */
+    private boolean lineValid;
+
+    /**
+     * Size of the message data received so far
+     */
+    private long dataBytes;
+
+    /**
+     * Has the close of this MTA been counted
+     */
+    private boolean closeCounted;
+
 
     /**
      * Constructor setting the domain and mta name.
@@ -116,6 +152,7 @@ implements MTA
         this.mtaName = mtaName;
         this.mtaDomain = mtaDomain;
         this.session = new Session(this);
+        metrics.sessionOpened();
     }
 
 
@@ -194,6 +231,7 @@ implements MTA
             ) return false;
         
         setResponse(ReplyCode._421, "421 " + CONST_ERR_TIMEOUT);
+        metrics.sessionTimedOut();
         close();
 
         return true;
@@ -272,7 +310,47 @@ implements MTA
     @Override
     public final void processInputLine(String line) throws MTAException
     {
-        logger.debug(CONST_MSG_PROCESS, line);
+        long start = System.nanoTime();
+        SessionState state = session.getStateTable().getState();
+        CommandEvent event = new CommandEvent();
+        event.begin();
+        lineCommand = null;
+        lineValid = false;
+
+        try
+        {
+            processLine(line);
+        }
+        finally
+        {
+            record(state, line, System.nanoTime() - start);
+
+            if (SessionState.DATA != state && event.shouldCommit())
+            // JFR is recording commands
+            {
+                event.mta = mtaName;
+                event.command = lineCommand == null ? Metrics.CONST_UNKNOWN
+                        : lineCommand.name();
+                event.valid = lineValid;
+                event.startState = state.name();
+                event.endState = session.getStateTable().getState().name();
+                event.replyCode = replyCode == null ? 0 : replyCode.getCode();
+                event.commit();
+            }
+        }
+    } // public final void processInputLine(String line) throws MTAException
+
+
+    /**
+     * Process a line through the {@code Session}, setting the response
+     * 
+     * @param line
+     *            the input line
+     * @throws MTAException
+     */
+    private void processLine(String line) throws MTAException
+    {
+        if (debug) logger.debug(CONST_MSG_PROCESS, line);
 
         try
         {
@@ -297,6 +375,15 @@ implements MTA
              * the response
              */
             {
+                lineCommand = e.getCommandLine().getCommand();
+
+                if (lineCommand != null)
+                // A recognized command arriving out of sequence
+                {
+                    metrics.invalidTransition(
+                            session.getStateTable().getState());
+                }
+
                 logger.debug(CONST_MSG_INVLD_SESS_STATE,
                         session.getStateTable().getState(),
                         e.getCommandLine());
@@ -316,7 +403,51 @@ implements MTA
         {
             logger.debug(e.getMessage());
         }
-    } // public final void processLine(String line) throws MTAException
+    } // private void processLine(String line) throws MTAException
+
+
+    /**
+     * Record metrics for a processed line
+     * 
+     * @param state
+     *            the session state before the line was processed
+     * @param line
+     *            the input line
+     * @param nanos
+     *            the time taken to process the line
+     */
+    private void record(SessionState state, String line, long nanos)
+    {
+        if (SessionState.DATA != state)
+        // A command line
+        {
+            metrics.command(lineCommand);
+            metrics.commandLatency(lineCommand, nanos);
+        }
+        else if (line != null && !CONST_DATA_END.equals(line))
+        // A line of message data, count the line and its CRLF
+        {
+            dataBytes += line.length() + 2;
+            return;
+        }
+        else
+        // The end of the message data
+        {
+            metrics.messageLatency(nanos);
+
+            if (replyCode != null && replyCode.getCode() < 300)
+            {
+                metrics.messageAccepted(dataBytes);
+            }
+
+            dataBytes = 0;
+        }
+
+        if (response != null && !response.isEmpty())
+        {
+            metrics.reply(replyCode);
+        }
+    }
 
 
     /**
@@ -341,6 +472,9 @@ implements MTA
     public final void command(final CommandLine commandLine)
             throws MTAException
     {
+        lineCommand = commandLine.getCommand();
+        lineValid = commandLine.isValid();
+
         if (commandLine.isValid())
         // Valid command processor
         {
@@ -458,6 +592,12 @@ implements MTA
     @Override
     public void close()
     {
+        if (!closeCounted)
+        {
+            closeCounted = true;
+            metrics.sessionClosed();
+        }
+
         try 
         {
             session.close();
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.mta;
+
+import java.io.IOException;
+
+import com.github.technosf.smutpea.core.rfc.ReplyCode;
+
+/**
+ * Delivery Deferred Exception
+ * <p>
+ * Thrown by delivery that cannot take a message now, but may later, with the
+ * temporary failure the client is to be replied.
+ *
+ * @author technosf
+ * @since 0.0.6
+ * @version 0.0.6
+ */
+public class DeliveryDeferredException
+        extends IOException
+{
+    /**
+     * guid
+     */
+    private static final long serialVersionUID = -4402583190655283741L;
+
+    private final ReplyCode replyCode;
+
+
+    /**
+     * Constructor
+     *
+     * @param replyCode
+     *            The temporary failure to reply
+     * @param message
+     *            An explanation of the exception
+     */
+    public DeliveryDeferredException(final ReplyCode replyCode,
+            final String message)
+    {
+        super(message);
+        this.replyCode = replyCode;
+    }
+
+
+    /**
+     * Returns the reply code for the client
+     *
+     * @return the reply code
+     */
+    public ReplyCode getReplyCode()
+    {
+        return replyCode;
+    }
+}
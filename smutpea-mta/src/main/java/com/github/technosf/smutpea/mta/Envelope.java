@@ -0,0 +1,161 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.mta;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.List;
+
+import com.github.technosf.smutpea.mta.mime.MimePart;
+import com.github.technosf.smutpea.mta.mime.MimeScanner;
+import com.github.technosf.smutpea.mta.mime.MimeStructure;
+
+/**
+ * {@code Envelope}
+ * <p>
+ * A message accepted by an MTA: the client's HELO or EHLO domain, the
+ * reverse path from <em>MAIL FROM</em>, the forward paths from each
+ * <em>RCPT TO</em>, and the message data as received, each line ending
+ * CRLF with any dot-stuffing removed, and the MIME structure of the data
+ * when it was scanned on arrival.
+ *
+ * @param received
+ *            when the end of the data was received
+ * @param helo
+ *            the client domain, {@literal null} if not given
+ * @param reversePath
+ *            the reverse path, empty for the null sender
+ * @param forwardPaths
+ *            the forward paths
+ * @param data
+ *            the message data, UTF-8
+ * @param structure
+ *            the MIME structure, {@literal null} if not scanned
+ *
+ * @author technosf
+ * @since 0.0.6
+ * @version 0.0.6
+ */
+public record Envelope(Instant received, String helo, String reversePath,
+        List<String> forwardPaths, byte[] data, MimeStructure structure)
+{
+    /**
+     * Canonical constructor, the forward paths copied
+     */
+    public Envelope
+    {
+        forwardPaths = List.copyOf(forwardPaths);
+    }
+
+
+    /**
+     * Constructor for data whose structure was not scanned
+     *
+     * @param received
+     *            when the end of the data was received
+     * @param helo
+     *            the client domain
+     * @param reversePath
+     *            the reverse path
+     * @param forwardPaths
+     *            the forward paths
+     * @param data
+     *            the message data
+     */
+    public Envelope(Instant received, String helo, String reversePath,
+            List<String> forwardPaths, byte[] data)
+    {
+        this(received, helo, reversePath, forwardPaths, data, null);
+    }
+
+
+    /**
+     * Returns the MIME structure of the message, scanning the data if it was
+     * not scanned on arrival
+     *
+     * @return the structure
+     */
+    public MimeStructure getStructure()
+    {
+        return structure != null ? structure : MimeScanner.scan(data);
+    }
+
+
+    /**
+     * Returns a header of the message, reading only the header block
+     *
+     * @param name
+     *            the header name, any case
+     * @return the first value, {@literal null} if not present
+     */
+    public String header(String name)
+    {
+        return header(getStructure().getMessage(), name);
+    }
+
+
+    /**
+     * Returns a header of an entity of the message
+     *
+     * @param part
+     *            the entity
+     * @param name
+     *            the header name, any case
+     * @return the first value, {@literal null} if not present
+     */
+    public String header(MimePart part, String name)
+    {
+        return MimeStructure.header(data, part, name);
+    }
+
+
+    /**
+     * Opens the body of an entity of the message, decoding base64, or its
+     * extracted file
+     *
+     * @param part
+     *            the entity
+     * @return the content
+     * @throws IOException
+     *             an extracted body could not be opened
+     */
+    public InputStream open(MimePart part) throws IOException
+    {
+        return MimeStructure.open(data, part);
+    }
+
+
+    /**
+     * Returns the message data as a String
+     *
+     * @return the message
+     */
+    public String getMailData()
+    {
+        return new String(data, StandardCharsets.UTF_8);
+    }
+
+
+    /**
+     * Returns the size of the message data in bytes
+     *
+     * @return the size
+     */
+    public int size()
+    {
+        return data.length;
+    }
+}
@@ -0,0 +1,430 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.mta;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.technosf.smutpea.core.MTA;
+import com.github.technosf.smutpea.core.exceptions.MTAException;
+import com.github.technosf.smutpea.core.rfc.ReplyCode;
+
+/**
+ * {@code MTADriver}
+ * <p>
+ * An in-process SMTP client that drives an {@code MTA} directly, without
+ * streams, sockets or threads. Lines are fed straight to
+ * {@code MTA.processInputLine} and the replies returned synchronously, in the
+ * same way {@code AbstractServer} would write them to the client.
+ * <p>
+ * Fluent helpers allow whole dialogues to be expressed in one statement:
+ *
+ * <pre>
+ * new MTADriver(new SinkMTA("test")).connect()
+ *     .ehlo("client.test").expect(ReplyCode._250)
+ *     .mailFrom("from@client.test").rcptTo("to@sink.test")
+ *     .data("Subject: Hi", "", "Body").expect(ReplyCode._250)
+ *     .quit().expect(ReplyCode._221);
+ * </pre>
+ *
+ * @author technosf
+ * @since 0.0.6
+ * @version 0.0.6
+ */
+public class MTADriver
+        implements AutoCloseable
+{
+    private static final Logger logger = LoggerFactory
+            .getLogger(MTADriver.class);
+
+    /*
+     * Constants
+     */
+    private static final String CONST_MSG_MTA_EXCEPTION =
+            "MTA error processing input line: {}  MTA:[{}]";
+    private static final String CONST_ERR_EXPECT =
+            "Expected reply code [%1$s] but got [%2$s] for reply:[%3$s]";
+    private static final String CONST_ERR_CLOSE = "MTA failed to close";
+
+    private static final String CONST_DATA_END = ".";
+
+    /**
+     * The MTA being driven
+     */
+    private final MTA mta;
+
+    /**
+     * Every non-empty reply given by the MTA, in order
+     */
+    private final List<String> replies = new ArrayList<>();
+
+    /**
+     * The last reply, empty if the last line produced none
+     */
+    private String reply = "";
+
+    /**
+     * The last exception thrown by the MTA, if any
+     */
+    private MTAException exception;
+
+
+    /**
+     * Constructor setting the {@code MTA} to drive
+     *
+     * @param mta
+     *            the MTA
+     * @throws NullPointerException
+     *             the MTA cannot be {@literal null}
+     */
+    public MTADriver(final MTA mta) throws NullPointerException
+    {
+        this.mta = requireNonNull(mta);
+    }
+
+
+    /**
+     * Connects to the MTA, collecting the greeting
+     *
+     * @return this driver
+     */
+    public MTADriver connect()
+    {
+        mta.connect();
+        reply(mta.getResponse());
+        return this;
+    }
+
+
+    /**
+     * Sends a raw line to the MTA and returns the reply.
+     * <p>
+     * Mirrors {@code AbstractServer}: the idle timer is reset, the line
+     * processed and any non-empty response collected. {@code MTAException}s
+     * are recorded rather than thrown, as a server would log them and carry
+     * on.
+     *
+     * @param line
+     *            the line to send
+     * @return the reply, or the empty string if the line produced none
+     */
+    public String send(final String line)
+    {
+        exception = null;
+        mta.resetClientIdle();
+
+        try
+        {
+            mta.processInputLine(line);
+        }
+        catch (MTAException e)
+        {
+            logger.debug(CONST_MSG_MTA_EXCEPTION, line, e.getMessage());
+            exception = e;
+        }
+
+        return reply(mta.getResponse());
+    }
+
+
+    /**
+     * Sends a raw line to the MTA
+     *
+     * @param line
+     *            the line to send
+     * @return this driver
+     */
+    public MTADriver line(final String line)
+    {
+        send(line);
+        return this;
+    }
+
+
+    /**
+     * Sends {@code EHLO}
+     *
+     * @param domain
+     *            the client domain
+     * @return this driver
+     */
+    public MTADriver ehlo(final String domain)
+    {
+        return line("EHLO " + domain);
+    }
+
+
+    /**
+     * Sends {@code HELO}
+     *
+     * @param domain
+     *            the client domain
+     * @return this driver
+     */
+    public MTADriver helo(final String domain)
+    {
+        return line("HELO " + domain);
+    }
+
+
+    /**
+     * Sends {@code MAIL FROM}
+     *
+     * @param reversePath
+     *            the sender address, without angle brackets
+     * @return this driver
+     */
+    public MTADriver mailFrom(final String reversePath)
+    {
+        return line("MAIL FROM:<" + reversePath + ">");
+    }
+
+
+    /**
+     * Sends {@code RCPT TO} for each of the given recipients
+     *
+     * @param forwardPaths
+     *            the recipient addresses, without angle brackets
+     * @return this driver
+     */
+    public MTADriver rcptTo(final String... forwardPaths)
+    {
+        for (String forwardPath : forwardPaths)
+        {
+            line("RCPT TO:<" + forwardPath + ">");
+        }
+        return this;
+    }
+
+
+    /**
+     * Sends {@code DATA} and, if the MTA is ready for input, the given message
+     * lines and the end-of-data marker.
+     * <p>
+     * Lines starting with a period are dot-stuffed, as a client would per
+     * RFC5321 Section 4.5.2.
+     *
+     * @param lines
+     *            the message lines
+     * @return this driver
+     */
+    public MTADriver data(final String... lines)
+    {
+        line("DATA");
+
+        if (ReplyCode._354 != mta.getReplyCode())
+        // The MTA is not accepting data, so do not send the message as commands
+        {
+            return this;
+        }
+
+        for (String line : lines)
+        {
+            send(line.startsWith(CONST_DATA_END) ? CONST_DATA_END + line : line);
+        }
+
+        return line(CONST_DATA_END);
+    }
+
+
+    /**
+     * Sends {@code RSET}
+     *
+     * @return this driver
+     */
+    public MTADriver rset()
+    {
+        return line("RSET");
+    }
+
+
+    /**
+     * Sends {@code NOOP}
+     *
+     * @return this driver
+     */
+    public MTADriver noop()
+    {
+        return line("NOOP");
+    }
+
+
+    /**
+     * Sends {@code QUIT}
+     *
+     * @return this driver
+     */
+    public MTADriver quit()
+    {
+        return line("QUIT");
+    }
+
+
+    /**
+     * Lets the client sit idle for the given time, without sleeping, so that
+     * timeouts can be exercised.
+     *
+     * @param milliseconds
+     *            the idle time
+     * @return this driver
+     */
+    public MTADriver idle(final long milliseconds)
+    {
+        if (mta.updateClientIdle(milliseconds))
+        // The MTA timed out and generated a response
+        {
+            reply(mta.getResponse());
+        }
+        return this;
+    }
+
+
+    /**
+     * Asserts the reply code of the last reply
+     *
+     * @param replyCode
+     *            the expected reply code
+     * @return this driver
+     * @throws AssertionError
+     *             the reply code was not as expected
+     */
+    public MTADriver expect(final ReplyCode replyCode) throws AssertionError
+    {
+        if (replyCode != mta.getReplyCode())
+        {
+            throw new AssertionError(String.format(CONST_ERR_EXPECT,
+                    replyCode, mta.getReplyCode(), reply));
+        }
+        return this;
+    }
+
+
+    /**
+     * Returns the last reply
+     *
+     * @return the reply, or the empty string if the last line produced none
+     */
+    public String getReply()
+    {
+        return reply;
+    }
+
+
+    /**
+     * Returns the reply code of the last reply
+     *
+     * @return the reply code
+     */
+    public ReplyCode getReplyCode()
+    {
+        return mta.getReplyCode();
+    }
+
+
+    /**
+     * Returns all the replies given by the MTA, in order
+     *
+     * @return the replies
+     */
+    public List<String> getReplies()
+    {
+        return Collections.unmodifiableList(replies);
+    }
+
+
+    /**
+     * Returns the exception thrown processing the last line, if any
+     *
+     * @return the exception or {@literal null}
+     */
+    public MTAException getException()
+    {
+        return exception;
+    }
+
+
+    /**
+     * Is the MTA closed?
+     *
+     * @return true if the MTA is closed
+     */
+    public boolean isClosed()
+    {
+        return mta.isClosed();
+    }
+
+
+    /**
+     * Returns the MTA being driven
+     *
+     * @return the MTA
+     */
+    public MTA getMTA()
+    {
+        return mta;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     *
+     * Closes the MTA
+     *
+     * @throws IllegalStateException
+     *             the MTA failed to close
+     * @see java.lang.AutoCloseable#close()
+     */
+    @Override
+    public void close()
+    {
+        try
+        {
+            mta.close();
+        }
+        catch (RuntimeException e)
+        {
+            throw e;
+        }
+        catch (Exception e)
+        {
+            throw new IllegalStateException(CONST_ERR_CLOSE, e);
+        }
+    }
+
+
+    /**
+     * Records the given response as the last reply
+     *
+     * @param response
+     *            the MTA response
+     * @return the reply
+     */
+    private String reply(final String response)
+    {
+        reply = response == null ? "" : response;
+
+        if (!reply.isEmpty())
+        {
+            replies.add(reply);
+        }
+
+        return reply;
+    }
+}
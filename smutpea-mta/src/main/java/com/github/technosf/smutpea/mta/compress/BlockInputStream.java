@@ -0,0 +1,179 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.mta.compress;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.ZipException;
+
+/**
+ * {@code BlockInputStream}
+ * <p>
+ * Reads a frame a block at a time, inflating each as it is reached.
+ * Skipping passes over whole blocks by their headers, reading but not
+ * inflating them.
+ *
+ * @author technosf
+ * @since 0.0.6
+ * @version 0.0.6
+ */
+final class BlockInputStream
+        extends InputStream
+{
+    /*
+     * Constants
+     */
+    private static final String CONST_ERR_TRUNCATED =
+            "Compressed frame is truncated";
+
+    private final InputStream in;
+    private final byte[] header = new byte[Compression.CONST_HEADER];
+    private byte[] stored = new byte[0];
+    private byte[] block = new byte[0];
+    private int storedLength = 0;
+    private int position = 0;
+    private int limit = 0;
+    private boolean loaded = true;
+
+
+    /**
+     * Constructor
+     *
+     * @param in
+     *            the stream the frame is read from
+     */
+    BlockInputStream(InputStream in)
+    {
+        this.in = in;
+    }
+
+
+    @Override
+    public int read() throws IOException
+    {
+        if (!ready()) return -1;
+        return block[position++] & 0xff;
+    }
+
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        if (len == 0) return 0;
+        if (!ready()) return -1;
+
+        int n = Math.min(len, limit - position);
+        System.arraycopy(block, position, b, off, n);
+        position += n;
+        return n;
+    }
+
+
+    @Override
+    public long skip(long n) throws IOException
+    {
+        long skipped = 0;
+
+        while (n > 0)
+        {
+            if (position == limit && !header()) break;
+
+            int step = (int) Math.min(n, limit - position);
+            if (!loaded && step == limit)
+            // The whole block, passed over
+            {
+                in.skipNBytes(storedLength);
+                loaded = true;
+            }
+            else if (!loaded)
+            {
+                load();
+            }
+
+            position += step;
+            skipped += step;
+            n -= step;
+        }
+
+        return skipped;
+    }
+
+
+    @Override
+    public int available()
+    {
+        return loaded ? limit - position : 0;
+    }
+
+
+    @Override
+    public void close() throws IOException
+    {
+        in.close();
+    }
+
+
+    /**
+     * Readies the current block for reading, reading the next if this one
+     * is done
+     *
+     * @return false at the end of the frame
+     */
+    private boolean ready() throws IOException
+    {
+        if (position == limit && !header()) return false;
+        if (!loaded) load();
+        return true;
+    }
+
+
+    /**
+     * Reads the next block header
+     *
+     * @return false at the end of the frame
+     */
+    private boolean header() throws IOException
+    {
+        int n = in.readNBytes(header, 0, header.length);
+        if (n == 0) return false;
+        if (n < header.length) throw new ZipException(CONST_ERR_TRUNCATED);
+
+        ByteBuffer lengths = ByteBuffer.wrap(header);
+        int raw = lengths.getInt();
+        storedLength = lengths.getInt();
+        Compression.check(raw, storedLength);
+
+        position = 0;
+        limit = raw;
+        loaded = false;
+        return true;
+    }
+
+
+    /**
+     * Reads and inflates the current block
+     */
+    private void load() throws IOException
+    {
+        if (stored.length < storedLength) stored = new byte[storedLength];
+        if (block.length < limit) block = new byte[limit];
+
+        if (in.readNBytes(stored, 0, storedLength) < storedLength)
+            throw new ZipException(CONST_ERR_TRUNCATED);
+
+        Compression.inflate(stored, 0, storedLength, block, 0, limit);
+        loaded = true;
+    }
+}
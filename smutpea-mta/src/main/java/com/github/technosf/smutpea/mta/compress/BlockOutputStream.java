@@ -0,0 +1,117 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.mta.compress;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * {@code BlockOutputStream}
+ * <p>
+ * Gathers what is written into blocks and writes each, compressed, as it
+ * fills. Flushing writes the partial block, so a stream flushed often makes
+ * small blocks that compress less well.
+ *
+ * @author technosf
+ * @since 0.0.6
+ * @version 0.0.6
+ */
+final class BlockOutputStream
+        extends OutputStream
+{
+    private final Compression compression;
+    private final OutputStream out;
+    private final byte[] block;
+    private int count = 0;
+
+
+    /**
+     * Constructor
+     *
+     * @param compression
+     *            the compression
+     * @param out
+     *            the stream the frame is written to
+     */
+    BlockOutputStream(Compression compression, OutputStream out)
+    {
+        this.compression = compression;
+        this.out = out;
+        this.block = new byte[compression.getBlockSize()];
+    }
+
+
+    @Override
+    public void write(int b) throws IOException
+    {
+        block[count++] = (byte) b;
+        if (count == block.length) writeBlock();
+    }
+
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+        while (len > 0)
+        {
+            if (count == 0 && len >= block.length)
+            // Whole blocks straight from the caller's array
+            {
+                compression.write(b, off, block.length, out);
+                off += block.length;
+                len -= block.length;
+                continue;
+            }
+
+            int n = Math.min(len, block.length - count);
+            System.arraycopy(b, off, block, count, n);
+            count += n;
+            off += n;
+            len -= n;
+            if (count == block.length) writeBlock();
+        }
+    }
+
+
+    @Override
+    public void flush() throws IOException
+    {
+        if (count > 0) writeBlock();
+        out.flush();
+    }
+
+
+    @Override
+    public void close() throws IOException
+    {
+        try
+        {
+            flush();
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+
+    /**
+     * Writes the gathered block
+     */
+    private void writeBlock() throws IOException
+    {
+        compression.write(block, 0, count, out);
+        count = 0;
+    }
+}
@@ -0,0 +1,559 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.mta.compress;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * {@code Compression}
+ * <p>
+ * Compresses message data at rest as a frame of independently deflated
+ * blocks:
+ * 
+ * <pre>
+ * frame := block*
+ * block := raw:i32 stored:i32 octets
+ * </pre>
+ * 
+ * Each block holds up to <em>blockSize</em> bytes of data, <em>raw</em>,
+ * deflated to <em>stored</em> bytes with a zlib wrapper, or kept as they
+ * are, <em>stored</em> equal to <em>raw</em>, where deflating would not
+ * shrink them. As no block depends on another, a range of the data is read
+ * by walking the block headers and inflating only the blocks it covers.
+ * <p>
+ * {@code Deflater}s and {@code Inflater}s, and the buffer blocks are
+ * deflated into, are pooled one per thread and reset for each block, so
+ * compressing allocates no native state after a thread's first block.
+ * Files holding frames are named with the {@link #CONST_SUFFIX} suffix, so
+ * {@link #open(Path)} can read compressed and uncompressed files alike.
+ *
+ * @author technosf
+ * @since 0.0.6
+ * @version 0.0.6
+ */
+public final class Compression
+{
+    /*
+     * Constants
+     */
+    private static final int CONST_MAX_BLOCK = 16 * 1024 * 1024;
+    private static final String CONST_ERR_LEVEL =
+            "Compression level must be -1 to 9, not %1$d";
+    private static final String CONST_ERR_BLOCK =
+            "Block size must be 1 to %1$d, not %2$d";
+    private static final String CONST_ERR_CORRUPT =
+            "Compressed block is corrupt";
+
+    /**
+     * Default block size
+     */
+    public static final int CONST_BLOCK = 64 * 1024;
+
+    /**
+     * Suffix of files holding compressed frames
+     */
+    public static final String CONST_SUFFIX = ".z";
+
+    /**
+     * Bytes of a block header
+     */
+    static final int CONST_HEADER = 8;
+
+    /*
+     * Per thread pools
+     */
+    private static final ThreadLocal<Deflater> DEFLATERS =
+            ThreadLocal.withInitial(Deflater::new);
+    private static final ThreadLocal<Inflater> INFLATERS =
+            ThreadLocal.withInitial(Inflater::new);
+    private static final ThreadLocal<byte[]> SCRATCH =
+            ThreadLocal.withInitial(() -> new byte[CONST_BLOCK]);
+
+    private final int level;
+    private final int blockSize;
+
+    /*
+     * Counters
+     */
+    private final LongAdder rawBytes = new LongAdder();
+    private final LongAdder storedBytes = new LongAdder();
+    private final LongAdder blocks = new LongAdder();
+
+
+    /**
+     * Constructor with the default block size
+     *
+     * @param level
+     *            the {@code Deflater} level, -1 for its default, 0 to store
+     *            blocks as they are
+     */
+    public Compression(int level)
+    {
+        this(level, CONST_BLOCK);
+    }
+
+
+    /**
+     * Constructor
+     *
+     * @param level
+     *            the {@code Deflater} level, -1 for its default, 0 to store
+     *            blocks as they are
+     * @param blockSize
+     *            the bytes of data in each block, up to 16MB
+     */
+    public Compression(int level, int blockSize)
+    {
+        if (level < Deflater.DEFAULT_COMPRESSION
+                || level > Deflater.BEST_COMPRESSION)
+            throw new IllegalArgumentException(
+                    String.format(CONST_ERR_LEVEL, level));
+        if (blockSize < 1 || blockSize > CONST_MAX_BLOCK)
+            throw new IllegalArgumentException(String
+                    .format(CONST_ERR_BLOCK, CONST_MAX_BLOCK, blockSize));
+
+        this.level = level;
+        this.blockSize = blockSize;
+    }
+
+
+    /**
+     * Compresses data into a frame
+     *
+     * @param data
+     *            the data
+     * @return the frame
+     */
+    public byte[] compress(byte[] data)
+    {
+        return compress(data, 0, data.length);
+    }
+
+
+    /**
+     * Compresses part of an array into a frame
+     *
+     * @param data
+     *            the array
+     * @param offset
+     *            the start of the data
+     * @param length
+     *            the length of the data
+     * @return the frame
+     */
+    public byte[] compress(byte[] data, int offset, int length)
+    {
+        ByteArrayOutputStream frame =
+                new ByteArrayOutputStream(length / 2 + CONST_HEADER);
+
+        try
+        {
+            for (int at = offset; at < offset + length; at += blockSize)
+            {
+                write(data, at, Math.min(blockSize, offset + length - at),
+                        frame);
+            }
+        }
+        catch (IOException e)
+        {
+            throw new IllegalStateException(e); // Array streams do not throw
+        }
+
+        return frame.toByteArray();
+    }
+
+
+    /**
+     * Returns a stream compressing what is written to it as a frame on
+     * another stream. The stream is not thread safe.
+     *
+     * @param out
+     *            the stream the frame is written to
+     * @return the compressing stream
+     */
+    public OutputStream output(OutputStream out)
+    {
+        return new BlockOutputStream(this, out);
+    }
+
+
+    /**
+     * Returns the level
+     *
+     * @return the {@code Deflater} level
+     */
+    public int getLevel()
+    {
+        return level;
+    }
+
+
+    /**
+     * Returns the block size
+     *
+     * @return the bytes of data in each block
+     */
+    public int getBlockSize()
+    {
+        return blockSize;
+    }
+
+
+    /**
+     * Returns the bytes of data compressed
+     *
+     * @return the bytes
+     */
+    public long getRawBytes()
+    {
+        return rawBytes.sum();
+    }
+
+
+    /**
+     * Returns the bytes of frame written, headers included
+     *
+     * @return the bytes
+     */
+    public long getStoredBytes()
+    {
+        return storedBytes.sum();
+    }
+
+
+    /**
+     * Returns the number of blocks written
+     *
+     * @return the count
+     */
+    public long getBlocks()
+    {
+        return blocks.sum();
+    }
+
+
+    /**
+     * Returns the compression ratio, data bytes to frame bytes
+     *
+     * @return the ratio, one if nothing was compressed
+     */
+    public double getRatio()
+    {
+        long stored = storedBytes.sum();
+        return stored == 0 ? 1 : (double) rawBytes.sum() / stored;
+    }
+
+
+    /*
+     * ------------------------------------------------------------------------
+     *
+     * Decompression
+     *
+     * ------------------------------------------------------------------------
+     */
+
+    /**
+     * Decompresses a frame
+     *
+     * @param frame
+     *            the frame
+     * @return the data
+     * @throws IOException
+     *             the frame is corrupt
+     */
+    public static byte[] decompress(byte[] frame) throws IOException
+    {
+        return decompress(frame, 0, Integer.MAX_VALUE);
+    }
+
+
+    /**
+     * Decompresses a range of the data in a frame, inflating only the blocks
+     * that hold it
+     *
+     * @param frame
+     *            the frame
+     * @param offset
+     *            the offset of the range in the data
+     * @param length
+     *            the length of the range
+     * @return the range, shorter if the data ends first
+     * @throws IOException
+     *             the frame is corrupt
+     */
+    public static byte[] decompress(byte[] frame, long offset, int length)
+            throws IOException
+    {
+        long end = Math.min(offset + length, length(frame));
+        byte[] data = new byte[(int) Math.max(0, end - offset)];
+        ByteBuffer in = ByteBuffer.wrap(frame);
+        long at = 0;
+
+        while (at < end)
+        {
+            int raw = in.getInt();
+            int stored = in.getInt();
+
+            if (at + raw > offset)
+            // The block holds some of the range
+            {
+                int from = (int) Math.max(0, offset - at);
+                int to = (int) Math.min(raw, end - at);
+
+                if (from == 0 && to == raw)
+                {
+                    inflate(frame, in.position(), stored, data,
+                            (int) (at - offset), raw);
+                }
+                else
+                {
+                    byte[] block = scratch(raw);
+                    inflate(frame, in.position(), stored, block, 0, raw);
+                    System.arraycopy(block, from, data,
+                            (int) (at + from - offset), to - from);
+                }
+            }
+
+            in.position(in.position() + stored);
+            at += raw;
+        }
+
+        return data;
+    }
+
+
+    /**
+     * Returns the length of the data in a frame, from its block headers
+     *
+     * @param frame
+     *            the frame
+     * @return the length
+     * @throws IOException
+     *             the frame is corrupt
+     */
+    public static long length(byte[] frame) throws IOException
+    {
+        ByteBuffer in = ByteBuffer.wrap(frame);
+        long length = 0;
+
+        while (in.hasRemaining())
+        {
+            if (in.remaining() < CONST_HEADER)
+                throw new ZipException(CONST_ERR_CORRUPT);
+
+            int raw = in.getInt();
+            int stored = in.getInt();
+            check(raw, stored);
+            if (stored > in.remaining())
+                throw new ZipException(CONST_ERR_CORRUPT);
+
+            in.position(in.position() + stored);
+            length += raw;
+        }
+
+        return length;
+    }
+
+
+    /**
+     * Returns a stream decompressing a frame read from another stream. The
+     * stream's {@code skip} passes over whole blocks without inflating them.
+     *
+     * @param in
+     *            the stream the frame is read from
+     * @return the decompressing stream
+     */
+    public static InputStream input(InputStream in)
+    {
+        return new BlockInputStream(in);
+    }
+
+
+    /**
+     * Opens a file, decompressing it if it is named as holding a frame
+     *
+     * @param file
+     *            the file
+     * @return the stream of its data
+     * @throws IOException
+     *             the file could not be opened
+     */
+    public static InputStream open(Path file) throws IOException
+    {
+        InputStream in = Files.newInputStream(file);
+
+        return file.getFileName().toString().endsWith(CONST_SUFFIX)
+                ? input(new BufferedInputStream(in))
+                : in;
+    }
+
+
+    /*
+     * ------------------------------------------------------------------------
+     *
+     * Blocks
+     *
+     * ------------------------------------------------------------------------
+     */
+
+    /**
+     * Writes a block, deflated if that shrinks it
+     *
+     * @param data
+     *            the array holding the block
+     * @param offset
+     *            the start of the block
+     * @param length
+     *            the length of the block, up to the block size
+     * @param out
+     *            the stream the block is written to
+     * @throws IOException
+     */
+    void write(byte[] data, int offset, int length, OutputStream out)
+            throws IOException
+    {
+        int stored = deflate(data, offset, length);
+        byte[] header = new byte[CONST_HEADER];
+        ByteBuffer.wrap(header).putInt(length).putInt(stored);
+
+        out.write(header);
+        if (stored == length) out.write(data, offset, length);
+        else out.write(SCRATCH.get(), 0, stored);
+
+        rawBytes.add(length);
+        storedBytes.add(CONST_HEADER + stored);
+        blocks.increment();
+    }
+
+
+    /**
+     * Deflates a block into the thread's scratch buffer
+     *
+     * @return the deflated length, the block length if it did not shrink
+     */
+    private int deflate(byte[] data, int offset, int length)
+    {
+        if (level == Deflater.NO_COMPRESSION) return length;
+
+        byte[] scratch = scratch(length);
+        Deflater deflater = DEFLATERS.get();
+        deflater.reset();
+        deflater.setLevel(level);
+        deflater.setInput(data, offset, length);
+        deflater.finish();
+
+        int n = 0;
+        while (!deflater.finished() && n < length)
+        {
+            n += deflater.deflate(scratch, n, length - n);
+        }
+
+        return deflater.finished() && n < length ? n : length;
+    }
+
+
+    /**
+     * Inflates, or copies, a block
+     *
+     * @param in
+     *            the array holding the stored block
+     * @param offset
+     *            the start of the stored block
+     * @param stored
+     *            the stored length
+     * @param out
+     *            the array the data goes to
+     * @param at
+     *            where the data goes
+     * @param raw
+     *            the data length
+     * @throws IOException
+     *             the block is corrupt
+     */
+    static void inflate(byte[] in, int offset, int stored, byte[] out, int at,
+            int raw) throws IOException
+    {
+        check(raw, stored);
+
+        if (stored == raw)
+        {
+            System.arraycopy(in, offset, out, at, raw);
+            return;
+        }
+
+        Inflater inflater = INFLATERS.get();
+        inflater.reset();
+        inflater.setInput(in, offset, stored);
+
+        try
+        {
+            int n = 0;
+            while (n < raw)
+            {
+                int inflated = inflater.inflate(out, at + n, raw - n);
+                if (inflated == 0 && (inflater.finished()
+                        || inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+                n += inflated;
+            }
+
+            if (n != raw) throw new ZipException(CONST_ERR_CORRUPT);
+        }
+        catch (DataFormatException e)
+        {
+            throw (IOException) new ZipException(CONST_ERR_CORRUPT)
+                    .initCause(e);
+        }
+    }
+
+
+    /**
+     * Checks the lengths in a block header
+     *
+     * @throws ZipException
+     *             the lengths are not those of a block
+     */
+    static void check(int raw, int stored) throws ZipException
+    {
+        if (raw < 1 || raw > CONST_MAX_BLOCK || stored < 1 || stored > raw)
+            throw new ZipException(CONST_ERR_CORRUPT);
+    }
+
+
+    /**
+     * Returns the thread's scratch buffer, grown to a length if needed
+     */
+    private static byte[] scratch(int length)
+    {
+        byte[] scratch = SCRATCH.get();
+        if (scratch.length < length)
+        {
+            scratch = new byte[length];
+            SCRATCH.set(scratch);
+        }
+        return scratch;
+    }
+}
@@ -0,0 +1,306 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.mta.flow;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.technosf.smutpea.core.rfc.ReplyCode;
+import com.github.technosf.smutpea.mta.DeliveryDeferredException;
+import com.github.technosf.smutpea.mta.Envelope;
+
+/**
+ * {@code EnvelopePublisher}
+ * <p>
+ * Publishes accepted messages to {@code Flow.Subscriber}s, such as
+ * indexers, forwarders and test assertions, each taking them at the pace
+ * it requests on its own executor thread, not the session's. Publishing is
+ * a {@code SubmissionPublisher}, each subscriber with a buffer of up to
+ * <em>limit</em> messages.
+ * <p>
+ * When subscribers fall behind, the {@link Overflow} policy decides:
+ * {@code DEFER} takes a message only while every subscriber has requested
+ * more than it holds, replying <em>451</em> otherwise, so clients are held
+ * to the pace of the slowest subscriber; {@code BUFFER} takes messages
+ * until some subscriber holds <em>limit</em> unread, replying <em>452</em>
+ * once it does. With no subscribers messages are deferred, not dropped.
+ * <p>
+ * Sessions check the buffers and offer one at a time, so a message that
+ * passes the checks has room with every subscriber and is never delivered to
+ * some and dropped for others. A message that reached any subscriber is
+ * accepted.
+ *
+ * @author technosf
+ * @since 0.0.6
+ * @version 0.0.6
+ */
+public final class EnvelopePublisher
+        implements Flow.Publisher<Envelope>, AutoCloseable
+{
+    private static final Logger logger = LoggerFactory
+            .getLogger(EnvelopePublisher.class);
+
+    /*
+     * Constants
+     */
+    private static final String CONST_ERR_NO_SUBSCRIBERS = "No subscribers";
+    private static final String CONST_ERR_NO_DEMAND =
+            "Subscribers have not requested more";
+    private static final String CONST_ERR_FULL = "Subscriber buffers are full";
+    private static final String CONST_ERR_CLOSED = "Publisher is closed";
+    private static final String CONST_MSG_DROPPED =
+            "Message {} dropped for {} subscribers with full buffers";
+
+    /**
+     * What to do when subscribers fall behind
+     */
+    public enum Overflow
+    {
+        /**
+         * Defer messages the subscribers have not requested
+         */
+        DEFER,
+
+        /**
+         * Buffer messages up to the limit, then defer them
+         */
+        BUFFER;
+    }
+
+    private final SubmissionPublisher<Envelope> publisher;
+    private final Overflow overflow;
+    private final int limit;
+    private final AtomicLong sequence = new AtomicLong();
+
+    /*
+     * Publishing checks the buffers and offers under this lock, so only
+     * subscribers taking messages change the buffers in between
+     */
+    private final Object publishLock = new Object();
+
+    /*
+     * Counters
+     */
+    private final LongAdder published = new LongAdder();
+    private final LongAdder deferred = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+
+    /**
+     * Constructor delivering to subscribers on the common pool
+     *
+     * @param overflow
+     *            what to do when subscribers fall behind
+     * @param limit
+     *            the messages each subscriber may hold unread
+     */
+    public EnvelopePublisher(Overflow overflow, int limit)
+    {
+        this(overflow, limit, ForkJoinPool.commonPool());
+    }
+
+
+    /**
+     * Constructor
+     *
+     * @param overflow
+     *            what to do when subscribers fall behind
+     * @param limit
+     *            the messages each subscriber may hold unread
+     * @param executor
+     *            runs the subscribers
+     */
+    public EnvelopePublisher(Overflow overflow, int limit, Executor executor)
+    {
+        this.overflow = overflow == null ? Overflow.DEFER : overflow;
+        this.limit = Math.max(1, limit);
+        this.publisher = new SubmissionPublisher<>(executor, this.limit);
+    }
+
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see java.util.concurrent.Flow.Publisher#subscribe(java.util.concurrent.Flow.Subscriber)
+     */
+    @Override
+    public void subscribe(Flow.Subscriber<? super Envelope> subscriber)
+    {
+        publisher.subscribe(subscriber);
+    }
+
+
+    /**
+     * Publishes a message to every subscriber, unless they are behind
+     *
+     * @param envelope
+     *            the message
+     * @return the number of the message, counting from one
+     * @throws DeliveryDeferredException
+     *             the subscribers are behind, or there are none
+     */
+    public String publish(Envelope envelope) throws DeliveryDeferredException
+    {
+        if (publisher.isClosed()) throw defer(ReplyCode._451, CONST_ERR_CLOSED);
+        if (!publisher.hasSubscribers())
+            throw defer(ReplyCode._451, CONST_ERR_NO_SUBSCRIBERS);
+
+        long id;
+        int lag;
+        synchronized (publishLock)
+        {
+            if (publisher.estimateMaximumLag() >= limit)
+            // A buffer is full, whatever the demand
+            {
+                throw defer(overflow == Overflow.DEFER ? ReplyCode._451
+                        : ReplyCode._452, CONST_ERR_FULL);
+            }
+            if (overflow == Overflow.DEFER
+                    && publisher.estimateMinimumDemand() <= 0)
+            {
+                throw defer(ReplyCode._451, CONST_ERR_NO_DEMAND);
+            }
+
+            id = sequence.incrementAndGet();
+            try
+            {
+                lag = publisher.offer(envelope, (subscriber, item) -> false);
+            }
+            catch (IllegalStateException e)
+            // Closed meanwhile
+            {
+                throw defer(ReplyCode._451, CONST_ERR_CLOSED);
+            }
+        }
+
+        if (lag < 0)
+        // Not expected under the lock; a message any subscriber took is kept
+        {
+            logger.warn(CONST_MSG_DROPPED, id, -lag);
+            dropped.increment();
+            if (-lag >= publisher.getNumberOfSubscribers())
+                throw defer(ReplyCode._452, CONST_ERR_FULL);
+        }
+
+        published.increment();
+        return String.valueOf(id);
+    }
+
+
+    /**
+     * Returns the overflow policy
+     *
+     * @return the policy
+     */
+    public Overflow getOverflow()
+    {
+        return overflow;
+    }
+
+
+    /**
+     * Returns the messages each subscriber may hold unread
+     *
+     * @return the limit
+     */
+    public int getLimit()
+    {
+        return limit;
+    }
+
+
+    /**
+     * Returns the number of subscribers
+     *
+     * @return the count
+     */
+    public int getSubscribers()
+    {
+        return publisher.getNumberOfSubscribers();
+    }
+
+
+    /**
+     * Returns the most messages any subscriber holds unread
+     *
+     * @return the estimate
+     */
+    public int getLag()
+    {
+        return publisher.estimateMaximumLag();
+    }
+
+
+    /**
+     * Returns the number of messages published
+     *
+     * @return the count
+     */
+    public long getPublished()
+    {
+        return published.sum();
+    }
+
+
+    /**
+     * Returns the number of messages deferred
+     *
+     * @return the count
+     */
+    public long getDeferred()
+    {
+        return deferred.sum();
+    }
+
+
+    /**
+     * Returns the number of messages dropped for some subscribers when
+     * buffers overran
+     *
+     * @return the count
+     */
+    public long getDropped()
+    {
+        return dropped.sum();
+    }
+
+
+    /**
+     * Completes every subscriber once it has the messages already published.
+     * Later messages are deferred.
+     */
+    @Override
+    public void close()
+    {
+        publisher.close();
+    }
+
+
+    /**
+     * Counts and returns a deferral
+     */
+    private DeliveryDeferredException defer(ReplyCode replyCode,
+            String message)
+    {
+        deferred.increment();
+        return new DeliveryDeferredException(replyCode, message);
+    }
+}
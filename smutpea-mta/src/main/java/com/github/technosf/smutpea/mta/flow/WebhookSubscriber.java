@@ -0,0 +1,1153 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.mta.flow;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpConnectTimeoutException;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Flow;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.technosf.smutpea.core.metrics.LatencyHistogram;
+import com.github.technosf.smutpea.mta.Envelope;
+
+/**
+ * {@code WebhookSubscriber}
+ * <p>
+ * Posts accepted messages to a webhook in batches, subscribed to an
+ * {@code EnvelopePublisher}, so the collector takes one request per batch
+ * rather than one per message.
+ * <p>
+ * A batch is posted once it holds <em>messages</em> messages or
+ * <em>bytes</em> bytes of message data, or <em>linger</em> milliseconds
+ * after its first message arrived, as the {@link Format} decides: a JSON
+ * document with the data base64 encoded, or a <em>multipart/mixed</em> body
+ * of <em>message/rfc822</em> parts. One keep-alive {@code HttpClient} posts
+ * at most <em>connections</em> batches at once, so holds at most that many
+ * connections open. Posts that could not connect, or were answered 429 or
+ * 5xx, are retried with exponential backoff, plus up to half as much again
+ * of random jitter so subscribers do not retry in step, up to
+ * <em>retries</em> times. A post that fails once sent is not retried, as
+ * the collector may already have it.
+ * <p>
+ * With a <em>spool</em> directory, batches that find every connection busy
+ * wait in memory, up to <em>held</em> of them, and beyond that are written
+ * to the spool, as are batches that have exhausted their retries and those
+ * still waiting at close. Waiting batches are posted oldest first as
+ * connections come free, so a slow or absent collector never holds back the
+ * publisher; one that exhausted its retries heads the queue and holds it for
+ * one more backoff before it is tried again. Spooled batches survive a restart. Without a spool,
+ * waiting batches are held in memory and no more messages are requested
+ * until they are posted, leaving the publisher's {@code Overflow} policy to
+ * hold clients back.
+ *
+ * @author technosf
+ * @since 0.0.6
+ * @version 0.0.6
+ */
+public final class WebhookSubscriber
+        implements Flow.Subscriber<Envelope>, AutoCloseable
+{
+    private static final Logger logger = LoggerFactory
+            .getLogger(WebhookSubscriber.class);
+
+    /*
+     * Constants
+     */
+    private static final String CONST_MSG_RETRY =
+            "Webhook post to {} failed ({}), retry {} in {}ms";
+    private static final String CONST_MSG_SPOOLED =
+            "Webhook post to {} failed ({}), {} messages spooled";
+    private static final String CONST_MSG_FAILED =
+            "Webhook post to {} failed ({}), {} messages lost";
+    private static final String CONST_MSG_UNSENT =
+            "Webhook to {} closed with {} messages unsent";
+    private static final String CONST_ERR_SPOOL =
+            "Could not spool {} messages for {}";
+    private static final String CONST_ERR_SPOOL_READ =
+            "Could not read spooled batch {}";
+    private static final String CONST_ERR_SPOOL_DELETE =
+            "Could not remove spooled batch {}";
+    private static final String CONST_ERR_SPOOL_FORMAT =
+            "Not a spooled batch";
+    private static final String CONST_ERR_SUBSCRIPTION =
+            "Webhook subscription for {} failed";
+
+    private static final String CONST_SPOOL_NAME = "%019d-%010d.batch";
+    private static final String CONST_SPOOL_SUFFIX = ".batch";
+    private static final String CONST_TMP_SUFFIX = ".tmp";
+
+    private static final String CONST_CONTENT_TYPE = "Content-Type";
+    private static final String CONST_JSON = "application/json";
+    private static final String CONST_MULTIPART =
+            "multipart/mixed; boundary=\"%s\"";
+    private static final String CONST_RFC822 =
+            "Content-Type: message/rfc822\r\n";
+    private static final String CONST_CRLF = "\r\n";
+
+    private static final int CONST_DEFAULT_MESSAGES = 100;
+    private static final long CONST_DEFAULT_BYTES = 1 << 20;
+    private static final long CONST_DEFAULT_LINGER = 200;
+    private static final int CONST_DEFAULT_CONNECTIONS = 4;
+    private static final int CONST_DEFAULT_RETRIES = 5;
+    private static final int CONST_DEFAULT_HELD = 16;
+    private static final long CONST_BACKOFF = 100;
+    private static final long CONST_MAX_BACKOFF = 30_000;
+    private static final Duration CONST_TIMEOUT = Duration.ofSeconds(30);
+
+    /**
+     * How a batch is posted
+     */
+    public enum Format
+    {
+        /**
+         * A JSON object with a <em>messages</em> array, each message's
+         * envelope and its data base64 encoded
+         */
+        JSON,
+
+        /**
+         * A <em>multipart/mixed</em> body, each message a
+         * <em>message/rfc822</em> part with its envelope in
+         * <em>X-Envelope-</em> headers
+         */
+        MULTIPART;
+    }
+
+    /**
+     * A batch ready to post, or spooled with a {@literal null} body, not to
+     * be posted before the {@code System.nanoTime()} notBefore, unless that
+     * is 0
+     */
+    private record Batch(String contentType, byte[] body, int messages,
+            long oldest, Path path, long notBefore)
+    {
+        boolean due()
+        {
+            return notBefore == 0 || System.nanoTime() - notBefore >= 0;
+        }
+    }
+
+    private final HttpClient client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(CONST_TIMEOUT).build();
+
+    private final URI uri;
+    private final Format format;
+    private final int batchMessages;
+    private final long batchBytes;
+    private final long lingerMillis;
+    private final int connections;
+    private final int retries;
+    private final long backoff;
+    private final int held;
+    private final Path spool;
+    private final String contentType;
+    private final String boundary;
+
+    private final Semaphore permits;
+    private final ConcurrentLinkedDeque<Batch> queue =
+            new ConcurrentLinkedDeque<>();
+    private final AtomicLong owed = new AtomicLong();
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicBoolean closing = new AtomicBoolean();
+    private volatile boolean closed;
+    private volatile Flow.Subscription subscription;
+
+    // Guarded by lock
+    private final Object lock = new Object();
+    private List<Envelope> pending = new ArrayList<>();
+    private long pendingBytes;
+    private long generation;
+
+    /*
+     * Counters
+     */
+    private final LongAdder received = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder posted = new LongAdder();
+    private final LongAdder retried = new LongAdder();
+    private final LongAdder spooled = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final AtomicInteger spoolDepth = new AtomicInteger();
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+
+    /**
+     * Constructor with default batching, connections and retries
+     *
+     * @param uri
+     *            the webhook
+     * @param format
+     *            how batches are posted
+     * @param spool
+     *            the overflow directory, {@literal null} to hold overflow in
+     *            memory
+     * @throws IOException
+     *             the spool could not be opened
+     */
+    public WebhookSubscriber(URI uri, Format format, Path spool)
+            throws IOException
+    {
+        this(uri, format, CONST_DEFAULT_MESSAGES, CONST_DEFAULT_BYTES,
+                CONST_DEFAULT_LINGER, CONST_DEFAULT_CONNECTIONS,
+                CONST_DEFAULT_RETRIES, CONST_BACKOFF, spool);
+    }
+
+
+    /**
+     * Constructor
+     *
+     * @param uri
+     *            the webhook
+     * @param format
+     *            how batches are posted
+     * @param messages
+     *            the most messages in one post
+     * @param bytes
+     *            the message data, in bytes, that completes a batch
+     * @param lingerMillis
+     *            how long to wait to fill a batch, zero to post each message
+     * @param connections
+     *            the most posts at once
+     * @param retries
+     *            retries before a batch is spooled or given up
+     * @param backoffMillis
+     *            the delay before the first retry, doubling each time
+     * @param spool
+     *            the overflow directory, {@literal null} to hold overflow in
+     *            memory
+     * @throws IOException
+     *             the spool could not be opened
+     */
+    public WebhookSubscriber(URI uri, Format format, int messages, long bytes,
+            long lingerMillis, int connections, int retries,
+            long backoffMillis, Path spool) throws IOException
+    {
+        this(uri, format, messages, bytes, lingerMillis, connections, retries,
+                backoffMillis, CONST_DEFAULT_HELD, spool);
+    }
+
+
+    /**
+     * Constructor setting how many waiting batches are held in memory before
+     * they spill to the spool
+     *
+     * @param uri
+     *            the webhook
+     * @param format
+     *            how batches are posted
+     * @param messages
+     *            the most messages in one post
+     * @param bytes
+     *            the message data, in bytes, that completes a batch
+     * @param lingerMillis
+     *            how long to wait to fill a batch, zero to post each message
+     * @param connections
+     *            the most posts at once
+     * @param retries
+     *            retries before a batch is spooled or given up
+     * @param backoffMillis
+     *            the delay before the first retry, doubling each time
+     * @param held
+     *            the most waiting batches held in memory before they spill
+     *            to the spool
+     * @param spool
+     *            the overflow directory, {@literal null} to hold overflow in
+     *            memory
+     * @throws IOException
+     *             the spool could not be opened
+     */
+    public WebhookSubscriber(URI uri, Format format, int messages, long bytes,
+            long lingerMillis, int connections, int retries,
+            long backoffMillis, int held, Path spool) throws IOException
+    {
+        this.uri = Objects.requireNonNull(uri);
+        this.format = format == null ? Format.JSON : format;
+        this.batchMessages = Math.max(1, messages);
+        this.batchBytes = Math.max(1, bytes);
+        this.lingerMillis = Math.max(0, lingerMillis);
+        this.connections = Math.max(1, connections);
+        this.retries = Math.max(0, retries);
+        this.backoff = Math.max(1, backoffMillis);
+        this.held = Math.max(0, held);
+        this.permits = new Semaphore(this.connections);
+        this.spool = spool;
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        this.boundary = "smutpea-" + Long.toHexString(random.nextLong())
+                + Long.toHexString(random.nextLong());
+        this.contentType = this.format == Format.JSON ? CONST_JSON
+                : String.format(CONST_MULTIPART, boundary);
+
+        if (spool != null) recover();
+    }
+
+
+    /*
+     * ------------------------------------------------------------------------
+     *
+     * Flow.Subscriber
+     *
+     * ------------------------------------------------------------------------
+     */
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription)
+    {
+        if (this.subscription != null || closing.get())
+        {
+            subscription.cancel();
+            return;
+        }
+
+        this.subscription = subscription;
+        subscription.request(batchMessages);
+        dispatch();
+    }
+
+
+    @Override
+    public void onNext(Envelope envelope)
+    {
+        received.increment();
+        List<Envelope> full = null;
+
+        synchronized (lock)
+        {
+            if (pending.isEmpty() && lingerMillis > 0)
+            {
+                long batch = generation;
+                CompletableFuture
+                        .delayedExecutor(lingerMillis, TimeUnit.MILLISECONDS)
+                        .execute(() -> linger(batch));
+            }
+
+            pending.add(envelope);
+            pendingBytes += envelope.size();
+
+            if (lingerMillis == 0 || pending.size() >= batchMessages
+                    || pendingBytes >= batchBytes)
+            {
+                full = seal();
+            }
+        }
+
+        if (full != null) submit(encode(full));
+        demand();
+    }
+
+
+    @Override
+    public void onError(Throwable throwable)
+    {
+        logger.warn(CONST_ERR_SUBSCRIPTION, uri, throwable);
+        close();
+    }
+
+
+    @Override
+    public void onComplete()
+    {
+        close();
+    }
+
+
+    /**
+     * Stops taking messages, posts the batch being filled and waits for
+     * posts in flight and batches held in memory, spooled batches being
+     * left in the spool. Batches still in memory at the timeout are spooled,
+     * if there is a spool.
+     */
+    @Override
+    public void close()
+    {
+        if (!closing.compareAndSet(false, true)) return;
+
+        Flow.Subscription current = subscription;
+        if (current != null) current.cancel();
+
+        List<Envelope> last;
+        synchronized (lock)
+        {
+            last = seal();
+        }
+        if (!last.isEmpty()) submit(encode(last));
+
+        long deadline = System.nanoTime() + CONST_TIMEOUT.toNanos();
+        try
+        {
+            while (permits.tryAcquire(connections,
+                    Math.max(0, deadline - System.nanoTime()),
+                    TimeUnit.NANOSECONDS))
+            {
+                Batch head = queue.peekFirst();
+                boolean drained = head == null || !head.due()
+                        || queue.stream()
+                                .allMatch(batch -> batch.path() != null);
+                permits.release(connections);
+                if (drained) break; // Or held back, so spooled below
+                dispatch();
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        closed = true;
+
+        int unsent = 0;
+        for (Batch batch : queue)
+        {
+            if (batch.body() == null) continue;
+            if (spool != null) spool(batch); // Or counted failed
+            else unsent += batch.messages();
+        }
+        if (unsent > 0)
+        {
+            logger.warn(CONST_MSG_UNSENT, uri, unsent);
+            failed.add(unsent);
+        }
+    }
+
+
+    /*
+     * ------------------------------------------------------------------------
+     *
+     * Counters
+     *
+     * ------------------------------------------------------------------------
+     */
+
+    /**
+     * Returns the webhook
+     *
+     * @return the URI
+     */
+    public URI getUri()
+    {
+        return uri;
+    }
+
+
+    /**
+     * Returns how batches are posted
+     *
+     * @return the format
+     */
+    public Format getFormat()
+    {
+        return format;
+    }
+
+
+    /**
+     * Returns the number of messages received from the publisher
+     *
+     * @return the count
+     */
+    public long getReceived()
+    {
+        return received.sum();
+    }
+
+
+    /**
+     * Returns the number of messages the webhook accepted
+     *
+     * @return the count
+     */
+    public long getDelivered()
+    {
+        return delivered.sum();
+    }
+
+
+    /**
+     * Returns the number of posts the webhook accepted
+     *
+     * @return the count
+     */
+    public long getBatches()
+    {
+        return batches.sum();
+    }
+
+
+    /**
+     * Returns the bytes of the posts the webhook accepted
+     *
+     * @return the count
+     */
+    public long getPosted()
+    {
+        return posted.sum();
+    }
+
+
+    /**
+     * Returns the number of posts retried
+     *
+     * @return the count
+     */
+    public long getRetried()
+    {
+        return retried.sum();
+    }
+
+
+    /**
+     * Returns the number of messages written to the spool
+     *
+     * @return the count
+     */
+    public long getSpooled()
+    {
+        return spooled.sum();
+    }
+
+
+    /**
+     * Returns the number of messages given up on
+     *
+     * @return the count
+     */
+    public long getFailed()
+    {
+        return failed.sum();
+    }
+
+
+    /**
+     * Returns the number of messages received but not yet delivered or given
+     * up on, batching, in flight, waiting or spooled
+     *
+     * @return the count
+     */
+    public long getLag()
+    {
+        return received.sum() - delivered.sum() - failed.sum();
+    }
+
+
+    /**
+     * Returns the number of batches in the spool
+     *
+     * @return the count
+     */
+    public int getSpoolDepth()
+    {
+        return spoolDepth.get();
+    }
+
+
+    /**
+     * Returns the number of batches waiting in memory for a connection
+     *
+     * @return the count
+     */
+    public int getWaiting()
+    {
+        return waiting.get();
+    }
+
+
+    /**
+     * Returns the number of posts in flight
+     *
+     * @return the count
+     */
+    public int getInFlight()
+    {
+        return connections - permits.availablePermits();
+    }
+
+
+    /**
+     * Returns the milliseconds from each delivered batch's oldest message
+     * being received to the webhook accepting it
+     *
+     * @return the histogram
+     */
+    public LatencyHistogram getLatency()
+    {
+        return latency;
+    }
+
+
+    /*
+     * ------------------------------------------------------------------------
+     *
+     * Posting
+     *
+     * ------------------------------------------------------------------------
+     */
+
+    /**
+     * Posts the batch being filled once it has lingered long enough, unless
+     * it has been posted already
+     */
+    private void linger(long batch)
+    {
+        List<Envelope> full;
+
+        synchronized (lock)
+        {
+            if (batch != generation || pending.isEmpty()) return;
+            full = seal();
+        }
+
+        submit(encode(full));
+    }
+
+
+    /**
+     * Takes the batch being filled and starts the next. Holds the lock.
+     */
+    private List<Envelope> seal()
+    {
+        List<Envelope> full = pending;
+        pending = new ArrayList<>();
+        pendingBytes = 0;
+        generation++;
+        return full;
+    }
+
+
+    /**
+     * Posts a batch if a connection is free and none are waiting, otherwise
+     * holds it to wait its turn, spooling it if too many are held already
+     */
+    private void submit(Batch batch)
+    {
+        if (queue.isEmpty() && permits.tryAcquire())
+        {
+            send(batch, 0);
+            return;
+        }
+
+        if (waiting.incrementAndGet() > held && spool != null)
+        {
+            waiting.decrementAndGet();
+            batch = spool(batch);
+            if (batch == null) return;
+        }
+
+        queue.addLast(batch);
+        dispatch();
+    }
+
+
+    /**
+     * Posts waiting batches, oldest first, while connections are free,
+     * stopping at one held back after a failure until its backoff has passed
+     */
+    private void dispatch()
+    {
+        while (!closed && !queue.isEmpty() && permits.tryAcquire())
+        {
+            Batch batch = queue.pollFirst();
+
+            if (batch == null)
+            {
+                permits.release();
+                continue;
+            }
+
+            if (!batch.due())
+            // Dispatched again once due
+            {
+                queue.addFirst(batch);
+                permits.release();
+                return;
+            }
+
+            if (batch.body() != null) waiting.decrementAndGet();
+            send(batch, 0);
+        }
+
+        if (queue.isEmpty()) resume();
+    }
+
+
+    /**
+     * Requests the next message, unless batches are held in memory
+     */
+    private void demand()
+    {
+        if (spool != null || queue.isEmpty())
+        {
+            subscription.request(1);
+            return;
+        }
+
+        owed.incrementAndGet();
+        if (queue.isEmpty()) resume();
+    }
+
+
+    /**
+     * Requests the messages not requested while batches were held
+     */
+    private void resume()
+    {
+        long count = owed.getAndSet(0);
+        Flow.Subscription current = subscription;
+
+        if (count > 0 && current != null) current.request(count);
+    }
+
+
+    /**
+     * Posts a batch on a connection already taken, reading it from the spool
+     * if need be
+     */
+    private void send(Batch batch, int attempt)
+    {
+        if (batch.body() == null)
+        {
+            try
+            {
+                batch = load(batch.path());
+            }
+            catch (IOException e)
+            {
+                logger.error(CONST_ERR_SPOOL_READ, batch.path(), e);
+                spoolDepth.decrementAndGet();
+                release();
+                return;
+            }
+        }
+
+        Batch sending = batch;
+        HttpRequest request = HttpRequest.newBuilder(uri)
+                .timeout(CONST_TIMEOUT)
+                .header(CONST_CONTENT_TYPE, sending.contentType())
+                .POST(HttpRequest.BodyPublishers.ofByteArray(sending.body()))
+                .build();
+
+        client.sendAsync(request, HttpResponse.BodyHandlers.discarding())
+                .whenComplete((response, error) -> completed(sending, attempt,
+                        response, error));
+    }
+
+
+    /**
+     * Counts a delivered post, or retries, spools or gives up on a failed one
+     */
+    private void completed(Batch batch, int attempt,
+            HttpResponse<Void> response, Throwable error)
+    {
+        String problem;
+        boolean retryable;
+
+        if (error == null)
+        {
+            int status = response.statusCode();
+
+            if (status < 300)
+            {
+                delivered.add(batch.messages());
+                batches.increment();
+                posted.add(batch.body().length);
+                latency.record(System.currentTimeMillis() - batch.oldest());
+                if (batch.path() != null) unspool(batch.path());
+                release();
+                return;
+            }
+
+            problem = String.valueOf(status);
+            retryable = status >= 500 || status == 429;
+        }
+        else
+        {
+            Throwable cause = error instanceof CompletionException
+                    && error.getCause() != null ? error.getCause() : error;
+            problem = cause.toString();
+            retryable = cause instanceof ConnectException
+                    || cause instanceof HttpConnectTimeoutException;
+        }
+
+        if (retryable && attempt < retries)
+        {
+            long delay = backoff(attempt);
+            logger.debug(CONST_MSG_RETRY, uri, problem, attempt + 1, delay);
+            retried.increment();
+            CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS)
+                    .execute(() -> send(batch, attempt + 1));
+            return;
+        }
+
+        if (retryable && spool != null)
+        {
+            Batch spooledBatch = batch.path() != null ? batch
+                    : spool(batch);
+
+            if (spooledBatch != null)
+            // Put back at the head, held back until the collector may recover
+            {
+                long delay = backoff(retries);
+                logger.warn(CONST_MSG_SPOOLED, uri, problem, batch.messages());
+                queue.addFirst(new Batch(null, null, spooledBatch.messages(),
+                        spooledBatch.oldest(), spooledBatch.path(),
+                        System.nanoTime()
+                                + TimeUnit.MILLISECONDS.toNanos(delay)));
+                permits.release();
+                CompletableFuture
+                        .delayedExecutor(delay, TimeUnit.MILLISECONDS)
+                        .execute(this::dispatch);
+                return;
+            }
+        }
+        else
+        {
+            logger.warn(CONST_MSG_FAILED, uri, problem, batch.messages());
+            failed.add(batch.messages());
+            if (batch.path() != null) unspool(batch.path());
+        }
+
+        release();
+    }
+
+
+    /**
+     * Frees a connection and posts the next waiting batch on it
+     */
+    private void release()
+    {
+        permits.release();
+        dispatch();
+    }
+
+
+    /*
+     * ------------------------------------------------------------------------
+     *
+     * Spool
+     *
+     * ------------------------------------------------------------------------
+     */
+
+    /**
+     * Queues the batches left in the spool, removing partial writes
+     */
+    private void recover() throws IOException
+    {
+        Files.createDirectories(spool);
+
+        try (Stream<Path> files = Files.list(spool))
+        {
+            for (Path file : (Iterable<Path>) files.sorted()::iterator)
+            {
+                String name = file.getFileName().toString();
+
+                if (name.endsWith(CONST_SPOOL_SUFFIX))
+                {
+                    queue.addLast(new Batch(null, null, 0, 0, file, 0));
+                    spoolDepth.incrementAndGet();
+                }
+                else if (name.endsWith(CONST_TMP_SUFFIX))
+                {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Writes a batch to the spool: a header line of its message count,
+     * oldest message and content type, then the body
+     *
+     * @return the spooled batch, without its body, or {@literal null} if it
+     *         could not be written and was given up on
+     */
+    private Batch spool(Batch batch)
+    {
+        Path file = spool.resolve(String.format(CONST_SPOOL_NAME,
+                System.currentTimeMillis(), sequence.incrementAndGet()));
+        Path tmp = file.resolveSibling(file.getFileName() + CONST_TMP_SUFFIX);
+
+        try
+        {
+            try (OutputStream out = Files.newOutputStream(tmp))
+            {
+                out.write((batch.messages() + " " + batch.oldest() + " "
+                        + batch.contentType() + "\n")
+                                .getBytes(StandardCharsets.UTF_8));
+                out.write(batch.body());
+            }
+            Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e)
+        {
+            logger.error(CONST_ERR_SPOOL, batch.messages(), uri, e);
+            failed.add(batch.messages());
+            try
+            {
+                Files.deleteIfExists(tmp);
+            }
+            catch (IOException ignored)
+            {
+                // Reported above
+            }
+            return null;
+        }
+
+        spooled.add(batch.messages());
+        spoolDepth.incrementAndGet();
+        return new Batch(null, null, batch.messages(), batch.oldest(), file,
+                0);
+    }
+
+
+    /**
+     * Reads a spooled batch
+     */
+    private static Batch load(Path file) throws IOException
+    {
+        byte[] bytes = Files.readAllBytes(file);
+        int eol = 0;
+
+        while (eol < bytes.length && bytes[eol] != '\n') eol++;
+
+        String[] header = new String(bytes, 0, eol, StandardCharsets.UTF_8)
+                .split(" ", 3);
+
+        if (eol == bytes.length || header.length != 3)
+            throw new IOException(CONST_ERR_SPOOL_FORMAT);
+
+        try
+        {
+            return new Batch(header[2],
+                    Arrays.copyOfRange(bytes, eol + 1, bytes.length),
+                    Integer.parseInt(header[0]), Long.parseLong(header[1]),
+                    file, 0);
+        }
+        catch (NumberFormatException e)
+        {
+            throw new IOException(CONST_ERR_SPOOL_FORMAT, e);
+        }
+    }
+
+
+    /**
+     * Removes a delivered or abandoned batch from the spool
+     */
+    private void unspool(Path file)
+    {
+        spoolDepth.decrementAndGet();
+
+        try
+        {
+            Files.deleteIfExists(file);
+        }
+        catch (IOException e)
+        {
+            logger.warn(CONST_ERR_SPOOL_DELETE, file, e);
+        }
+    }
+
+
+    /*
+     * ------------------------------------------------------------------------
+     *
+     * Helpers
+     *
+     * ------------------------------------------------------------------------
+     */
+
+    /**
+     * Returns the delay before a retry, with up to half again of jitter
+     */
+    private long backoff(int attempt)
+    {
+        long delay = Math.min(CONST_MAX_BACKOFF,
+                backoff << Math.min(attempt, 30));
+        return delay + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+
+    /**
+     * Encodes messages as a batch in the subscriber's format
+     */
+    private Batch encode(List<Envelope> envelopes)
+    {
+        long oldest = Long.MAX_VALUE;
+
+        for (Envelope envelope : envelopes)
+        {
+            oldest = Math.min(oldest, received(envelope));
+        }
+
+        return new Batch(contentType,
+                format == Format.JSON ? json(envelopes)
+                        : multipart(envelopes),
+                envelopes.size(), oldest, null, 0);
+    }
+
+
+    /**
+     * Encodes messages as a JSON object
+     */
+    private static byte[] json(List<Envelope> envelopes)
+    {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"messages\":[");
+
+        for (int i = 0; i < envelopes.size(); i++)
+        {
+            Envelope envelope = envelopes.get(i);
+
+            if (i > 0) json.append(',');
+            json.append("{\"received\":");
+            string(json, envelope.received() == null ? null
+                    : envelope.received().toString());
+            json.append(",\"helo\":");
+            string(json, envelope.helo());
+            json.append(",\"from\":");
+            string(json, envelope.reversePath());
+            json.append(",\"to\":[");
+            for (int j = 0; j < envelope.forwardPaths().size(); j++)
+            {
+                if (j > 0) json.append(',');
+                string(json, envelope.forwardPaths().get(j));
+            }
+            json.append("],\"size\":").append(envelope.size())
+                    .append(",\"data\":\"")
+                    .append(Base64.getEncoder().encodeToString(envelope.data()))
+                    .append("\"}");
+        }
+
+        return json.append("]}").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+
+    /**
+     * Appends a quoted, escaped string, or {@literal null}
+     */
+    private static void string(StringBuilder json, String value)
+    {
+        if (value == null)
+        {
+            json.append("null");
+            return;
+        }
+
+        json.append('"');
+        for (int i = 0; i < value.length(); i++)
+        {
+            char c = value.charAt(i);
+
+            switch (c)
+            {
+                case '"':
+                    json.append("\\\"");
+                    break;
+                case '\\':
+                    json.append("\\\\");
+                    break;
+                default:
+                    if (c < 0x20)
+                        json.append(String.format("\\u%04x", (int) c));
+                    else
+                        json.append(c);
+            }
+        }
+        json.append('"');
+    }
+
+
+    /**
+     * Encodes messages as a multipart body of message/rfc822 parts
+     */
+    private byte[] multipart(List<Envelope> envelopes)
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        for (Envelope envelope : envelopes)
+        {
+            StringBuilder headers = new StringBuilder();
+            headers.append("--").append(boundary).append(CONST_CRLF)
+                    .append(CONST_RFC822)
+                    .append("X-Envelope-From: <")
+                    .append(envelope.reversePath()).append('>')
+                    .append(CONST_CRLF).append("X-Envelope-To: ");
+            for (int i = 0; i < envelope.forwardPaths().size(); i++)
+            {
+                if (i > 0) headers.append(", ");
+                headers.append('<').append(envelope.forwardPaths().get(i))
+                        .append('>');
+            }
+            headers.append(CONST_CRLF);
+            if (envelope.received() != null)
+            {
+                headers.append("X-Envelope-Received: ")
+                        .append(envelope.received()).append(CONST_CRLF);
+            }
+            headers.append(CONST_CRLF);
+
+            out.writeBytes(
+                    headers.toString().getBytes(StandardCharsets.UTF_8));
+            out.writeBytes(envelope.data());
+            out.writeBytes(CONST_CRLF.getBytes(StandardCharsets.UTF_8));
+        }
+
+        out.writeBytes(("--" + boundary + "--" + CONST_CRLF)
+                .getBytes(StandardCharsets.UTF_8));
+        return out.toByteArray();
+    }
+
+
+    /**
+     * Returns when a message was received, in epoch milliseconds
+     */
+    private static long received(Envelope envelope)
+    {
+        return envelope.received() == null ? System.currentTimeMillis()
+                : envelope.received().toEpochMilli();
+    }
+}
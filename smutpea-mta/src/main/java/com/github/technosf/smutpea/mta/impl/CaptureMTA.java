@@ -0,0 +1,94 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.mta.impl;
+
+import static java.util.Objects.requireNonNull;
+
+import com.github.technosf.smutpea.core.exceptions.MTAException;
+import com.github.technosf.smutpea.mta.AbstractDeliveryMTA;
+import com.github.technosf.smutpea.mta.Envelope;
+import com.github.technosf.smutpea.mta.mime.PartStage;
+import com.github.technosf.smutpea.mta.store.CaptureStore;
+
+/**
+ * {@code CaptureMTA} is an MTA that keeps the email passed to it in memory,
+ * for tests to query.
+ * <p>
+ * Like {@code SinkMTA} everything is accepted and nothing is sent, but each
+ * message, with its envelope, is captured in a {@code CaptureStore} shared
+ * by the {@code CaptureMTA} of every session, and the client is replied
+ * <em>250</em> with its capture id.
+ *
+ * @author technosf
+ * @since 0.0.6
+ * @version 0.0.6
+ */
+public final class CaptureMTA
+        extends AbstractDeliveryMTA
+{
+    /**
+    * 
+    */
+    private final static String CONST_MTA_NAME = "CaptureMTA v1.0.0";
+
+    private final CaptureStore store;
+
+
+    /**
+     * Constructor
+     * 
+     * @param domain
+     *            the domain the MTA is answering for
+     * @param store
+     *            the store messages are captured in
+     * @throws MTAException
+     */
+    public CaptureMTA(final String domain, final CaptureStore store)
+            throws MTAException
+    {
+        this(domain, store, null);
+    }
+
+
+    /**
+     * Constructor taking part bodies out of the captured data
+     * 
+     * @param domain
+     *            the domain the MTA is answering for
+     * @param store
+     *            the store messages are captured in
+     * @param stage
+     *            the stage offered each part, such as an
+     *            {@code AttachmentExtractor}
+     * @throws MTAException
+     */
+    public CaptureMTA(final String domain, final CaptureStore store,
+            final PartStage stage) throws MTAException
+    {
+        super(CONST_MTA_NAME, domain, stage);
+        this.store = requireNonNull(store);
+    }
+
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see com.github.technosf.smutpea.mta.AbstractDeliveryMTA#deliver(com.github.technosf.smutpea.mta.Envelope)
+     */
+    @Override
+    protected String deliver(final Envelope envelope)
+    {
+        return String.valueOf(store.capture(envelope));
+    }
+}
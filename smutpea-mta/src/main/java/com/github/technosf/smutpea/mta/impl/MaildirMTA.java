@@ -0,0 +1,77 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.mta.impl;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.IOException;
+
+import com.github.technosf.smutpea.core.exceptions.MTAException;
+import com.github.technosf.smutpea.mta.AbstractDeliveryMTA;
+import com.github.technosf.smutpea.mta.Envelope;
+import com.github.technosf.smutpea.mta.store.Maildir;
+
+/**
+ * {@code MaildirMTA} is an MTA that delivers all email passed to it into
+ * local Maildir folders.
+ * <p>
+ * Like {@code SinkMTA} everything is accepted, and each message is entered
+ * in the Maildir of each of its recipients, written once and linked into
+ * the rest, before the client is replied <em>250</em> with its unique file
+ * name. One {@code Maildir} is shared by the {@code MaildirMTA} of every
+ * session.
+ *
+ * @author technosf
+ * @since 0.0.6
+ * @version 0.0.6
+ */
+public final class MaildirMTA
+        extends AbstractDeliveryMTA
+{
+    /**
+    * 
+    */
+    private final static String CONST_MTA_NAME = "MaildirMTA v1.0.0";
+
+    private final Maildir maildir;
+
+
+    /**
+     * Constructor
+     * 
+     * @param domain
+     *            the domain the MTA is answering for
+     * @param maildir
+     *            the mailboxes messages are delivered to
+     * @throws MTAException
+     */
+    public MaildirMTA(final String domain, final Maildir maildir)
+            throws MTAException
+    {
+        super(CONST_MTA_NAME, domain);
+        this.maildir = requireNonNull(maildir);
+    }
+
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see com.github.technosf.smutpea.mta.AbstractDeliveryMTA#deliver(com.github.technosf.smutpea.mta.Envelope)
+     */
+    @Override
+    protected String deliver(final Envelope envelope) throws IOException
+    {
+        return maildir.deliver(envelope);
+    }
+}
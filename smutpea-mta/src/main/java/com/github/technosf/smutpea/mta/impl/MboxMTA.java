@@ -0,0 +1,77 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.mta.impl;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.IOException;
+
+import com.github.technosf.smutpea.core.exceptions.MTAException;
+import com.github.technosf.smutpea.mta.AbstractDeliveryMTA;
+import com.github.technosf.smutpea.mta.Envelope;
+import com.github.technosf.smutpea.mta.store.Mbox;
+
+/**
+ * {@code MboxMTA} is an MTA that appends all email passed to it to mbox
+ * files, for inspecting the traffic.
+ * <p>
+ * Like {@code SinkMTA} everything is accepted, and each message is appended
+ * to the mbox file of each of its recipients, or their domains, before the
+ * client is replied <em>250</em>. One {@code Mbox} is shared by the
+ * {@code MboxMTA} of every session, which write to different files without
+ * waiting on each other.
+ *
+ * @author technosf
+ * @since 0.0.6
+ * @version 0.0.6
+ */
+public final class MboxMTA
+        extends AbstractDeliveryMTA
+{
+    /**
+    * 
+    */
+    private final static String CONST_MTA_NAME = "MboxMTA v1.0.0";
+
+    private final Mbox mbox;
+
+
+    /**
+     * Constructor
+     * 
+     * @param domain
+     *            the domain the MTA is answering for
+     * @param mbox
+     *            the mbox files messages are appended to
+     * @throws MTAException
+     */
+    public MboxMTA(final String domain, final Mbox mbox)
+            throws MTAException
+    {
+        super(CONST_MTA_NAME, domain);
+        this.mbox = requireNonNull(mbox);
+    }
+
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see com.github.technosf.smutpea.mta.AbstractDeliveryMTA#deliver(com.github.technosf.smutpea.mta.Envelope)
+     */
+    @Override
+    protected String deliver(final Envelope envelope) throws IOException
+    {
+        return mbox.deliver(envelope);
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.mta.impl;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.IOException;
+
+import com.github.technosf.smutpea.core.exceptions.MTAException;
+import com.github.technosf.smutpea.mta.AbstractDeliveryMTA;
+import com.github.technosf.smutpea.mta.Envelope;
+import com.github.technosf.smutpea.mta.flow.EnvelopePublisher;
+
+/**
+ * {@code PublishMTA} is an MTA that publishes all email passed to it to
+ * {@code Flow} subscribers.
+ * <p>
+ * Like {@code SinkMTA} everything is accepted, as long as the subscribers
+ * keep up: each message is offered to an {@code EnvelopePublisher}, and the
+ * client is replied <em>250</em> once it is queued for every subscriber,
+ * or a temporary failure if they are behind, so clients are held to the
+ * pace of the subscribers. One publisher is shared by the
+ * {@code PublishMTA} of every session.
+ *
+ * @author technosf
+ * @since 0.0.6
+ * @version 0.0.6
+ */
+public final class PublishMTA
+        extends AbstractDeliveryMTA
+{
+    /**
+    * 
+    */
+    private final static String CONST_MTA_NAME = "PublishMTA v1.0.0";
+
+    private final EnvelopePublisher publisher;
+
+
+    /**
+     * Constructor
+     * 
+     * @param domain
+     *            the domain the MTA is answering for
+     * @param publisher
+     *            the publisher messages are offered to
+     * @throws MTAException
+     */
+    public PublishMTA(final String domain, final EnvelopePublisher publisher)
+            throws MTAException
+    {
+        super(CONST_MTA_NAME, domain);
+        this.publisher = requireNonNull(publisher);
+    }
+
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see com.github.technosf.smutpea.mta.AbstractDeliveryMTA#deliver(com.github.technosf.smutpea.mta.Envelope)
+     */
+    @Override
+    protected String deliver(final Envelope envelope) throws IOException
+    {
+        return publisher.publish(envelope);
+    }
+}
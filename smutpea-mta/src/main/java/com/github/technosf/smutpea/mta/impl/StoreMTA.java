@@ -0,0 +1,96 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.mta.impl;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.IOException;
+
+import com.github.technosf.smutpea.core.exceptions.MTAException;
+import com.github.technosf.smutpea.mta.AbstractDeliveryMTA;
+import com.github.technosf.smutpea.mta.Envelope;
+import com.github.technosf.smutpea.mta.mime.PartStage;
+import com.github.technosf.smutpea.mta.store.MessageStore;
+
+/**
+ * {@code StoreMTA} is an MTA that durably keeps all email passed to it.
+ * <p>
+ * Like {@code SinkMTA} everything is accepted, but each message, with its
+ * envelope, is appended to a {@code MessageStore} and is on storage before
+ * the client is replied <em>250</em> with its id. One store is shared by
+ * the {@code StoreMTA} of every session, so concurrent sessions share its
+ * forces.
+ *
+ * @author technosf
+ * @since 0.0.6
+ * @version 0.0.6
+ */
+public final class StoreMTA
+        extends AbstractDeliveryMTA
+{
+    /**
+    * 
+    */
+    private final static String CONST_MTA_NAME = "StoreMTA v1.0.0";
+
+    private final MessageStore store;
+
+
+    /**
+     * Constructor
+     * 
+     * @param domain
+     *            the domain the MTA is answering for
+     * @param store
+     *            the store messages are appended to
+     * @throws MTAException
+     */
+    public StoreMTA(final String domain, final MessageStore store)
+            throws MTAException
+    {
+        this(domain, store, null);
+    }
+
+
+    /**
+     * Constructor taking part bodies out of the stored data
+     * 
+     * @param domain
+     *            the domain the MTA is answering for
+     * @param store
+     *            the store messages are appended to
+     * @param stage
+     *            the stage offered each part, such as a {@code ContentStore}
+     *            forcing its blobs
+     * @throws MTAException
+     */
+    public StoreMTA(final String domain, final MessageStore store,
+            final PartStage stage) throws MTAException
+    {
+        super(CONST_MTA_NAME, domain, stage);
+        this.store = requireNonNull(store);
+    }
+
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see com.github.technosf.smutpea.mta.AbstractDeliveryMTA#deliver(com.github.technosf.smutpea.mta.Envelope)
+     */
+    @Override
+    protected String deliver(final Envelope envelope) throws IOException
+    {
+        return String.valueOf(store.append(envelope));
+    }
+}
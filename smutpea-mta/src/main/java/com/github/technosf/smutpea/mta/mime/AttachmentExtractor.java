@@ -0,0 +1,128 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.mta.mime;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.function.Predicate;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@code AttachmentExtractor}
+ * <p>
+ * A {@code PartStage} that streams the bodies of chosen parts, by default
+ * attachments, into files in a directory, decoding base64 and
+ * quoted-printable a line at a time and hashing the decoded bytes as they
+ * are written. A body is never held whole: memory is a line and a write
+ * buffer per part.
+ * <p>
+ * Files of parts whose transaction is abandoned are deleted; files of
+ * delivered messages belong to the deliverer.
+ *
+ * @author technosf
+ * @since 0.0.6
+ * @version 0.0.6
+ */
+public final class AttachmentExtractor
+        implements PartStage
+{
+    private static final Logger logger = LoggerFactory
+            .getLogger(AttachmentExtractor.class);
+
+    /*
+     * Constants
+     */
+    private static final String CONST_ERR_DELETE =
+            "Could not delete abandoned part";
+
+    private final Path directory;
+    private final Predicate<MimePart> filter;
+
+
+    /**
+     * Constructor extracting attachments
+     *
+     * @param directory
+     *            the directory for the files
+     */
+    public AttachmentExtractor(Path directory)
+    {
+        this(directory, MimePart::isAttachment);
+    }
+
+
+    /**
+     * Constructor
+     *
+     * @param directory
+     *            the directory for the files
+     * @param filter
+     *            chooses the parts to extract
+     */
+    public AttachmentExtractor(Path directory, Predicate<MimePart> filter)
+    {
+        this.directory = requireNonNull(directory);
+        this.filter = requireNonNull(filter);
+    }
+
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see com.github.technosf.smutpea.mta.mime.PartStage#open(com.github.technosf.smutpea.mta.mime.MimePart)
+     */
+    @Override
+    public PartSink open(MimePart part) throws IOException
+    {
+        if (!filter.test(part)) return null;
+
+        PartDecoder decoder = new PartDecoder(part.transferEncoding(),
+                directory, 0, false);
+
+        return new PartSink()
+        {
+            @Override
+            public void line(String line) throws IOException
+            {
+                decoder.line(line);
+            }
+
+
+            @Override
+            public ExtractedPart close() throws IOException
+            {
+                return new ExtractedPart(decoder.getSpill(),
+                        decoder.getSize(), decoder.finish());
+            }
+
+
+            @Override
+            public void abort()
+            {
+                try
+                {
+                    decoder.abort();
+                }
+                catch (IOException e)
+                {
+                    logger.warn(CONST_ERR_DELETE, e);
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.mta.mime;
+
+import java.nio.file.Path;
+
+/**
+ * {@code ExtractedPart}
+ * <p>
+ * The body of a part taken out of the message data by a {@code PartStage},
+ * transfer decoded.
+ *
+ * @param path
+ *            the file holding the body
+ * @param size
+ *            the decoded size in bytes
+ * @param sha256
+ *            the SHA-256 of the decoded body, lower case hex
+ *
+ * @author technosf
+ * @since 0.0.6
+ * @version 0.0.6
+ */
+public record ExtractedPart(Path path, long size, String sha256)
+{
+}
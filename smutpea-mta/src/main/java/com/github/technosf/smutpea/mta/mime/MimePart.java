@@ -0,0 +1,120 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.mta.mime;
+
+/**
+ * {@code MimePart}
+ * <p>
+ * One entity of a message, the message itself or a body part, as offsets
+ * into the message data: its header block is {@code [start, bodyStart)} and
+ * its body {@code [bodyStart, end)}. A body part ends before the line break
+ * preceding the next boundary.
+ *
+ * @param depth
+ *            zero for the message, one for its parts and so on
+ * @param parent
+ *            the index of the enclosing multipart, -1 for the message
+ * @param start
+ *            the offset of the header block
+ * @param bodyStart
+ *            the offset of the body, after the blank line
+ * @param end
+ *            the offset after the body
+ * @param contentType
+ *            the media type, lower case, <em>text/plain</em> if not given
+ * @param boundary
+ *            the multipart boundary, {@literal null} if not multipart
+ * @param transferEncoding
+ *            the transfer encoding, lower case, <em>7bit</em> if not given
+ * @param disposition
+ *            the disposition, lower case, {@literal null} if not given
+ * @param filename
+ *            the disposition filename or content type name, {@literal null}
+ *            if neither is given
+ * @param extracted
+ *            where a {@code PartStage} took the body, which is then empty
+ *            in the data, {@literal null} if it was not taken
+ *
+ * @author technosf
+ * @since 0.0.6
+ * @version 0.0.6
+ */
+public record MimePart(int depth, int parent, int start, int bodyStart,
+        int end, String contentType, String boundary, String transferEncoding,
+        String disposition, String filename, ExtractedPart extracted)
+{
+    /*
+     * Constants
+     */
+    private static final String CONST_ATTACHMENT = "attachment";
+
+
+    /**
+     * Returns this entity with its body taken to where it was extracted
+     *
+     * @param extracted
+     *            where the body went
+     * @return the entity
+     */
+    public MimePart withExtracted(ExtractedPart extracted)
+    {
+        return new MimePart(depth, parent, start, bodyStart, end, contentType,
+                boundary, transferEncoding, disposition, filename, extracted);
+    }
+
+
+    /**
+     * Is this a multipart entity, holding parts rather than content
+     *
+     * @return true if multipart
+     */
+    public boolean isMultipart()
+    {
+        return boundary != null;
+    }
+
+
+    /**
+     * Is this an attachment: disposed as one, or a named leaf part
+     *
+     * @return true if an attachment
+     */
+    public boolean isAttachment()
+    {
+        return !isMultipart() && (CONST_ATTACHMENT.equals(disposition)
+                || (filename != null && depth > 0));
+    }
+
+
+    /**
+     * Returns the length of the header block, including the blank line
+     *
+     * @return the length in bytes
+     */
+    public int getHeaderLength()
+    {
+        return bodyStart - start;
+    }
+
+
+    /**
+     * Returns the length of the body
+     *
+     * @return the length in bytes
+     */
+    public int getBodyLength()
+    {
+        return end - bodyStart;
+    }
+}
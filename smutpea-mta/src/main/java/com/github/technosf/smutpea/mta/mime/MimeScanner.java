@@ -0,0 +1,603 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.mta.mime;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * {@code MimeScanner}
+ * <p>
+ * Indexes the MIME structure of a message a line at a time, as the DATA
+ * lines arrive, so the structure is ready at the end of the data without
+ * re-parsing the message.
+ * <p>
+ * Only the header lines of each entity are examined, and of those only
+ * <em>Content-Type</em>, <em>Content-Transfer-Encoding</em> and
+ * <em>Content-Disposition</em> are kept; a body line costs a
+ * {@code startsWith("--")} while inside a multipart, and nothing otherwise.
+ * Unterminated multiparts end with the data. Not thread safe: one scanner
+ * per transaction.
+ * <p>
+ * With a {@code PartStage}, each leaf part is offered to the stage as its
+ * headers end, and the body lines of a part it takes go to its
+ * {@code PartSink} instead of the message data; {@link #line} then returns
+ * true and the part's body is empty in the data.
+ *
+ * @author technosf
+ * @since 0.0.6
+ * @version 0.0.6
+ */
+public final class MimeScanner
+{
+    /*
+     * Constants
+     */
+    private static final String CONST_DASHES = "--";
+    private static final String CONST_CONTENT_TYPE = "content-type:";
+    private static final String CONST_ENCODING =
+            "content-transfer-encoding:";
+    private static final String CONST_DISPOSITION = "content-disposition:";
+    private static final String CONST_TEXT_PLAIN = "text/plain";
+    private static final String CONST_DIGEST = "multipart/digest";
+    private static final String CONST_RFC822 = "message/rfc822";
+    private static final String CONST_MULTIPART = "multipart/";
+    private static final String CONST_7BIT = "7bit";
+
+    /**
+     * Swallows the rest of a part whose sink failed
+     */
+    private static final PartSink DISCARD = new PartSink()
+    {
+        @Override
+        public void line(String line)
+        {
+        }
+
+
+        @Override
+        public ExtractedPart close()
+        {
+            return null;
+        }
+
+
+        @Override
+        public void abort()
+        {
+        }
+    };
+
+    /*
+     * Entities in depth-first order, and the open multiparts, innermost last
+     */
+    private final List<Entity> entities = new ArrayList<>();
+    private final ArrayDeque<Entity> multiparts = new ArrayDeque<>();
+
+    private final PartStage stage;
+
+    private Entity current;
+    private PartSink sink;
+    private Entity sinkEntity;
+    private IOException failure;
+    private boolean inHeaders;
+    private boolean startPending;
+    private boolean bodyPending;
+    private StringBuilder header;
+    private int lastEnd;
+
+    {
+        clear();
+    }
+
+
+    /**
+     * Constructor
+     */
+    public MimeScanner()
+    {
+        this(null);
+    }
+
+
+    /**
+     * Constructor
+     *
+     * @param stage
+     *            the stage offered each leaf part, {@literal null} for none
+     */
+    public MimeScanner(PartStage stage)
+    {
+        this.stage = stage;
+    }
+
+
+    /**
+     * Scans the next line of the message
+     *
+     * @param line
+     *            the line, without its line break or dot-stuffing
+     * @param start
+     *            the offset of the line in the message data
+     * @param end
+     *            the offset after the line, before its line break, were it
+     *            written
+     * @return true if the line was taken by a {@code PartSink} and is not to
+     *         be written to the message data
+     */
+    public boolean line(String line, int start, int end)
+    {
+        if (startPending)
+        {
+            current.start = start;
+            startPending = false;
+        }
+        if (bodyPending)
+        {
+            current.bodyStart = start;
+            bodyPending = false;
+        }
+
+        boolean taken = false;
+        if (!inHeaders || !header(line, start))
+        {
+            if (!(!multiparts.isEmpty() && line.startsWith(CONST_DASHES)
+                    && delimiter(line)) && sink != null)
+            {
+                take(line);
+                taken = true;
+            }
+        }
+
+        lastEnd = taken ? start : end;
+        return taken;
+    }
+
+
+    /**
+     * Ends the message and returns its structure
+     *
+     * @param length
+     *            the length of the message data
+     * @return the structure
+     * @throws IOException
+     *             a part could not be taken by the stage; any parts taken
+     *             are deleted
+     */
+    public MimeStructure finish(int length) throws IOException
+    {
+        if (inHeaders) endHeaders();
+        closeSink();
+
+        if (failure != null)
+        {
+            IOException e = failure;
+            reset();
+            throw e;
+        }
+
+        if (bodyPending || current.bodyStart < 0) current.bodyStart = length;
+
+        List<MimePart> parts = new ArrayList<>(entities.size());
+        for (Entity entity : entities)
+        {
+            if (entity.start < 0) entity.start = length;
+            if (entity.bodyStart < 0) entity.bodyStart = length;
+            if (entity.end < 0) entity.end = length;
+            parts.add(entity.part());
+        }
+
+        clear();
+        return new MimeStructure(parts);
+    }
+
+
+    /**
+     * Discards the message scanned so far, and any parts taken from it
+     */
+    public void reset()
+    {
+        if (sink != null) sink.abort();
+        for (Entity entity : entities)
+        {
+            if (entity.extracted != null)
+            {
+                try
+                {
+                    stage.release(entity.extracted);
+                }
+                catch (IOException e)
+                {
+                    // Best effort, the transaction is abandoned
+                }
+            }
+        }
+        clear();
+    }
+
+
+    /**
+     * Starts a new message
+     */
+    private void clear()
+    {
+        entities.clear();
+        multiparts.clear();
+        current = new Entity(0, -1, CONST_TEXT_PLAIN);
+        current.start = 0;
+        entities.add(current);
+        inHeaders = true;
+        startPending = false;
+        bodyPending = false;
+        header = null;
+        lastEnd = 0;
+        sink = null;
+        sinkEntity = null;
+        failure = null;
+    }
+
+
+    /**
+     * Scans the structure of complete message data
+     *
+     * @param data
+     *            the message, lines ending LF or CR LF
+     * @return the structure
+     */
+    public static MimeStructure scan(byte[] data)
+    {
+        MimeScanner scanner = new MimeScanner();
+        int start = 0;
+
+        while (start < data.length)
+        {
+            int end = start;
+            while (end < data.length && data[end] != '\n') end++;
+            int next = end < data.length ? end + 1 : end;
+            if (end > start && data[end - 1] == '\r') end--;
+
+            scanner.line(new String(data, start, end - start,
+                    StandardCharsets.UTF_8), start, end);
+            start = next;
+        }
+
+        try
+        {
+            return scanner.finish(data.length);
+        }
+        catch (IOException e)
+        {
+            throw new IllegalStateException(e); // No stage, nothing to fail
+        }
+    }
+
+
+    /*
+     * ------------------------------------------------------------------------
+     *
+     * Helpers
+     *
+     * ------------------------------------------------------------------------
+     */
+
+    /**
+     * Scans a line of a header block
+     *
+     * @return false if the line is not a header, but the start of the body
+     */
+    private boolean header(String line, int start)
+    {
+        if (line.isEmpty())
+        {
+            endHeaders();
+            bodyPending = true;
+            return true;
+        }
+
+        char first = line.charAt(0);
+        if (first == ' ' || first == '\t')
+        // Folded
+        {
+            if (header != null) header.append(line);
+            return true;
+        }
+
+        int colon = line.indexOf(':');
+        if (colon <= 0 || line.lastIndexOf(' ', colon) >= 0
+                || line.lastIndexOf('\t', colon) >= 0)
+        // Not a header, no blank line before the body
+        {
+            endHeaders();
+            current.bodyStart = start;
+            return false;
+        }
+
+        field();
+        if (line.regionMatches(true, 0, CONST_CONTENT_TYPE, 0, colon + 1)
+                || line.regionMatches(true, 0, CONST_ENCODING, 0, colon + 1)
+                || line.regionMatches(true, 0, CONST_DISPOSITION, 0,
+                        colon + 1))
+        {
+            header = new StringBuilder(line);
+        }
+        return true;
+    }
+
+
+    /**
+     * Applies the header field collected, if it is one of interest
+     */
+    private void field()
+    {
+        if (header == null) return;
+
+        String line = header.toString();
+        header = null;
+
+        int colon = line.indexOf(':');
+        String name = line.substring(0, colon + 1).toLowerCase(Locale.ROOT);
+        String value = line.substring(colon + 1).strip();
+        String token = token(value);
+
+        switch (name)
+        {
+            case CONST_CONTENT_TYPE:
+                current.contentType = token;
+                current.boundary = token.startsWith(CONST_MULTIPART)
+                        ? parameter(value, "boundary")
+                        : null;
+                if (current.filename == null)
+                    current.filename = parameter(value, "name");
+                break;
+
+            case CONST_ENCODING:
+                current.transferEncoding = token;
+                break;
+
+            case CONST_DISPOSITION:
+                current.disposition = token;
+                String filename = parameter(value, "filename");
+                if (filename != null) current.filename = filename;
+                break;
+
+            default:
+                break;
+        }
+    }
+
+
+    /**
+     * Ends the header block of the current entity, opening it if multipart
+     * or offering it to the stage if not
+     */
+    private void endHeaders()
+    {
+        field();
+        inHeaders = false;
+
+        if (current.boundary != null)
+        {
+            multiparts.addLast(current);
+        }
+        else if (stage != null && failure == null)
+        {
+            try
+            {
+                sink = stage.open(current.part());
+            }
+            catch (IOException e)
+            {
+                failure = e;
+                sink = DISCARD;
+            }
+            sinkEntity = current;
+        }
+    }
+
+
+    /**
+     * Passes a body line to the sink
+     */
+    private void take(String line)
+    {
+        try
+        {
+            sink.line(line);
+        }
+        catch (IOException e)
+        {
+            failure = e;
+            sink.abort();
+            sink = DISCARD;
+        }
+    }
+
+
+    /**
+     * Closes the sink, if any, recording where the body went
+     */
+    private void closeSink()
+    {
+        if (sink == null) return;
+
+        try
+        {
+            sinkEntity.extracted = sink.close();
+        }
+        catch (IOException e)
+        {
+            failure = e;
+            sink.abort();
+        }
+        sink = null;
+        sinkEntity = null;
+    }
+
+
+    /**
+     * Checks a body line against the open boundaries, innermost first,
+     * ending the parts a delimiter closes
+     *
+     * @return true if the line is a delimiter
+     */
+    private boolean delimiter(String line)
+    {
+        for (var it = multiparts.descendingIterator(); it.hasNext();)
+        {
+            Entity multipart = it.next();
+            String boundary = multipart.boundary;
+
+            if (!line.startsWith(boundary, 2)) continue;
+
+            String rest = line.substring(2 + boundary.length());
+            boolean close = rest.startsWith(CONST_DASHES);
+            if (!(close ? rest.substring(2) : rest).isBlank()) continue;
+
+            // End everything opened inside the multipart
+            closeSink();
+            while (multiparts.peekLast() != multipart)
+            {
+                multiparts.pollLast();
+            }
+            for (int i = entities.size() - 1; i > multipart.index; i--)
+            {
+                Entity entity = entities.get(i);
+                if (entity.end < 0) entity.end = lastEnd;
+            }
+
+            if (close)
+            // Anything after is the epilogue
+            {
+                multiparts.pollLast();
+                current = multipart;
+                inHeaders = false;
+            }
+            else
+            // The next line starts a part
+            {
+                current = new Entity(multipart.depth + 1, multipart.index,
+                        CONST_DIGEST.equals(multipart.contentType)
+                                ? CONST_RFC822
+                                : CONST_TEXT_PLAIN);
+                entities.add(current);
+                inHeaders = true;
+                startPending = true;
+            }
+            bodyPending = false;
+            header = null;
+            return true;
+        }
+
+        return false;
+    }
+
+
+    /**
+     * Returns the lower case value before any parameters
+     */
+    private static String token(String value)
+    {
+        int semi = value.indexOf(';');
+        return (semi < 0 ? value : value.substring(0, semi)).strip()
+                .toLowerCase(Locale.ROOT);
+    }
+
+
+    /**
+     * Returns a parameter of a header value, unquoted
+     *
+     * @param value
+     *            the header value
+     * @param name
+     *            the parameter name
+     * @return the parameter, {@literal null} if not given
+     */
+    static String parameter(String value, String name)
+    {
+        int i = value.indexOf(';');
+
+        while (i >= 0 && i < value.length())
+        {
+            int equals = value.indexOf('=', i);
+            if (equals < 0) return null;
+
+            String key = value.substring(i + 1, equals).strip();
+            StringBuilder param = new StringBuilder();
+            int j = equals + 1;
+            while (j < value.length() && value.charAt(j) == ' ') j++;
+
+            if (j < value.length() && value.charAt(j) == '"')
+            // Quoted
+            {
+                for (j++; j < value.length() && value.charAt(j) != '"'; j++)
+                {
+                    if (value.charAt(j) == '\\' && j + 1 < value.length()) j++;
+                    param.append(value.charAt(j));
+                }
+                j = value.indexOf(';', j);
+            }
+            else
+            {
+                int semi = value.indexOf(';', j);
+                param.append(value, j, semi < 0 ? value.length() : semi);
+                j = semi;
+            }
+
+            if (key.equalsIgnoreCase(name)) return param.toString().strip();
+            i = j;
+        }
+
+        return null;
+    }
+
+
+    /**
+     * An entity being scanned
+     */
+    private final class Entity
+    {
+        final int index = entities.size();
+        final int depth;
+        final int parent;
+        int start = -1;
+        int bodyStart = -1;
+        int end = -1;
+        String contentType;
+        String boundary;
+        String transferEncoding = CONST_7BIT;
+        String disposition;
+        String filename;
+        ExtractedPart extracted;
+
+
+        Entity(int depth, int parent, String contentType)
+        {
+            this.depth = depth;
+            this.parent = parent;
+            this.contentType = contentType;
+        }
+
+
+        MimePart part()
+        {
+            return new MimePart(depth, parent, start, bodyStart, end,
+                    contentType, boundary, transferEncoding, disposition,
+                    filename, extracted);
+        }
+    }
+}
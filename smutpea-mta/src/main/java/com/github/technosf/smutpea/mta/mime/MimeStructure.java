@@ -0,0 +1,260 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.mta.mime;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+
+import com.github.technosf.smutpea.mta.compress.Compression;
+
+/**
+ * {@code MimeStructure}
+ * <p>
+ * The entities of a message found by a {@code MimeScanner}, in depth-first
+ * order, the message first. Headers and bodies are read from the message
+ * data by offset: fetching a header reads only its entity's header block,
+ * and a body is a view of the data, not a copy.
+ *
+ * @author technosf
+ * @since 0.0.6
+ * @version 0.0.6
+ */
+public final class MimeStructure
+{
+    /*
+     * Constants
+     */
+    private static final String CONST_BASE64 = "base64";
+
+    private final List<MimePart> parts;
+
+
+    /**
+     * Constructor
+     *
+     * @param parts
+     *            the entities, the message first
+     */
+    MimeStructure(List<MimePart> parts)
+    {
+        this.parts = List.copyOf(parts);
+    }
+
+
+    /**
+     * Returns the entities, depth-first, the message first
+     *
+     * @return the entities
+     */
+    public List<MimePart> getParts()
+    {
+        return parts;
+    }
+
+
+    /**
+     * Returns the message entity
+     *
+     * @return the message
+     */
+    public MimePart getMessage()
+    {
+        return parts.get(0);
+    }
+
+
+    /**
+     * Returns this structure with the bodies of some entities extracted
+     *
+     * @param extracted
+     *            where the bodies went, by entity index
+     * @return the structure
+     */
+    public MimeStructure withExtracted(Map<Integer, ExtractedPart> extracted)
+    {
+        List<MimePart> parts = new ArrayList<>(this.parts);
+        extracted.forEach(
+                (index, part) -> parts.set(index,
+                        parts.get(index).withExtracted(part)));
+        return new MimeStructure(parts);
+    }
+
+
+    /**
+     * Returns the attachments
+     *
+     * @return the attachments, in order
+     */
+    public List<MimePart> getAttachments()
+    {
+        List<MimePart> attachments = new ArrayList<>();
+        for (MimePart part : parts)
+        {
+            if (part.isAttachment()) attachments.add(part);
+        }
+        return attachments;
+    }
+
+
+    /**
+     * Releases any extracted bodies to the stage that took them, for a
+     * message that was not delivered or is no longer held
+     *
+     * @param stage
+     *            the stage
+     * @throws IOException
+     *             a body could not be released; the others are tried
+     */
+    public void release(PartStage stage) throws IOException
+    {
+        IOException failure = null;
+
+        for (MimePart part : parts)
+        {
+            if (part.extracted() == null) continue;
+            try
+            {
+                stage.release(part.extracted());
+            }
+            catch (IOException e)
+            {
+                if (failure == null) failure = e;
+                else failure.addSuppressed(e);
+            }
+        }
+
+        if (failure != null) throw failure;
+    }
+
+
+    /**
+     * Returns a header of an entity, unfolded, reading only its header block
+     *
+     * @param data
+     *            the message data
+     * @param part
+     *            the entity
+     * @param name
+     *            the header name, any case
+     * @return the first value of the header, {@literal null} if not present
+     */
+    public static String header(byte[] data, MimePart part, String name)
+    {
+        int start = part.start();
+        int end = part.bodyStart();
+
+        while (start < end)
+        {
+            int next = lineEnd(data, start, end);
+
+            if (next - start > name.length() && data[start + name.length()] == ':'
+                    && new String(data, start, name.length(),
+                            StandardCharsets.US_ASCII).equalsIgnoreCase(name))
+            {
+                StringBuilder value = new StringBuilder(
+                        new String(data, start + name.length() + 1,
+                                next - start - name.length() - 1,
+                                StandardCharsets.UTF_8).strip());
+
+                // Unfold continuation lines
+                start = skip(data, next, end);
+                while (start < end && (data[start] == ' ' || data[start] == '\t'))
+                {
+                    next = lineEnd(data, start, end);
+                    value.append(' ').append(new String(data, start,
+                            next - start, StandardCharsets.UTF_8).strip());
+                    start = skip(data, next, end);
+                }
+                return value.toString();
+            }
+
+            start = skip(data, next, end);
+        }
+
+        return null;
+    }
+
+
+    /**
+     * Returns the body of an entity, as encoded, empty if it was extracted
+     *
+     * @param data
+     *            the message data
+     * @param part
+     *            the entity
+     * @return a read-only view of the body
+     */
+    public static ByteBuffer body(byte[] data, MimePart part)
+    {
+        return ByteBuffer.wrap(data, part.bodyStart(), part.getBodyLength())
+                .slice().asReadOnlyBuffer();
+    }
+
+
+    /**
+     * Opens the body of an entity, decoding base64; other transfer encodings
+     * are returned as they are. An extracted body is opened from its file,
+     * decoded, and decompressed if the file is compressed.
+     *
+     * @param data
+     *            the message data
+     * @param part
+     *            the entity
+     * @return the content
+     * @throws IOException
+     *             the extracted body could not be opened
+     */
+    public static InputStream open(byte[] data, MimePart part)
+            throws IOException
+    {
+        if (part.extracted() != null)
+            return Compression.open(part.extracted().path());
+
+        InputStream body = new ByteArrayInputStream(data, part.bodyStart(),
+                part.getBodyLength());
+
+        return CONST_BASE64.equals(part.transferEncoding())
+                ? Base64.getMimeDecoder().wrap(body)
+                : body;
+    }
+
+
+    /**
+     * Returns the end of the line starting at an offset, before any CR LF
+     */
+    private static int lineEnd(byte[] data, int start, int end)
+    {
+        int next = start;
+        while (next < end && data[next] != '\n') next++;
+        if (next > start && data[next - 1] == '\r') next--;
+        return next;
+    }
+
+
+    /**
+     * Returns the start of the line after the line ending at an offset
+     */
+    private static int skip(byte[] data, int next, int end)
+    {
+        if (next < end && data[next] == '\r') next++;
+        return next < end ? next + 1 : next;
+    }
+}
@@ -0,0 +1,411 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.mta.mime;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HexFormat;
+
+import com.github.technosf.smutpea.mta.compress.Compression;
+
+/**
+ * {@code PartDecoder}
+ * <p>
+ * Transfer decodes the body of a part a line at a time, base64,
+ * quoted-printable or as it is, hashing the decoded bytes with SHA-256 as
+ * they pass. Decoded bytes are held in memory up to a spill size, then
+ * written to a temporary file, so a {@code PartSink} can decide where the
+ * body goes once its hash is known, often without having written it.
+ * <p>
+ * Given a {@code Compression}, the spill file, and any file the body is
+ * written to, hold it compressed, and are named with its suffix.
+ *
+ * @author technosf
+ * @since 0.0.6
+ * @version 0.0.6
+ */
+public final class PartDecoder
+{
+    /*
+     * Constants
+     */
+    private static final String CONST_PREFIX = "part-";
+    private static final String CONST_SUFFIX = ".part";
+    private static final String CONST_SHA256 = "SHA-256";
+    private static final String CONST_BASE64 = "base64";
+    private static final String CONST_QP = "quoted-printable";
+    private static final byte[] CONST_CRLF = { '\r', '\n' };
+    private static final int CONST_BUFFER = 64 * 1024;
+
+    private final Path directory;
+    private final int spill;
+    private final boolean force;
+    private final Compression compression;
+    private final String encoding;
+    private final MessageDigest digest;
+    private final Output out = new Output();
+    private final byte[] carry = new byte[5];
+
+    private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+    private FileChannel channel;
+    private OutputStream file;
+    private Path path;
+    private long size = 0;
+    private boolean first = true;
+    private boolean soft = false;
+    private String sha256;
+
+
+    /**
+     * Constructor
+     *
+     * @param transferEncoding
+     *            the transfer encoding of the body
+     * @param directory
+     *            the directory for the spill file
+     * @param spill
+     *            the bytes held in memory before spilling, zero to write
+     *            from the start
+     * @param force
+     *            true to force the spill file to storage when finished
+     * @throws IOException
+     *             the spill file could not be created
+     */
+    public PartDecoder(String transferEncoding, Path directory, int spill,
+            boolean force) throws IOException
+    {
+        this(transferEncoding, directory, spill, force, null);
+    }
+
+
+    /**
+     * Constructor compressing what is written to files
+     *
+     * @param transferEncoding
+     *            the transfer encoding of the body
+     * @param directory
+     *            the directory for the spill file
+     * @param spill
+     *            the bytes held in memory before spilling, zero to write
+     *            from the start
+     * @param force
+     *            true to force the spill file to storage when finished
+     * @param compression
+     *            the compression for files, {@literal null} for none
+     * @throws IOException
+     *             the spill file could not be created
+     */
+    public PartDecoder(String transferEncoding, Path directory, int spill,
+            boolean force, Compression compression) throws IOException
+    {
+        this.encoding = transferEncoding;
+        this.directory = directory;
+        this.spill = spill;
+        this.force = force;
+        this.compression = compression;
+
+        try
+        {
+            digest = MessageDigest.getInstance(CONST_SHA256);
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e); // Every JVM has SHA-256
+        }
+
+        if (spill <= 0) spill();
+    }
+
+
+    /**
+     * Decodes the next line of the body
+     *
+     * @param line
+     *            the line
+     * @throws IOException
+     *             the line could not be decoded or written
+     */
+    public void line(String line) throws IOException
+    {
+        try
+        {
+            switch (encoding)
+            {
+                case CONST_BASE64:
+                    out.write(base64(line, carry));
+                    break;
+
+                case CONST_QP:
+                    if (!first && !soft) out.write(CONST_CRLF);
+                    soft = quotedPrintable(line, out);
+                    break;
+
+                default:
+                    if (!first) out.write(CONST_CRLF);
+                    out.write(line.getBytes(StandardCharsets.UTF_8));
+                    break;
+            }
+        }
+        catch (IllegalArgumentException e)
+        {
+            throw new IOException(e);
+        }
+        first = false;
+    }
+
+
+    /**
+     * Ends the body, closing any spill file
+     *
+     * @return the SHA-256 of the decoded body, lower case hex
+     * @throws IOException
+     *             the spill file could not be completed
+     */
+    public String finish() throws IOException
+    {
+        if (file != null)
+        {
+            file.flush();
+            if (force) channel.force(true);
+            file.close();
+        }
+        return sha256 = HexFormat.of().formatHex(digest.digest());
+    }
+
+
+    /**
+     * Abandons the body, deleting any spill file
+     *
+     * @throws IOException
+     *             the spill file could not be deleted
+     */
+    public void abort() throws IOException
+    {
+        memory = null;
+        if (file != null)
+        {
+            file.close();
+            Files.deleteIfExists(path);
+        }
+    }
+
+
+    /**
+     * Returns the SHA-256 of the decoded body, once finished
+     *
+     * @return the hash, {@literal null} before finishing
+     */
+    public String getSha256()
+    {
+        return sha256;
+    }
+
+
+    /**
+     * Returns the decoded size
+     *
+     * @return the size in bytes
+     */
+    public long getSize()
+    {
+        return size;
+    }
+
+
+    /**
+     * Returns the spill file, if the body spilled
+     *
+     * @return the file, {@literal null} if the body is in memory
+     */
+    public Path getSpill()
+    {
+        return path;
+    }
+
+
+    /**
+     * Writes a decoded body held in memory to a file
+     *
+     * @param target
+     *            the file
+     * @throws IOException
+     *             the file could not be written
+     */
+    public void writeTo(Path target) throws IOException
+    {
+        try (FileChannel out = FileChannel.open(target,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            byte[] body = memory.toByteArray();
+            out.write(ByteBuffer.wrap(compression == null ? body
+                    : compression.compress(body)));
+            if (force) out.force(true);
+        }
+    }
+
+
+    /*
+     * ------------------------------------------------------------------------
+     *
+     * Decoding
+     *
+     * ------------------------------------------------------------------------
+     */
+
+    /**
+     * Decodes a base64 line, carrying an incomplete quantum to the next
+     *
+     * @param line
+     *            the line
+     * @param carry
+     *            the characters carried, four at most, and their count last
+     * @return the decoded bytes
+     */
+    static byte[] base64(String line, byte[] carry)
+    {
+        int held = carry[4];
+        byte[] chars = new byte[held + line.length()];
+        System.arraycopy(carry, 0, chars, 0, held);
+
+        int n = held;
+        for (int i = 0; i < line.length(); i++)
+        {
+            char c = line.charAt(i);
+            if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z')
+                    || (c >= '0' && c <= '9') || c == '+' || c == '/'
+                    || c == '=')
+            {
+                chars[n++] = (byte) c;
+            }
+        }
+
+        int whole = n - n % 4;
+        carry[4] = (byte) (n - whole);
+        System.arraycopy(chars, whole, carry, 0, n - whole);
+
+        return Base64.getDecoder().decode(Arrays.copyOf(chars, whole));
+    }
+
+
+    /**
+     * Decodes a quoted-printable line
+     *
+     * @param line
+     *            the line
+     * @param out
+     *            where the decoded bytes go
+     * @return true if the line ended with a soft line break
+     * @throws IOException
+     */
+    static boolean quotedPrintable(String line, OutputStream out)
+            throws IOException
+    {
+        int end = line.length();
+        while (end > 0 && (line.charAt(end - 1) == ' '
+                || line.charAt(end - 1) == '\t'))
+        {
+            end--;
+        }
+
+        boolean soft = end > 0 && line.charAt(end - 1) == '=';
+        if (soft) end--;
+
+        for (int i = 0; i < end; i++)
+        {
+            char c = line.charAt(i);
+            int hi, lo;
+            if (c == '=' && i + 2 < end
+                    && (hi = Character.digit(line.charAt(i + 1), 16)) >= 0
+                    && (lo = Character.digit(line.charAt(i + 2), 16)) >= 0)
+            {
+                out.write((hi << 4) | lo);
+                i += 2;
+            }
+            else if (c < 0x80)
+            {
+                out.write(c);
+            }
+            else
+            {
+                out.write(String.valueOf(c).getBytes(StandardCharsets.UTF_8));
+            }
+        }
+
+        return soft;
+    }
+
+
+    /**
+     * Moves the body from memory to a spill file
+     */
+    private void spill() throws IOException
+    {
+        path = Files.createTempFile(directory, CONST_PREFIX,
+                compression == null ? CONST_SUFFIX
+                        : CONST_SUFFIX + Compression.CONST_SUFFIX);
+        channel = FileChannel.open(path, StandardOpenOption.WRITE);
+        file = new BufferedOutputStream(Channels.newOutputStream(channel),
+                CONST_BUFFER);
+        if (compression != null) file = compression.output(file);
+        memory.writeTo(file);
+        memory = null;
+    }
+
+
+    /**
+     * Hashes and counts decoded bytes, into memory or the spill file
+     */
+    private final class Output
+            extends OutputStream
+    {
+        @Override
+        public void write(int b) throws IOException
+        {
+            digest.update((byte) b);
+            size++;
+
+            if (memory != null && memory.size() + 1 > spill) spill();
+
+            if (memory != null) memory.write(b);
+            else file.write(b);
+        }
+
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            digest.update(b, off, len);
+            size += len;
+
+            if (memory != null && memory.size() + len > spill) spill();
+
+            if (memory != null) memory.write(b, off, len);
+            else file.write(b, off, len);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.mta.mime;
+
+import java.io.IOException;
+
+/**
+ * {@code PartSink}
+ * <p>
+ * Receives the body of one part, a line at a time, from a
+ * {@code PartStage}.
+ *
+ * @author technosf
+ * @since 0.0.6
+ * @version 0.0.6
+ */
+public interface PartSink
+{
+    /**
+     * Takes the next line of the body. The line break before the next
+     * boundary belongs to the boundary, so breaks come between lines.
+     *
+     * @param line
+     *            the line, without its line break or dot-stuffing
+     * @throws IOException
+     *             the line could not be taken
+     */
+    void line(String line) throws IOException;
+
+
+    /**
+     * Ends the body
+     *
+     * @return where the body went
+     * @throws IOException
+     *             the body could not be completed
+     */
+    ExtractedPart close() throws IOException;
+
+
+    /**
+     * Abandons the body, the transaction having ended without it
+     */
+    void abort();
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.mta.mime;
+
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * {@code PartStage}
+ * <p>
+ * A DATA-phase stage that can take the body of a part from the message as
+ * it streams in. The {@code MimeScanner} offers each leaf part when its
+ * headers end; lines of a part taken go to the stage's {@code PartSink}
+ * rather than to the message data, so the body is never buffered.
+ *
+ * @author technosf
+ * @since 0.0.6
+ * @version 0.0.6
+ */
+public interface PartStage
+{
+    /**
+     * Offers the body of a part
+     *
+     * @param part
+     *            the part, its headers scanned and its end not yet known
+     * @return the sink for the body, {@literal null} to leave it in the
+     *         message data
+     * @throws IOException
+     *             the sink could not be opened
+     */
+    PartSink open(MimePart part) throws IOException;
+
+
+    /**
+     * Releases a body this stage took, for a message that was not delivered
+     * or is no longer held. By default its file is deleted.
+     *
+     * @param part
+     *            where the body went
+     * @throws IOException
+     *             the body could not be released
+     */
+    default void release(ExtractedPart part) throws IOException
+    {
+        Files.deleteIfExists(part.path());
+    }
+}
@@ -0,0 +1,858 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.mta.store;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.technosf.smutpea.mta.Envelope;
+import com.github.technosf.smutpea.mta.mime.MimeStructure;
+import com.github.technosf.smutpea.mta.mime.PartStage;
+
+/**
+ * {@code CaptureStore}
+ * <p>
+ * A bounded, in-memory store of captured messages that test threads can
+ * query while mail is arriving.
+ * <p>
+ * Messages are spread over shards, in turn, each with its own read-write
+ * lock, so capturing locks one shard and queries lock one shard at a time;
+ * nothing locks the whole store. Each shard holds its share of the
+ * <em>maxMessages</em> and <em>maxBytes</em> limits and evicts its oldest
+ * messages to stay inside them.
+ * <p>
+ * Each shard keeps an inverted index of the {@code Terms} of its messages,
+ * by a sequence number counting the shard's captures. As both grow in
+ * capture order a term's {@code PostingList} is ascending and eviction
+ * takes from the head of each, so the index is maintained as messages come
+ * and go, and a {@link #search(String)} intersects a few compressed lists
+ * rather than scanning messages.
+ * <p>
+ * Parts a {@code PartStage} took from a message, such as the blobs of a
+ * {@code ContentStore}, are released to the stage as the message is evicted
+ * or cleared.
+ * <p>
+ * Off-heap, each shard keeps message data in a direct buffer of its share
+ * of <em>maxBytes</em>, written as a ring, so captured data does not load
+ * the Java heap; it is copied out when a message is queried.
+ *
+ * @author technosf
+ * @since 0.0.6
+ * @version 0.0.6
+ */
+public final class CaptureStore
+{
+    private static final Logger logger = LoggerFactory
+            .getLogger(CaptureStore.class);
+
+    /*
+     * Constants
+     */
+    private static final String CONST_ERR_RELEASE =
+            "Could not release the parts of captured message {}";
+    private static final String CONST_ERR_OFF_HEAP =
+            "Off-heap capture needs a byte limit";
+    private static final String CONST_ERR_TOO_BIG =
+            "Message of %1$d bytes is larger than a shard of %2$d bytes";
+    private static final String CONST_SUBJECT = "subject";
+    private static final String CONST_OR = "OR";
+    private static final String CONST_AND = "AND";
+    private static final long[] CONST_NONE = new long[0];
+    private static final byte[] CONST_EMPTY = new byte[0];
+
+    private final Shard[] shards;
+    private final PartStage stage;
+    private final AtomicInteger next = new AtomicInteger();
+    private final AtomicLong ids = new AtomicLong();
+
+    /*
+     * Counters
+     */
+    private final LongAdder captured = new LongAdder();
+    private final LongAdder evicted = new LongAdder();
+
+
+    /**
+     * Constructor
+     *
+     * @param shards
+     *            the number of shards, at least one
+     * @param maxMessages
+     *            the most messages held, unlimited if zero or less
+     * @param maxBytes
+     *            the most message data held, unlimited if zero or less
+     * @param offHeap
+     *            true to hold message data in direct buffers, which needs a
+     *            byte limit
+     * @throws IllegalArgumentException
+     *             off-heap without a byte limit
+     */
+    public CaptureStore(int shards, long maxMessages, long maxBytes,
+            boolean offHeap)
+    {
+        this(shards, maxMessages, maxBytes, offHeap, null);
+    }
+
+
+    /**
+     * Constructor
+     *
+     * @param shards
+     *            the number of shards, at least one
+     * @param maxMessages
+     *            the most messages held, unlimited if zero or less
+     * @param maxBytes
+     *            the most message data held, unlimited if zero or less
+     * @param offHeap
+     *            true to hold message data in direct buffers, which needs a
+     *            byte limit
+     * @param stage
+     *            the stage that took parts from captured messages, to
+     *            release them to, {@literal null} for none
+     * @throws IllegalArgumentException
+     *             off-heap without a byte limit
+     */
+    public CaptureStore(int shards, long maxMessages, long maxBytes,
+            boolean offHeap, PartStage stage)
+    {
+        this.stage = stage;
+
+        if (offHeap && maxBytes <= 0)
+            throw new IllegalArgumentException(CONST_ERR_OFF_HEAP);
+
+        int n = Math.max(1, shards);
+        long messages = maxMessages <= 0 ? Long.MAX_VALUE
+                : Math.max(1, (maxMessages + n - 1) / n);
+        long bytes = maxBytes <= 0 ? Long.MAX_VALUE
+                : Math.max(1, Math.min(Integer.MAX_VALUE, maxBytes / n));
+
+        this.shards = new Shard[n];
+        for (int i = 0; i < n; i++)
+        {
+            this.shards[i] = new Shard(messages, bytes, offHeap);
+        }
+    }
+
+
+    /**
+     * Captures and indexes a message, evicting the oldest in its shard as
+     * needed
+     *
+     * @param envelope
+     *            the message
+     * @return the capture id
+     * @throws IllegalArgumentException
+     *             the message is larger than an off-heap shard
+     */
+    public long capture(Envelope envelope)
+    {
+        Slot slot = new Slot(subject(envelope.data()), envelope);
+        String[] terms = Terms.of(envelope);
+
+        long id = shards[Math.floorMod(next.getAndIncrement(), shards.length)]
+                .add(slot, terms);
+        captured.increment();
+
+        return id;
+    }
+
+
+    /**
+     * Returns the captured messages matching a query.
+     * <p>
+     * A query is terms separated by white space, all of which a message must
+     * hold, optionally joined by {@code AND}; {@code OR} separates
+     * alternatives. Terms are as made by {@code Terms}, ignoring case: for
+     * example {@code domain:example.com subject:invoice OR from:a@b.c}.
+     *
+     * @param query
+     *            the query
+     * @return the messages, oldest first
+     */
+    public List<CapturedMessage> search(String query)
+    {
+        List<String[]> clauses = new ArrayList<>();
+        List<String> clause = new ArrayList<>();
+
+        for (String term : query.strip().split("\\s+"))
+        {
+            if (CONST_OR.equals(term))
+            {
+                if (!clause.isEmpty()) clauses.add(clause.toArray(String[]::new));
+                clause.clear();
+            }
+            else if (!term.isEmpty() && !CONST_AND.equals(term))
+            {
+                clause.add(Terms.key(term));
+            }
+        }
+        if (!clause.isEmpty()) clauses.add(clause.toArray(String[]::new));
+
+        return search(clauses);
+    }
+
+
+    /**
+     * Returns the captured messages sent to a recipient, ignoring case
+     *
+     * @param forwardPath
+     *            the recipient
+     * @return the messages, oldest first
+     */
+    public List<CapturedMessage> byRecipient(String forwardPath)
+    {
+        return search(List.<String[]> of(
+                new String[] { Terms.CONST_TO + Terms.key(forwardPath) }));
+    }
+
+
+    /**
+     * Returns the captured messages from a sender, ignoring case
+     *
+     * @param reversePath
+     *            the sender
+     * @return the messages, oldest first
+     */
+    public List<CapturedMessage> bySender(String reversePath)
+    {
+        return search(List.<String[]> of(
+                new String[] { Terms.CONST_FROM + Terms.key(reversePath) }));
+    }
+
+
+    /**
+     * Returns the captured messages whose subject contains some text,
+     * ignoring case
+     *
+     * @param text
+     *            the text
+     * @return the messages, oldest first
+     */
+    public List<CapturedMessage> bySubject(String text)
+    {
+        String key = Terms.key(text);
+        return scan(slot -> slot.subject != null
+                && Terms.key(slot.subject).contains(key));
+    }
+
+
+    /**
+     * Returns the messages captured in a time range
+     *
+     * @param from
+     *            the start of the range, inclusive
+     * @param to
+     *            the end of the range, exclusive
+     * @return the messages, oldest first
+     */
+    public List<CapturedMessage> between(Instant from, Instant to)
+    {
+        return scan(slot ->
+        {
+            Instant received = slot.envelope.received();
+            return !received.isBefore(from) && received.isBefore(to);
+        });
+    }
+
+
+    /**
+     * Returns every captured message
+     *
+     * @return the messages, oldest first
+     */
+    public List<CapturedMessage> all()
+    {
+        return scan(slot -> true);
+    }
+
+
+    /**
+     * Returns the number of messages held
+     *
+     * @return the count
+     */
+    public int size()
+    {
+        int size = 0;
+        for (Shard shard : shards)
+        {
+            size += shard.read(() -> shard.count);
+        }
+        return size;
+    }
+
+
+    /**
+     * Returns the bytes of message data held
+     *
+     * @return the bytes
+     */
+    public long getBytes()
+    {
+        long bytes = 0;
+        for (Shard shard : shards)
+        {
+            bytes += shard.read(() -> shard.bytes);
+        }
+        return bytes;
+    }
+
+
+    /**
+     * Returns the bytes of message data held on the Java heap, none when
+     * off-heap
+     *
+     * @return the bytes
+     */
+    long getHeapBytes()
+    {
+        long bytes = 0;
+        for (Shard shard : shards)
+        {
+            bytes += shard.read(() ->
+            {
+                long held = 0;
+                for (int i = 0; i < shard.count; i++)
+                {
+                    Slot slot = shard.get(shard.firstSeq + i);
+                    held += slot.envelope.data().length;
+                }
+                return held;
+            });
+        }
+        return bytes;
+    }
+
+
+    /**
+     * Returns the number of distinct terms indexed, counted once per shard
+     *
+     * @return the count
+     */
+    public long getTerms()
+    {
+        long terms = 0;
+        for (Shard shard : shards)
+        {
+            terms += shard.read(() -> shard.postings.size());
+        }
+        return terms;
+    }
+
+
+    /**
+     * Returns the bytes held by the compressed postings
+     *
+     * @return the bytes
+     */
+    public long getPostingBytes()
+    {
+        long bytes = 0;
+        for (Shard shard : shards)
+        {
+            bytes += shard.read(() ->
+            {
+                long sum = 0;
+                for (PostingList postings : shard.postings.values())
+                {
+                    sum += postings.bytes();
+                }
+                return sum;
+            });
+        }
+        return bytes;
+    }
+
+
+    /**
+     * Returns the number of messages captured
+     *
+     * @return the count
+     */
+    public long getCaptured()
+    {
+        return captured.sum();
+    }
+
+
+    /**
+     * Returns the number of messages evicted
+     *
+     * @return the count
+     */
+    public long getEvicted()
+    {
+        return evicted.sum();
+    }
+
+
+    /**
+     * Removes every message
+     */
+    public void clear()
+    {
+        for (Shard shard : shards)
+        {
+            shard.clear();
+        }
+    }
+
+
+    /**
+     * Returns the Subject header of a message, {@literal null} if it has
+     * none
+     *
+     * @param data
+     *            the message
+     * @return the subject
+     */
+    static String subject(byte[] data)
+    {
+        String[] subject = new String[1];
+        Terms.headers(data, (name, value) ->
+        {
+            if (subject[0] == null && CONST_SUBJECT.equalsIgnoreCase(name))
+                subject[0] = value;
+        });
+        return subject[0];
+    }
+
+
+    /*
+     * ------------------------------------------------------------------------
+     *
+     * Helpers
+     *
+     * ------------------------------------------------------------------------
+     */
+
+    /**
+     * Searches each shard in turn, returning messages in id order
+     */
+    private List<CapturedMessage> search(List<String[]> clauses)
+    {
+        List<CapturedMessage> messages = new ArrayList<>();
+
+        for (Shard shard : shards)
+        {
+            shard.read(() ->
+            {
+                for (long seq : shard.search(clauses))
+                {
+                    messages.add(shard.message(shard.get(seq)));
+                }
+                return null;
+            });
+        }
+
+        messages.sort(Comparator.comparingLong(CapturedMessage::id));
+        return messages;
+    }
+
+
+    /**
+     * Scans each shard in turn, returning messages in id order
+     */
+    private List<CapturedMessage> scan(Predicate<Slot> filter)
+    {
+        List<CapturedMessage> messages = new ArrayList<>();
+
+        for (Shard shard : shards)
+        {
+            shard.read(() ->
+            {
+                for (int i = 0; i < shard.count; i++)
+                {
+                    Slot slot = shard.get(shard.firstSeq + i);
+                    if (filter.test(slot)) messages.add(shard.message(slot));
+                }
+                return null;
+            });
+        }
+
+        messages.sort(Comparator.comparingLong(CapturedMessage::id));
+        return messages;
+    }
+
+
+    /**
+     * Returns the values in both ascending arrays
+     */
+    private static long[] intersect(long[] a, long[] b)
+    {
+        long[] both = new long[Math.min(a.length, b.length)];
+        int i = 0, j = 0, n = 0;
+
+        while (i < a.length && j < b.length)
+        {
+            if (a[i] < b[j]) i++;
+            else if (a[i] > b[j]) j++;
+            else
+            {
+                both[n++] = a[i++];
+                j++;
+            }
+        }
+
+        return Arrays.copyOf(both, n);
+    }
+
+
+    /**
+     * Returns the values in either ascending array
+     */
+    private static long[] union(long[] a, long[] b)
+    {
+        long[] either = new long[a.length + b.length];
+        int i = 0, j = 0, n = 0;
+
+        while (i < a.length || j < b.length)
+        {
+            if (j == b.length || (i < a.length && a[i] < b[j]))
+                either[n++] = a[i++];
+            else if (i == a.length || b[j] < a[i]) either[n++] = b[j++];
+            else
+            {
+                either[n++] = a[i++];
+                j++;
+            }
+        }
+
+        return Arrays.copyOf(either, n);
+    }
+
+
+    /*
+     * ------------------------------------------------------------------------
+     *
+     * Shards
+     *
+     * ------------------------------------------------------------------------
+     */
+
+    /**
+     * A captured message, its postings and, off-heap, where its data is
+     */
+    private static final class Slot
+    {
+        final String subject;
+        final int size;
+        Envelope envelope;
+        long id;
+        PostingList[] postings;
+        int offset = -1;
+
+
+        Slot(String subject, Envelope envelope)
+        {
+            this.subject = subject;
+            this.envelope = envelope;
+            this.size = envelope.data().length;
+        }
+    }
+
+
+    /**
+     * One shard: messages in capture order, their index and, off-heap, the
+     * ring holding their data
+     */
+    private final class Shard
+    {
+        final Map<String, PostingList> postings = new HashMap<>();
+        final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+        final long maxMessages;
+        final long maxBytes;
+        final ByteBuffer ring;
+
+        /*
+         * Messages, a circular array from the oldest, firstSeq
+         */
+        Slot[] slots = new Slot[16];
+        int first = 0;
+        int count = 0;
+        long firstSeq = 0;
+
+        long bytes = 0;
+        int head = 0;
+
+
+        Shard(long maxMessages, long maxBytes, boolean offHeap)
+        {
+            this.maxMessages = maxMessages;
+            this.maxBytes = maxBytes;
+            this.ring = offHeap ? ByteBuffer.allocateDirect((int) maxBytes)
+                    : null;
+        }
+
+
+        /**
+         * Adds and indexes a message, evicting to stay in the limits
+         *
+         * @return the capture id
+         */
+        long add(Slot slot, String[] terms)
+        {
+            if (slot.size > maxBytes)
+            {
+                throw new IllegalArgumentException(String
+                        .format(CONST_ERR_TOO_BIG, slot.size, maxBytes));
+            }
+
+            lock.writeLock().lock();
+            try
+            {
+                if (ring != null) place(slot);
+
+                while (count > 0 && (count >= maxMessages
+                        || bytes + slot.size > maxBytes))
+                {
+                    evict();
+                }
+
+                if (count == slots.length) grow();
+
+                long seq = firstSeq + count;
+                slots[(first + count++) & (slots.length - 1)] = slot;
+                bytes += slot.size;
+                slot.id = ids.getAndIncrement(); // Ascending in the shard
+
+                slot.postings = new PostingList[terms.length];
+                for (int i = 0; i < terms.length; i++)
+                {
+                    PostingList list = postings.computeIfAbsent(terms[i],
+                            PostingList::new);
+                    list.add(seq);
+                    slot.postings[i] = list;
+                }
+
+                return slot.id;
+            }
+            finally
+            {
+                lock.writeLock().unlock();
+            }
+        }
+
+
+        /**
+         * Writes the data into the ring, evicting the oldest messages in the
+         * way. Messages are written in ring order, so the oldest is the first
+         * at or after the head, and wrapping evicts those left at the end.
+         */
+        void place(Slot slot)
+        {
+            int at = head;
+            boolean wrapped = at + slot.size > ring.capacity();
+            if (wrapped) at = 0;
+
+            while (count > 0)
+            {
+                int oldest = slots[first].offset;
+                if ((wrapped && oldest >= head)
+                        || (oldest >= at && oldest < at + slot.size))
+                {
+                    evict();
+                }
+                else
+                {
+                    break;
+                }
+            }
+
+            // The data is held in the ring only
+            Envelope envelope = slot.envelope;
+            ring.put(at, envelope.data());
+            slot.envelope = new Envelope(envelope.received(), envelope.helo(),
+                    envelope.reversePath(), envelope.forwardPaths(),
+                    CONST_EMPTY, envelope.structure());
+            slot.offset = at;
+            head = at + slot.size;
+        }
+
+
+        /**
+         * Evicts the oldest message and its postings
+         */
+        void evict()
+        {
+            Slot oldest = slots[first];
+            slots[first] = null;
+            first = (first + 1) & (slots.length - 1);
+            count--;
+            firstSeq++;
+            bytes -= oldest.size;
+
+            for (PostingList list : oldest.postings)
+            {
+                list.removeFirst();
+                if (list.isEmpty()) postings.remove(list.term);
+            }
+            release(oldest);
+            evicted.increment();
+        }
+
+
+        /**
+         * Releases the parts taken from a message
+         */
+        void release(Slot slot)
+        {
+            MimeStructure structure = slot.envelope.structure();
+            if (stage == null || structure == null) return;
+
+            try
+            {
+                structure.release(stage);
+            }
+            catch (IOException e)
+            {
+                logger.warn(CONST_ERR_RELEASE, slot.id, e);
+            }
+        }
+
+
+        /**
+         * Returns the message with a sequence number
+         */
+        Slot get(long seq)
+        {
+            return slots[(first + (int) (seq - firstSeq)) & (slots.length - 1)];
+        }
+
+
+        /**
+         * Returns the ascending sequence numbers matching any clause
+         */
+        long[] search(List<String[]> clauses)
+        {
+            long[] hits = CONST_NONE;
+
+            for (String[] clause : clauses)
+            {
+                PostingList[] lists = new PostingList[clause.length];
+                boolean all = true;
+                for (int i = 0; i < clause.length && all; i++)
+                {
+                    all = (lists[i] = postings.get(clause[i])) != null;
+                }
+                if (!all) continue;
+
+                // Smallest first, so intersections only shrink from there
+                Arrays.sort(lists, Comparator.comparingInt(PostingList::size));
+                long[] seqs = lists[0].toArray();
+                for (int i = 1; i < lists.length && seqs.length > 0; i++)
+                {
+                    seqs = intersect(seqs, lists[i].toArray());
+                }
+
+                hits = union(hits, seqs);
+            }
+
+            return hits;
+        }
+
+
+        /**
+         * Returns a held message, its data copied from the ring if off-heap
+         */
+        CapturedMessage message(Slot slot)
+        {
+            Envelope envelope = slot.envelope;
+
+            if (ring != null)
+            {
+                byte[] data = new byte[slot.size];
+                ring.get(slot.offset, data);
+                envelope = new Envelope(envelope.received(), envelope.helo(),
+                        envelope.reversePath(), envelope.forwardPaths(), data,
+                        envelope.structure());
+            }
+
+            return new CapturedMessage(slot.id, slot.subject, envelope);
+        }
+
+
+        /**
+         * Runs a query under the read lock
+         */
+        <T> T read(Supplier<T> query)
+        {
+            lock.readLock().lock();
+            try
+            {
+                return query.get();
+            }
+            finally
+            {
+                lock.readLock().unlock();
+            }
+        }
+
+
+        void clear()
+        {
+            lock.writeLock().lock();
+            try
+            {
+                for (int i = 0; i < count; i++)
+                {
+                    release(get(firstSeq + i));
+                }
+                Arrays.fill(slots, null);
+                firstSeq += count;
+                first = 0;
+                count = 0;
+                postings.clear();
+                bytes = 0;
+                head = 0;
+            }
+            finally
+            {
+                lock.writeLock().unlock();
+            }
+        }
+
+
+        /**
+         * Doubles the message array, oldest first
+         */
+        private void grow()
+        {
+            Slot[] grown = new Slot[slots.length * 2];
+            for (int i = 0; i < count; i++)
+            {
+                grown[i] = slots[(first + i) & (slots.length - 1)];
+            }
+            slots = grown;
+            first = 0;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.mta.store;
+
+import com.github.technosf.smutpea.mta.Envelope;
+
+/**
+ * {@code CapturedMessage}
+ * <p>
+ * A message held by a {@code CaptureStore}.
+ *
+ * @param id
+ *            the capture id, ascending in order of capture
+ * @param subject
+ *            the <em>Subject</em> header, unfolded, {@literal null} if none
+ * @param envelope
+ *            the message and its envelope
+ *
+ * @author technosf
+ * @since 0.0.6
+ * @version 0.0.6
+ */
+public record CapturedMessage(long id, String subject, Envelope envelope)
+{
+}
@@ -0,0 +1,539 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.mta.store;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.technosf.smutpea.mta.compress.Compression;
+import com.github.technosf.smutpea.mta.mime.ExtractedPart;
+import com.github.technosf.smutpea.mta.mime.MimePart;
+import com.github.technosf.smutpea.mta.mime.PartDecoder;
+import com.github.technosf.smutpea.mta.mime.PartSink;
+import com.github.technosf.smutpea.mta.mime.PartStage;
+
+/**
+ * {@code ContentStore}
+ * <p>
+ * A content-addressed store of part bodies, and the {@code PartStage} that
+ * fills it: each body is decoded and hashed as it streams in, and stored
+ * once under its SHA-256, however many messages carry it. A message then
+ * holds its envelope, headers and MIME skeleton, and references to its
+ * parts.
+ * <p>
+ * Bodies are decoded into memory up to a spill size, so a repeated body is
+ * recognised by its hash without being written at all; larger bodies spill
+ * to a temporary file, which is moved into place or, if the body is already
+ * stored, deleted. Blobs live at <em>ab/abcdef...</em> under the directory,
+ * compressed if the store is given a {@code Compression}, when their names
+ * take its suffix. A body arriving in several sessions at once is written by
+ * the first, which the others wait on, so sessions with different bodies
+ * never wait on each other's writes. A forcing store forces each blob and
+ * then its directory entry.
+ * <p>
+ * Each blob counts the references taken this run; a blob released to no
+ * references is garbage, deleted on the next {@link #collect()}, which each
+ * new part runs. Blobs found on disk, stored by an earlier run, may be
+ * referenced by messages held elsewhere and are never collected.
+ *
+ * @author technosf
+ * @since 0.0.6
+ * @version 0.0.6
+ */
+public final class ContentStore
+        implements PartStage
+{
+    private static final Logger logger = LoggerFactory
+            .getLogger(ContentStore.class);
+
+    /*
+     * Constants
+     */
+    private static final String CONST_TMP = "tmp";
+    private static final String CONST_BLOB = "blob-";
+    private static final String CONST_ERR_ABORT =
+            "Could not remove an abandoned part";
+    private static final String CONST_ERR_COLLECT =
+            "Could not collect blob {}";
+
+    /**
+     * Decoded bytes held in memory before a body spills to a file
+     */
+    static final int CONST_SPILL = 1024 * 1024;
+
+    private final Path directory;
+    private final Path tmp;
+    private final boolean force;
+    private final Predicate<MimePart> filter;
+    private final Compression compression;
+    private final Map<String, Blob> blobs = new ConcurrentHashMap<>();
+    private final Queue<String> garbage = new ConcurrentLinkedQueue<>();
+
+    /*
+     * Counters
+     */
+    private final LongAdder written = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder deduplicated = new LongAdder();
+    private final LongAdder bytesDeduplicated = new LongAdder();
+    private final LongAdder collected = new LongAdder();
+
+
+    /**
+     * Constructor storing every leaf part
+     *
+     * @param directory
+     *            the directory of the store
+     * @throws IOException
+     *             the directory could not be created
+     */
+    public ContentStore(Path directory) throws IOException
+    {
+        this(directory, false, part -> true);
+    }
+
+
+    /**
+     * Constructor
+     *
+     * @param directory
+     *            the directory of the store
+     * @param force
+     *            true to force each new blob to storage before it is
+     *            referenced, for durable deliverers
+     * @param filter
+     *            chooses the parts to store
+     * @throws IOException
+     *             the directory could not be created
+     */
+    public ContentStore(Path directory, boolean force,
+            Predicate<MimePart> filter) throws IOException
+    {
+        this(directory, force, filter, null);
+    }
+
+
+    /**
+     * Constructor compressing blobs
+     *
+     * @param directory
+     *            the directory of the store
+     * @param force
+     *            true to force each new blob to storage before it is
+     *            referenced, for durable deliverers
+     * @param filter
+     *            chooses the parts to store
+     * @param compression
+     *            the compression for blobs, {@literal null} for none
+     * @throws IOException
+     *             the directory could not be created
+     */
+    public ContentStore(Path directory, boolean force,
+            Predicate<MimePart> filter, Compression compression)
+            throws IOException
+    {
+        this.directory = requireNonNull(directory);
+        this.tmp = Files.createDirectories(directory.resolve(CONST_TMP));
+        this.force = force;
+        this.filter = requireNonNull(filter);
+        this.compression = compression;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see com.github.technosf.smutpea.mta.mime.PartStage#open(com.github.technosf.smutpea.mta.mime.MimePart)
+     */
+    @Override
+    public PartSink open(MimePart part) throws IOException
+    {
+        if (!garbage.isEmpty()) collect();
+        if (!filter.test(part)) return null;
+
+        PartDecoder decoder = new PartDecoder(part.transferEncoding(), tmp,
+                CONST_SPILL, force, compression);
+
+        return new PartSink()
+        {
+            @Override
+            public void line(String line) throws IOException
+            {
+                decoder.line(line);
+            }
+
+
+            @Override
+            public ExtractedPart close() throws IOException
+            {
+                String sha256 = decoder.finish();
+                return new ExtractedPart(store(sha256, decoder),
+                        decoder.getSize(), sha256);
+            }
+
+
+            @Override
+            public void abort()
+            {
+                try
+                {
+                    decoder.abort();
+                }
+                catch (IOException e)
+                {
+                    logger.warn(CONST_ERR_ABORT, e);
+                }
+            }
+        };
+    }
+
+
+    /**
+     * Drops a reference to a blob, making it garbage if it was the last
+     *
+     * @see com.github.technosf.smutpea.mta.mime.PartStage#release(com.github.technosf.smutpea.mta.mime.ExtractedPart)
+     */
+    @Override
+    public void release(ExtractedPart part)
+    {
+        dereference(part.sha256());
+    }
+
+
+    /**
+     * Deletes blobs that have no references
+     *
+     * @return the number of blobs deleted
+     */
+    public int collect()
+    {
+        int count = 0;
+        String sha256;
+
+        while ((sha256 = garbage.poll()) != null)
+        {
+            Blob blob = blobs.computeIfPresent(sha256, (key, held) ->
+            {
+                if (held.refs > 0) return held; // Referenced again
+                try
+                {
+                    Files.deleteIfExists(path(key));
+                    return null;
+                }
+                catch (IOException e)
+                {
+                    logger.warn(CONST_ERR_COLLECT, key, e);
+                    return held;
+                }
+            });
+
+            if (blob == null)
+            {
+                count++;
+                collected.increment();
+            }
+        }
+
+        return count;
+    }
+
+
+    /**
+     * Returns the path of a blob
+     *
+     * @param sha256
+     *            the hash of the blob, lower case hex
+     * @return the path
+     */
+    public Path path(String sha256)
+    {
+        return directory.resolve(sha256.substring(0, 2)).resolve(
+                compression == null ? sha256
+                        : sha256 + Compression.CONST_SUFFIX);
+    }
+
+
+    /**
+     * Returns the number of references held to a blob this run
+     *
+     * @param sha256
+     *            the hash of the blob
+     * @return the count
+     */
+    public int getReferences(String sha256)
+    {
+        Blob blob = blobs.get(sha256);
+        return blob == null ? 0 : blob.refs;
+    }
+
+
+    /**
+     * Returns the number of blobs known this run
+     *
+     * @return the count
+     */
+    public int getBlobs()
+    {
+        return blobs.size();
+    }
+
+
+    /**
+     * Returns the number of bodies written as new blobs
+     *
+     * @return the count
+     */
+    public long getWritten()
+    {
+        return written.sum();
+    }
+
+
+    /**
+     * Returns the bytes written as new blobs
+     *
+     * @return the bytes
+     */
+    public long getBytesWritten()
+    {
+        return bytesWritten.sum();
+    }
+
+
+    /**
+     * Returns the number of bodies that were already stored
+     *
+     * @return the count
+     */
+    public long getDeduplicated()
+    {
+        return deduplicated.sum();
+    }
+
+
+    /**
+     * Returns the bytes of bodies that were already stored
+     *
+     * @return the bytes
+     */
+    public long getBytesDeduplicated()
+    {
+        return bytesDeduplicated.sum();
+    }
+
+
+    /**
+     * Returns the number of blobs collected
+     *
+     * @return the count
+     */
+    public long getCollected()
+    {
+        return collected.sum();
+    }
+
+
+    /**
+     * Returns the directory of the store
+     *
+     * @return the directory
+     */
+    public Path getDirectory()
+    {
+        return directory;
+    }
+
+
+    /*
+     * ------------------------------------------------------------------------
+     *
+     * Helpers
+     *
+     * ------------------------------------------------------------------------
+     */
+
+    /**
+     * Stores a decoded body once, taking a reference to it
+     * <p>
+     * The first session with a body claims its blob, under the map lock, and
+     * writes it outside the lock; sessions with the same body meanwhile wait
+     * for the write, and write it themselves if it fails.
+     *
+     * @return the path of the blob
+     */
+    private Path store(String sha256, PartDecoder decoder) throws IOException
+    {
+        Path path = path(sha256);
+
+        while (true)
+        {
+            Blob claim = new Blob();
+            Blob blob = blobs.compute(sha256, (key, held) ->
+            {
+                Blob referenced = held == null ? claim : held;
+                referenced.refs++;
+                return referenced;
+            });
+
+            if (blob == claim)
+            // This session writes the blob
+            {
+                try
+                {
+                    // A blob stored by an earlier run is on disk already
+                    blob.pinned = Files.exists(path);
+                    if (!blob.pinned) write(path, decoder);
+                }
+                catch (IOException | RuntimeException e)
+                {
+                    blobs.remove(sha256, blob);
+                    blob.ready.completeExceptionally(e);
+                    decoder.abort();
+                    throw e;
+                }
+                blob.ready.complete(null);
+
+                if (!blob.pinned)
+                {
+                    written.increment();
+                    bytesWritten.add(decoder.getSize());
+                    return path;
+                }
+            }
+            else if (!stored(blob))
+            // The writer failed and dropped the blob, so try again
+            {
+                continue;
+            }
+
+            if (decoder.getSpill() != null)
+            {
+                try
+                {
+                    Files.deleteIfExists(decoder.getSpill());
+                }
+                catch (IOException e)
+                {
+                    dereference(sha256);
+                    decoder.abort();
+                    throw e;
+                }
+            }
+            deduplicated.increment();
+            bytesDeduplicated.add(decoder.getSize());
+            return path;
+        }
+    }
+
+
+    /**
+     * Drops a reference to a blob, making it garbage if it was the last
+     */
+    private void dereference(String sha256)
+    {
+        blobs.computeIfPresent(sha256, (key, blob) ->
+        {
+            if (--blob.refs == 0 && !blob.pinned) garbage.add(key);
+            return blob;
+        });
+    }
+
+
+    /**
+     * Waits for a blob claimed by another session to be written
+     *
+     * @return true if it was written, false if the write failed
+     */
+    private static boolean stored(Blob blob) throws InterruptedIOException
+    {
+        try
+        {
+            blob.ready.get();
+            return true;
+        }
+        catch (ExecutionException e)
+        {
+            return false;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+
+    /**
+     * Writes a new blob, moving the spill file into place, and forcing the
+     * directory entry if the store forces blobs
+     */
+    private void write(Path path, PartDecoder decoder) throws IOException
+    {
+        Files.createDirectories(path.getParent());
+
+        Path from = decoder.getSpill();
+        if (from == null)
+        {
+            from = Files.createTempFile(tmp, CONST_BLOB, null);
+            try
+            {
+                decoder.writeTo(from);
+            }
+            catch (IOException e)
+            {
+                Files.deleteIfExists(from);
+                throw e;
+            }
+        }
+        Files.move(from, path, StandardCopyOption.ATOMIC_MOVE);
+
+        if (force)
+        {
+            try (FileChannel folder = FileChannel.open(path.getParent(),
+                    StandardOpenOption.READ))
+            {
+                folder.force(true);
+            }
+        }
+    }
+
+
+    /**
+     * A stored blob and its references this run
+     */
+    private static final class Blob
+    {
+        final CompletableFuture<Void> ready = new CompletableFuture<>();
+        int refs = 0;
+        volatile boolean pinned = false;
+    }
+}
@@ -0,0 +1,483 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.mta.store;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.technosf.smutpea.mta.Envelope;
+
+/**
+ * {@code Maildir}
+ * <p>
+ * Local delivery of accepted messages into a Maildir folder per recipient,
+ * <em>root/mailbox/{tmp,new,cur}</em>, that mail clients and tools can
+ * read. A message is written once, through a {@code FileChannel}, to the
+ * <em>tmp</em> folder of its first recipient, with a <em>Return-Path</em>
+ * header added, and then hard-linked into the <em>new</em> folder of each
+ * recipient, so many recipients cost one write and one force. The last
+ * recipient's entry is a rename, the only one for a single recipient, so
+ * nothing is left in <em>tmp</em>. Where links are not supported the
+ * message is copied. A delivery that fails part way is taken back out of
+ * the mailboxes it reached, as the client will send it again.
+ * <p>
+ * How much is forced to storage before the <em>250</em> is set by the
+ * {@link Sync} policy. Mailbox folders are created on first delivery and
+ * remembered, so delivery does not touch directories it has seen; a folder
+ * removed from under the store is created again when delivery finds it
+ * missing.
+ * <p>
+ * Mailbox names are the recipient addresses, lower case, with characters
+ * other than letters, digits and {@code .+-_@} replaced by {@code _}.
+ *
+ * @author technosf
+ * @since 0.0.6
+ * @version 0.0.6
+ */
+public final class Maildir
+{
+    private static final Logger logger = LoggerFactory
+            .getLogger(Maildir.class);
+
+    /*
+     * Constants
+     */
+    private static final String CONST_TMP = "tmp";
+    private static final String CONST_NEW = "new";
+    private static final String CONST_CUR = "cur";
+    private static final String CONST_NAME = "%1$d.M%2$dP%3$dQ%4$d.%5$s";
+    private static final String CONST_RETURN_PATH = "Return-Path: <%1$s>\r\n";
+    private static final String CONST_LOCALHOST = "localhost";
+    private static final String CONST_ERR_NO_RECIPIENTS =
+            "A message needs a recipient";
+    private static final String CONST_ERR_REMOVE =
+            "Could not remove undelivered message {}";
+
+    /**
+     * How much of a delivery is forced to storage
+     */
+    public enum Sync
+    {
+        /**
+         * Nothing, left to the operating system
+         */
+        NONE,
+
+        /**
+         * The message file, once, before it is linked
+         */
+        FILE,
+
+        /**
+         * The message file, and each <em>new</em> folder it is linked into
+         */
+        FULL;
+    }
+
+    private final Path root;
+    private final Sync sync;
+    private final String host;
+    private final long pid = ProcessHandle.current().pid();
+    private final AtomicLong sequence = new AtomicLong();
+    private final Map<String, Path> mailboxes = new ConcurrentHashMap<>();
+
+    /*
+     * Counters
+     */
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder links = new LongAdder();
+    private final LongAdder forces = new LongAdder();
+
+
+    /**
+     * Constructor
+     *
+     * @param root
+     *            the directory holding the mailboxes
+     * @param sync
+     *            what is forced to storage before delivery returns
+     * @throws IOException
+     *             the directory could not be created
+     */
+    public Maildir(Path root, Sync sync) throws IOException
+    {
+        this.root = Files.createDirectories(root);
+        this.sync = sync == null ? Sync.FILE : sync;
+        this.host = host();
+    }
+
+
+    /**
+     * Delivers a message to the mailbox of each of its recipients
+     *
+     * @param envelope
+     *            the message
+     * @return the unique name the message was given in each mailbox
+     * @throws IOException
+     *             the message could not be delivered to every mailbox
+     */
+    public String deliver(Envelope envelope) throws IOException
+    {
+        Set<String> names = new LinkedHashSet<>();
+        for (String recipient : envelope.forwardPaths())
+        {
+            names.add(mailbox(recipient));
+        }
+        if (names.isEmpty())
+            throw new IllegalArgumentException(CONST_ERR_NO_RECIPIENTS);
+
+        String unique = unique();
+        Path tmp = write(names.iterator().next(), unique, envelope);
+        List<Path> entered = new ArrayList<>(names.size());
+
+        try
+        {
+            int remaining = names.size();
+            for (String name : names)
+            {
+                entered.add(link(tmp, name, unique, --remaining == 0));
+            }
+        }
+        catch (IOException | RuntimeException e)
+        // Take back what was delivered, so a retry does not duplicate it
+        {
+            entered.add(tmp);
+            for (Path path : entered)
+            {
+                remove(path);
+            }
+            throw e;
+        }
+
+        delivered.increment();
+        return unique;
+    }
+
+
+    /**
+     * Returns the folder of a recipient's mailbox
+     *
+     * @param recipient
+     *            the recipient address
+     * @return the folder
+     */
+    public Path getMailbox(String recipient)
+    {
+        return root.resolve(mailbox(recipient));
+    }
+
+
+    /**
+     * Returns the sync policy
+     *
+     * @return the policy
+     */
+    public Sync getSync()
+    {
+        return sync;
+    }
+
+
+    /**
+     * Returns the number of messages delivered
+     *
+     * @return the count
+     */
+    public long getDelivered()
+    {
+        return delivered.sum();
+    }
+
+
+    /**
+     * Returns the number of mailbox entries made, one per recipient
+     * mailbox of each message
+     *
+     * @return the count
+     */
+    public long getLinks()
+    {
+        return links.sum();
+    }
+
+
+    /**
+     * Returns the number of files and folders forced to storage
+     *
+     * @return the count
+     */
+    public long getForces()
+    {
+        return forces.sum();
+    }
+
+
+    /**
+     * Returns the number of mailbox folders created or found
+     *
+     * @return the count
+     */
+    public int getMailboxes()
+    {
+        return mailboxes.size();
+    }
+
+
+    /**
+     * Returns the directory holding the mailboxes
+     *
+     * @return the directory
+     */
+    public Path getRoot()
+    {
+        return root;
+    }
+
+
+    /*
+     * ------------------------------------------------------------------------
+     *
+     * Helpers
+     *
+     * ------------------------------------------------------------------------
+     */
+
+    /**
+     * Returns the mailbox name of a recipient address
+     *
+     * @param recipient
+     *            the address
+     * @return the name
+     */
+    static String mailbox(String recipient)
+    {
+        String address = recipient.strip();
+        if (address.startsWith("<") && address.endsWith(">"))
+            address = address.substring(1, address.length() - 1);
+
+        StringBuilder name = new StringBuilder(address.length());
+        for (char c : address.toLowerCase(Locale.ROOT).toCharArray())
+        {
+            name.append((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')
+                    || c == '.' || c == '+' || c == '-' || c == '_'
+                    || c == '@' ? c : '_');
+        }
+
+        if (name.length() == 0 || name.charAt(0) == '.') name.insert(0, '_');
+        return name.toString();
+    }
+
+
+    /**
+     * Returns a mailbox folder, creating it the first time it is asked for
+     */
+    private Path directory(String name) throws IOException
+    {
+        Path mailbox = mailboxes.get(name);
+        if (mailbox != null) return mailbox;
+
+        mailbox = root.resolve(name);
+        Files.createDirectories(mailbox.resolve(CONST_TMP));
+        Files.createDirectories(mailbox.resolve(CONST_NEW));
+        Files.createDirectories(mailbox.resolve(CONST_CUR));
+        mailboxes.put(name, mailbox);
+        return mailbox;
+    }
+
+
+    /**
+     * Writes the message to its file in the <em>tmp</em> folder of a
+     * mailbox
+     *
+     * @return the file
+     */
+    private Path write(String name, String unique, Envelope envelope)
+            throws IOException
+    {
+        ByteBuffer[] buffers = {
+                ByteBuffer.wrap(String.format(CONST_RETURN_PATH,
+                        envelope.reversePath() == null ? ""
+                                : envelope.reversePath())
+                        .getBytes(StandardCharsets.UTF_8)),
+                ByteBuffer.wrap(envelope.data()) };
+
+        Path tmp = directory(name).resolve(CONST_TMP).resolve(unique);
+        FileChannel channel;
+        try
+        {
+            channel = open(tmp);
+        }
+        catch (NoSuchFileException e)
+        // The mailbox was removed
+        {
+            mailboxes.remove(name);
+            tmp = directory(name).resolve(CONST_TMP).resolve(unique);
+            channel = open(tmp);
+        }
+
+        try (FileChannel out = channel)
+        {
+            while (buffers[1].hasRemaining())
+            {
+                out.write(buffers);
+            }
+            if (sync != Sync.NONE)
+            {
+                out.force(true);
+                forces.increment();
+            }
+        }
+        catch (IOException e)
+        {
+            remove(tmp);
+            throw e;
+        }
+
+        return tmp;
+    }
+
+
+    /**
+     * Enters the message in the <em>new</em> folder of a mailbox
+     *
+     * @return the entry
+     */
+    private Path link(Path tmp, String name, String unique, boolean last)
+            throws IOException
+    {
+        Path target = directory(name).resolve(CONST_NEW).resolve(unique);
+
+        try
+        {
+            enter(tmp, target, last);
+        }
+        catch (NoSuchFileException e)
+        // The mailbox was removed
+        {
+            if (!Files.exists(tmp)) throw e;
+            mailboxes.remove(name);
+            target = directory(name).resolve(CONST_NEW).resolve(unique);
+            enter(tmp, target, last);
+        }
+
+        links.increment();
+
+        if (sync == Sync.FULL)
+        {
+            try (FileChannel folder = FileChannel.open(target.getParent(),
+                    StandardOpenOption.READ))
+            {
+                folder.force(true);
+                forces.increment();
+            }
+        }
+
+        return target;
+    }
+
+
+    /**
+     * Links, moves or copies the file into place
+     */
+    private static void enter(Path tmp, Path target, boolean last)
+            throws IOException
+    {
+        if (last)
+        {
+            Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+            return;
+        }
+
+        try
+        {
+            Files.createLink(target, tmp);
+        }
+        catch (UnsupportedOperationException e)
+        {
+            Files.copy(tmp, target);
+        }
+    }
+
+
+    private static void remove(Path path)
+    {
+        try
+        {
+            Files.deleteIfExists(path);
+        }
+        catch (IOException e)
+        {
+            logger.warn(CONST_ERR_REMOVE, path, e);
+        }
+    }
+
+
+    private static FileChannel open(Path path) throws IOException
+    {
+        return FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE);
+    }
+
+
+    /**
+     * Returns a unique file name: time, microseconds, process and sequence,
+     * and host
+     */
+    private String unique()
+    {
+        Instant now = Instant.now();
+        return String.format(CONST_NAME, now.getEpochSecond(),
+                now.getNano() / 1000, pid, sequence.incrementAndGet(), host);
+    }
+
+
+    /**
+     * Returns the host name, with the characters Maildir reserves escaped
+     */
+    private static String host()
+    {
+        String host;
+        try
+        {
+            host = InetAddress.getLocalHost().getHostName();
+        }
+        catch (UnknownHostException e)
+        {
+            host = CONST_LOCALHOST;
+        }
+        return host.replace("/", "\\057").replace(":", "\\072");
+    }
+}
@@ -0,0 +1,813 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.mta.store;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.technosf.smutpea.mta.Envelope;
+
+/**
+ * {@code Mbox}
+ * <p>
+ * Appends accepted messages to an mbox file per recipient, or per
+ * recipient domain, <em>root/name.mbox</em>, for inspecting sink traffic
+ * with mail tools. Messages are written in the <em>mboxrd</em> form: a
+ * <em>From_</em> line, the data with line endings made {@code LF} and any
+ * line of {@code >}s and <em>From_</em> given one more {@code >}, and a
+ * blank line. The data is converted in one pass, by the delivering
+ * session, before it is queued.
+ * <p>
+ * Each mbox file has a queue of messages and a single writer: the session
+ * that queues to an idle file becomes its writer, and writes the queue in
+ * batches, each one gathering write, perhaps forced, while sessions
+ * queueing meanwhile wait for their message to be written. The writer stops
+ * once its own message is written and hands the queue to the session of the
+ * next, so no session writes for others without bound. Sessions delivering
+ * to different files never wait for each other, and no file locks are
+ * taken.
+ * <p>
+ * A message for several files that cannot be written to one of them is taken
+ * out of those it reached where it is still the last message, so a retry of
+ * the delivery does not leave a duplicate. Where mail has been written after
+ * it, that mail has been acknowledged and is never rewritten, so the message
+ * is left and counted as a duplicate.
+ * <p>
+ * At most <em>maxOpen</em> files are held open. A writer opening one more
+ * closes those used least recently, passing over any being written, so the
+ * cap is never waited for and may be exceeded while every open file is
+ * busy.
+ *
+ * @author technosf
+ * @since 0.0.6
+ * @version 0.0.6
+ */
+public final class Mbox
+        implements AutoCloseable
+{
+    private static final Logger logger = LoggerFactory.getLogger(Mbox.class);
+
+    /*
+     * Constants
+     */
+    private static final String CONST_SUFFIX = ".mbox";
+    private static final String CONST_DAEMON = "MAILER-DAEMON";
+    private static final byte[] CONST_FROM = { 'F', 'r', 'o', 'm', ' ' };
+    private static final DateTimeFormatter CONST_ASCTIME = DateTimeFormatter
+            .ofPattern("EEE MMM ppd HH:mm:ss yyyy", Locale.US)
+            .withZone(ZoneOffset.UTC);
+    private static final int CONST_BATCH = 64;
+    private static final int CONST_BATCH_BYTES = 1024 * 1024;
+    private static final String CONST_ERR_NO_RECIPIENTS =
+            "A message needs a recipient";
+    private static final String CONST_ERR_CLOSED = "Mbox is closed";
+    private static final String CONST_ERR_TRUNCATE =
+            "Could not remove a partly written batch from {}";
+    private static final String CONST_ERR_UNDO =
+            "Could not remove a message from {} after its delivery failed";
+    private static final String CONST_MSG_DUPLICATE =
+            "Message left in {} after its delivery failed, as mail follows it";
+    private static final String CONST_ERR_CLOSE = "Could not close {}";
+
+    /**
+     * Default cap on open files
+     */
+    public static final int CONST_DEFAULT_OPEN = 64;
+
+    /**
+     * What each mbox file collects
+     */
+    public enum Key
+    {
+        /**
+         * The mail for one recipient address
+         */
+        RECIPIENT,
+
+        /**
+         * The mail for every recipient in one domain
+         */
+        DOMAIN;
+    }
+
+    private final Path root;
+    private final Key key;
+    private final int maxOpen;
+    private final boolean force;
+    private final Map<String, Mailbox> mailboxes = new ConcurrentHashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private volatile boolean closed = false;
+    private volatile Runnable beforeUndo = () -> {};
+
+    /*
+     * Open files, least recently used first, guarded by itself
+     */
+    private final LinkedHashMap<Mailbox, Boolean> open =
+            new LinkedHashMap<>(16, 0.75f, true);
+
+    /*
+     * Counters
+     */
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder appended = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder opened = new LongAdder();
+    private final LongAdder undone = new LongAdder();
+    private final LongAdder duplicated = new LongAdder();
+
+
+    /**
+     * Constructor
+     *
+     * @param root
+     *            the directory holding the mbox files
+     * @param key
+     *            what each file collects
+     * @param maxOpen
+     *            the most files held open
+     * @param force
+     *            true to force each batch to storage before its messages
+     *            are replied to
+     * @throws IOException
+     *             the directory could not be created
+     */
+    public Mbox(Path root, Key key, int maxOpen, boolean force)
+            throws IOException
+    {
+        this.root = Files.createDirectories(root);
+        this.key = key == null ? Key.RECIPIENT : key;
+        this.maxOpen = Math.max(1, maxOpen);
+        this.force = force;
+    }
+
+
+    /**
+     * Appends a message to the mbox file of each of its recipients, returning
+     * once it is written
+     *
+     * @param envelope
+     *            the message
+     * @return the number of the message, counting from one
+     * @throws IOException
+     *             the message could not be written to every file, and was
+     *             taken out of those it reached where it was still last
+     */
+    public String deliver(Envelope envelope) throws IOException
+    {
+        Set<String> names = new LinkedHashSet<>();
+        for (String recipient : envelope.forwardPaths())
+        {
+            names.add(name(recipient));
+        }
+        if (names.isEmpty())
+            throw new IllegalArgumentException(CONST_ERR_NO_RECIPIENTS);
+
+        if (closed) throw new IOException(CONST_ERR_CLOSED);
+
+        byte[] message = encode(envelope);
+        Map<Mailbox, Pending> pending = new LinkedHashMap<>();
+
+        for (String name : names)
+        {
+            Mailbox mailbox = mailboxes.computeIfAbsent(name, Mailbox::new);
+            pending.put(mailbox, mailbox.append(message));
+        }
+        await(pending);
+
+        Throwable failure = null;
+        for (Pending each : pending.values())
+        {
+            if (failure == null) failure = failure(each);
+        }
+
+        if (failure != null)
+        // Take the message out of the files it reached
+        {
+            for (Map.Entry<Mailbox, Pending> each : pending.entrySet())
+            {
+                if (failure(each.getValue()) != null) continue;
+                beforeUndo.run();
+                each.getKey().undo(each.getValue());
+            }
+            if (failure instanceof IOException) throw (IOException) failure;
+            throw new CompletionException(failure);
+        }
+
+        delivered.increment();
+        return String.valueOf(sequence.incrementAndGet());
+    }
+
+
+    /**
+     * Returns the mbox file mail for a recipient goes to
+     *
+     * @param recipient
+     *            the recipient address
+     * @return the file
+     */
+    public Path getFile(String recipient)
+    {
+        return root.resolve(name(recipient) + CONST_SUFFIX);
+    }
+
+
+    /**
+     * Returns the number of messages delivered
+     *
+     * @return the count
+     */
+    public long getDelivered()
+    {
+        return delivered.sum();
+    }
+
+
+    /**
+     * Returns the number of messages appended, one per file of each message
+     *
+     * @return the count
+     */
+    public long getAppended()
+    {
+        return appended.sum();
+    }
+
+
+    /**
+     * Returns the number of batches written, fewer than the messages
+     * appended when sessions' messages were written together
+     *
+     * @return the count
+     */
+    public long getBatches()
+    {
+        return batches.sum();
+    }
+
+
+    /**
+     * Returns the bytes written
+     *
+     * @return the bytes
+     */
+    public long getBytes()
+    {
+        return bytes.sum();
+    }
+
+
+    /**
+     * Returns the number of times a file was opened
+     *
+     * @return the count
+     */
+    public long getOpened()
+    {
+        return opened.sum();
+    }
+
+
+    /**
+     * Returns the number of messages taken out of a file again, as their
+     * delivery failed in another
+     *
+     * @return the count
+     */
+    public long getUndone()
+    {
+        return undone.sum();
+    }
+
+
+    /**
+     * Returns the number of messages left in a file although their delivery
+     * failed in another, as mail had been written after them
+     *
+     * @return the count
+     */
+    public long getDuplicated()
+    {
+        return duplicated.sum();
+    }
+
+
+    /**
+     * Returns the number of files open
+     *
+     * @return the count
+     */
+    public int getOpen()
+    {
+        synchronized (open)
+        {
+            return open.size();
+        }
+    }
+
+
+    /**
+     * Sets an action run ahead of taking a message out of a file, so tests
+     * can write mail after it
+     *
+     * @param action
+     *            the action
+     */
+    void setBeforeUndo(Runnable action)
+    {
+        beforeUndo = action;
+    }
+
+
+    /**
+     * Closes every open file. Deliveries after closing fail.
+     */
+    @Override
+    public void close()
+    {
+        closed = true;
+        for (Mailbox mailbox : mailboxes.values())
+        {
+            mailbox.io.lock();
+            try
+            {
+                mailbox.close();
+            }
+            finally
+            {
+                mailbox.io.unlock();
+            }
+        }
+    }
+
+
+    /*
+     * ------------------------------------------------------------------------
+     *
+     * Helpers
+     *
+     * ------------------------------------------------------------------------
+     */
+
+    /**
+     * Returns the name of the file for a recipient
+     */
+    private String name(String recipient)
+    {
+        String name = Maildir.mailbox(recipient);
+        int at = name.lastIndexOf('@');
+
+        return key == Key.DOMAIN && at >= 0 && at + 1 < name.length()
+                ? name.substring(at + 1)
+                : name;
+    }
+
+
+    /**
+     * Encodes a message in the mboxrd form
+     *
+     * @param envelope
+     *            the message
+     * @return the bytes to append
+     */
+    static byte[] encode(Envelope envelope)
+    {
+        byte[] data = envelope.data();
+        String sender = envelope.reversePath() == null
+                || envelope.reversePath().isBlank() ? CONST_DAEMON
+                        : envelope.reversePath().strip();
+        ByteArrayOutputStream out =
+                new ByteArrayOutputStream(data.length + 128);
+
+        out.writeBytes(("From " + sender + " "
+                + CONST_ASCTIME.format(envelope.received()) + "\n")
+                .getBytes(StandardCharsets.UTF_8));
+
+        int start = 0;
+        while (start < data.length)
+        {
+            int end = start;
+            while (end < data.length && data[end] != '\n')
+            {
+                end++;
+            }
+            int next = end + 1;
+            if (end > start && data[end - 1] == '\r') end--;
+
+            if (escaped(data, start, end)) out.write('>');
+            out.write(data, start, end - start);
+            out.write('\n');
+            start = next;
+        }
+
+        out.write('\n');
+        return out.toByteArray();
+    }
+
+
+    /**
+     * Returns true if a line is a <em>From_</em> line behind any number of
+     * {@code >}s
+     */
+    private static boolean escaped(byte[] data, int start, int end)
+    {
+        int i = start;
+        while (i < end && data[i] == '>')
+        {
+            i++;
+        }
+        if (end - i < CONST_FROM.length) return false;
+
+        for (int j = 0; j < CONST_FROM.length; j++)
+        {
+            if (data[i + j] != CONST_FROM[j]) return false;
+        }
+        return true;
+    }
+
+
+    /**
+     * Waits for a message to be written to each of its files, taking over as
+     * the writer of any file handed to this session
+     */
+    private static void await(Map<Mailbox, Pending> pending)
+    {
+        boolean interrupted = false;
+
+        while (true)
+        {
+            boolean done = true;
+            for (Map.Entry<Mailbox, Pending> each : pending.entrySet())
+            {
+                each.getKey().drain(each.getValue());
+                done &= each.getValue().written.isDone();
+            }
+            if (done) break;
+
+            LockSupport.park(pending);
+            interrupted |= Thread.interrupted();
+        }
+
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+
+    /**
+     * Returns why a written message failed, {@literal null} if it did not
+     */
+    private static Throwable failure(Pending pending)
+    {
+        try
+        {
+            pending.written.join();
+            return null;
+        }
+        catch (CompletionException e)
+        {
+            return e.getCause();
+        }
+    }
+
+
+    /**
+     * Marks a file used, closing those least recently used over the cap
+     */
+    private void touch(Mailbox mailbox)
+    {
+        synchronized (open)
+        {
+            open.put(mailbox, Boolean.TRUE);
+
+            Iterator<Mailbox> eldest = open.keySet().iterator();
+            while (open.size() > maxOpen && eldest.hasNext())
+            {
+                Mailbox candidate = eldest.next();
+                if (candidate == mailbox || !candidate.io.tryLock()) continue;
+
+                try
+                {
+                    candidate.channel = close(candidate.channel,
+                            candidate.path);
+                    eldest.remove();
+                }
+                finally
+                {
+                    candidate.io.unlock();
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Closes a channel, logging failure
+     *
+     * @return {@literal null}
+     */
+    private static FileChannel close(FileChannel channel, Path path)
+    {
+        if (channel == null) return null;
+
+        try
+        {
+            channel.close();
+        }
+        catch (IOException e)
+        {
+            logger.warn(CONST_ERR_CLOSE, path, e);
+        }
+        return null;
+    }
+
+
+    /**
+     * One mbox file, its queue and its writer
+     */
+    private final class Mailbox
+    {
+        final Path path;
+        final Queue<Pending> queue = new ConcurrentLinkedQueue<>();
+        final AtomicBoolean writing = new AtomicBoolean();
+
+        /*
+         * Guards the channel, held while writing and closing
+         */
+        final ReentrantLock io = new ReentrantLock();
+        FileChannel channel;
+
+
+        Mailbox(String name)
+        {
+            this.path = root.resolve(name + CONST_SUFFIX);
+        }
+
+
+        /**
+         * Queues a message, writing the queue if no one else is
+         *
+         * @return the message, completed when it is written
+         */
+        Pending append(byte[] message)
+        {
+            Pending pending = new Pending(message);
+            queue.add(pending);
+            drain(pending);
+            return pending;
+        }
+
+
+        /**
+         * Writes the queue if no one else is, until the message is written,
+         * and then hands the queue to the session of the next message
+         */
+        void drain(Pending pending)
+        {
+            while (!pending.written.isDone() && !queue.isEmpty()
+                    && writing.compareAndSet(false, true))
+            {
+                try
+                {
+                    List<Pending> batch;
+                    while (!pending.written.isDone()
+                            && !(batch = batch()).isEmpty())
+                    {
+                        write(batch);
+                    }
+                }
+                finally
+                {
+                    writing.set(false);
+                }
+
+                Pending next = queue.peek();
+                if (next != null) LockSupport.unpark(next.session);
+            }
+        }
+
+
+        /**
+         * Takes the next batch from the queue
+         */
+        private List<Pending> batch()
+        {
+            List<Pending> batch = new ArrayList<>();
+            long size = 0;
+            Pending next;
+
+            while (batch.size() < CONST_BATCH && size < CONST_BATCH_BYTES
+                    && (next = queue.poll()) != null)
+            {
+                batch.add(next);
+                size += next.message.length;
+            }
+            return batch;
+        }
+
+
+        /**
+         * Writes a batch, completing its messages
+         */
+        private void write(List<Pending> batch)
+        {
+            ByteBuffer[] buffers = new ByteBuffer[batch.size()];
+            long length = 0;
+            for (int i = 0; i < buffers.length; i++)
+            {
+                buffers[i] = ByteBuffer.wrap(batch.get(i).message);
+                length += buffers[i].remaining();
+            }
+
+            IOException failure = null;
+            io.lock();
+            try
+            {
+                if (closed) throw new IOException(CONST_ERR_CLOSED);
+                if (channel == null)
+                {
+                    channel = FileChannel.open(path,
+                            StandardOpenOption.CREATE,
+                            StandardOpenOption.WRITE,
+                            StandardOpenOption.APPEND);
+                    opened.increment();
+                }
+                touch(this);
+
+                long size = channel.size();
+                try
+                {
+                    long written = 0;
+                    while (written < length)
+                    {
+                        written += channel.write(buffers);
+                    }
+                    if (force) channel.force(false);
+                }
+                catch (IOException e)
+                {
+                    truncate(size);
+                    throw e;
+                }
+
+                for (Pending pending : batch)
+                {
+                    pending.offset = size;
+                    size += pending.message.length;
+                }
+            }
+            catch (IOException e)
+            {
+                failure = e;
+            }
+            finally
+            {
+                io.unlock();
+            }
+
+            if (failure == null)
+            {
+                batches.increment();
+                appended.add(batch.size());
+                bytes.add(length);
+            }
+
+            for (Pending pending : batch)
+            {
+                if (failure == null) pending.written.complete(null);
+                else pending.written.completeExceptionally(failure);
+                LockSupport.unpark(pending.session);
+            }
+        }
+
+
+        /**
+         * Takes a message out of the file, as its delivery failed in
+         * another, if it is still the last; mail written after it is never
+         * rewritten, so otherwise it is left
+         */
+        void undo(Pending pending)
+        {
+            long length = pending.message.length;
+
+            io.lock();
+            try (FileChannel file = FileChannel.open(path,
+                    StandardOpenOption.WRITE))
+            {
+                if (pending.offset + length != file.size())
+                {
+                    logger.warn(CONST_MSG_DUPLICATE, path);
+                    duplicated.increment();
+                    return;
+                }
+
+                file.truncate(pending.offset);
+                if (force) file.force(false);
+
+                undone.increment();
+                appended.decrement();
+                bytes.add(-length);
+            }
+            catch (IOException e)
+            {
+                logger.warn(CONST_ERR_UNDO, path, e);
+                duplicated.increment();
+            }
+            finally
+            {
+                io.unlock();
+            }
+        }
+
+
+        /**
+         * Removes a partly written batch, and closes the file
+         */
+        private void truncate(long size)
+        {
+            try
+            {
+                channel.truncate(size);
+            }
+            catch (IOException e)
+            {
+                logger.warn(CONST_ERR_TRUNCATE, path, e);
+            }
+            close();
+        }
+
+
+        /**
+         * Closes the file, holding the io lock
+         */
+        void close()
+        {
+            channel = Mbox.close(channel, path);
+            synchronized (open)
+            {
+                open.remove(this);
+            }
+        }
+    }
+
+
+    /**
+     * A queued message
+     */
+    private static final class Pending
+    {
+        final byte[] message;
+        final Thread session = Thread.currentThread();
+        final CompletableFuture<Void> written = new CompletableFuture<>();
+
+        /*
+         * Where the message starts in the file once written
+         */
+        long offset = -1;
+
+
+        Pending(byte[] message)
+        {
+            this.message = message;
+        }
+    }
+}
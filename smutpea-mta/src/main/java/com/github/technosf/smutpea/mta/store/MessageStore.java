@@ -0,0 +1,457 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.mta.store;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.technosf.smutpea.mta.Envelope;
+import com.github.technosf.smutpea.mta.compress.Compression;
+
+/**
+ * {@code MessageStore}
+ * <p>
+ * A durable, append-only store of accepted messages. Each {@code Envelope}
+ * is appended as a checksummed record to the current segment file through a
+ * {@code FileChannel}, and given the next id. Segments roll over at
+ * <em>segmentBytes</em>.
+ * <p>
+ * {@link #append(Envelope)} returns only once the record is forced to
+ * storage, but the force is a group commit: a session whose record was
+ * written while another session's force was running waits for that force to
+ * end, and then finds its record already durable or forces it, and every
+ * record written meanwhile, itself. Under load one force covers many
+ * messages, and no thread is needed to run it.
+ * <p>
+ * Opening a store recovers each segment from its offset index, see
+ * {@code Segment}, so only records written since an index was last good are
+ * scanned, and a record torn by a crash is removed.
+ * <p>
+ * Given a {@code Compression}, the store compresses the data of each record
+ * it appends in blocks, so a range of a message's data is read by
+ * inflating only the blocks that hold it. Records of either kind are read
+ * whatever the store was opened with.
+ *
+ * @author technosf
+ * @since 0.0.6
+ * @version 0.0.6
+ */
+public final class MessageStore
+        implements AutoCloseable
+{
+    private static final Logger logger = LoggerFactory
+            .getLogger(MessageStore.class);
+
+    /*
+     * Constants
+     */
+    private static final String CONST_MSG_RECOVERED =
+            "Message store {} recovered segment {}: {} records re-indexed, {} bytes truncated";
+    private static final String CONST_MSG_OPENED =
+            "Message store {} opened with {} segments, next id {}";
+    private static final String CONST_ERR_CLOSED = "Message store is closed";
+
+    /**
+     * Default segment size
+     */
+    public static final long CONST_DEFAULT_SEGMENT = 64L << 20;
+
+    private final Path directory;
+    private final long segmentBytes;
+    private final Compression compression;
+
+    private final ConcurrentSkipListMap<Long, Segment> segments =
+            new ConcurrentSkipListMap<>();
+
+    /*
+     * Appending, under the append lock, and forcing, under the sync lock.
+     * Rotation holds both.
+     */
+    private final Object appendLock = new Object();
+    private final Object syncLock = new Object();
+    private volatile Segment current;
+    private volatile long written = -1;
+    private long synced = -1;
+    private boolean closed = false;
+    private volatile Runnable beforeForce = () -> {};
+
+    /*
+     * Counters
+     */
+    private final LongAdder appended = new LongAdder();
+    private final LongAdder syncs = new LongAdder();
+
+
+    /**
+     * Opens a store with the default segment size, creating it if needed
+     *
+     * @param directory
+     *            the store directory
+     * @throws IOException
+     */
+    public MessageStore(Path directory) throws IOException
+    {
+        this(directory, CONST_DEFAULT_SEGMENT);
+    }
+
+
+    /**
+     * Opens a store, creating it if needed, and recovers its segments
+     *
+     * @param directory
+     *            the store directory
+     * @param segmentBytes
+     *            the size at which segments roll over, up to 2GB
+     * @throws IOException
+     */
+    public MessageStore(Path directory, long segmentBytes) throws IOException
+    {
+        this(directory, segmentBytes, null);
+    }
+
+
+    /**
+     * Opens a store compressing the data it appends, creating it if needed,
+     * and recovers its segments
+     *
+     * @param directory
+     *            the store directory
+     * @param segmentBytes
+     *            the size at which segments roll over, up to 2GB
+     * @param compression
+     *            the compression for message data, {@literal null} for none
+     * @throws IOException
+     */
+    public MessageStore(Path directory, long segmentBytes,
+            Compression compression) throws IOException
+    {
+        this.directory = Files.createDirectories(directory);
+        this.compression = compression;
+        this.segmentBytes = Math.max(1,
+                Math.min(segmentBytes, Integer.MAX_VALUE));
+
+        List<Long> bases = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory))
+        {
+            for (Path file : files)
+            {
+                long base = Segment.base(file.getFileName().toString());
+                if (base >= 0) bases.add(base);
+            }
+        }
+        Collections.sort(bases);
+
+        try
+        {
+            for (long base : bases)
+            {
+                Segment segment = Segment.open(directory, base);
+                if (segment.getReindexed() > 0 || segment.getTruncated() > 0)
+                {
+                    logger.info(CONST_MSG_RECOVERED, directory, base,
+                            segment.getReindexed(), segment.getTruncated());
+                }
+                segments.put(base, segment);
+                current = segment;
+            }
+
+            if (current == null)
+            {
+                current = Segment.open(directory, 0);
+                segments.put(0L, current);
+            }
+        }
+        catch (IOException e)
+        {
+            closeSegments();
+            throw e;
+        }
+
+        written = synced = current.next() - 1;
+        logger.debug(CONST_MSG_OPENED, directory, segments.size(),
+                current.next());
+    }
+
+
+    /**
+     * Appends a message, returning when it is durable
+     *
+     * @param envelope
+     *            the message
+     * @return the message id
+     * @throws IOException
+     *             the message could not be stored
+     */
+    public long append(Envelope envelope) throws IOException
+    {
+        ByteBuffer record = RecordCodec.encode(envelope, compression);
+        long id;
+
+        synchronized (appendLock)
+        {
+            if (closed) throw new IOException(CONST_ERR_CLOSED);
+
+            if (current.size() > 0
+                    && current.size() + record.remaining() > segmentBytes)
+            {
+                rotate();
+            }
+
+            id = current.next();
+            RecordCodec.setId(record, id);
+            current.append(record);
+            written = id;
+        }
+
+        sync(id);
+        appended.increment();
+
+        return id;
+    }
+
+
+    /**
+     * Reads a message
+     *
+     * @param id
+     *            the message id
+     * @return the message, {@literal null} if there is none with the id
+     * @throws IOException
+     */
+    public Envelope read(long id) throws IOException
+    {
+        Map.Entry<Long, Segment> segment = segments.floorEntry(id);
+
+        return segment == null ? null : segment.getValue().read(id);
+    }
+
+
+    /**
+     * Reads a range of a message's data, decompressing only what it needs
+     *
+     * @param id
+     *            the message id
+     * @param offset
+     *            the offset of the range in the data
+     * @param length
+     *            the length of the range
+     * @return the range, shorter if the data ends first, {@literal null} if
+     *         there is no message with the id
+     * @throws IOException
+     */
+    public byte[] read(long id, long offset, int length) throws IOException
+    {
+        Map.Entry<Long, Segment> segment = segments.floorEntry(id);
+
+        return segment == null ? null
+                : segment.getValue().read(id, offset, length);
+    }
+
+
+    /**
+     * Returns the compression for message data
+     *
+     * @return the compression, {@literal null} if data is not compressed
+     */
+    public Compression getCompression()
+    {
+        return compression;
+    }
+
+
+    /**
+     * Returns the id of the oldest message
+     *
+     * @return the first id
+     */
+    public long getFirstId()
+    {
+        return segments.firstKey();
+    }
+
+
+    /**
+     * Returns the id the next message will be given
+     *
+     * @return the next id
+     */
+    public long getNextId()
+    {
+        return current.next();
+    }
+
+
+    /**
+     * Returns the number of segments
+     *
+     * @return the segment count
+     */
+    public int getSegments()
+    {
+        return segments.size();
+    }
+
+
+    /**
+     * Returns the number of messages appended since the store was opened
+     *
+     * @return the count
+     */
+    public long getAppended()
+    {
+        return appended.sum();
+    }
+
+
+    /**
+     * Returns the number of forces run for appends, fewer than the appends
+     * when commits were grouped
+     *
+     * @return the count
+     */
+    public long getSyncs()
+    {
+        return syncs.sum();
+    }
+
+
+    /**
+     * Returns the store directory
+     *
+     * @return the directory
+     */
+    public Path getDirectory()
+    {
+        return directory;
+    }
+
+
+    /**
+     * Seals the current segment and closes the store
+     */
+    @Override
+    public void close() throws IOException
+    {
+        synchronized (appendLock)
+        {
+            if (closed) return;
+            closed = true;
+
+            synchronized (syncLock)
+            {
+                try
+                {
+                    current.seal();
+                    synced = written;
+                }
+                finally
+                {
+                    closeSegments();
+                }
+            }
+        }
+    }
+
+
+    /*
+     * ------------------------------------------------------------------------
+     *
+     * Helpers
+     *
+     * ------------------------------------------------------------------------
+     */
+
+    /**
+     * Sets an action run ahead of each force, holding the sync lock, so tests
+     * can slow forces down
+     *
+     * @param action
+     *            the action
+     */
+    void setBeforeForce(Runnable action)
+    {
+        beforeForce = action;
+    }
+
+
+    /**
+     * Forces the log, unless a force that started after the record was
+     * written has already covered it
+     */
+    private void sync(long id) throws IOException
+    {
+        synchronized (syncLock)
+        {
+            if (synced >= id) return;
+
+            long target = written;
+            beforeForce.run();
+            current.force();
+            synced = target;
+            syncs.increment();
+        }
+    }
+
+
+    /**
+     * Seals the current segment and starts the next, holding the append lock
+     */
+    private void rotate() throws IOException
+    {
+        synchronized (syncLock)
+        {
+            current.seal();
+            synced = written;
+
+            Segment next = Segment.open(directory, current.next());
+            segments.put(next.base, next);
+            current = next;
+        }
+    }
+
+
+    /**
+     * Closes every segment
+     */
+    private void closeSegments() throws IOException
+    {
+        IOException failure = null;
+
+        for (Segment segment : segments.values())
+        {
+            try
+            {
+                segment.close();
+            }
+            catch (IOException e)
+            {
+                failure = e;
+            }
+        }
+
+        if (failure != null) throw failure;
+    }
+}
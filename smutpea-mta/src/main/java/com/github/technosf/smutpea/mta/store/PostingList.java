@@ -0,0 +1,187 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.mta.store;
+
+import java.util.Arrays;
+
+/**
+ * {@code PostingList}
+ * <p>
+ * The ascending sequence numbers of the messages holding one search term,
+ * compressed as varint deltas from the first: a term in most messages
+ * costs a byte a message.
+ * <p>
+ * Messages are added at the tail and, as eviction is oldest first, removed
+ * from the head; the consumed head is reclaimed once it is half the buffer.
+ * Not thread safe, the shard lock guards it.
+ *
+ * @author technosf
+ * @since 0.0.6
+ * @version 0.0.6
+ */
+final class PostingList
+{
+    /*
+     * Constants
+     */
+    private static final int CONST_CAPACITY = 8;
+
+    /**
+     * The term, shared with the index key
+     */
+    final String term;
+
+    private byte[] deltas = new byte[CONST_CAPACITY];
+    private int start = 0;
+    private int end = 0;
+    private int size = 0;
+    private long first;
+    private long last;
+
+
+    /**
+     * Constructor
+     *
+     * @param term
+     *            the term
+     */
+    PostingList(String term)
+    {
+        this.term = term;
+    }
+
+
+    /**
+     * Adds a sequence number, greater than any held
+     *
+     * @param seq
+     *            the sequence number
+     */
+    void add(long seq)
+    {
+        if (size++ == 0)
+        {
+            first = last = seq;
+            start = end = 0;
+            return;
+        }
+
+        if (deltas.length - end < 10) grow();
+
+        long delta = seq - last;
+        while ((delta & ~0x7FL) != 0)
+        {
+            deltas[end++] = (byte) ((delta & 0x7F) | 0x80);
+            delta >>>= 7;
+        }
+        deltas[end++] = (byte) delta;
+        last = seq;
+    }
+
+
+    /**
+     * Removes the first sequence number
+     */
+    void removeFirst()
+    {
+        if (--size <= 0)
+        {
+            size = 0;
+            return;
+        }
+
+        long delta = 0;
+        int shift = 0;
+        byte b;
+        do
+        {
+            b = deltas[start++];
+            delta |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        }
+        while (b < 0);
+        first += delta;
+    }
+
+
+    /**
+     * Returns the sequence numbers held
+     *
+     * @return the ascending sequence numbers
+     */
+    long[] toArray()
+    {
+        long[] seqs = new long[size];
+        if (size == 0) return seqs;
+
+        long seq = seqs[0] = first;
+        int at = start;
+        for (int i = 1; i < size; i++)
+        {
+            long delta = 0;
+            int shift = 0;
+            byte b;
+            do
+            {
+                b = deltas[at++];
+                delta |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            }
+            while (b < 0);
+            seqs[i] = seq += delta;
+        }
+        return seqs;
+    }
+
+
+    int size()
+    {
+        return size;
+    }
+
+
+    boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+
+    /**
+     * Returns the bytes held by the deltas
+     *
+     * @return the bytes in use
+     */
+    int bytes()
+    {
+        return end - start;
+    }
+
+
+    /**
+     * Reclaims the consumed head or doubles the buffer
+     */
+    private void grow()
+    {
+        if (start > deltas.length / 2)
+        {
+            System.arraycopy(deltas, start, deltas, 0, end - start);
+        }
+        else
+        {
+            deltas = Arrays.copyOfRange(deltas, start, deltas.length * 2);
+        }
+        end -= start;
+        start = 0;
+    }
+}
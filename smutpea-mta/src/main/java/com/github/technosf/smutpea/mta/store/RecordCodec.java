@@ -0,0 +1,334 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.mta.store;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+import com.github.technosf.smutpea.mta.Envelope;
+import com.github.technosf.smutpea.mta.compress.Compression;
+import com.github.technosf.smutpea.mta.mime.ExtractedPart;
+import com.github.technosf.smutpea.mta.mime.MimePart;
+import com.github.technosf.smutpea.mta.mime.MimeScanner;
+
+/**
+ * {@code RecordCodec}
+ * <p>
+ * Encodes envelopes as message store records:
+ * 
+ * <pre>
+ * record  := length:i32 crc:i32 id:i64 payload
+ * payload := received:i64 helo:string reverse:string count:i32 forward:string* data [parts]
+ * data    := bytes | -length:i32 frame
+ * parts   := count:i32 (index:i32 sha256:string size:i64 path:string)*
+ * string  := length:i32 utf8, length -1 for null
+ * bytes   := length:i32 octets
+ * </pre>
+ * 
+ * Integers are big endian, <em>received</em> is epoch milliseconds and
+ * <em>crc</em> is the CRC32C of the payload. The id is checked against the
+ * record's place in its segment. <em>parts</em> lists the MIME entities whose
+ * bodies a {@code PartStage} took out of the data, by index; it is left out
+ * when there are none, as in records written before it. Data compressed
+ * into a {@code Compression} frame is marked by its negated length.
+ *
+ * @author technosf
+ * @since 0.0.6
+ * @version 0.0.6
+ */
+final class RecordCodec
+{
+    /**
+     * Bytes before the payload
+     */
+    static final int CONST_HEADER = 16;
+
+    private static final int CONST_ID = 8;
+
+
+    /**
+     * Private constructor
+     */
+    private RecordCodec()
+    {
+    }
+
+
+    /**
+     * Encodes an envelope as a record, the id to be set with {@code setId}
+     *
+     * @param envelope
+     *            the envelope
+     * @param compression
+     *            the compression for the data, {@literal null} for none
+     * @return the record, positioned at zero
+     */
+    static ByteBuffer encode(Envelope envelope, Compression compression)
+    {
+        byte[] helo = utf8(envelope.helo());
+        byte[] reverse = utf8(envelope.reversePath());
+        byte[] data = compression == null ? envelope.data()
+                : compression.compress(envelope.data());
+        List<byte[]> forward = new ArrayList<>(envelope.forwardPaths().size());
+        int length = 8 + 4 + length(helo) + 4 + length(reverse) + 4 + 4
+                + data.length;
+
+        for (String path : envelope.forwardPaths())
+        {
+            byte[] bytes = utf8(path);
+            forward.add(bytes);
+            length += 4 + length(bytes);
+        }
+
+        Map<Integer, byte[][]> parts = new LinkedHashMap<>();
+        Map<Integer, Long> sizes = new LinkedHashMap<>();
+        if (envelope.structure() != null)
+        {
+            List<MimePart> entities = envelope.structure().getParts();
+            for (int i = 0; i < entities.size(); i++)
+            {
+                ExtractedPart extracted = entities.get(i).extracted();
+                if (extracted == null) continue;
+
+                byte[][] strings = { utf8(extracted.sha256()),
+                        utf8(extracted.path().toString()) };
+                parts.put(i, strings);
+                sizes.put(i, extracted.size());
+                length += 4 + 4 + length(strings[0]) + 8 + 4
+                        + length(strings[1]);
+            }
+            if (!parts.isEmpty()) length += 4;
+        }
+
+        ByteBuffer record = ByteBuffer.allocate(CONST_HEADER + length);
+        record.position(CONST_HEADER);
+        record.putLong(envelope.received().toEpochMilli());
+        put(record, helo);
+        put(record, reverse);
+        record.putInt(forward.size());
+        for (byte[] bytes : forward)
+        {
+            put(record, bytes);
+        }
+        record.putInt(compression == null ? data.length : -data.length)
+                .put(data);
+
+        if (!parts.isEmpty())
+        {
+            record.putInt(parts.size());
+            for (Map.Entry<Integer, byte[][]> part : parts.entrySet())
+            {
+                record.putInt(part.getKey());
+                put(record, part.getValue()[0]);
+                record.putLong(sizes.get(part.getKey()));
+                put(record, part.getValue()[1]);
+            }
+        }
+
+        CRC32C crc = new CRC32C();
+        crc.update(record.array(), CONST_HEADER, length);
+        record.putInt(0, length);
+        record.putInt(4, (int) crc.getValue());
+
+        return record.rewind();
+    }
+
+
+    /**
+     * Sets the id of an encoded record
+     *
+     * @param record
+     *            the record
+     * @param id
+     *            the id
+     */
+    static void setId(ByteBuffer record, long id)
+    {
+        record.putLong(CONST_ID, id);
+    }
+
+
+    /**
+     * Returns the payload length from a record header
+     *
+     * @param header
+     *            the header
+     * @return the length
+     */
+    static int length(ByteBuffer header)
+    {
+        return header.getInt(0);
+    }
+
+
+    /**
+     * Returns the id from a record header
+     *
+     * @param header
+     *            the header
+     * @return the id
+     */
+    static long id(ByteBuffer header)
+    {
+        return header.getLong(CONST_ID);
+    }
+
+
+    /**
+     * Checks a payload against the CRC in its header
+     *
+     * @param header
+     *            the header
+     * @param payload
+     *            the payload, positioned at zero
+     * @return true if the CRC matches
+     */
+    static boolean check(ByteBuffer header, ByteBuffer payload)
+    {
+        CRC32C crc = new CRC32C();
+        crc.update(payload.duplicate());
+        return header.getInt(4) == (int) crc.getValue();
+    }
+
+
+    /**
+     * Decodes a payload
+     *
+     * @param payload
+     *            the payload, positioned at zero
+     * @return the envelope
+     * @throws IOException
+     *             the data could not be decompressed
+     */
+    static Envelope decode(ByteBuffer payload) throws IOException
+    {
+        Instant received = Instant.ofEpochMilli(payload.getLong());
+        String helo = string(payload);
+        String reverse = string(payload);
+        int count = payload.getInt();
+        List<String> forward = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+        {
+            forward.add(string(payload));
+        }
+
+        int length = payload.getInt();
+        byte[] data = new byte[Math.abs(length)];
+        payload.get(data);
+        if (length < 0) data = Compression.decompress(data);
+
+        if (!payload.hasRemaining())
+            return new Envelope(received, helo, reverse, forward, data);
+
+        Map<Integer, ExtractedPart> parts = new LinkedHashMap<>();
+        for (int i = payload.getInt(); i > 0; i--)
+        {
+            int index = payload.getInt();
+            String sha256 = string(payload);
+            long size = payload.getLong();
+            parts.put(index, new ExtractedPart(Path.of(string(payload)), size,
+                    sha256));
+        }
+
+        return new Envelope(received, helo, reverse, forward, data,
+                MimeScanner.scan(data).withExtracted(parts));
+    }
+
+
+    /**
+     * Decodes a range of the data of a payload, decompressing only the blocks
+     * that hold it
+     *
+     * @param payload
+     *            the payload, positioned at zero
+     * @param offset
+     *            the offset of the range in the data
+     * @param length
+     *            the length of the range
+     * @return the range, shorter if the data ends first
+     * @throws IOException
+     *             the data could not be decompressed
+     */
+    static byte[] data(ByteBuffer payload, long offset, int length)
+            throws IOException
+    {
+        payload.position(8);
+        string(payload);
+        string(payload);
+        for (int i = payload.getInt(); i > 0; i--)
+        {
+            string(payload);
+        }
+
+        int stored = payload.getInt();
+        int start = payload.arrayOffset() + payload.position();
+
+        if (stored < 0)
+            return Compression.decompress(Arrays.copyOfRange(payload.array(),
+                    start, start - stored), offset, length);
+
+        int from = (int) Math.min(offset, stored);
+        return Arrays.copyOfRange(payload.array(), start + from,
+                start + (int) Math.min(stored, from + (long) length));
+    }
+
+
+    /*
+     * Helpers
+     */
+
+    private static byte[] utf8(String value)
+    {
+        return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+
+    private static int length(byte[] bytes)
+    {
+        return bytes == null ? 0 : bytes.length;
+    }
+
+
+    private static void put(ByteBuffer record, byte[] bytes)
+    {
+        if (bytes == null)
+        {
+            record.putInt(-1);
+            return;
+        }
+        record.putInt(bytes.length).put(bytes);
+    }
+
+
+    private static String string(ByteBuffer payload)
+    {
+        int length = payload.getInt();
+        if (length < 0) return null;
+
+        String value = new String(payload.array(),
+                payload.arrayOffset() + payload.position(), length,
+                StandardCharsets.UTF_8);
+        payload.position(payload.position() + length);
+        return value;
+    }
+}
@@ -0,0 +1,527 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.mta.store;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import com.github.technosf.smutpea.mta.Envelope;
+
+/**
+ * {@code Segment}
+ * <p>
+ * One append-only log file of the message store, named for the id of its
+ * first record, and its offset index, a file of one 32 bit offset per
+ * record, in id order.
+ * <p>
+ * The index is written with each record but only forced when the segment
+ * is sealed or recovered, so on opening it is trusted only as far as it is
+ * ascending and its last offset holds a valid record; the log is then
+ * scanned on from there, re-indexing any records the index missed, and a
+ * torn record at the tail is truncated. Recovery reads the index and the
+ * few records written since it was last good, not the whole log.
+ *
+ * @author technosf
+ * @since 0.0.6
+ * @version 0.0.6
+ */
+final class Segment
+        implements Closeable
+{
+    /*
+     * Constants
+     */
+    static final String CONST_LOG = ".log";
+    static final String CONST_INDEX = ".idx";
+    private static final String CONST_NAME = "%1$020d";
+    private static final String CONST_ERR_CORRUPT =
+            "Message store record %1$d is corrupt";
+
+    private static final int CONST_ENTRY = Integer.BYTES;
+    private static final int CONST_CAPACITY = 1024;
+
+    /**
+     * The id of the first record
+     */
+    final long base;
+
+    private final FileChannel log;
+    private final FileChannel index;
+    private final ByteBuffer entry = ByteBuffer.allocate(CONST_ENTRY);
+
+    /*
+     * In memory index, published by the volatile count
+     */
+    private volatile int[] offsets;
+    private volatile int count;
+    private long size;
+
+    /*
+     * What recovery found
+     */
+    private int reindexed = 0;
+    private long truncated = 0;
+
+
+    /**
+     * Opens, or creates, a segment and recovers it
+     *
+     * @param directory
+     *            the store directory
+     * @param base
+     *            the id of the first record
+     * @return the segment
+     * @throws IOException
+     */
+    static Segment open(Path directory, long base) throws IOException
+    {
+        String name = String.format(CONST_NAME, base);
+        FileChannel log = FileChannel.open(
+                directory.resolve(name + CONST_LOG),
+                StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        FileChannel index;
+
+        try
+        {
+            index = FileChannel.open(directory.resolve(name + CONST_INDEX),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+        }
+        catch (IOException e)
+        {
+            log.close();
+            throw e;
+        }
+
+        Segment segment = new Segment(base, log, index);
+
+        try
+        {
+            segment.recover();
+        }
+        catch (IOException e)
+        {
+            segment.close();
+            throw e;
+        }
+
+        return segment;
+    }
+
+
+    /**
+     * Returns the base id of a log file name, -1 if it is not one
+     *
+     * @param fileName
+     *            the file name
+     * @return the base id
+     */
+    static long base(String fileName)
+    {
+        if (!fileName.endsWith(CONST_LOG)
+                || fileName.length() != 20 + CONST_LOG.length())
+            return -1;
+
+        try
+        {
+            return Long.parseLong(fileName.substring(0, 20));
+        }
+        catch (NumberFormatException e)
+        {
+            return -1;
+        }
+    }
+
+
+    /**
+     * Constructor
+     */
+    private Segment(long base, FileChannel log, FileChannel index)
+    {
+        this.base = base;
+        this.log = log;
+        this.index = index;
+    }
+
+
+    /**
+     * Appends a record, without forcing it. A record that cannot be written
+     * whole is cut off the log, so the next is written in its place and
+     * never follows a torn one.
+     *
+     * @param record
+     *            the record, its id set to {@code next()}
+     * @throws IOException
+     */
+    void append(ByteBuffer record) throws IOException
+    {
+        int offset = (int) size;
+
+        try
+        {
+            while (record.hasRemaining())
+            {
+                size += log.write(record, size);
+            }
+
+            entry.clear();
+            entry.putInt(0, offset);
+            long position = (long) count * CONST_ENTRY;
+            while (entry.hasRemaining())
+            {
+                position += index.write(entry, position);
+            }
+        }
+        catch (IOException e)
+        {
+            size = offset;
+            try
+            {
+                log.truncate(offset);
+            }
+            catch (IOException t)
+            {
+                e.addSuppressed(t);
+            }
+            throw e;
+        }
+
+        add(offset);
+    }
+
+
+    /**
+     * Reads a record
+     *
+     * @param id
+     *            the record id
+     * @return the envelope, {@literal null} if not in this segment
+     * @throws IOException
+     */
+    Envelope read(long id) throws IOException
+    {
+        ByteBuffer payload = payload(id);
+
+        return payload == null ? null : RecordCodec.decode(payload);
+    }
+
+
+    /**
+     * Reads a range of the data of a record
+     *
+     * @param id
+     *            the record id
+     * @param offset
+     *            the offset of the range in the data
+     * @param length
+     *            the length of the range
+     * @return the range, {@literal null} if the record is not in this segment
+     * @throws IOException
+     */
+    byte[] read(long id, long offset, int length) throws IOException
+    {
+        ByteBuffer payload = payload(id);
+
+        return payload == null ? null
+                : RecordCodec.data(payload, offset, length);
+    }
+
+
+    /**
+     * Forces the log to storage
+     *
+     * @throws IOException
+     */
+    void force() throws IOException
+    {
+        log.force(false);
+    }
+
+
+    /**
+     * Forces the log and the index to storage, as the segment is finished
+     *
+     * @throws IOException
+     */
+    void seal() throws IOException
+    {
+        log.force(false);
+        index.force(false);
+    }
+
+
+    /**
+     * Returns the id the next record appended will have
+     *
+     * @return the next id
+     */
+    long next()
+    {
+        return base + count;
+    }
+
+
+    /**
+     * Returns the number of records
+     *
+     * @return the count
+     */
+    int count()
+    {
+        return count;
+    }
+
+
+    /**
+     * Returns the size of the log
+     *
+     * @return the size in bytes
+     */
+    long size()
+    {
+        return size;
+    }
+
+
+    /**
+     * Returns the number of records recovery found that the index did not
+     * have
+     *
+     * @return the number re-indexed
+     */
+    int getReindexed()
+    {
+        return reindexed;
+    }
+
+
+    /**
+     * Returns the bytes of torn record recovery removed from the log
+     *
+     * @return the bytes truncated
+     */
+    long getTruncated()
+    {
+        return truncated;
+    }
+
+
+    @Override
+    public void close() throws IOException
+    {
+        try
+        {
+            log.close();
+        }
+        finally
+        {
+            index.close();
+        }
+    }
+
+
+    /*
+     * ------------------------------------------------------------------------
+     *
+     * Recovery
+     *
+     * ------------------------------------------------------------------------
+     */
+
+    /**
+     * Rebuilds the in memory index, re-indexing and truncating as needed
+     */
+    private void recover() throws IOException
+    {
+        long logSize = log.size();
+        int[] indexed = readIndex();
+
+        // Trust the index while it ascends inside the log
+        int trusted = 0;
+        while (trusted < indexed.length
+                && indexed[trusted] >= (trusted == 0 ? 0
+                        : indexed[trusted - 1] + RecordCodec.CONST_HEADER)
+                && indexed[trusted] < logSize
+                && (trusted > 0 || indexed[0] == 0))
+        {
+            trusted++;
+        }
+
+        // ... as far back as its last entry holds a valid record
+        long end = 0;
+        while (trusted > 0)
+        {
+            end = check(indexed[trusted - 1], base + trusted - 1, logSize);
+            if (end >= 0) break;
+            trusted--;
+            end = 0;
+        }
+
+        offsets = Arrays.copyOf(indexed, Math.max(CONST_CAPACITY, trusted));
+        count = trusted;
+
+        // Scan on for records the index missed
+        long next;
+        while ((next = check(end, base + count, logSize)) >= 0)
+        {
+            add((int) end);
+            reindexed++;
+            end = next;
+        }
+
+        size = end;
+
+        if (end < logSize || reindexed > 0
+                || index.size() != (long) count * CONST_ENTRY)
+        // Repair the files to match
+        {
+            truncated = logSize - end;
+            log.truncate(end);
+            index.truncate((long) trusted * CONST_ENTRY);
+
+            ByteBuffer entries = ByteBuffer
+                    .allocate((count - trusted) * CONST_ENTRY);
+            for (int i = trusted; i < count; i++)
+            {
+                entries.putInt(offsets[i]);
+            }
+            entries.flip();
+            long position = (long) trusted * CONST_ENTRY;
+            while (entries.hasRemaining())
+            {
+                position += index.write(entries, position);
+            }
+
+            seal();
+        }
+    }
+
+
+    /**
+     * Reads the index file
+     */
+    private int[] readIndex() throws IOException
+    {
+        int entries = (int) Math.min(Integer.MAX_VALUE / CONST_ENTRY,
+                index.size() / CONST_ENTRY);
+        ByteBuffer bytes = ByteBuffer.allocate(entries * CONST_ENTRY);
+        readFully(index, bytes, 0);
+
+        int[] indexed = new int[entries];
+        bytes.flip().asIntBuffer().get(indexed);
+        return indexed;
+    }
+
+
+    /**
+     * Checks the record at an offset is whole, with the expected id
+     *
+     * @return the offset after the record, -1 if not valid
+     */
+    private long check(long offset, long id, long logSize) throws IOException
+    {
+        if (offset + RecordCodec.CONST_HEADER > logSize) return -1;
+
+        ByteBuffer header = ByteBuffer.allocate(RecordCodec.CONST_HEADER);
+        readFully(header, offset);
+
+        int length = RecordCodec.length(header);
+        long end = offset + RecordCodec.CONST_HEADER + length;
+
+        if (length < 0 || end > logSize || end > Integer.MAX_VALUE
+                || RecordCodec.id(header) != id)
+            return -1;
+
+        ByteBuffer payload = ByteBuffer.allocate(length);
+        readFully(payload, offset + RecordCodec.CONST_HEADER);
+
+        return RecordCodec.check(header, payload.flip()) ? end : -1;
+    }
+
+
+    /*
+     * Helpers
+     */
+
+    /**
+     * Reads and checks the payload of a record
+     *
+     * @return the payload, {@literal null} if the record is not in this
+     *         segment
+     */
+    private ByteBuffer payload(long id) throws IOException
+    {
+        int n = count;
+        int[] at = offsets;
+        if (id < base || id - base >= n) return null;
+
+        long offset = at[(int) (id - base)];
+        ByteBuffer header = ByteBuffer.allocate(RecordCodec.CONST_HEADER);
+        readFully(header, offset);
+
+        ByteBuffer payload = ByteBuffer.allocate(RecordCodec.length(header));
+        readFully(payload, offset + RecordCodec.CONST_HEADER);
+
+        if (RecordCodec.id(header) != id
+                || !RecordCodec.check(header, payload.flip()))
+        {
+            throw new StreamCorruptedException(
+                    String.format(CONST_ERR_CORRUPT, id));
+        }
+
+        return payload;
+    }
+
+
+    /**
+     * Adds an offset to the in memory index
+     */
+    private void add(int offset)
+    {
+        int[] at = offsets;
+        if (count == at.length)
+        {
+            at = Arrays.copyOf(at, at.length << 1);
+        }
+        at[count] = offset;
+        offsets = at;
+        count = count + 1;
+    }
+
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException
+    {
+        readFully(log, buffer, position);
+    }
+
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer,
+            long position) throws IOException
+    {
+        while (buffer.hasRemaining())
+        {
+            int read = channel.read(buffer, position);
+            if (read < 0) throw new EOFException();
+            position += read;
+        }
+    }
+}
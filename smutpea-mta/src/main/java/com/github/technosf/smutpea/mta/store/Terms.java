@@ -0,0 +1,266 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.mta.store;
+
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+import com.github.technosf.smutpea.mta.Envelope;
+
+/**
+ * {@code Terms}
+ * <p>
+ * Extracts the search terms of a captured message:
+ * <ul>
+ * <li><em>from:</em>address and <em>to:</em>address for the envelope, and
+ * <em>domain:</em>domain for each recipient domain</li>
+ * <li><em>header:</em>word for the words of the <em>From</em>, <em>To</em>,
+ * <em>Cc</em>, <em>Reply-To</em> and <em>Subject</em> headers, where words
+ * keep their {@code @ . - _ +}, and <em>message-id:</em>id</li>
+ * <li>the bare words of the body, letters and digits, two or more long</li>
+ * </ul>
+ * All lower case. The body is not MIME decoded.
+ *
+ * @author technosf
+ * @since 0.0.6
+ * @version 0.0.6
+ */
+final class Terms
+{
+    /*
+     * Constants
+     */
+    static final String CONST_FROM = "from:";
+    static final String CONST_TO = "to:";
+    static final String CONST_DOMAIN = "domain:";
+    private static final String CONST_MESSAGE_ID = "message-id";
+    private static final Set<String> CONST_HEADERS =
+            Set.of("from", "to", "cc", "reply-to", "subject");
+
+    /**
+     * The most terms taken from one message
+     */
+    static final int CONST_MAX_TERMS = 4096;
+    private static final int CONST_MAX_WORD = 64;
+
+
+    /**
+     * Private constructor
+     */
+    private Terms()
+    {
+    }
+
+
+    /**
+     * Returns the distinct terms of a message
+     *
+     * @param envelope
+     *            the message
+     * @return the terms
+     */
+    static String[] of(Envelope envelope)
+    {
+        Set<String> terms = new LinkedHashSet<>();
+
+        terms.add(CONST_FROM + key(envelope.reversePath()));
+        for (String path : envelope.forwardPaths())
+        {
+            String address = key(path);
+            terms.add(CONST_TO + address);
+            terms.add(CONST_DOMAIN
+                    + address.substring(address.lastIndexOf('@') + 1));
+        }
+
+        byte[] data = envelope.data();
+        int body = headers(data, (name, value) ->
+        {
+            name = key(name);
+            if (CONST_MESSAGE_ID.equals(name))
+            {
+                terms.add(name + ":" + key(value));
+            }
+            else if (CONST_HEADERS.contains(name))
+            {
+                headerWords(name + ":", key(value), terms);
+            }
+        });
+
+        bodyWords(data, body, terms);
+
+        return terms.toArray(new String[terms.size()]);
+    }
+
+
+    /**
+     * Returns the search key of an address or word
+     *
+     * @param value
+     *            the value
+     * @return the key
+     */
+    static String key(String value)
+    {
+        return value == null ? "" : value.toLowerCase(Locale.ROOT);
+    }
+
+
+    /**
+     * Walks the headers of a message, unfolded and trimmed. The headers end
+     * at a blank line or at the first line that is not a header.
+     *
+     * @param data
+     *            the message
+     * @param header
+     *            given each header name and value
+     * @return the offset of the body
+     */
+    static int headers(byte[] data, BiConsumer<String, String> header)
+    {
+        int start = 0;
+
+        while (start < data.length)
+        {
+            int end = lineEnd(data, start);
+            if (end == start) return next(data, end); // End of the headers
+
+            int first = start;
+            StringBuilder line = new StringBuilder(new String(data, start,
+                    end - start, StandardCharsets.UTF_8));
+
+            // Unfold continuation lines
+            start = next(data, end);
+            while (start < data.length
+                    && (data[start] == ' ' || data[start] == '\t'))
+            {
+                end = lineEnd(data, start);
+                line.append(new String(data, start, end - start,
+                        StandardCharsets.UTF_8));
+                start = next(data, end);
+            }
+
+            int colon = line.indexOf(":");
+            String name = line.substring(0, Math.max(0, colon));
+            if (name.isEmpty() || name.indexOf(' ') >= 0
+                    || name.indexOf('\t') >= 0)
+            {
+                return first;
+            }
+
+            header.accept(name, line.substring(colon + 1).strip());
+        }
+
+        return start;
+    }
+
+
+    /*
+     * ------------------------------------------------------------------------
+     *
+     * Helpers
+     *
+     * ------------------------------------------------------------------------
+     */
+
+    /**
+     * Adds the words of a header value
+     */
+    private static void headerWords(String prefix, String value,
+            Set<String> terms)
+    {
+        int start = -1;
+        for (int i = 0; i <= value.length(); i++)
+        {
+            char c = i < value.length() ? value.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c) || c == '@' || c == '.'
+                    || c == '-' || c == '_' || c == '+')
+            {
+                if (start < 0) start = i;
+            }
+            else if (start >= 0)
+            {
+                int end = i;
+                while (end > start && value.charAt(end - 1) == '.') end--;
+                if (end > start && terms.size() < CONST_MAX_TERMS)
+                {
+                    terms.add(prefix + value.substring(start, end));
+                }
+                start = -1;
+            }
+        }
+    }
+
+
+    /**
+     * Adds the words of the body: runs of ASCII letters and digits, or of
+     * any non-ASCII bytes, decoded as UTF-8
+     */
+    private static void bodyWords(byte[] data, int body, Set<String> terms)
+    {
+        int start = -1;
+        for (int i = body; i <= data.length
+                && terms.size() < CONST_MAX_TERMS; i++)
+        {
+            if (i < data.length && word(data[i]))
+            {
+                if (start < 0) start = i;
+            }
+            else if (start >= 0)
+            {
+                int length = i - start;
+                if (length >= 2 && length <= CONST_MAX_WORD)
+                {
+                    terms.add(key(new String(data, start, length,
+                            StandardCharsets.UTF_8)));
+                }
+                start = -1;
+            }
+        }
+    }
+
+
+    /**
+     * Is a byte part of a word
+     */
+    private static boolean word(byte b)
+    {
+        return b < 0 || (b >= '0' && b <= '9') || (b >= 'a' && b <= 'z')
+                || (b >= 'A' && b <= 'Z');
+    }
+
+
+    /**
+     * Returns the end of the line starting at an offset, before any CR LF
+     */
+    private static int lineEnd(byte[] data, int start)
+    {
+        int end = start;
+        while (end < data.length && data[end] != '\n') end++;
+        if (end > start && data[end - 1] == '\r') end--;
+        return end;
+    }
+
+
+    /**
+     * Returns the start of the line after the line ending at an offset
+     */
+    private static int next(byte[] data, int end)
+    {
+        if (end < data.length && data[end] == '\r') end++;
+        return end < data.length ? end + 1 : end;
+    }
+}
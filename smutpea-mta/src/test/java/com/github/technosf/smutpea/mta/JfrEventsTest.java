@@ -0,0 +1,92 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.mta;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.testng.annotations.Test;
+
+import com.github.technosf.smutpea.mta.impl.SinkMTA;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * Checks the JFR events emitted by {@code AbstractMTA} and {@code Session}
+ *
+ * @author technosf
+ * @since 0.0.6
+ * @version 0.0.6
+ */
+public class JfrEventsTest
+{
+
+    @Test
+    public void events() throws Exception
+    {
+        Path dump = Files.createTempFile("smutpea", ".jfr");
+        List<RecordedEvent> events;
+
+        try (Recording recording = new Recording())
+        {
+            recording.enable("com.github.technosf.smutpea.Command");
+            recording.enable("com.github.technosf.smutpea.Data");
+            recording.start();
+
+            new MTADriver(new SinkMTA("jfr.test")).connect()
+                    .ehlo("client.test").data()
+                    .mailFrom("from@client.test").rcptTo("to@sink.test")
+                    .data("1234", "56").quit();
+
+            recording.stop();
+            recording.dump(dump);
+            events = RecordingFile.readAllEvents(dump);
+        }
+        finally
+        {
+            Files.deleteIfExists(dump);
+        }
+
+        List<RecordedEvent> commands = events.stream()
+                .filter(e -> e.getEventType().getName()
+                        .equals("com.github.technosf.smutpea.Command"))
+                .collect(Collectors.toList());
+        List<RecordedEvent> data = events.stream()
+                .filter(e -> e.getEventType().getName()
+                        .equals("com.github.technosf.smutpea.Data"))
+                .collect(Collectors.toList());
+
+        assertEquals(commands.size(), 6, "Commands");
+        assertEquals(commands.get(0).getString("command"), "EHLO");
+        assertEquals(commands.get(0).getString("startState"), "CONNECT");
+        assertEquals(commands.get(0).getString("endState"), "COMMAND");
+        assertEquals(commands.get(0).getInt("replyCode"), 250);
+        assertEquals(commands.get(1).getString("command"), "DATA");
+        assertEquals(commands.get(1).getInt("replyCode"), 503);
+        assertTrue(!commands.get(1).getBoolean("valid"));
+        assertEquals(commands.get(5).getString("endState"), "CLOSED");
+
+        assertEquals(data.size(), 1, "Data");
+        assertEquals(data.get(0).getLong("lines"), 2);
+        assertEquals(data.get(0).getLong("bytes"), 10);
+        assertEquals(data.get(0).getInt("replyCode"), 250);
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.mta;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.github.technosf.smutpea.core.MTA;
+import com.github.technosf.smutpea.core.exceptions.MTAException;
+import com.github.technosf.smutpea.core.metrics.Metrics;
+import com.github.technosf.smutpea.core.rfc.Command;
+import com.github.technosf.smutpea.core.rfc.ReplyCode;
+import com.github.technosf.smutpea.core.rfc.SessionState;
+import com.github.technosf.smutpea.mta.impl.SinkMTA;
+
+/**
+ * Unit test for {@code MTADriver}
+ *
+ * @author technosf
+ * @since 0.0.6
+ * @version 0.0.6
+ */
+public class MTADriverTest
+{
+
+    private MTADriver classUnderTest;
+
+
+    @BeforeMethod
+    public void beforeMethod() throws MTAException
+    {
+        classUnderTest = new MTADriver(new SinkMTA("driver.test"));
+    }
+
+
+    @Test
+    public void dialogue()
+    {
+        classUnderTest.connect().expect(ReplyCode._220)
+                .ehlo("client.test").expect(ReplyCode._250)
+                .mailFrom("from@client.test").expect(ReplyCode._250)
+                .rcptTo("one@sink.test", "two@sink.test").expect(ReplyCode._250)
+                .data("Subject: Test", "", ".leading dot", "Body").expect(ReplyCode._250)
+                .quit().expect(ReplyCode._221);
+
+        assertTrue(classUnderTest.isClosed());
+        assertEquals(classUnderTest.getReplies().size(), 8, "Replies");
+        assertTrue(classUnderTest.getReplies().get(0).startsWith("220 "));
+        assertEquals(classUnderTest.getReply().substring(0, 4), "221 ");
+    }
+
+
+    @Test
+    public void send()
+    {
+        classUnderTest.connect();
+
+        assertTrue(classUnderTest.send("HELO client.test").startsWith("250 "));
+        assertEquals(classUnderTest.send("DATA").substring(0, 4), "503 ");
+        assertEquals(classUnderTest.send("WIBBLE").substring(0, 4), "503 ");
+    }
+
+
+    @Test
+    public void dataRefused()
+    {
+        classUnderTest.connect().ehlo("client.test")
+                .data("MAIL FROM:<not@a.command>").expect(ReplyCode._503);
+
+        assertEquals(classUnderTest.getReplies().size(), 3,
+                "Message lines should not be sent when DATA is refused");
+    }
+
+
+    @Test
+    public void idle()
+    {
+        classUnderTest.connect().ehlo("client.test")
+                .idle(1000);
+
+        assertFalse(classUnderTest.isClosed());
+
+        classUnderTest.idle(MTA.TIMEOUT_SERVER * 1000)
+                .expect(ReplyCode._421);
+
+        assertTrue(classUnderTest.isClosed());
+    }
+
+
+    @Test
+    public void expect()
+    {
+        classUnderTest.connect();
+
+        try
+        {
+            classUnderTest.expect(ReplyCode._554);
+            fail("Expected AssertionError");
+        }
+        catch (AssertionError e)
+        {
+            // Expected
+        }
+    }
+
+
+    @Test
+    public void metrics() throws Exception
+    {
+        Metrics metrics = Metrics.get();
+        long closed = metrics.getSessionsClosed();
+        long mail = metrics.getCommand(Command.MAIL);
+        long invalid = metrics.getInvalidTransition(SessionState.COMMAND);
+        long messages = metrics.getMessagesAccepted();
+        long bytes = metrics.getBytesAccepted();
+
+        classUnderTest.connect().ehlo("client.test").data()
+                .mailFrom("from@client.test").rcptTo("to@sink.test")
+                .data("1234", "56").quit();
+        classUnderTest.close();
+
+        assertEquals(metrics.getSessionsClosed(), closed + 1);
+        assertEquals(metrics.getCommand(Command.MAIL), mail + 1);
+        assertEquals(metrics.getInvalidTransition(SessionState.COMMAND),
+                invalid + 1);
+        assertEquals(metrics.getMessagesAccepted(), messages + 1);
+        assertEquals(metrics.getBytesAccepted(), bytes + 10);
+    }
+
+
+    @Test(expectedExceptions = NullPointerException.class)
+    public void nullMTA()
+    {
+        new MTADriver(null);
+    }
+}
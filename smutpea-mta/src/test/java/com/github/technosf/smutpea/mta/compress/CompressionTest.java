@@ -0,0 +1,212 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.mta.compress;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.ZipException;
+
+import org.testng.annotations.Test;
+
+public class CompressionTest
+{
+
+    /**
+     * Text with some random bytes in its third block
+     */
+    private static byte[] data()
+    {
+        byte[] data = "A line of a message body, as it might be\r\n"
+                .repeat(300).getBytes(StandardCharsets.US_ASCII);
+        byte[] noise = new byte[1000];
+        new Random(7).nextBytes(noise);
+        System.arraycopy(noise, 0, data, 9000, noise.length);
+        return data;
+    }
+
+
+    @Test
+    public void testRoundTrip() throws IOException
+    {
+        byte[] data = data();
+        Compression compression = new Compression(6, 4096);
+        byte[] frame = compression.compress(data);
+
+        assertEquals(Compression.decompress(frame), data);
+        assertEquals(Compression.length(frame), data.length);
+        assertEquals(compression.getBlocks(), 4);
+        assertEquals(compression.getRawBytes(), data.length);
+        assertEquals(compression.getStoredBytes(), frame.length);
+        assertTrue(compression.getRatio() > 2);
+
+        assertEquals(compression.compress(new byte[0]).length, 0);
+        assertEquals(Compression.decompress(new byte[0]).length, 0);
+    }
+
+
+    @Test
+    public void testRange() throws IOException
+    {
+        byte[] data = data();
+        byte[] frame = new Compression(9, 4096).compress(data);
+
+        for (int[] range : new int[][] { { 0, 10 }, { 4090, 20 },
+                { 4096, 4096 }, { 100, 12000 }, { 12000, 1000 },
+                { 12600, 10 } })
+        {
+            assertEquals(Compression.decompress(frame, range[0], range[1]),
+                    Arrays.copyOfRange(data, Math.min(range[0], data.length),
+                            Math.min(range[0] + range[1], data.length)),
+                    Arrays.toString(range));
+        }
+    }
+
+
+    @Test
+    public void testStored() throws IOException
+    {
+        byte[] noise = new byte[5000];
+        new Random(11).nextBytes(noise);
+
+        Compression compression = new Compression(9, 4096);
+        byte[] frame = compression.compress(noise);
+        assertEquals(frame.length, noise.length + 2 * Compression.CONST_HEADER,
+                "Kept as they are");
+        assertEquals(Compression.decompress(frame), noise);
+
+        byte[] data = data();
+        frame = new Compression(0).compress(data);
+        assertEquals(frame.length, data.length + Compression.CONST_HEADER);
+        assertEquals(Compression.decompress(frame), data);
+    }
+
+
+    @Test
+    public void testStreams() throws IOException
+    {
+        byte[] data = data();
+        Compression compression = new Compression(1, 1000);
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+
+        try (OutputStream out = compression.output(frame))
+        {
+            out.write(data, 0, 10);
+            out.write(data[10]);
+            out.write(data, 11, data.length - 11);
+        }
+
+        assertEquals(frame.toByteArray(), compression.compress(data));
+
+        try (InputStream in = Compression.input(
+                new ByteArrayInputStream(frame.toByteArray())))
+        {
+            assertEquals(in.readAllBytes(), data);
+        }
+
+        try (InputStream in = Compression.input(
+                new ByteArrayInputStream(frame.toByteArray())))
+        {
+            assertEquals(in.skip(10), 10);
+            assertEquals(in.read(), data[10] & 0xff);
+            assertEquals(in.skip(8989), 8989, "Passes whole blocks");
+            assertEquals(in.readNBytes(20),
+                    Arrays.copyOfRange(data, 9000, 9020));
+            assertEquals(in.skip(100_000), data.length - 9020);
+            assertEquals(in.read(), -1);
+        }
+    }
+
+
+    @Test
+    public void testOpen() throws IOException
+    {
+        byte[] data = data();
+        Path directory = Files.createTempDirectory("compression");
+        Path plain = Files.write(directory.resolve("plain"), data);
+        Path compressed = Files.write(directory.resolve("compressed.z"),
+                new Compression(6).compress(data));
+
+        try (InputStream in = Compression.open(plain))
+        {
+            assertEquals(in.readAllBytes(), data);
+        }
+        try (InputStream in = Compression.open(compressed))
+        {
+            assertEquals(in.readAllBytes(), data);
+        }
+    }
+
+
+    @Test
+    public void testCorrupt() throws IOException
+    {
+        byte[] frame = new Compression(6, 4096).compress(data());
+
+        byte[] truncated = Arrays.copyOf(frame, frame.length - 1);
+        byte[] garbled = frame.clone();
+        garbled[20] ^= 0x55;
+        byte[] lengths = frame.clone();
+        lengths[7] = 0;
+
+        for (byte[] corrupt : new byte[][] { truncated, garbled, lengths })
+        {
+            try
+            {
+                Compression.decompress(corrupt);
+                fail("Expected ZipException");
+            }
+            catch (ZipException e)
+            {
+                // Expected
+            }
+
+            try (InputStream in = Compression
+                    .input(new ByteArrayInputStream(corrupt)))
+            {
+                in.readAllBytes();
+                fail("Expected ZipException");
+            }
+            catch (ZipException e)
+            {
+                // Expected
+            }
+        }
+    }
+
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testLevel()
+    {
+        new Compression(10);
+    }
+
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testBlockSize()
+    {
+        new Compression(6, 0);
+    }
+}
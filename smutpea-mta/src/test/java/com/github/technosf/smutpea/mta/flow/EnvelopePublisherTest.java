@@ -0,0 +1,272 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.mta.flow;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.testng.annotations.Test;
+
+import com.github.technosf.smutpea.core.rfc.ReplyCode;
+import com.github.technosf.smutpea.mta.DeliveryDeferredException;
+import com.github.technosf.smutpea.mta.Envelope;
+import com.github.technosf.smutpea.mta.flow.EnvelopePublisher.Overflow;
+
+public class EnvelopePublisherTest
+{
+
+    /**
+     * Records what it is sent, requesting an initial number of messages
+     */
+    static class Recorder
+            implements Flow.Subscriber<Envelope>
+    {
+        final List<Envelope> received = new CopyOnWriteArrayList<>();
+        final CountDownLatch subscribed = new CountDownLatch(1);
+        final CountDownLatch completed = new CountDownLatch(1);
+        final long initial;
+        Flow.Subscription subscription;
+
+
+        Recorder(long initial)
+        {
+            this.initial = initial;
+        }
+
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription)
+        {
+            this.subscription = subscription;
+            if (initial > 0) subscription.request(initial);
+            subscribed.countDown();
+        }
+
+
+        @Override
+        public void onNext(Envelope item)
+        {
+            received.add(item);
+        }
+
+
+        @Override
+        public void onError(Throwable throwable)
+        {
+        }
+
+
+        @Override
+        public void onComplete()
+        {
+            completed.countDown();
+        }
+    }
+
+
+    private static Envelope envelope(int i)
+    {
+        return new Envelope(Instant.now(), "client.test", "from@client.test",
+                List.of("to@flow.test"),
+                ("Subject: " + i + "\r\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+
+    private static void assertDeferred(EnvelopePublisher publisher,
+            ReplyCode replyCode)
+    {
+        try
+        {
+            publisher.publish(envelope(0));
+            fail("Expected DeliveryDeferredException");
+        }
+        catch (DeliveryDeferredException e)
+        {
+            assertEquals(e.getReplyCode(), replyCode);
+        }
+    }
+
+
+    @Test
+    public void testDefer() throws Exception
+    {
+        EnvelopePublisher publisher = new EnvelopePublisher(Overflow.DEFER,
+                16, Runnable::run);
+        Recorder recorder = new Recorder(2);
+        publisher.subscribe(recorder);
+
+        assertEquals(publisher.publish(envelope(1)), "1");
+        assertEquals(publisher.publish(envelope(2)), "2");
+        assertDeferred(publisher, ReplyCode._451);
+
+        recorder.subscription.request(1);
+        assertEquals(publisher.publish(envelope(3)), "3");
+
+        assertEquals(recorder.received.size(), 3);
+        assertEquals(recorder.received.get(2).getMailData(), "Subject: 3\r\n");
+        assertEquals(publisher.getPublished(), 3);
+        assertEquals(publisher.getDeferred(), 1);
+    }
+
+
+    @Test
+    public void testSlowest() throws Exception
+    {
+        EnvelopePublisher publisher = new EnvelopePublisher(Overflow.DEFER,
+                16, Runnable::run);
+        Recorder fast = new Recorder(Long.MAX_VALUE);
+        Recorder slow = new Recorder(1);
+        publisher.subscribe(fast);
+        publisher.subscribe(slow);
+
+        publisher.publish(envelope(1));
+        assertDeferred(publisher, ReplyCode._451);
+
+        assertEquals(fast.received.size(), 1, "Held to the slowest");
+        assertEquals(publisher.getSubscribers(), 2);
+    }
+
+
+    @Test
+    public void testBuffer() throws Exception
+    {
+        EnvelopePublisher publisher = new EnvelopePublisher(Overflow.BUFFER,
+                4, Runnable::run);
+        Recorder recorder = new Recorder(0);
+        publisher.subscribe(recorder);
+
+        for (int i = 1; i <= 4; i++)
+        {
+            publisher.publish(envelope(i));
+        }
+        assertEquals(publisher.getLag(), 4);
+        assertDeferred(publisher, ReplyCode._452);
+        assertTrue(recorder.received.isEmpty());
+
+        recorder.subscription.request(10);
+        publisher.publish(envelope(5));
+
+        assertEquals(recorder.received.size(), 5);
+        assertEquals(publisher.getLag(), 0);
+    }
+
+
+    @Test
+    public void testOverrun() throws Exception
+    {
+        int sessions = 8, each = 1000;
+        EnvelopePublisher publisher = new EnvelopePublisher(Overflow.BUFFER,
+                1);
+        Recorder fast = new Recorder(Long.MAX_VALUE);
+        Recorder slow = new Recorder(1)
+        {
+            @Override
+            public void onNext(Envelope item)
+            {
+                super.onNext(item);
+                LockSupport.parkNanos(10_000);
+                subscription.request(1);
+            }
+        };
+        publisher.subscribe(fast);
+        publisher.subscribe(slow);
+        assertTrue(fast.subscribed.await(10, TimeUnit.SECONDS));
+        assertTrue(slow.subscribed.await(10, TimeUnit.SECONDS));
+
+        ExecutorService executor = Executors.newFixedThreadPool(sessions);
+        List<Future<?>> futures = new ArrayList<>();
+        try
+        {
+            for (int s = 0; s < sessions; s++)
+            {
+                futures.add(executor.submit(() ->
+                {
+                    for (int i = 0; i < each; i++)
+                    {
+                        try
+                        {
+                            publisher.publish(envelope(i));
+                        }
+                        catch (DeliveryDeferredException e)
+                        {
+                            assertEquals(e.getReplyCode(), ReplyCode._452);
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures)
+            {
+                future.get();
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+        publisher.close();
+        assertTrue(fast.completed.await(10, TimeUnit.SECONDS));
+        assertTrue(slow.completed.await(10, TimeUnit.SECONDS));
+
+        assertTrue(publisher.getDeferred() > 0, "Overran");
+        assertEquals(publisher.getDropped(), 0);
+        assertEquals(publisher.getPublished() + publisher.getDeferred(),
+                sessions * each);
+        assertEquals(fast.received.size(), publisher.getPublished());
+        assertEquals(slow.received.size(), publisher.getPublished(),
+                "Every accepted message reached every subscriber");
+    }
+
+
+    @Test
+    public void testNoSubscribers()
+    {
+        EnvelopePublisher publisher = new EnvelopePublisher(Overflow.BUFFER,
+                4);
+
+        assertDeferred(publisher, ReplyCode._451);
+        assertEquals(publisher.getPublished(), 0);
+    }
+
+
+    @Test
+    public void testClosed() throws Exception
+    {
+        EnvelopePublisher publisher = new EnvelopePublisher(Overflow.DEFER,
+                4);
+        Recorder recorder = new Recorder(Long.MAX_VALUE);
+        publisher.subscribe(recorder);
+        assertTrue(recorder.subscribed.await(10, TimeUnit.SECONDS));
+        publisher.publish(envelope(1));
+        publisher.close();
+
+        assertTrue(recorder.completed.await(10, TimeUnit.SECONDS));
+        assertEquals(recorder.received.size(), 1);
+        assertDeferred(publisher, ReplyCode._451);
+    }
+}
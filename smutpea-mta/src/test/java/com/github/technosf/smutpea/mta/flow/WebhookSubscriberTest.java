@@ -0,0 +1,458 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.mta.flow;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Stream;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.github.technosf.smutpea.core.rfc.ReplyCode;
+import com.github.technosf.smutpea.mta.DeliveryDeferredException;
+import com.github.technosf.smutpea.mta.Envelope;
+import com.github.technosf.smutpea.mta.flow.EnvelopePublisher.Overflow;
+import com.github.technosf.smutpea.mta.flow.WebhookSubscriber.Format;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+public class WebhookSubscriberTest
+{
+    /**
+     * A request the webhook received
+     */
+    record Received(String contentType, String body) {};
+
+    private HttpServer webhook;
+    private URI uri;
+    private Path spool;
+    private final BlockingQueue<Received> received =
+            new LinkedBlockingQueue<>();
+
+    // Statuses to answer with before answering 200
+    private final AtomicInteger failures = new AtomicInteger();
+    private volatile CountDownLatch hold = new CountDownLatch(0);
+
+
+    @BeforeMethod
+    public void beforeMethod() throws IOException
+    {
+        received.clear();
+        failures.set(0);
+        hold = new CountDownLatch(0);
+        spool = Files.createTempDirectory("smutpea-webhook");
+
+        webhook = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        webhook.createContext("/hook", this::handle);
+        webhook.start();
+        uri = URI.create("http://localhost:" + webhook.getAddress().getPort()
+                + "/hook");
+    }
+
+
+    @AfterMethod
+    public void afterMethod() throws IOException
+    {
+        hold.countDown();
+        webhook.stop(0);
+
+        try (Stream<Path> files = Files.list(spool))
+        {
+            for (Path file : (Iterable<Path>) files::iterator)
+            {
+                Files.delete(file);
+            }
+        }
+        Files.delete(spool);
+    }
+
+
+    private void handle(HttpExchange exchange) throws IOException
+    {
+        try (InputStream in = exchange.getRequestBody())
+        {
+            hold.await(10, TimeUnit.SECONDS);
+            byte[] body = in.readAllBytes();
+
+            if (failures.getAndDecrement() > 0)
+            {
+                exchange.sendResponseHeaders(503, -1);
+                return;
+            }
+
+            received.add(new Received(
+                    exchange.getRequestHeaders().getFirst("Content-Type"),
+                    new String(body, StandardCharsets.UTF_8)));
+            exchange.sendResponseHeaders(200, -1);
+        }
+        catch (InterruptedException e)
+        {
+            exchange.sendResponseHeaders(500, -1);
+        }
+        finally
+        {
+            exchange.close();
+        }
+    }
+
+
+    private static Envelope envelope(int i)
+    {
+        return new Envelope(Instant.now(), "client.test", "from@client.test",
+                List.of("to@webhook.test"),
+                ("Subject: " + i + "\r\n\r\nBody " + i + "\r\n")
+                        .getBytes(StandardCharsets.UTF_8));
+    }
+
+
+    private static String base64(int i)
+    {
+        return Base64.getEncoder().encodeToString(envelope(i).data());
+    }
+
+
+    private EnvelopePublisher publisher(WebhookSubscriber subscriber)
+    {
+        EnvelopePublisher publisher = new EnvelopePublisher(Overflow.DEFER,
+                16, Runnable::run);
+        publisher.subscribe(subscriber);
+        return publisher;
+    }
+
+
+    private Received request() throws InterruptedException
+    {
+        Received request = received.poll(5, TimeUnit.SECONDS);
+        assertNotNull(request, "Webhook request");
+        return request;
+    }
+
+
+    private static void await(BooleanSupplier condition)
+            throws InterruptedException
+    {
+        for (int i = 0; i < 100 && !condition.getAsBoolean(); i++)
+        {
+            Thread.sleep(50);
+        }
+        assertTrue(condition.getAsBoolean(), "Condition not met");
+    }
+
+
+    @Test
+    public void testBatchByCount() throws Exception
+    {
+        WebhookSubscriber subscriber = new WebhookSubscriber(uri, Format.JSON,
+                3, 1 << 20, 10_000, 2, 0, 10, null);
+        EnvelopePublisher publisher = publisher(subscriber);
+
+        for (int i = 1; i <= 6; i++)
+        {
+            publisher.publish(envelope(i));
+        }
+
+        Received first = request();
+        Received second = request();
+
+        assertEquals(first.contentType(), "application/json");
+        assertTrue(first.body().startsWith("{\"messages\":[{\"received\":"));
+        assertTrue(first.body().contains("\"to\":[\"to@webhook.test\"]"));
+        assertEquals(first.body().split("\"data\"").length, 4, "Three");
+        assertTrue((first.body() + second.body()).contains(base64(1)));
+        assertTrue((first.body() + second.body()).contains(base64(6)));
+
+        await(() -> subscriber.getBatches() == 2);
+        assertEquals(subscriber.getDelivered(), 6);
+        assertEquals(subscriber.getLag(), 0);
+        assertEquals(subscriber.getLatency().getCount(), 2);
+        assertTrue(subscriber.getPosted() > 0);
+    }
+
+
+    @Test
+    public void testBatchByBytes() throws Exception
+    {
+        int size = envelope(1).size();
+        WebhookSubscriber subscriber = new WebhookSubscriber(uri, Format.JSON,
+                100, 2 * size, 10_000, 2, 0, 10, null);
+        EnvelopePublisher publisher = publisher(subscriber);
+
+        publisher.publish(envelope(1));
+        publisher.publish(envelope(2));
+
+        assertEquals(request().body().split("\"data\"").length, 3, "Two");
+    }
+
+
+    @Test
+    public void testBatchByAge() throws Exception
+    {
+        WebhookSubscriber subscriber = new WebhookSubscriber(uri, Format.JSON,
+                100, 1 << 20, 50, 2, 0, 10, null);
+        EnvelopePublisher publisher = publisher(subscriber);
+
+        publisher.publish(envelope(1));
+        publisher.publish(envelope(2));
+
+        String body = request().body();
+        assertTrue(body.contains(base64(1)));
+        assertTrue(body.contains(base64(2)));
+        await(() -> subscriber.getDelivered() == 2);
+        assertEquals(subscriber.getBatches(), 1);
+        assertEquals(subscriber.getLag(), 0);
+    }
+
+
+    @Test
+    public void testMultipart() throws Exception
+    {
+        WebhookSubscriber subscriber = new WebhookSubscriber(uri,
+                Format.MULTIPART, 2, 1 << 20, 10_000, 2, 0, 10, null);
+        EnvelopePublisher publisher = publisher(subscriber);
+
+        publisher.publish(envelope(1));
+        publisher.publish(envelope(2));
+
+        Received request = request();
+        assertTrue(request.contentType().startsWith("multipart/mixed"));
+
+        String boundary = request.contentType().replaceAll(".*boundary=\"(.*)\"",
+                "$1");
+        String[] parts = request.body().split("--" + boundary);
+
+        assertEquals(parts.length, 4, "Preamble, two parts, close");
+        assertEquals(parts[3], "--\r\n");
+        assertTrue(parts[1].startsWith("\r\nContent-Type: message/rfc822\r\n"
+                + "X-Envelope-From: <from@client.test>\r\n"
+                + "X-Envelope-To: <to@webhook.test>\r\n"));
+        assertTrue(parts[2].endsWith("\r\n\r\nSubject: 2\r\n\r\nBody 2\r\n\r\n"));
+    }
+
+
+    @Test
+    public void testRetry() throws Exception
+    {
+        failures.set(2);
+        WebhookSubscriber subscriber = new WebhookSubscriber(uri, Format.JSON,
+                1, 1 << 20, 10_000, 1, 3, 10, null);
+        EnvelopePublisher publisher = publisher(subscriber);
+
+        publisher.publish(envelope(1));
+
+        assertTrue(request().body().contains(base64(1)));
+        await(() -> subscriber.getDelivered() == 1);
+        assertEquals(subscriber.getRetried(), 2);
+        assertEquals(subscriber.getFailed(), 0);
+    }
+
+
+    @Test
+    public void testGiveUp() throws Exception
+    {
+        failures.set(2);
+        WebhookSubscriber subscriber = new WebhookSubscriber(uri, Format.JSON,
+                1, 1 << 20, 10_000, 1, 1, 10, null);
+        EnvelopePublisher publisher = publisher(subscriber);
+
+        publisher.publish(envelope(1));
+
+        await(() -> subscriber.getFailed() == 1);
+        assertEquals(subscriber.getLag(), 0);
+        assertNull(received.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+
+    @Test
+    public void testBackpressure() throws Exception
+    {
+        hold = new CountDownLatch(1);
+        WebhookSubscriber subscriber = new WebhookSubscriber(uri, Format.JSON,
+                1, 1 << 20, 10_000, 1, 0, 10, null);
+        EnvelopePublisher publisher = publisher(subscriber);
+
+        publisher.publish(envelope(1)); // Posting, held
+        publisher.publish(envelope(2)); // Waiting in memory
+
+        try
+        {
+            publisher.publish(envelope(3));
+            fail("Expected DeliveryDeferredException");
+        }
+        catch (DeliveryDeferredException e)
+        {
+            assertEquals(e.getReplyCode(), ReplyCode._451);
+        }
+        assertEquals(subscriber.getLag(), 2);
+
+        hold.countDown();
+        await(() -> subscriber.getDelivered() == 2);
+        await(() -> publisher.getLag() == 0 && subscriberDemands(publisher));
+    }
+
+
+    private static boolean subscriberDemands(EnvelopePublisher publisher)
+    {
+        try
+        {
+            publisher.publish(envelope(3));
+            return true;
+        }
+        catch (DeliveryDeferredException e)
+        {
+            return false;
+        }
+    }
+
+
+    @Test
+    public void testSpoolOverflow() throws Exception
+    {
+        hold = new CountDownLatch(1);
+        WebhookSubscriber subscriber = new WebhookSubscriber(uri, Format.JSON,
+                1, 1 << 20, 10_000, 1, 0, 10, 2, spool);
+        EnvelopePublisher publisher = publisher(subscriber);
+
+        for (int i = 1; i <= 5; i++)
+        {
+            publisher.publish(envelope(i)); // Never deferred
+        }
+
+        assertEquals(subscriber.getWaiting(), 2, "Held in memory first");
+        assertEquals(subscriber.getSpooled(), 2);
+        assertEquals(subscriber.getSpoolDepth(), 2);
+        try (Stream<Path> files = Files.list(spool))
+        {
+            assertEquals(files.count(), 2);
+        }
+
+        hold.countDown();
+        for (int i = 1; i <= 5; i++)
+        {
+            assertTrue(request().body().contains(base64(i)), "In order");
+        }
+
+        await(() -> subscriber.getSpoolDepth() == 0);
+        assertEquals(subscriber.getDelivered(), 5);
+        assertEquals(subscriber.getWaiting(), 0);
+        try (Stream<Path> files = Files.list(spool))
+        {
+            assertEquals(files.count(), 0);
+        }
+    }
+
+
+    @Test
+    public void testSpoolFailed() throws Exception
+    {
+        failures.set(1);
+        WebhookSubscriber subscriber = new WebhookSubscriber(uri, Format.JSON,
+                1, 1 << 20, 10_000, 1, 0, 10, spool);
+        EnvelopePublisher publisher = publisher(subscriber);
+
+        publisher.publish(envelope(1));
+
+        assertTrue(request().body().contains(base64(1)), "From the spool");
+        await(() -> subscriber.getDelivered() == 1);
+        assertEquals(subscriber.getSpooled(), 1);
+        assertEquals(subscriber.getFailed(), 0);
+        await(() -> subscriber.getSpoolDepth() == 0);
+    }
+
+
+    @Test
+    public void testSpoolBackoff() throws Exception
+    {
+        failures.set(1);
+        WebhookSubscriber subscriber = new WebhookSubscriber(uri, Format.JSON,
+                1, 1 << 20, 10_000, 1, 0, 60_000, spool);
+        EnvelopePublisher publisher = publisher(subscriber);
+
+        publisher.publish(envelope(1));
+        await(() -> subscriber.getSpoolDepth() == 1);
+        publisher.publish(envelope(2)); // Dispatches behind the failed one
+
+        assertNull(received.poll(500, TimeUnit.MILLISECONDS),
+                "Held back until its backoff has passed");
+        assertEquals(subscriber.getWaiting(), 1);
+
+        subscriber.close();
+
+        assertEquals(subscriber.getSpoolDepth(), 2, "Spooled at close");
+        assertEquals(subscriber.getDelivered(), 0);
+        assertNull(received.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+
+    @Test
+    public void testSpoolRecovered() throws Exception
+    {
+        failures.set(Integer.MAX_VALUE);
+        WebhookSubscriber first = new WebhookSubscriber(uri, Format.MULTIPART,
+                1, 1 << 20, 10_000, 1, 0, 60_000, spool);
+        publisher(first).publish(envelope(1));
+
+        await(() -> first.getSpoolDepth() == 1);
+        first.close();
+
+        failures.set(0);
+        WebhookSubscriber second = new WebhookSubscriber(uri, Format.JSON,
+                spool);
+        assertEquals(second.getSpoolDepth(), 1);
+        publisher(second);
+
+        Received request = request();
+        assertTrue(request.contentType().startsWith("multipart/mixed"),
+                "As spooled");
+        assertTrue(request.body().contains("Body 1"));
+        await(() -> second.getSpoolDepth() == 0);
+        assertEquals(second.getDelivered(), 1);
+    }
+
+
+    @Test
+    public void testClose() throws Exception
+    {
+        WebhookSubscriber subscriber = new WebhookSubscriber(uri, Format.JSON,
+                100, 1 << 20, 10_000, 2, 0, 10, null);
+        EnvelopePublisher publisher = publisher(subscriber);
+
+        publisher.publish(envelope(1));
+        publisher.close();
+
+        assertTrue(request().body().contains(base64(1)));
+        assertEquals(subscriber.getDelivered(), 1, "Waited for");
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.mta.impl;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.fail;
+
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+import com.github.technosf.smutpea.core.exceptions.MTAException;
+import com.github.technosf.smutpea.core.rfc.ReplyCode;
+import com.github.technosf.smutpea.mta.AbstractMTA;
+import com.github.technosf.smutpea.mta.AbstractMTAAbstractTest;
+import com.github.technosf.smutpea.mta.MTADriver;
+import com.github.technosf.smutpea.mta.store.CaptureStore;
+import com.github.technosf.smutpea.mta.store.CapturedMessage;
+
+public class CaptureMTATest extends AbstractMTAAbstractTest
+{
+    private final CaptureStore store = new CaptureStore(4, 100, 0, false);
+
+
+    @Override
+    protected AbstractMTA getNewClassUnderTest()
+    {
+        try
+        {
+            return new CaptureMTA("Test", store);
+        }
+        catch (MTAException e)
+        {
+            fail("Cannot create new MTA");
+            return null;
+        }
+    }
+
+
+    @Test
+    public void captured()
+    {
+        MTADriver driver = new MTADriver(getNewClassUnderTest());
+
+        driver.connect().ehlo("client.test")
+                .mailFrom("capture@client.test")
+                .rcptTo("one@capture.test", "two@capture.test")
+                .data("Subject: Captured", "", ".leading dot", "Body")
+                .expect(ReplyCode._250).quit();
+
+        List<CapturedMessage> messages = store.bySender("capture@client.test");
+        assertEquals(messages.size(), 1);
+
+        CapturedMessage message = messages.get(0);
+        assertEquals(driver.getReplies().get(6),
+                "250 OK queued as " + message.id());
+        assertEquals(message.subject(), "Captured");
+        assertEquals(message.envelope().forwardPaths(),
+                List.of("one@capture.test", "two@capture.test"));
+        assertEquals(message.envelope().getMailData(),
+                "Subject: Captured\r\n\r\n.leading dot\r\nBody\r\n");
+        assertEquals(store.byRecipient("TWO@capture.test"), messages);
+    }
+
+
+    @Test
+    public void tooLarge() throws MTAException
+    {
+        new MTADriver(new CaptureMTA("Test", new CaptureStore(1, 0, 8, true)))
+                .connect().ehlo("client.test").mailFrom("from@client.test")
+                .rcptTo("one@capture.test").data("More than eight bytes")
+                .expect(ReplyCode._451);
+    }
+}
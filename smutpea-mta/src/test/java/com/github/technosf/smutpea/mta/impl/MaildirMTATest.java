@@ -0,0 +1,84 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.mta.impl;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.fail;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import com.github.technosf.smutpea.core.exceptions.MTAException;
+import com.github.technosf.smutpea.core.rfc.ReplyCode;
+import com.github.technosf.smutpea.mta.AbstractMTA;
+import com.github.technosf.smutpea.mta.AbstractMTAAbstractTest;
+import com.github.technosf.smutpea.mta.MTADriver;
+import com.github.technosf.smutpea.mta.store.Maildir;
+
+public class MaildirMTATest extends AbstractMTAAbstractTest
+{
+    private Maildir maildir;
+
+
+    @BeforeClass
+    public void beforeClass() throws IOException
+    {
+        maildir = new Maildir(Files.createTempDirectory("maildir"),
+                Maildir.Sync.FILE);
+    }
+
+
+    @Override
+    protected AbstractMTA getNewClassUnderTest()
+    {
+        try
+        {
+            return new MaildirMTA("Test", maildir);
+        }
+        catch (MTAException e)
+        {
+            fail("Cannot create new MTA");
+            return null;
+        }
+    }
+
+
+    @Test
+    public void delivered() throws IOException
+    {
+        MTADriver driver = new MTADriver(getNewClassUnderTest());
+
+        driver.connect().ehlo("client.test")
+                .mailFrom("from@client.test")
+                .rcptTo("one@maildir.test", "two@maildir.test")
+                .data("Subject: Delivered", "", ".leading dot", "Body")
+                .expect(ReplyCode._250).quit();
+
+        String name = driver.getReplies().get(6).substring("250 OK queued as ".length());
+        for (String recipient : new String[] { "one@maildir.test",
+                "two@maildir.test" })
+        {
+            Path file = maildir.getMailbox(recipient).resolve("new")
+                    .resolve(name);
+            assertEquals(Files.readString(file, StandardCharsets.UTF_8),
+                    "Return-Path: <from@client.test>\r\n"
+                            + "Subject: Delivered\r\n\r\n.leading dot\r\nBody\r\n");
+        }
+    }
+}
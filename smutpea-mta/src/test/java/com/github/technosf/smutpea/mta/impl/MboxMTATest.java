@@ -0,0 +1,88 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.mta.impl;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import com.github.technosf.smutpea.core.exceptions.MTAException;
+import com.github.technosf.smutpea.core.rfc.ReplyCode;
+import com.github.technosf.smutpea.mta.AbstractMTA;
+import com.github.technosf.smutpea.mta.AbstractMTAAbstractTest;
+import com.github.technosf.smutpea.mta.MTADriver;
+import com.github.technosf.smutpea.mta.store.Mbox;
+
+public class MboxMTATest extends AbstractMTAAbstractTest
+{
+    private Mbox mbox;
+
+
+    @BeforeClass
+    public void beforeClass() throws IOException
+    {
+        mbox = new Mbox(Files.createTempDirectory("mbox"), Mbox.Key.DOMAIN,
+                Mbox.CONST_DEFAULT_OPEN, false);
+    }
+
+
+    @AfterClass
+    public void afterClass()
+    {
+        mbox.close();
+    }
+
+
+    @Override
+    protected AbstractMTA getNewClassUnderTest()
+    {
+        try
+        {
+            return new MboxMTA("Test", mbox);
+        }
+        catch (MTAException e)
+        {
+            fail("Cannot create new MTA");
+            return null;
+        }
+    }
+
+
+    @Test
+    public void appended() throws IOException
+    {
+        new MTADriver(getNewClassUnderTest()).connect().ehlo("client.test")
+                .mailFrom("from@client.test")
+                .rcptTo("one@mbox.test", "two@mbox.test")
+                .data("Subject: Appended", "", "From here", ".From there")
+                .expect(ReplyCode._250).quit();
+
+        String file = Files.readString(mbox.getFile("any@mbox.test"),
+                StandardCharsets.UTF_8);
+
+        assertTrue(file.startsWith("From from@client.test "), file);
+        assertTrue(file.endsWith(
+                "\nSubject: Appended\n\n>From here\n.From there\n\n"), file);
+        assertEquals(file.split("\nFrom ", -1).length, 1,
+                "Once for the domain");
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.mta.impl;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.fail;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Flow;
+
+import org.testng.annotations.Test;
+
+import com.github.technosf.smutpea.core.exceptions.MTAException;
+import com.github.technosf.smutpea.core.rfc.ReplyCode;
+import com.github.technosf.smutpea.mta.AbstractMTA;
+import com.github.technosf.smutpea.mta.AbstractMTAAbstractTest;
+import com.github.technosf.smutpea.mta.Envelope;
+import com.github.technosf.smutpea.mta.MTADriver;
+import com.github.technosf.smutpea.mta.flow.EnvelopePublisher;
+import com.github.technosf.smutpea.mta.flow.EnvelopePublisher.Overflow;
+
+public class PublishMTATest extends AbstractMTAAbstractTest
+{
+    private final EnvelopePublisher publisher =
+            new EnvelopePublisher(Overflow.BUFFER, 2, Runnable::run);
+    private final List<Envelope> received = new CopyOnWriteArrayList<>();
+    private Flow.Subscription subscription;
+
+    {
+        publisher.subscribe(new Flow.Subscriber<Envelope>()
+        {
+            @Override
+            public void onSubscribe(Flow.Subscription subscription)
+            {
+                PublishMTATest.this.subscription = subscription;
+            }
+
+
+            @Override
+            public void onNext(Envelope item)
+            {
+                received.add(item);
+            }
+
+
+            @Override
+            public void onError(Throwable throwable)
+            {
+            }
+
+
+            @Override
+            public void onComplete()
+            {
+            }
+        });
+    }
+
+
+    @Override
+    protected AbstractMTA getNewClassUnderTest()
+    {
+        try
+        {
+            return new PublishMTA("Test", publisher);
+        }
+        catch (MTAException e)
+        {
+            fail("Cannot create new MTA");
+            return null;
+        }
+    }
+
+
+    @Test
+    public void published()
+    {
+        MTADriver driver = new MTADriver(getNewClassUnderTest());
+
+        driver.connect().ehlo("client.test").mailFrom("from@client.test")
+                .rcptTo("to@publish.test");
+        for (int i = 0; i < 2; i++)
+        {
+            driver.data("Subject: Published").expect(ReplyCode._250)
+                    .mailFrom("from@client.test").rcptTo("to@publish.test");
+        }
+        driver.data("Subject: Deferred").expect(ReplyCode._452);
+
+        subscription.request(Long.MAX_VALUE);
+        driver.mailFrom("from@client.test").rcptTo("to@publish.test")
+                .data("Subject: Published").expect(ReplyCode._250).quit();
+
+        assertEquals(received.size(), 3);
+        assertEquals(received.get(0).forwardPaths(), List.of("to@publish.test"));
+        assertEquals(received.get(0).getMailData(), "Subject: Published\r\n");
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.mta.impl;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.fail;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import com.github.technosf.smutpea.core.exceptions.MTAException;
+import com.github.technosf.smutpea.core.rfc.ReplyCode;
+import com.github.technosf.smutpea.mta.AbstractMTA;
+import com.github.technosf.smutpea.mta.AbstractMTAAbstractTest;
+import com.github.technosf.smutpea.mta.Envelope;
+import com.github.technosf.smutpea.mta.MTADriver;
+import com.github.technosf.smutpea.mta.mime.MimePart;
+import com.github.technosf.smutpea.mta.store.ContentStore;
+import com.github.technosf.smutpea.mta.store.MessageStore;
+
+public class StoreMTATest extends AbstractMTAAbstractTest
+{
+    private MessageStore store;
+
+
+    @BeforeClass
+    public void beforeClass() throws IOException
+    {
+        store = new MessageStore(Files.createTempDirectory("store"));
+    }
+
+
+    @AfterClass
+    public void afterClass() throws IOException
+    {
+        store.close();
+    }
+
+
+    @Override
+    protected AbstractMTA getNewClassUnderTest()
+    {
+        try
+        {
+            return new StoreMTA("Test", store);
+        }
+        catch (MTAException e)
+        {
+            fail("Cannot create new MTA");
+            return null;
+        }
+    }
+
+
+    @Test
+    public void stored() throws IOException
+    {
+        long id = store.getNextId();
+        MTADriver driver = new MTADriver(getNewClassUnderTest());
+
+        driver.connect().ehlo("client.test")
+                .mailFrom("from@client.test")
+                .rcptTo("one@store.test", "two@store.test")
+                .data("Subject: Stored", "", ".leading dot", "Body")
+                .expect(ReplyCode._250);
+
+        assertEquals(driver.getReply(), "250 OK queued as " + id);
+
+        Envelope envelope = store.read(id);
+        assertEquals(envelope.helo(), "client.test");
+        assertEquals(envelope.reversePath(), "from@client.test");
+        assertEquals(envelope.forwardPaths(),
+                List.of("one@store.test", "two@store.test"));
+        assertEquals(envelope.getMailData(),
+                "Subject: Stored\r\n\r\n.leading dot\r\nBody\r\n");
+
+        driver.mailFrom("").rcptTo("three@store.test").data("Second")
+                .expect(ReplyCode._250).quit();
+
+        envelope = store.read(id + 1);
+        assertEquals(envelope.reversePath(), "");
+        assertEquals(envelope.forwardPaths(), List.of("three@store.test"));
+    }
+
+
+    @Test
+    public void parts() throws IOException, MTAException
+    {
+        long id = store.getNextId();
+        ContentStore content = new ContentStore(
+                Files.createTempDirectory("content"), true, p -> true);
+
+        new MTADriver(new StoreMTA("Test", store, content)).connect()
+                .ehlo("client.test").mailFrom("from@client.test")
+                .rcptTo("one@store.test")
+                .data("Content-Type: multipart/mixed; boundary=b", "", "--b",
+                        "Content-Transfer-Encoding: base64", "",
+                        "SGVsbG8=", "--b--")
+                .expect(ReplyCode._250);
+
+        Envelope envelope = store.read(id);
+        MimePart part = envelope.structure().getParts().get(1);
+
+        assertEquals(part.extracted().size(), 5);
+        assertEquals(part.extracted().path(),
+                content.path(part.extracted().sha256()));
+        assertEquals(envelope.open(part).readAllBytes(),
+                "Hello".getBytes(StandardCharsets.US_ASCII));
+        assertNull(envelope.structure().getParts().get(0).extracted());
+    }
+
+
+    @Test
+    public void reset() throws IOException
+    {
+        long id = store.getNextId();
+
+        new MTADriver(getNewClassUnderTest()).connect().ehlo("client.test")
+                .mailFrom("from@client.test").rcptTo("one@store.test").rset()
+                .mailFrom("other@client.test").rcptTo("two@store.test")
+                .data("Body").expect(ReplyCode._250);
+
+        Envelope envelope = store.read(id);
+        assertEquals(envelope.reversePath(), "other@client.test");
+        assertEquals(envelope.forwardPaths(), List.of("two@store.test"));
+    }
+
+
+    @Test
+    public void noRecipients() throws IOException
+    {
+        long id = store.getNextId();
+
+        new MTADriver(getNewClassUnderTest()).connect().ehlo("client.test")
+                .mailFrom("from@client.test").data("Body")
+                .expect(ReplyCode._554);
+
+        assertNull(store.read(id));
+    }
+
+
+    @Test
+    public void notStored() throws IOException, MTAException
+    {
+        Path directory = Files.createTempDirectory("store");
+        MessageStore closed = new MessageStore(directory);
+        closed.close();
+
+        new MTADriver(new StoreMTA("Test", closed)).connect()
+                .ehlo("client.test").mailFrom("from@client.test")
+                .rcptTo("one@store.test").data("Body")
+                .expect(ReplyCode._451);
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.mta.mime;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import org.testng.annotations.Test;
+
+import com.github.technosf.smutpea.core.exceptions.MTAException;
+import com.github.technosf.smutpea.core.rfc.ReplyCode;
+import com.github.technosf.smutpea.mta.Envelope;
+import com.github.technosf.smutpea.mta.MTADriver;
+import com.github.technosf.smutpea.mta.impl.CaptureMTA;
+import com.github.technosf.smutpea.mta.store.CaptureStore;
+
+public class AttachmentExtractorTest
+{
+
+    private static long files(Path directory) throws IOException
+    {
+        try (Stream<Path> files = Files.list(directory))
+        {
+            return files.count();
+        }
+    }
+
+
+    /**
+     * A message with a text part and a base64 attachment of the bytes
+     */
+    private static String[] message(byte[] attachment)
+    {
+        List<String> lines = new ArrayList<>(List.of(
+                "Subject: Attached",
+                "Content-Type: multipart/mixed; boundary=b",
+                "",
+                "--b",
+                "",
+                "See attached",
+                "--b",
+                "Content-Type: application/octet-stream",
+                "Content-Transfer-Encoding: base64",
+                "Content-Disposition: attachment; filename=data.bin",
+                ""));
+        lines.addAll(List.of(Base64.getMimeEncoder().encodeToString(attachment)
+                .split("\r\n")));
+        lines.add("--b--");
+        return lines.toArray(String[]::new);
+    }
+
+
+    @Test
+    public void testBase64()
+    {
+        byte[] carry = new byte[5];
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        for (String line : new String[] { "SGVs", "bG8", "sIFdv", " cm", "xkIQ==" })
+        {
+            out.writeBytes(PartDecoder.base64(line, carry));
+        }
+
+        assertEquals(out.toString(StandardCharsets.UTF_8), "Hello, World!");
+        assertEquals(carry[4], 0);
+    }
+
+
+    @Test
+    public void testQuotedPrintable() throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        assertTrue(PartDecoder.quotedPrintable("Caf=C3=A9 au=", out));
+        assertFalse(PartDecoder.quotedPrintable("lait  ", out));
+        assertFalse(PartDecoder.quotedPrintable("=XY=4", out));
+
+        assertEquals(out.toString(StandardCharsets.UTF_8),
+                "Café aulait=XY=4");
+    }
+
+
+    @Test
+    public void testExtracted() throws Exception
+    {
+        Path directory = Files.createTempDirectory("parts");
+        CaptureStore store = new CaptureStore(1, 0, 0, false);
+        byte[] attachment = new byte[1_000_000];
+        new Random(42).nextBytes(attachment);
+        AttachmentExtractor extractor = new AttachmentExtractor(directory);
+
+        new MTADriver(new CaptureMTA("Test", store, extractor)).connect()
+                .ehlo("client.test").mailFrom("a@client.test")
+                .rcptTo("b@capture.test").data(message(attachment))
+                .expect(ReplyCode._250);
+
+        Envelope envelope = store.all().get(0).envelope();
+        MimeStructure structure = envelope.structure();
+        MimePart part = structure.getAttachments().get(0);
+        ExtractedPart extracted = part.extracted();
+
+        assertEquals(part.filename(), "data.bin");
+        assertEquals(part.getBodyLength(), 0, "Not in the data");
+        assertTrue(envelope.size() < 1000);
+        assertEquals(extracted.size(), attachment.length);
+        assertEquals(extracted.sha256(), HexFormat.of().formatHex(
+                MessageDigest.getInstance("SHA-256").digest(attachment)));
+        assertEquals(envelope.open(part).readAllBytes(), attachment);
+        assertNull(structure.getParts().get(1).extracted(), "Text kept");
+        assertEquals(new String(envelope.open(structure.getParts().get(1))
+                .readAllBytes(), StandardCharsets.UTF_8), "See attached");
+        assertEquals(MimeScanner.scan(envelope.data()).getParts().size(), 3,
+                "Data still well formed");
+
+        structure.release(extractor);
+        assertEquals(files(directory), 0);
+    }
+
+
+    @Test
+    public void testRaw() throws Exception
+    {
+        Path directory = Files.createTempDirectory("parts");
+        CaptureStore store = new CaptureStore(1, 0, 0, false);
+
+        new MTADriver(new CaptureMTA("Test", store,
+                new AttachmentExtractor(directory, p -> true))).connect()
+                .ehlo("client.test").mailFrom("a@client.test")
+                .rcptTo("b@capture.test")
+                .data("Subject: Whole", "", "Line one", ".Line two")
+                .expect(ReplyCode._250);
+
+        Envelope envelope = store.all().get(0).envelope();
+        MimePart message = envelope.structure().getMessage();
+
+        assertEquals(new String(envelope.open(message).readAllBytes(),
+                StandardCharsets.UTF_8), "Line one\r\n.Line two");
+        assertEquals(envelope.getMailData(), "Subject: Whole\r\n\r\n");
+    }
+
+
+    @Test
+    public void testFailed() throws Exception
+    {
+        Path directory = Files.createTempDirectory("parts");
+        CaptureStore store = new CaptureStore(1, 0, 0, false);
+        byte[] attachment = new byte[10];
+        String[] lines = message(attachment);
+        lines[lines.length - 2] = "A=AA"; // Bad base64
+
+        new MTADriver(new CaptureMTA("Test", store,
+                new AttachmentExtractor(directory))).connect()
+                .ehlo("client.test").mailFrom("a@client.test")
+                .rcptTo("b@capture.test").data(lines)
+                .expect(ReplyCode._451);
+
+        assertEquals(store.size(), 0);
+        assertEquals(files(directory), 0, "Abandoned part deleted");
+    }
+
+
+    @Test
+    public void testTimedOut() throws Exception
+    {
+        Path directory = Files.createTempDirectory("parts");
+        CaptureStore store = new CaptureStore(1, 0, 0, false);
+        String[] lines = message(new byte[10_000]);
+        MTADriver driver = new MTADriver(new CaptureMTA("Test", store,
+                new AttachmentExtractor(directory))).connect()
+                .ehlo("client.test").mailFrom("a@client.test")
+                .rcptTo("b@capture.test").line("DATA");
+
+        for (int i = 0; i < lines.length - 3; i++)
+        {
+            driver.line(lines[i]);
+        }
+        assertEquals(files(directory), 1, "Part spilling");
+
+        driver.idle(Long.MAX_VALUE).expect(ReplyCode._421);
+
+        assertTrue(driver.isClosed());
+        assertEquals(store.size(), 0);
+        assertEquals(files(directory), 0, "Part cut off by the timeout deleted");
+    }
+
+
+    @Test
+    public void testReset() throws IOException
+    {
+        Path directory = Files.createTempDirectory("parts");
+        MimeScanner scanner = new MimeScanner(
+                new AttachmentExtractor(directory, p -> true));
+
+        scanner.line("", 0, 0);
+        assertTrue(scanner.line("Body", 2, 6));
+        assertEquals(files(directory), 1);
+
+        scanner.reset();
+        assertEquals(files(directory), 0);
+    }
+
+
+    @Test
+    public void testMultipleParts() throws MTAException, IOException
+    {
+        Path directory = Files.createTempDirectory("parts");
+        CaptureStore store = new CaptureStore(1, 0, 0, false);
+        String[] one = message("one".getBytes(StandardCharsets.UTF_8));
+        List<String> lines = new ArrayList<>(List.of(one).subList(0, one.length - 1));
+        lines.addAll(List.of("--b", "Content-Type: text/plain; name=two.txt",
+                "Content-Transfer-Encoding: quoted-printable", "",
+                "tw=", "o", "--b--"));
+
+        new MTADriver(new CaptureMTA("Test", store,
+                new AttachmentExtractor(directory))).connect()
+                .ehlo("client.test").mailFrom("a@client.test")
+                .rcptTo("b@capture.test").data(lines.toArray(String[]::new))
+                .expect(ReplyCode._250);
+
+        Envelope envelope = store.all().get(0).envelope();
+        List<MimePart> attachments = envelope.structure().getAttachments();
+
+        assertEquals(attachments.size(), 2);
+        assertEquals(envelope.open(attachments.get(0)).readAllBytes(),
+                "one".getBytes(StandardCharsets.UTF_8));
+        assertEquals(envelope.open(attachments.get(1)).readAllBytes(),
+                "two".getBytes(StandardCharsets.UTF_8));
+        assertEquals(files(directory), 2);
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.mta.mime;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+import com.github.technosf.smutpea.core.exceptions.MTAException;
+import com.github.technosf.smutpea.core.rfc.ReplyCode;
+import com.github.technosf.smutpea.mta.Envelope;
+import com.github.technosf.smutpea.mta.MTADriver;
+import com.github.technosf.smutpea.mta.impl.CaptureMTA;
+import com.github.technosf.smutpea.mta.store.CaptureStore;
+
+public class MimeScannerTest
+{
+    private static final String[] MESSAGE = {
+            "From: a@client.test",
+            "Subject: Report,",
+            " attached",
+            "Content-Type: multipart/mixed; boundary=\"outer\"",
+            "",
+            "Preamble",
+            "--outer",
+            "Content-Type: multipart/alternative; boundary=inner",
+            "",
+            "--inner",
+            "",
+            "Plain body",
+            "--inner",
+            "Content-Type: text/html; charset=utf-8",
+            "",
+            "<p>HTML body</p>",
+            "--inner--",
+            "--outer",
+            "Content-Type: application/pdf; name=\"old.pdf\"",
+            "Content-Transfer-Encoding: BASE64",
+            "Content-Disposition: attachment;",
+            "  filename=\"report; 2023.pdf\"",
+            "",
+            "SGVsbG8s",
+            "IFBERiE=",
+            "--outer--",
+            "Epilogue" };
+
+
+    private static byte[] data(String... lines)
+    {
+        return (String.join("\r\n", lines) + "\r\n")
+                .getBytes(StandardCharsets.UTF_8);
+    }
+
+
+    private static String text(byte[] data, int from, int to)
+    {
+        return new String(data, from, to - from, StandardCharsets.UTF_8);
+    }
+
+
+    @Test
+    public void testStructure() throws IOException
+    {
+        byte[] data = data(MESSAGE);
+        MimeStructure structure = MimeScanner.scan(data);
+        List<MimePart> parts = structure.getParts();
+
+        assertEquals(parts.size(), 5);
+
+        MimePart message = structure.getMessage();
+        assertEquals(message.contentType(), "multipart/mixed");
+        assertEquals(message.boundary(), "outer");
+        assertEquals(message.end(), data.length);
+        assertEquals(text(data, message.bodyStart(), message.bodyStart() + 8),
+                "Preamble");
+
+        MimePart alternative = parts.get(1);
+        assertEquals(alternative.depth(), 1);
+        assertEquals(alternative.parent(), 0);
+        assertTrue(alternative.isMultipart());
+
+        MimePart plain = parts.get(2);
+        assertEquals(plain.parent(), 1);
+        assertEquals(plain.contentType(), "text/plain");
+        assertEquals(text(data, plain.bodyStart(), plain.end()),
+                "Plain body");
+
+        MimePart html = parts.get(3);
+        assertEquals(html.contentType(), "text/html");
+        assertEquals(text(data, html.start(), html.end()),
+                "Content-Type: text/html; charset=utf-8\r\n\r\n<p>HTML body</p>");
+        assertEquals(text(data, alternative.bodyStart(), alternative.end()),
+                "--inner\r\n\r\nPlain body\r\n--inner\r\n"
+                        + "Content-Type: text/html; charset=utf-8\r\n\r\n"
+                        + "<p>HTML body</p>\r\n--inner--");
+
+        MimePart pdf = parts.get(4);
+        assertEquals(pdf.transferEncoding(), "base64");
+        assertEquals(pdf.disposition(), "attachment");
+        assertEquals(pdf.filename(), "report; 2023.pdf");
+        assertEquals(structure.getAttachments(), List.of(pdf));
+        assertFalse(plain.isAttachment());
+
+        assertEquals(new String(MimeStructure.open(data, pdf).readAllBytes(),
+                StandardCharsets.UTF_8), "Hello, PDF!");
+        assertEquals(MimeStructure.body(data, pdf).remaining(),
+                pdf.getBodyLength());
+    }
+
+
+    @Test
+    public void testHeader()
+    {
+        byte[] data = data(MESSAGE);
+        MimeStructure structure = MimeScanner.scan(data);
+        MimePart message = structure.getMessage();
+
+        assertEquals(MimeStructure.header(data, message, "subject"),
+                "Report, attached");
+        assertEquals(MimeStructure.header(data, message, "FROM"),
+                "a@client.test");
+        assertNull(MimeStructure.header(data, message, "To"));
+        assertNull(MimeStructure.header(data, structure.getParts().get(2),
+                "Content-Type"), "Part without headers");
+        assertEquals(MimeStructure.header(data, structure.getParts().get(3),
+                "content-type"), "text/html; charset=utf-8");
+    }
+
+
+    @Test
+    public void testPlain()
+    {
+        byte[] data = data("Just a body", "with no headers");
+        MimePart message = MimeScanner.scan(data).getMessage();
+
+        assertEquals(message.bodyStart(), 0);
+        assertEquals(message.contentType(), "text/plain");
+        assertEquals(message.transferEncoding(), "7bit");
+
+        data = data("Subject: Only headers");
+        message = MimeScanner.scan(data).getMessage();
+        assertEquals(message.bodyStart(), data.length);
+        assertEquals(message.getBodyLength(), 0);
+    }
+
+
+    @Test
+    public void testUnterminated()
+    {
+        byte[] data = data("Content-Type: multipart/digest; boundary=b", "",
+                "--b", "", "Message", "--b");
+        List<MimePart> parts = MimeScanner.scan(data).getParts();
+
+        assertEquals(parts.size(), 3);
+        assertEquals(parts.get(1).contentType(), "message/rfc822");
+        assertEquals(parts.get(2).start(), data.length);
+        assertEquals(parts.get(2).end(), data.length);
+    }
+
+
+    @Test
+    public void testParameter()
+    {
+        assertEquals(MimeScanner.parameter("a/b; x=1; Boundary=\"q\\\"t\"",
+                "boundary"), "q\"t");
+        assertEquals(MimeScanner.parameter("a/b;name=plain", "name"), "plain");
+        assertNull(MimeScanner.parameter("a/b", "name"));
+        assertNull(MimeScanner.parameter("a/b; other=1", "name"));
+    }
+
+
+    @Test
+    public void testOnArrival() throws MTAException
+    {
+        CaptureStore store = new CaptureStore(1, 0, 0, false);
+        String[] lines = MESSAGE.clone();
+        lines[5] = ".Preamble";
+
+        new MTADriver(new CaptureMTA("Test", store)).connect()
+                .ehlo("client.test").mailFrom("a@client.test")
+                .rcptTo("b@capture.test").data(lines)
+                .expect(ReplyCode._250);
+
+        Envelope envelope = store.all().get(0).envelope();
+
+        assertTrue(envelope.structure() != null, "Scanned on arrival");
+        assertEquals(envelope.structure().getParts(),
+                MimeScanner.scan(envelope.data()).getParts());
+        assertEquals(envelope.header("Subject"), "Report, attached");
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.mta.store;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.Test;
+
+import com.github.technosf.smutpea.mta.Envelope;
+
+public class CaptureStoreTest
+{
+    private static final Instant START = Instant.parse("2023-01-01T00:00:00Z");
+
+
+    private static Envelope envelope(int i, String from, String to,
+            String data)
+    {
+        return new Envelope(START.plusSeconds(i), "client.test", from,
+                List.of(to), data.getBytes(StandardCharsets.UTF_8));
+    }
+
+
+    private static List<Long> ids(List<CapturedMessage> messages)
+    {
+        List<Long> ids = new ArrayList<>();
+        for (CapturedMessage message : messages) ids.add(message.id());
+        return ids;
+    }
+
+
+    @Test
+    public void testSubject()
+    {
+        assertEquals(CaptureStore.subject(
+                "From: a\r\nSubject: Hello\r\n there\r\n\r\nBody\r\n"
+                        .getBytes(StandardCharsets.UTF_8)),
+                "Hello there");
+        assertEquals(CaptureStore
+                .subject("SUBJECT:Hi\n".getBytes(StandardCharsets.UTF_8)),
+                "Hi");
+        assertNull(CaptureStore.subject(
+                "From: a\r\n\r\nSubject: Body\r\n"
+                        .getBytes(StandardCharsets.UTF_8)));
+        assertNull(CaptureStore.subject(new byte[0]));
+    }
+
+
+    @Test
+    public void testQueries()
+    {
+        CaptureStore store = new CaptureStore(3, 0, 0, false);
+
+        for (int i = 0; i < 10; i++)
+        {
+            store.capture(envelope(i, i % 2 == 0 ? "even@test" : "odd@test",
+                    "to" + (i % 3) + "@test", "Subject: Number " + i + "\r\n"));
+        }
+
+        assertEquals(store.size(), 10);
+        assertEquals(ids(store.all()),
+                List.of(0L, 1L, 2L, 3L, 4L, 5L, 6L, 7L, 8L, 9L));
+        assertEquals(ids(store.bySender("ODD@test")),
+                List.of(1L, 3L, 5L, 7L, 9L));
+        assertEquals(ids(store.byRecipient("to0@test")),
+                List.of(0L, 3L, 6L, 9L));
+        assertEquals(ids(store.bySubject("number 1")), List.of(1L));
+        assertEquals(ids(store.between(START.plusSeconds(2),
+                START.plusSeconds(5))), List.of(2L, 3L, 4L));
+        assertTrue(store.bySender("nobody@test").isEmpty());
+
+        store.clear();
+        assertEquals(store.size(), 0);
+        assertEquals(store.getCaptured(), 10);
+    }
+
+
+    @Test
+    public void testCountEviction()
+    {
+        CaptureStore store = new CaptureStore(2, 4, 0, false);
+
+        for (int i = 0; i < 10; i++)
+        {
+            store.capture(envelope(i, "from@test", "to@test", "Body"));
+        }
+
+        assertEquals(ids(store.all()), List.of(6L, 7L, 8L, 9L));
+        assertEquals(ids(store.bySender("from@test")), List.of(6L, 7L, 8L, 9L));
+        assertEquals(store.getEvicted(), 6);
+        assertEquals(store.getBytes(), 16);
+    }
+
+
+    @Test
+    public void testOffHeap()
+    {
+        // One 10 byte ring: writes wrap and evict the oldest in the way
+        CaptureStore store = new CaptureStore(1, 0, 10, true);
+
+        store.capture(envelope(0, "a@test", "to@test", "aaaa"));
+        store.capture(envelope(1, "b@test", "to@test", "bbbb"));
+        store.capture(envelope(2, "c@test", "to@test", "cccc"));
+
+        assertEquals(ids(store.all()), List.of(1L, 2L));
+
+        store.capture(envelope(3, "d@test", "to@test", "dd"));
+        store.capture(envelope(4, "e@test", "to@test", "eeee"));
+        store.capture(envelope(5, "f@test", "to@test", "ff"));
+        store.capture(envelope(6, "g@test", "to@test", "ggg"));
+
+        List<CapturedMessage> messages = store.all();
+        assertEquals(ids(messages), List.of(4L, 5L, 6L));
+        assertEquals(messages.get(0).envelope().getMailData(), "eeee");
+        assertEquals(messages.get(2).envelope().getMailData(), "ggg");
+
+        // Wrapping evicts what is left at the end of the ring first
+        store.capture(envelope(7, "h@test", "to@test", "hhhhhh"));
+
+        messages = store.all();
+        assertEquals(ids(messages), List.of(7L));
+        assertEquals(messages.get(0).envelope().getMailData(), "hhhhhh");
+        assertEquals(store.getBytes(), 6);
+        assertEquals(store.getEvicted(), 7);
+        assertTrue(store.bySender("a@test").isEmpty());
+    }
+
+
+    @Test
+    public void testOffHeapData()
+    {
+        CaptureStore heap = new CaptureStore(2, 0, 100, false);
+        CaptureStore offHeap = new CaptureStore(2, 0, 100, true);
+
+        for (int i = 0; i < 4; i++)
+        {
+            heap.capture(envelope(i, "a@test", "to@test", "data"));
+            offHeap.capture(envelope(i, "a@test", "to@test", "data"));
+        }
+
+        assertEquals(heap.getHeapBytes(), 16);
+        assertEquals(offHeap.getBytes(), 16);
+        assertEquals(offHeap.getHeapBytes(), 0, "Data held in the ring only");
+        assertEquals(offHeap.all().get(3).envelope().getMailData(), "data");
+    }
+
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testOffHeapUnbounded()
+    {
+        new CaptureStore(1, 100, 0, true);
+    }
+
+
+    @Test
+    public void testSearch()
+    {
+        CaptureStore store = new CaptureStore(4, 0, 0, false);
+
+        for (int i = 0; i < 20_000; i++)
+        {
+            store.capture(envelope(i, "from" + (i % 7) + "@test",
+                    "to@" + (i % 2 == 0 ? "even" : "odd") + ".test",
+                    "Subject: Invoice " + i + "\r\n\r\nTotal due "
+                            + (i % 100 == 0 ? "overdue" : "") + "\r\n"));
+        }
+
+        assertEquals(ids(store.search("subject:1234")), List.of(1234L));
+        assertEquals(store.search("domain:even.test overdue").size(), 200);
+        assertEquals(store.search("domain:odd.test AND overdue").size(), 0);
+        assertEquals(ids(store.search("subject:7 OR subject:1234 OR none")),
+                List.of(7L, 1234L));
+        assertEquals(store.search("FROM:from3@TEST due").size(),
+                store.bySender("from3@test").size());
+        assertTrue(store.search("missing").isEmpty());
+        assertTrue(store.search(" ").isEmpty());
+    }
+
+
+    @Test
+    public void testSearchEvicted()
+    {
+        CaptureStore store = new CaptureStore(2, 10, 0, false);
+
+        for (int i = 0; i < 100; i++)
+        {
+            store.capture(envelope(i, "from@test", "to@test",
+                    "Subject: Message " + i + "\r\n\r\nword" + i + "\r\n"));
+        }
+
+        assertTrue(store.search("word5").isEmpty());
+        assertEquals(ids(store.search("word95")), List.of(95L));
+        assertEquals(store.search("subject:message").size(), 10);
+
+        // Terms of evicted messages leave the index
+        assertEquals(store.getTerms(), 2 * 4 + 10 * 2);
+
+        store.clear();
+        assertEquals(store.getTerms(), 0);
+        assertEquals(store.getPostingBytes(), 0);
+    }
+
+
+    @Test
+    public void testConcurrent() throws Exception
+    {
+        CaptureStore store = new CaptureStore(8, 1000, 1 << 20, true);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<?>> futures = new ArrayList<>();
+
+        for (int t = 0; t < 4; t++)
+        {
+            int thread = t;
+            futures.add(executor.submit(() ->
+            {
+                for (int i = 0; i < 5000; i++)
+                {
+                    store.capture(envelope(i, "t" + thread + "@test",
+                            "to" + (i % 10) + "@test",
+                            "Subject: " + thread + "/" + i + "\r\n\r\nBody"));
+                }
+            }));
+            futures.add(executor.submit(() ->
+            {
+                for (int i = 0; i < 500; i++)
+                {
+                    for (CapturedMessage message : store
+                            .byRecipient("to" + (i % 10) + "@test"))
+                    {
+                        assertTrue(message.envelope().getMailData()
+                                .startsWith("Subject: " + message.subject()));
+                    }
+                }
+            }));
+        }
+
+        for (Future<?> future : futures)
+        {
+            future.get();
+        }
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+
+        assertEquals(store.getCaptured(), 20000);
+        assertEquals(store.size(), 1000);
+        assertEquals(store.getEvicted(), 19000);
+    }
+}
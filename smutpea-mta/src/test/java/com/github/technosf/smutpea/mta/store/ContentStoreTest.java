@@ -0,0 +1,301 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.mta.store;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import org.testng.annotations.Test;
+
+import com.github.technosf.smutpea.core.rfc.ReplyCode;
+import com.github.technosf.smutpea.mta.Envelope;
+import com.github.technosf.smutpea.mta.MTADriver;
+import com.github.technosf.smutpea.mta.compress.Compression;
+import com.github.technosf.smutpea.mta.impl.CaptureMTA;
+import com.github.technosf.smutpea.mta.mime.ExtractedPart;
+
+public class ContentStoreTest
+{
+
+    /**
+     * A message with a text part and a base64 attachment of the bytes
+     */
+    private static String[] message(String text, byte[] attachment)
+    {
+        List<String> lines = new ArrayList<>(List.of(
+                "Subject: Attached",
+                "Content-Type: multipart/mixed; boundary=b",
+                "",
+                "--b",
+                "",
+                text,
+                "--b",
+                "Content-Type: application/octet-stream",
+                "Content-Transfer-Encoding: base64",
+                "Content-Disposition: attachment; filename=data.bin",
+                ""));
+        lines.addAll(List.of(Base64.getMimeEncoder().encodeToString(attachment)
+                .split("\r\n")));
+        lines.add("--b--");
+        return lines.toArray(String[]::new);
+    }
+
+
+    private static void send(MTADriver driver, String text, byte[] attachment)
+    {
+        driver.mailFrom("a@client.test").rcptTo("b@capture.test")
+                .data(message(text, attachment)).expect(ReplyCode._250);
+    }
+
+
+    private static long blobs(Path directory) throws Exception
+    {
+        try (Stream<Path> files = Files.walk(directory))
+        {
+            return files.filter(Files::isRegularFile)
+                    .filter(p -> !p.getParent().getFileName().toString()
+                            .equals("tmp"))
+                    .count();
+        }
+    }
+
+
+    @Test
+    public void testDeduplicated() throws Exception
+    {
+        Path directory = Files.createTempDirectory("content");
+        ContentStore content = new ContentStore(directory);
+        CaptureStore store = new CaptureStore(1, 0, 0, false, content);
+        byte[] attachment = new byte[10_000];
+        new Random(42).nextBytes(attachment);
+
+        MTADriver driver = new MTADriver(new CaptureMTA("Test", store,
+                content)).connect().ehlo("client.test");
+        send(driver, "First", attachment);
+        send(driver, "Second", attachment);
+        send(driver, "First", attachment);
+
+        ExtractedPart extracted = store.all().get(0).envelope().structure()
+                .getAttachments().get(0).extracted();
+
+        assertEquals(content.getBlobs(), 3, "Two texts and one attachment");
+        assertEquals(content.getWritten(), 3);
+        assertEquals(content.getDeduplicated(), 3);
+        assertEquals(content.getBytesWritten(), 10_000 + 5 + 6);
+        assertEquals(content.getBytesDeduplicated(), 2 * 10_000 + 5);
+        assertEquals(content.getReferences(extracted.sha256()), 3);
+        assertEquals(extracted.path(), content.path(extracted.sha256()));
+        assertEquals(blobs(directory), 3);
+
+        for (CapturedMessage message : store.all())
+        {
+            Envelope envelope = message.envelope();
+            assertEquals(envelope.open(envelope.structure().getAttachments()
+                    .get(0)).readAllBytes(), attachment);
+        }
+    }
+
+
+    @Test
+    public void testCollected() throws Exception
+    {
+        Path directory = Files.createTempDirectory("content");
+        ContentStore content = new ContentStore(directory);
+        CaptureStore store = new CaptureStore(1, 2, 0, false, content);
+        byte[] first = new byte[1000];
+        byte[] second = new byte[1000];
+        new Random(1).nextBytes(first);
+        new Random(2).nextBytes(second);
+
+        MTADriver driver = new MTADriver(new CaptureMTA("Test", store,
+                content)).connect().ehlo("client.test");
+        send(driver, "Text", first);
+        send(driver, "Text", second);
+
+        ExtractedPart extracted = store.all().get(0).envelope().structure()
+                .getAttachments().get(0).extracted();
+        assertEquals(blobs(directory), 3);
+
+        send(driver, "Text", second); // Evicts the first
+
+        assertEquals(content.getReferences(extracted.sha256()), 0);
+        assertTrue(Files.exists(extracted.path()), "Not yet collected");
+        assertEquals(content.collect(), 1);
+        assertFalse(Files.exists(extracted.path()));
+        assertEquals(content.getCollected(), 1);
+        assertEquals(blobs(directory), 2);
+
+        store.clear();
+        send(driver, "Other", first); // Collects on open
+
+        assertEquals(content.getCollected(), 3);
+        assertEquals(blobs(directory), 2);
+        assertEquals(content.getBlobs(), 2);
+    }
+
+
+    @Test
+    public void testPinned() throws Exception
+    {
+        Path directory = Files.createTempDirectory("content");
+        byte[] attachment = new byte[1000];
+        new Random(3).nextBytes(attachment);
+
+        ContentStore earlier = new ContentStore(directory);
+        send(new MTADriver(new CaptureMTA("Test",
+                new CaptureStore(1, 0, 0, false, earlier), earlier)).connect()
+                .ehlo("client.test"), "Text", attachment);
+
+        assertEquals(earlier.getWritten(), 2);
+
+        ContentStore later = new ContentStore(directory);
+        CaptureStore store = new CaptureStore(1, 0, 0, false, later);
+        send(new MTADriver(new CaptureMTA("Test", store, later)).connect()
+                .ehlo("client.test"), "Text", attachment);
+
+        assertEquals(later.getWritten(), 0, "Stored by an earlier run");
+        assertEquals(later.getDeduplicated(), 2);
+
+        store.clear();
+        assertEquals(later.collect(), 0, "Pinned");
+        assertEquals(blobs(directory), 2);
+    }
+
+
+    @Test
+    public void testCompressed() throws Exception
+    {
+        Path directory = Files.createTempDirectory("content");
+        Compression compression = new Compression(1);
+        ContentStore content = new ContentStore(directory, false,
+                part -> true, compression);
+        CaptureStore store = new CaptureStore(1, 0, 0, false, content);
+        byte[] small = "Small and compressible ".repeat(100).getBytes();
+        byte[] large = "Large and compressible ".repeat(100_000).getBytes();
+
+        MTADriver driver = new MTADriver(new CaptureMTA("Test", store,
+                content)).connect().ehlo("client.test");
+        send(driver, "Text", small);
+        send(driver, "Text", large);
+
+        for (int i = 0; i < 2; i++)
+        {
+            Envelope envelope = store.all().get(i).envelope();
+            ExtractedPart extracted = envelope.structure().getAttachments()
+                    .get(0).extracted();
+
+            assertTrue(extracted.path().toString().endsWith(".z"));
+            assertTrue(Files.size(extracted.path()) < extracted.size() / 10);
+            assertEquals(envelope.open(envelope.structure().getAttachments()
+                    .get(0)).readAllBytes(), i == 0 ? small : large);
+        }
+        assertTrue(compression.getRatio() > 10);
+    }
+
+
+    @Test
+    public void testSpilled() throws Exception
+    {
+        Path directory = Files.createTempDirectory("content");
+        ContentStore content = new ContentStore(directory, true,
+                part -> part.isAttachment());
+        CaptureStore store = new CaptureStore(1, 0, 0, false, content);
+        byte[] attachment = new byte[ContentStore.CONST_SPILL * 2 + 1];
+        new Random(4).nextBytes(attachment);
+
+        MTADriver driver = new MTADriver(new CaptureMTA("Test", store,
+                content)).connect().ehlo("client.test");
+        send(driver, "Text", attachment);
+        send(driver, "Text", attachment);
+
+        Envelope envelope = store.all().get(1).envelope();
+
+        assertEquals(content.getBlobs(), 1, "Text not stored");
+        assertEquals(content.getWritten(), 1);
+        assertEquals(content.getDeduplicated(), 1);
+        assertEquals(blobs(directory), 1);
+        try (Stream<Path> files = Files.list(directory.resolve("tmp")))
+        {
+            assertEquals(files.count(), 0, "Spills moved or deleted");
+        }
+        assertEquals(envelope.open(envelope.structure().getAttachments()
+                .get(0)).readAllBytes(), attachment);
+    }
+
+
+    @Test
+    public void testConcurrent() throws Exception
+    {
+        int threads = 8;
+        Path directory = Files.createTempDirectory("content");
+        ContentStore content = new ContentStore(directory, true,
+                part -> part.isAttachment());
+        CaptureStore store = new CaptureStore(1, 0, 0, false, content);
+        byte[] attachment = new byte[ContentStore.CONST_SPILL + 1];
+        new Random(5).nextBytes(attachment);
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+        try
+        {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++)
+            {
+                futures.add(executor.submit(() ->
+                {
+                    MTADriver driver = new MTADriver(new CaptureMTA("Test",
+                            store, content)).connect().ehlo("client.test");
+                    start.await();
+                    send(driver, "Text", attachment);
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> future : futures)
+            {
+                future.get();
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+
+        String sha256 = store.all().get(0).envelope().structure()
+                .getAttachments().get(0).extracted().sha256();
+
+        assertEquals(content.getBlobs(), 1);
+        assertEquals(content.getWritten(), 1);
+        assertEquals(content.getDeduplicated(), threads - 1);
+        assertEquals(content.getReferences(sha256), threads);
+        assertEquals(blobs(directory), 1);
+        try (Stream<Path> files = Files.list(directory.resolve("tmp")))
+        {
+            assertEquals(files.count(), 0, "Spills moved or deleted");
+        }
+    }
+}
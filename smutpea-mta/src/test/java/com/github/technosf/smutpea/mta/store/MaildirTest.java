@@ -0,0 +1,204 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.mta.store;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import org.testng.annotations.Test;
+
+import com.github.technosf.smutpea.mta.Envelope;
+
+public class MaildirTest
+{
+
+    private static Envelope envelope(String... recipients)
+    {
+        return new Envelope(Instant.now(), "client.test", "from@client.test",
+                List.of(recipients),
+                "Subject: Test\r\n\r\nBody\r\n".getBytes(StandardCharsets.UTF_8));
+    }
+
+
+    private static long files(Path folder) throws IOException
+    {
+        try (Stream<Path> files = Files.list(folder))
+        {
+            return files.count();
+        }
+    }
+
+
+    @Test
+    public void testMailbox()
+    {
+        assertEquals(Maildir.mailbox("One@Maildir.Test"), "one@maildir.test");
+        assertEquals(Maildir.mailbox("<a/b@c>"), "a_b@c");
+        assertEquals(Maildir.mailbox("../x@y"), "_.._x@y");
+        assertEquals(Maildir.mailbox(""), "_");
+        assertEquals(Maildir.mailbox("é+tag@x"), "_+tag@x");
+    }
+
+
+    @Test
+    public void testLinked() throws IOException
+    {
+        Maildir maildir = new Maildir(Files.createTempDirectory("maildir"),
+                Maildir.Sync.FILE);
+        List<String> recipients = new ArrayList<>();
+        for (int i = 0; i < 20; i++)
+        {
+            recipients.add("to" + i + "@maildir.test");
+        }
+        recipients.add("TO0@maildir.test");
+
+        String name = maildir.deliver(
+                envelope(recipients.toArray(String[]::new)));
+
+        assertEquals(maildir.getMailboxes(), 20);
+        assertEquals(maildir.getLinks(), 20);
+        assertEquals(maildir.getForces(), 1, "One write, one force");
+
+        Object key = null;
+        for (int i = 0; i < 20; i++)
+        {
+            Path mailbox = maildir.getMailbox("to" + i + "@maildir.test");
+            Path file = mailbox.resolve("new").resolve(name);
+            assertTrue(Files.exists(file));
+            assertEquals(files(mailbox.resolve("tmp")), 0);
+            assertTrue(Files.isDirectory(mailbox.resolve("cur")));
+
+            Object fileKey = Files
+                    .readAttributes(file, BasicFileAttributes.class)
+                    .fileKey();
+            if (key == null) key = fileKey;
+            assertEquals(fileKey, key, "Hard links to one file");
+        }
+        assertEquals(Files.getAttribute(maildir.getMailbox("to0@maildir.test")
+                .resolve("new").resolve(name), "unix:nlink"), 20);
+    }
+
+
+    @Test
+    public void testUnique() throws IOException
+    {
+        Maildir maildir = new Maildir(Files.createTempDirectory("maildir"),
+                Maildir.Sync.NONE);
+        Set<String> names = new HashSet<>();
+
+        for (int i = 0; i < 100; i++)
+        {
+            assertTrue(names.add(maildir.deliver(envelope("a@maildir.test"))));
+        }
+
+        assertEquals(files(maildir.getMailbox("a@maildir.test")
+                .resolve("new")), 100);
+        assertEquals(maildir.getForces(), 0);
+        assertEquals(maildir.getDelivered(), 100);
+    }
+
+
+    @Test
+    public void testFull() throws IOException
+    {
+        Maildir maildir = new Maildir(Files.createTempDirectory("maildir"),
+                Maildir.Sync.FULL);
+
+        maildir.deliver(envelope("a@maildir.test", "b@maildir.test"));
+
+        assertEquals(maildir.getForces(), 3, "The file and each new folder");
+    }
+
+
+    @Test
+    public void testRemoved() throws IOException
+    {
+        Maildir maildir = new Maildir(Files.createTempDirectory("maildir"),
+                Maildir.Sync.NONE);
+        Path a = maildir.getMailbox("a@maildir.test");
+        Path b = maildir.getMailbox("b@maildir.test");
+
+        maildir.deliver(envelope("a@maildir.test", "b@maildir.test"));
+        delete(a);
+        delete(b);
+
+        String name = maildir.deliver(
+                envelope("a@maildir.test", "b@maildir.test"));
+
+        assertTrue(Files.exists(a.resolve("new").resolve(name)));
+        assertTrue(Files.exists(b.resolve("new").resolve(name)));
+    }
+
+
+    @Test
+    public void testTakenBack() throws IOException
+    {
+        Maildir maildir = new Maildir(Files.createTempDirectory("maildir"),
+                Maildir.Sync.NONE);
+        Path a = maildir.getMailbox("a@maildir.test");
+        Path b = maildir.getMailbox("b@maildir.test");
+
+        maildir.deliver(envelope("a@maildir.test", "b@maildir.test"));
+        delete(b.resolve("new"));
+        Files.writeString(b.resolve("new"), "Not a folder");
+
+        try
+        {
+            maildir.deliver(envelope("a@maildir.test", "b@maildir.test"));
+            fail("Expected IOException");
+        }
+        catch (IOException e)
+        {
+            // Expected
+        }
+
+        assertEquals(files(a.resolve("new")), 1, "Taken back");
+        assertEquals(files(a.resolve("tmp")), 0);
+        assertFalse(Files.isDirectory(b.resolve("new")));
+    }
+
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testNoRecipients() throws IOException
+    {
+        new Maildir(Files.createTempDirectory("maildir"), Maildir.Sync.NONE)
+                .deliver(envelope());
+    }
+
+
+    private static void delete(Path path) throws IOException
+    {
+        try (Stream<Path> files = Files.walk(path))
+        {
+            for (Path file : files.sorted((x, y) -> y.compareTo(x)).toList())
+            {
+                Files.delete(file);
+            }
+        }
+    }
+}
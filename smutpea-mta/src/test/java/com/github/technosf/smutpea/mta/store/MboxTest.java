@@ -0,0 +1,337 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.mta.store;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.testng.annotations.Test;
+
+import com.github.technosf.smutpea.mta.Envelope;
+
+public class MboxTest
+{
+
+    private static Envelope envelope(String data, String... recipients)
+    {
+        return new Envelope(Instant.parse("2023-03-05T09:08:07Z"),
+                "client.test", "from@client.test", List.of(recipients),
+                data.getBytes(StandardCharsets.UTF_8));
+    }
+
+
+    private static int messages(Path file) throws IOException
+    {
+        int count = 0;
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8))
+        {
+            if (line.startsWith("From ")) count++;
+        }
+        return count;
+    }
+
+
+    @Test
+    public void testEncode()
+    {
+        assertEquals(new String(Mbox.encode(envelope(
+                "Subject: x\r\n\r\nFrom me\r\n>From you\r\n>>From them\r\n"
+                        + "From\r\nfrom me\r\n > From not\r\nLast",
+                "a@b")), StandardCharsets.UTF_8),
+                "From from@client.test Sun Mar  5 09:08:07 2023\n"
+                        + "Subject: x\n\n>From me\n>>From you\n>>>From them\n"
+                        + "From\nfrom me\n > From not\nLast\n\n");
+
+        assertTrue(new String(Mbox.encode(new Envelope(Instant.now(), null,
+                "", List.of("a@b"), new byte[0])), StandardCharsets.UTF_8)
+                .startsWith("From MAILER-DAEMON "));
+    }
+
+
+    @Test
+    public void testKeys() throws IOException
+    {
+        Path root = Files.createTempDirectory("mbox");
+
+        try (Mbox byRecipient = new Mbox(root, Mbox.Key.RECIPIENT, 8, true);
+                Mbox byDomain = new Mbox(root.resolve("domains"),
+                        Mbox.Key.DOMAIN, 8, false))
+        {
+            Envelope envelope = envelope("Body", "One@X.test", "two@x.test",
+                    "one@x.test", "three@y.test");
+            byRecipient.deliver(envelope);
+            byDomain.deliver(envelope);
+
+            assertEquals(byRecipient.getAppended(), 3);
+            assertEquals(messages(byRecipient.getFile("one@x.test")), 1);
+            assertEquals(messages(root.resolve("two@x.test.mbox")), 1);
+            assertEquals(byDomain.getAppended(), 2);
+            assertEquals(byDomain.getFile("a@x.test"),
+                    root.resolve("domains").resolve("x.test.mbox"));
+            assertEquals(messages(byDomain.getFile("a@x.test")), 1);
+            assertEquals(messages(byDomain.getFile("a@y.test")), 1);
+        }
+    }
+
+
+    @Test
+    public void testConcurrent() throws Exception
+    {
+        int sessions = 16, each = 200, files = 5;
+        Path root = Files.createTempDirectory("mbox");
+        ExecutorService executor = Executors.newFixedThreadPool(sessions);
+        List<Future<?>> futures = new ArrayList<>();
+
+        try (Mbox mbox = new Mbox(root, Mbox.Key.RECIPIENT, 2, false))
+        {
+            for (int s = 0; s < sessions; s++)
+            {
+                int session = s;
+                futures.add(executor.submit(() ->
+                {
+                    for (int i = 0; i < each; i++)
+                    {
+                        mbox.deliver(envelope("Session " + session + " " + i,
+                                "to" + (i % files) + "@mbox.test"));
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures)
+            {
+                future.get();
+            }
+
+            assertEquals(mbox.getDelivered(), sessions * each);
+            assertTrue(mbox.getBatches() <= sessions * each);
+            assertTrue(mbox.getOpen() <= 2, "Capped");
+            assertTrue(mbox.getOpened() > files, "Closed and reopened");
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+
+        for (int f = 0; f < files; f++)
+        {
+            Path file = root.resolve("to" + f + "@mbox.test.mbox");
+            assertEquals(messages(file), sessions * each / files);
+
+            List<String> lines = Files.readAllLines(file);
+            for (int i = 0; i < lines.size(); i += 3)
+            // Whole messages, not interleaved
+            {
+                assertTrue(lines.get(i).startsWith("From "), lines.get(i));
+                assertTrue(lines.get(i + 1).startsWith("Session "));
+                assertEquals(lines.get(i + 2), "");
+            }
+        }
+    }
+
+
+    @Test
+    public void testUndone() throws IOException
+    {
+        Path root = Files.createTempDirectory("mbox");
+        Path bad = Files.createDirectory(root.resolve("bad@mbox.test.mbox"));
+
+        try (Mbox mbox = new Mbox(root, Mbox.Key.RECIPIENT, 4, true))
+        {
+            mbox.deliver(envelope("Before", "good@mbox.test"));
+            byte[] before = Files.readAllBytes(mbox.getFile("good@mbox.test"));
+
+            try
+            {
+                mbox.deliver(envelope("Both", "good@mbox.test",
+                        "bad@mbox.test"));
+                fail("Expected IOException");
+            }
+            catch (IOException e)
+            {
+                // Expected
+            }
+
+            assertEquals(Files.readAllBytes(mbox.getFile("good@mbox.test")),
+                    before, "Taken out of the file it reached");
+            assertEquals(mbox.getUndone(), 1);
+            assertEquals(mbox.getDelivered(), 1);
+
+            Files.delete(bad);
+            mbox.deliver(envelope("Both", "good@mbox.test", "bad@mbox.test"));
+
+            assertEquals(messages(mbox.getFile("good@mbox.test")), 2,
+                    "No duplicate on retry");
+            assertEquals(messages(mbox.getFile("bad@mbox.test")), 1);
+        }
+    }
+
+
+    @Test
+    public void testUndoneConcurrent() throws Exception
+    {
+        int sessions = 8, each = 100;
+        Path root = Files.createTempDirectory("mbox");
+        Files.createDirectory(root.resolve("bad@mbox.test.mbox"));
+        ExecutorService executor = Executors.newFixedThreadPool(sessions);
+        List<Future<Integer>> futures = new ArrayList<>();
+        long duplicated;
+
+        try (Mbox mbox = new Mbox(root, Mbox.Key.RECIPIENT, 4, false))
+        {
+            for (int s = 0; s < sessions; s++)
+            {
+                int session = s;
+                futures.add(executor.submit(() ->
+                {
+                    int failed = 0;
+                    for (int i = 0; i < each; i++)
+                    {
+                        try
+                        {
+                            if (i % 2 == 0)
+                                mbox.deliver(envelope("Session " + session
+                                        + " " + i, "good@mbox.test"));
+                            else
+                                mbox.deliver(envelope("Failed " + session
+                                        + " " + i, "good@mbox.test",
+                                        "bad@mbox.test"));
+                        }
+                        catch (IOException e)
+                        {
+                            failed++;
+                        }
+                    }
+                    return failed;
+                }));
+            }
+            int failed = 0;
+            for (Future<Integer> future : futures)
+            {
+                failed += future.get();
+            }
+
+            assertEquals(failed, sessions * each / 2);
+            assertEquals(mbox.getDelivered(), sessions * each / 2);
+            assertEquals(mbox.getUndone() + mbox.getDuplicated(), failed);
+            duplicated = mbox.getDuplicated();
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+
+        List<String> lines = Files.readAllLines(root.resolve(
+                "good@mbox.test.mbox"));
+        assertEquals(lines.size(), (sessions * each / 2 + duplicated) * 3);
+        int delivered = 0;
+        for (int i = 0; i < lines.size(); i += 3)
+        // Every message whole, only the duplicates of failed ones
+        {
+            assertTrue(lines.get(i).startsWith("From "), lines.get(i));
+            assertTrue(lines.get(i + 1).startsWith("Session ")
+                    || lines.get(i + 1).startsWith("Failed "),
+                    lines.get(i + 1));
+            assertEquals(lines.get(i + 2), "");
+            if (lines.get(i + 1).startsWith("Session ")) delivered++;
+        }
+        assertEquals(delivered, sessions * each / 2);
+    }
+
+
+    @Test
+    public void testUndoneNotLast() throws IOException
+    {
+        Path root = Files.createTempDirectory("mbox");
+        Files.createDirectory(root.resolve("bad@mbox.test.mbox"));
+
+        try (Mbox mbox = new Mbox(root, Mbox.Key.RECIPIENT, 4, true))
+        {
+            mbox.deliver(envelope("Before", "good@mbox.test"));
+            mbox.setBeforeUndo(() ->
+            // Mail acknowledged after the failed message, part way through
+            {
+                mbox.setBeforeUndo(() -> {});
+                try
+                {
+                    mbox.deliver(envelope("After", "good@mbox.test"));
+                }
+                catch (IOException e)
+                {
+                    throw new UncheckedIOException(e);
+                }
+            });
+
+            try
+            {
+                mbox.deliver(envelope("Both", "good@mbox.test",
+                        "bad@mbox.test"));
+                fail("Expected IOException");
+            }
+            catch (IOException e)
+            {
+                // Expected
+            }
+
+            assertEquals(mbox.getUndone(), 0);
+            assertEquals(mbox.getDuplicated(), 1);
+            assertEquals(mbox.getDelivered(), 2);
+        }
+
+        List<String> lines = Files.readAllLines(root.resolve(
+                "good@mbox.test.mbox"));
+        assertEquals(lines.size(), 9, "Nothing acknowledged rewritten");
+        assertEquals(lines.get(1), "Before");
+        assertEquals(lines.get(4), "Both");
+        assertEquals(lines.get(7), "After");
+        for (int i = 0; i < lines.size(); i += 3)
+        {
+            assertTrue(lines.get(i).startsWith("From "), lines.get(i));
+            assertEquals(lines.get(i + 2), "");
+        }
+    }
+
+
+    @Test
+    public void testClosed() throws IOException
+    {
+        Mbox mbox = new Mbox(Files.createTempDirectory("mbox"),
+                Mbox.Key.RECIPIENT, 1, false);
+        mbox.deliver(envelope("Body", "a@mbox.test"));
+        mbox.close();
+
+        assertEquals(mbox.getOpen(), 0);
+        try
+        {
+            mbox.deliver(envelope("Body", "a@mbox.test"));
+            fail("Expected IOException");
+        }
+        catch (IOException e)
+        {
+            // Expected
+        }
+    }
+}
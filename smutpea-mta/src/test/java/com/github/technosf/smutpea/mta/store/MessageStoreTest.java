@@ -0,0 +1,281 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.mta.store;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.LockSupport;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.github.technosf.smutpea.mta.Envelope;
+import com.github.technosf.smutpea.mta.compress.Compression;
+
+public class MessageStoreTest
+{
+    private Path directory;
+
+
+    @BeforeMethod
+    public void beforeMethod() throws IOException
+    {
+        directory = Files.createTempDirectory("store");
+    }
+
+
+    private static Envelope envelope(int i)
+    {
+        return new Envelope(Instant.ofEpochMilli(1_700_000_000_000L + i),
+                i % 2 == 0 ? "client.test" : null, "from" + i + "@client.test",
+                List.of("to" + i + "@store.test", "cc@store.test"),
+                ("Subject: " + i + "\r\n\r\nBody é " + i + "\r\n")
+                        .getBytes(StandardCharsets.UTF_8));
+    }
+
+
+    private static void assertEnvelope(Envelope actual, int i)
+    {
+        Envelope expected = envelope(i);
+        assertEquals(actual.received(), expected.received());
+        assertEquals(actual.helo(), expected.helo());
+        assertEquals(actual.reversePath(), expected.reversePath());
+        assertEquals(actual.forwardPaths(), expected.forwardPaths());
+        assertEquals(actual.data(), expected.data());
+    }
+
+
+    private Path file(long base, String extension)
+    {
+        return directory.resolve(String.format("%020d", base) + extension);
+    }
+
+
+    @Test
+    public void testAppendRead() throws IOException
+    {
+        try (MessageStore store = new MessageStore(directory))
+        {
+            for (int i = 0; i < 10; i++)
+            {
+                assertEquals(store.append(envelope(i)), i);
+            }
+
+            for (int i = 0; i < 10; i++)
+            {
+                assertEnvelope(store.read(i), i);
+            }
+            assertNull(store.read(10));
+            assertEquals(store.getAppended(), 10);
+        }
+    }
+
+
+    @Test
+    public void testCompressed() throws IOException
+    {
+        byte[] big = ("Subject: Big\r\n\r\n"
+                + "All work and no play makes a dull message\r\n".repeat(5000))
+                .getBytes(StandardCharsets.US_ASCII);
+        Envelope envelope = new Envelope(Instant.now(), "client.test",
+                "from@client.test", List.of("to@store.test"), big);
+
+        try (MessageStore store = new MessageStore(directory))
+        {
+            store.append(envelope(0));
+        }
+
+        try (MessageStore store = new MessageStore(directory,
+                MessageStore.CONST_DEFAULT_SEGMENT, new Compression(6, 4096)))
+        {
+            store.append(envelope(1));
+            store.append(envelope);
+
+            assertTrue(Files.size(file(0, Segment.CONST_LOG)) < big.length / 10);
+            assertTrue(store.getCompression().getRatio() > 10);
+            assertEnvelope(store.read(0), 0);
+            assertEnvelope(store.read(1), 1);
+            assertEquals(store.read(2).data(), big);
+
+            assertEquals(store.read(2, 10_000, 100),
+                    Arrays.copyOfRange(big, 10_000, 10_100), "Across blocks");
+            assertEquals(store.read(2, big.length - 10, 100),
+                    Arrays.copyOfRange(big, big.length - 10, big.length));
+            assertEquals(store.read(0, 0, 12),
+                    "Subject: 0\r\n".getBytes(StandardCharsets.US_ASCII),
+                    "Uncompressed");
+            assertEquals(store.read(0, 1000, 10).length, 0);
+            assertNull(store.read(3, 0, 10));
+        }
+
+        try (MessageStore store = new MessageStore(directory))
+        {
+            assertEquals(store.read(2).data(), big, "Read without compression");
+        }
+    }
+
+
+    @Test
+    public void testRotateAndReopen() throws IOException
+    {
+        try (MessageStore store = new MessageStore(directory, 500))
+        {
+            for (int i = 0; i < 20; i++)
+            {
+                store.append(envelope(i));
+            }
+            assertTrue(store.getSegments() > 1);
+        }
+
+        try (MessageStore store = new MessageStore(directory, 500))
+        {
+            assertEquals(store.getFirstId(), 0);
+            assertEquals(store.getNextId(), 20);
+            for (int i = 0; i < 20; i++)
+            {
+                assertEnvelope(store.read(i), i);
+            }
+
+            assertEquals(store.append(envelope(20)), 20);
+            assertEnvelope(store.read(20), 20);
+        }
+    }
+
+
+    @Test
+    public void testTornTail() throws IOException
+    {
+        try (MessageStore store = new MessageStore(directory))
+        {
+            for (int i = 0; i < 5; i++)
+            {
+                store.append(envelope(i));
+            }
+        }
+
+        // A crash part way through a record
+        long size = Files.size(file(0, Segment.CONST_LOG));
+        try (MessageStore store = new MessageStore(directory))
+        {
+            store.append(envelope(5));
+        }
+        try (FileChannel log = FileChannel.open(file(0, Segment.CONST_LOG),
+                StandardOpenOption.WRITE))
+        {
+            log.truncate(size + 20);
+        }
+
+        try (MessageStore store = new MessageStore(directory))
+        {
+            assertEquals(store.getNextId(), 5);
+            assertEquals(Files.size(file(0, Segment.CONST_LOG)), size);
+            assertEquals(Files.size(file(0, Segment.CONST_INDEX)), 5 * 4);
+            assertNull(store.read(5));
+            assertEquals(store.append(envelope(5)), 5);
+            assertEnvelope(store.read(5), 5);
+        }
+    }
+
+
+    @Test
+    public void testIndexBehind() throws IOException
+    {
+        try (MessageStore store = new MessageStore(directory))
+        {
+            for (int i = 0; i < 8; i++)
+            {
+                store.append(envelope(i));
+            }
+        }
+
+        // The index lost its last entries and gained garbage
+        try (FileChannel index = FileChannel.open(
+                file(0, Segment.CONST_INDEX), StandardOpenOption.WRITE))
+        {
+            index.truncate(3 * 4);
+            index.write(ByteBuffer.wrap(new byte[] { 0, 0, 0, 0, 0, 1 }), 12);
+        }
+
+        try (MessageStore store = new MessageStore(directory))
+        {
+            assertEquals(store.getNextId(), 8);
+            assertEquals(Files.size(file(0, Segment.CONST_INDEX)), 8 * 4);
+            for (int i = 0; i < 8; i++)
+            {
+                assertEnvelope(store.read(i), i);
+            }
+        }
+    }
+
+
+    @Test
+    public void testGroupCommit() throws Exception
+    {
+        int threads = 8;
+        int each = 200;
+        Set<Long> ids = ConcurrentHashMap.newKeySet();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+        try (MessageStore store = new MessageStore(directory, 64 << 10))
+        {
+            store.setBeforeForce(() -> LockSupport.parkNanos(1_000_000));
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++)
+            {
+                futures.add(executor.submit(() ->
+                {
+                    for (int i = 0; i < each; i++)
+                    {
+                        ids.add(store.append(envelope(i)));
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures)
+            {
+                future.get();
+            }
+
+            assertEquals(ids.size(), threads * each);
+            assertEquals(store.getNextId(), threads * each);
+            assertTrue(store.getSyncs() < store.getAppended());
+            for (long id : ids)
+            {
+                assertEquals(store.read(id).forwardPaths().size(), 2);
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+}
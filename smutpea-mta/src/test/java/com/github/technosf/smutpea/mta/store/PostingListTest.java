@@ -0,0 +1,69 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.mta.store;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import org.testng.annotations.Test;
+
+public class PostingListTest
+{
+
+    @Test
+    public void testAddRemove()
+    {
+        PostingList list = new PostingList("term");
+
+        assertTrue(list.isEmpty());
+        assertEquals(list.toArray(), new long[0]);
+
+        list.add(3);
+        list.add(4);
+        list.add(200);
+        list.add(1L << 40);
+
+        assertEquals(list.size(), 4);
+        assertEquals(list.toArray(), new long[] { 3, 4, 200, 1L << 40 });
+        assertEquals(list.bytes(), 1 + 2 + 6);
+
+        list.removeFirst();
+        list.removeFirst();
+        assertEquals(list.toArray(), new long[] { 200, 1L << 40 });
+
+        list.removeFirst();
+        list.removeFirst();
+        assertTrue(list.isEmpty());
+
+        list.add(7);
+        assertEquals(list.toArray(), new long[] { 7 });
+    }
+
+
+    @Test
+    public void testSliding()
+    {
+        PostingList list = new PostingList("term");
+
+        for (long seq = 0; seq < 100_000; seq++)
+        {
+            list.add(seq);
+            if (seq >= 10) list.removeFirst();
+        }
+
+        assertEquals(list.size(), 10);
+        assertEquals(list.toArray()[0], 99_990);
+        assertTrue(list.bytes() == 9, "One byte a delta");
+    }
+}
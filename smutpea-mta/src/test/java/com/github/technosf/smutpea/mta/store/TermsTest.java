@@ -0,0 +1,83 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.mta.store;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.List;
+import java.util.Set;
+
+import org.testng.annotations.Test;
+
+import com.github.technosf.smutpea.mta.Envelope;
+
+public class TermsTest
+{
+
+    private static Set<String> terms(String data)
+    {
+        return Set.of(Terms.of(new Envelope(Instant.EPOCH, "client.test",
+                "From@Client.Test", List.of("one@a.test", "Two@B.test"),
+                data.getBytes(StandardCharsets.UTF_8))));
+    }
+
+
+    @Test
+    public void testEnvelope()
+    {
+        Set<String> terms = terms("");
+
+        assertEquals(terms, Set.of("from:from@client.test", "to:one@a.test",
+                "to:two@b.test", "domain:a.test", "domain:b.test"));
+    }
+
+
+    @Test
+    public void testHeaders()
+    {
+        Set<String> terms = terms("Subject: Your Invoice,\r\n no. 42.\r\n"
+                + "To: \"Bob\" <bob@a.test>\r\n"
+                + "Message-ID: <ID@host>\r\n"
+                + "X-Other: ignored\r\n\r\nBody\r\n");
+
+        assertTrue(terms.contains("subject:your"));
+        assertTrue(terms.contains("subject:invoice"));
+        assertTrue(terms.contains("subject:no"));
+        assertTrue(terms.contains("subject:42"));
+        assertTrue(terms.contains("to:bob"));
+        assertTrue(terms.contains("to:bob@a.test"));
+        assertTrue(terms.contains("message-id:<id@host>"));
+        assertTrue(terms.contains("body"));
+        assertFalse(terms.contains("x-other:ignored"));
+        assertFalse(terms.contains("ignored"));
+    }
+
+
+    @Test
+    public void testBody()
+    {
+        Set<String> terms = terms("Not a: header line\r\nCafé x 2023,ok\r\n");
+
+        assertTrue(terms.contains("not"));
+        assertTrue(terms.contains("header"));
+        assertTrue(terms.contains("café"));
+        assertTrue(terms.contains("2023"));
+        assertTrue(terms.contains("ok"));
+        assertFalse(terms.contains("x"), "Too short");
+    }
+}
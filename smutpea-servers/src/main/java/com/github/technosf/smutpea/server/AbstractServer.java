@@ -16,6 +16,7 @@ package com.github.technosf.smutpea.server;
 import static java.util.Objects.requireNonNull;
 
 import java.io.BufferedReader;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -27,6 +28,8 @@ import org.slf4j.LoggerFactory;
 
 import com.github.technosf.smutpea.core.MTA;
 import com.github.technosf.smutpea.core.exceptions.MTAException;
+import com.github.technosf.smutpea.core.jfr.SessionCloseEvent;
+import com.github.technosf.smutpea.core.jfr.SessionOpenEvent;
 import com.github.technosf.smutpea.server.transcripts.Transcript;
 
 /**
@@ -34,6 +37,9 @@ import com.github.technosf.smutpea.server.transcripts.Transcript;
  * <p>
  * Basic server that will place an MTA on the given input/output stream for one
  * transmission cycle.
+ * <p>
+ * The MTA is closed however the cycle ends, by QUIT, timeout, the client
+ * going away or an error, so it can abandon any transaction in progress.
  * 
  * @author technosf
  * @since 0.0.1
@@ -48,10 +54,6 @@ public abstract class AbstractServer
     /*
      * Constants
      */
-    private static final String CONST_MSG_CLIENT_DIALOGUE =
-            "Dialogue <{}#{}> Client => MTA:[{}]";
-    private static final String CONST_MSG_MTA_DIALOGUE =
-            "Dialogue <{}#{}> MTA => Client:[{}]";
     private static final String CONST_ERR_MTA_NULL = "MTA cannot be null";
     private static final String CONST_ERR_IO_CLOSED =
             "Client closed connection";
@@ -62,8 +64,6 @@ public abstract class AbstractServer
     private static final String CONST_ERR_CLOSE =
             "Error closing resources";
 
-    private static final String CONST_ZPAD = "%04d";
-
     private static final long CONST_WAIT_SLEEP = 250;
 
 
@@ -113,9 +113,11 @@ public abstract class AbstractServer
     public void open()
     {
         // Initialize identifeirs
-        int interaction = 0;
         long uniquer = ProcessHandle.current().pid() 
                 + System.nanoTime();
+        DialogueLog dialogue = DialogueLog.open(uniquer);
+        SessionCloseEvent closeEvent = new SessionCloseEvent();
+        closeEvent.begin();
 
         // Initialize and use the MTA, mta output and transcript         
         try (
@@ -125,6 +127,8 @@ public abstract class AbstractServer
         ) 
         // try-with-resources
         {
+            sessionOpened(uniquer, mta, closeEvent);
+
             try
             // Flush detrius from the input stream at the last moment.
             {
@@ -143,8 +147,7 @@ public abstract class AbstractServer
                     * Test the MTA, connect to it and present the initial response
                     */
                     requireNonNull(mta).connect();
-                    logger.info(CONST_MSG_MTA_DIALOGUE, uniquer,
-                            String.format(CONST_ZPAD, interaction++), mta.getResponse());
+                    dialogue.server(mta.getResponse());
                     output.println(mta.getResponse());
                     transcript.server(mta.getResponse());
                 }
@@ -157,19 +160,19 @@ public abstract class AbstractServer
                 // String line = null;
                 // String response = null;
 
-                while (!mta.isClosed()) 
+                while (mta != null && !mta.isClosed()) 
                 {
                     try
                     // Read and respond to a line of input
                     {
-                        interaction = processStanza(interaction, uniquer, mta, transcript, output, input);
+                        processStanza(dialogue, mta, transcript, output, input);
                     } // Read a line of input
                     /*
                     * The Server is likely to be using straight IO or Socket IO,
                     * so just deal with it in the abstract class to deal with most 
                     * cases we are going to hit.
                     */
-                    catch (SocketException e)
+                    catch (SocketException | EOFException e)
                     {
                         logger.warn(CONST_ERR_IO_CLOSED);
                         break;
@@ -191,26 +194,60 @@ public abstract class AbstractServer
             logger.error(CONST_ERR_CLOSE, e);
         }
 
+        dialogue.close();
         cleanup();
 
+        if (closeEvent.shouldCommit())
+        {
+            closeEvent.lines = dialogue.getInteractions();
+            closeEvent.commit();
+        }
+
     } // public void serve(MTA mta)
 
 
+    /**
+     * Emits the JFR session open event and identifies the session on the
+     * close event, if JFR is recording them
+     * 
+     * @param uniquer the session identifier
+     * @param mta the MTA
+     * @param closeEvent the session close event
+     */
+    private void sessionOpened(long uniquer, MTA mta, SessionCloseEvent closeEvent)
+    {
+        SessionOpenEvent openEvent = new SessionOpenEvent();
+
+        if (openEvent.isEnabled())
+        {
+            openEvent.session = uniquer;
+            openEvent.server = getServerId();
+            openEvent.mta = mta == null ? null : mta.getMTAName();
+            openEvent.commit();
+        }
+
+        if (closeEvent.isEnabled())
+        {
+            closeEvent.session = uniquer;
+            closeEvent.server = getServerId();
+            closeEvent.mta = mta == null ? null : mta.getMTAName();
+        }
+    }
+
+
     /**
      * Process a stanza of Client-Server communication 
      * <p>
      * Broken out from {@code open} for readability
      * 
-     * @param interaction the interaction number
-     * @param uniquer the uniquer
+     * @param dialogue the dialogue log
      * @param mta the MTA
      * @param transcript the transscript
      * @param output the output stream
      * @param input the input stream
-     * @return the new interaction #
      * @throws IOException 
      */
-    private int processStanza(int interaction, long uniquer, MTA mta, Transcript transcript, PrintStream output,
+    private void processStanza(DialogueLog dialogue, MTA mta, Transcript transcript, PrintStream output,
             BufferedReader input) 
         throws Exception 
     {
@@ -221,18 +258,25 @@ public abstract class AbstractServer
         // There was input from the client
         {
             mta.resetClientIdle();      // reset the idle
-            line = input.readLine();
+            if ((line = input.readLine()) == null)
+            // End of the stream, the client has gone
+            {
+                throw new EOFException(CONST_ERR_IO_CLOSED);
+            }
+
+            dialogue.client(line);
+            long nanos = System.nanoTime();     // time to reply
 
             try
             // Process the input line
             {
-                logger.info(CONST_MSG_CLIENT_DIALOGUE, uniquer,
-                        String.format(CONST_ZPAD, interaction++), line);
                 mta.processInputLine(line);                        
+                nanos = System.nanoTime() - nanos;
                 transcript.client(line);
             }
             catch (MTAException e)
             {
+                nanos = System.nanoTime() - nanos;
                 logger.info(CONST_ERR_MTA_PROCESSING, line, e.getMessage());
                 transcript.client(line);
             }
@@ -242,14 +286,12 @@ public abstract class AbstractServer
             // There is output
             {
                 // Print out the response
-                logger.info(CONST_MSG_MTA_DIALOGUE, uniquer,
-                        String.format(CONST_ZPAD, interaction++),
-                        response);
+                dialogue.server(response);
                 output.println(response);
-                transcript.server(response);
+                transcript.server(response, nanos);
             }
 
-            return interaction;
+            return;
 
         } //if (input.ready())
 
@@ -270,9 +312,7 @@ public abstract class AbstractServer
              * Log output to client and transcript
             */
             {
-                logger.info(CONST_MSG_MTA_DIALOGUE, uniquer,
-                        String.format(CONST_ZPAD, interaction++),
-                        response);
+                dialogue.server(response);
 
                 output.println(response);
 
@@ -285,8 +325,6 @@ public abstract class AbstractServer
             // NOOP
         }
 
-        return interaction;
-
-    } //private int session
+    } //private void processStanza
 }
 
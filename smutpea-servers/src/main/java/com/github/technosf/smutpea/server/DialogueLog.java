@@ -0,0 +1,504 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@code DialogueLog}
+ * <p>
+ * Logs the client-server dialogue of one session with as little overhead on
+ * the connection thread as possible. Nothing is formatted unless the line is
+ * actually going to be logged.
+ * <p>
+ * The mode is set with the <em>dialogueLog</em> System property:
+ * <ul>
+ * <li><em>sync</em> (default) logs each line at INFO on the connection
+ * thread
+ * <li><em>async</em> records each line into a shared, preallocated ring that
+ * is drained and logged by a daemon thread. Lines are dropped, and counted,
+ * when the ring is full
+ * <li><em>off</em> logs nothing
+ * </ul>
+ * Each session can be rate limited to <em>dialogueLogRate</em> lines per
+ * second; lines over the rate are counted and reported rather than logged.
+ * The async ring size is set with <em>dialogueLogRing</em>, and a shutdown
+ * hook waits up to <em>dialogueLogShutdown</em> milliseconds for the ring to
+ * be drained.
+ *
+ * @author technosf
+ * @since 0.0.6
+ * @version 0.0.6
+ */
+public final class DialogueLog
+{
+    private static final Logger logger = LoggerFactory
+            .getLogger(DialogueLog.class);
+
+    /*
+     * Constants
+     */
+    private static final String CONST_MSG_CLIENT_DIALOGUE =
+            "Dialogue <{}#{}> Client => MTA:[{}]";
+    private static final String CONST_MSG_MTA_DIALOGUE =
+            "Dialogue <{}#{}> MTA => Client:[{}]";
+    private static final String CONST_MSG_SUPPRESSED =
+            "Dialogue <{}> rate limited, {} lines not logged";
+    private static final String CONST_MSG_DROPPED =
+            "Dialogue log ring full, {} lines dropped";
+
+    private static final String CONST_MODE_KEY = "dialogueLog";
+    private static final String CONST_RATE_KEY = "dialogueLogRate";
+    private static final String CONST_RING_KEY = "dialogueLogRing";
+    private static final String CONST_SHUTDOWN_KEY = "dialogueLogShutdown";
+    private static final String CONST_THREAD_NAME = "SMuTPea dialogue log";
+    private static final String CONST_HOOK_NAME =
+            "SMuTPea dialogue log shutdown";
+
+    private static final String CONST_ZPAD = "%04d";
+
+    private static final int CONST_DEFAULT_RING = 8192;
+    private static final long CONST_DEFAULT_SHUTDOWN = 1000;
+
+    /**
+     * Dialogue logging mode
+     */
+    public enum Mode
+    {
+        OFF, SYNC, ASYNC;
+
+        /**
+         * Determine the Mode for the given string, defaulting to {@code SYNC}
+         *
+         * @param mode
+         *            the mode name
+         * @return the Mode
+         */
+        public static Mode determine(String mode)
+        {
+            if (mode == null) return SYNC;
+
+            try
+            {
+                return valueOf(mode.strip().toUpperCase());
+            }
+            catch (IllegalArgumentException e)
+            {
+                return SYNC;
+            }
+        }
+    }
+
+    /*
+     * Session state
+     */
+    private final long uniquer;
+    private final Mode mode;
+    private final long nanosPerLine;
+    private final long burstNanos;
+
+    private int interaction = 0;
+    private long allowance;
+    private long suppressed = 0;
+
+
+    /**
+     * Opens a dialogue log for a session configured from the System
+     * properties
+     *
+     * @param uniquer
+     *            the session identifier
+     * @return the dialogue log
+     */
+    public static DialogueLog open(final long uniquer)
+    {
+        return open(uniquer, Mode.determine(System.getProperty(CONST_MODE_KEY)),
+                Integer.getInteger(CONST_RATE_KEY, 0));
+    }
+
+
+    /**
+     * Opens a dialogue log for a session
+     *
+     * @param uniquer
+     *            the session identifier
+     * @param mode
+     *            the logging mode
+     * @param linesPerSecond
+     *            the rate limit, zero or less for unlimited
+     * @return the dialogue log
+     */
+    public static DialogueLog open(final long uniquer, final Mode mode,
+            final int linesPerSecond)
+    {
+        return new DialogueLog(uniquer, mode, linesPerSecond);
+    }
+
+
+    /**
+     * Constructor
+     *
+     * @param uniquer
+     *            the session identifier
+     * @param mode
+     *            the logging mode
+     * @param linesPerSecond
+     *            the rate limit, zero or less for unlimited
+     */
+    private DialogueLog(final long uniquer, final Mode mode,
+            final int linesPerSecond)
+    {
+        this.uniquer = uniquer;
+        this.mode = (mode == Mode.OFF || !logger.isInfoEnabled()) ? Mode.OFF
+                : mode;
+        this.nanosPerLine = linesPerSecond > 0
+                ? TimeUnit.SECONDS.toNanos(1) / linesPerSecond
+                : 0;
+        // Allow a burst of one second's worth of lines
+        this.burstNanos = TimeUnit.SECONDS.toNanos(1);
+        this.allowance = System.nanoTime() - burstNanos;
+    }
+
+
+    /**
+     * Log what the client said
+     *
+     * @param line
+     *            the client line
+     */
+    public void client(final String line)
+    {
+        log(true, line);
+    }
+
+
+    /**
+     * Log what the server said
+     *
+     * @param line
+     *            the server line
+     */
+    public void server(final String line)
+    {
+        log(false, line);
+    }
+
+
+    /**
+     * Returns the number of lines this session has seen
+     *
+     * @return the number of lines
+     */
+    public int getInteractions()
+    {
+        return interaction;
+    }
+
+
+    /**
+     * Reports any lines that were not logged due to rate limiting
+     */
+    public void close()
+    {
+        if (suppressed > 0)
+        {
+            logger.info(CONST_MSG_SUPPRESSED, uniquer, suppressed);
+            suppressed = 0;
+        }
+    }
+
+
+    /**
+     * Log a line of dialogue
+     *
+     * @param client
+     *            true if the client said it
+     * @param line
+     *            the line
+     */
+    private void log(final boolean client, final String line)
+    {
+        int number = interaction++;
+
+        if (mode == Mode.OFF || !permit()) return;
+
+        if (mode == Mode.SYNC)
+        {
+            logger.info(client ? CONST_MSG_CLIENT_DIALOGUE
+                    : CONST_MSG_MTA_DIALOGUE, uniquer,
+                    String.format(CONST_ZPAD, number), line);
+        }
+        else
+        {
+            Ring.INSTANCE.publish(uniquer, number, client, line);
+        }
+    }
+
+
+    /**
+     * Token bucket rate limiter, measured in nanoseconds of allowance
+     *
+     * @return true if the line can be logged
+     */
+    private boolean permit()
+    {
+        return nanosPerLine == 0 || permit(System.nanoTime());
+    }
+
+
+    /**
+     * Token bucket rate limiter at a given time
+     *
+     * @param now
+     *            the time, in {@code System.nanoTime()} nanoseconds
+     * @return true if the line can be logged
+     */
+    boolean permit(long now)
+    {
+        if (nanosPerLine == 0) return true;
+
+        if (now - allowance > burstNanos)
+        // Refill no more than the burst
+        {
+            allowance = now - burstNanos;
+        }
+
+        if (now - allowance < nanosPerLine)
+        // No allowance left
+        {
+            suppressed++;
+            return false;
+        }
+
+        allowance += nanosPerLine;
+
+        if (suppressed > 0)
+        // Allowance has returned - report what was missed
+        {
+            logger.info(CONST_MSG_SUPPRESSED, uniquer, suppressed);
+            suppressed = 0;
+        }
+
+        return true;
+    }
+
+
+    /**
+     * Returns the number of lines rate limited since last reported
+     *
+     * @return the number of lines
+     */
+    long getSuppressed()
+    {
+        return suppressed;
+    }
+
+
+    /**
+     * Returns the number of lines dropped because the async ring was full
+     *
+     * @return the number of dropped lines
+     */
+    public static long getDropped()
+    {
+        return Ring.INSTANCE.getDropped();
+    }
+
+
+    /**
+     * Preallocated multi-producer, single-consumer ring of dialogue events,
+     * drained by a daemon thread.
+     * <p>
+     * Producers claim a slot with a CAS on the head sequence, fill it and
+     * publish it by setting the slot sequence. Nothing is allocated per event.
+     */
+    static final class Ring
+            implements Runnable
+    {
+        static final Ring INSTANCE = new Ring(
+                Integer.getInteger(CONST_RING_KEY, CONST_DEFAULT_RING), true);
+
+        static
+        // Drain on shutdown
+        {
+            long timeout = Long.getLong(CONST_SHUTDOWN_KEY,
+                    CONST_DEFAULT_SHUTDOWN);
+            Runtime.getRuntime().addShutdownHook(new Thread(
+                    () -> INSTANCE.drain(timeout), CONST_HOOK_NAME));
+        }
+
+        private static final long CONST_PARK_NANOS =
+                TimeUnit.MILLISECONDS.toNanos(1);
+
+        /**
+         * A ring slot
+         */
+        private static final class Slot
+        {
+            volatile long sequence = -1;
+            long uniquer;
+            int interaction;
+            boolean client;
+            String line;
+        }
+
+        private final Slot[] slots;
+        private final int mask;
+        private final AtomicLong head = new AtomicLong();
+        private volatile long tail = 0;
+        private final LongAdder dropped = new LongAdder();
+        private long reported = 0;
+
+
+        /**
+         * Constructor
+         *
+         * @param size
+         *            the requested ring size, rounded up to a power of two
+         * @param start
+         *            true to start the draining thread
+         */
+        Ring(int size, boolean start)
+        {
+            int capacity = Integer.highestOneBit(Math.max(2, size - 1)) << 1;
+            slots = new Slot[capacity];
+            for (int i = 0; i < capacity; i++)
+            {
+                slots[i] = new Slot();
+            }
+            mask = capacity - 1;
+
+            if (start)
+            {
+                Thread drainer = new Thread(this, CONST_THREAD_NAME);
+                drainer.setDaemon(true);
+                drainer.start();
+            }
+        }
+
+
+        /**
+         * Returns the number of events dropped because the ring was full
+         *
+         * @return the count
+         */
+        long getDropped()
+        {
+            return dropped.sum();
+        }
+
+
+        /**
+         * Waits for every published event to be logged
+         *
+         * @param timeoutMillis
+         *            the longest to wait
+         * @return true if the ring is empty
+         */
+        boolean drain(long timeoutMillis)
+        {
+            long deadline = System.nanoTime()
+                    + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+
+            while (tail < head.get())
+            {
+                if (System.nanoTime() - deadline >= 0) return false;
+                LockSupport.parkNanos(CONST_PARK_NANOS);
+            }
+
+            return true;
+        }
+
+
+        /**
+         * Publish an event into the ring, dropping it if the ring is full
+         */
+        void publish(long uniquer, int interaction, boolean client,
+                String line)
+        {
+            long sequence;
+
+            do
+            {
+                sequence = head.get();
+
+                if (sequence - tail >= slots.length)
+                // Ring is full
+                {
+                    dropped.increment();
+                    return;
+                }
+            }
+            while (!head.compareAndSet(sequence, sequence + 1));
+
+            Slot slot = slots[(int) sequence & mask];
+            slot.uniquer = uniquer;
+            slot.interaction = interaction;
+            slot.client = client;
+            slot.line = line;
+            slot.sequence = sequence; // publish
+        }
+
+
+        /**
+         * Drain the ring
+         */
+        @Override
+        public void run()
+        {
+            long next = 0;
+
+            while (true)
+            {
+                Slot slot = slots[(int) next & mask];
+
+                if (slot.sequence != next)
+                // Nothing published yet
+                {
+                    reportDropped();
+                    LockSupport.parkNanos(CONST_PARK_NANOS);
+                    continue;
+                }
+
+                logger.info(slot.client ? CONST_MSG_CLIENT_DIALOGUE
+                        : CONST_MSG_MTA_DIALOGUE, slot.uniquer,
+                        String.format(CONST_ZPAD, slot.interaction),
+                        slot.line);
+                slot.line = null;
+                tail = ++next;
+            }
+        }
+
+
+        /**
+         * Log any new drops
+         */
+        private void reportDropped()
+        {
+            long total = dropped.sum();
+
+            if (total > reported)
+            {
+                logger.warn(CONST_MSG_DROPPED, total - reported);
+                reported = total;
+            }
+        }
+    }
+}
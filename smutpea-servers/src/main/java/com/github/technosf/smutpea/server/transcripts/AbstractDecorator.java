@@ -13,16 +13,12 @@
 
 package com.github.technosf.smutpea.server.transcripts;
 
-import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.PrintWriter;
 import java.net.URI;
-import java.net.http.HttpClient;
-import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.time.Clock;
-import java.util.LinkedList;
+import java.util.concurrent.CompletableFuture;
 
 
 import com.github.technosf.smutpea.server.transcripts.Transcript.Decorator;
@@ -47,6 +43,7 @@ implements Decorator
 
 
      private static final String CONST_ERROR_FLUSH = "Exception flushing Transcript";
+     private static final String CONST_ERROR_APPEND = "Exception appending Transcript to {}";
 
 
     // Reference UTC Clock for dialogue log timing 
@@ -61,6 +58,13 @@ implements Decorator
     private final Destination destination;
     private final String location;
 
+    /*
+     * Server time to reply over the session
+     */
+    private int timed = 0;
+    private long serverNanos = 0;
+    private long maxServerNanos = 0;
+
 
     /**
      * 
@@ -75,12 +79,65 @@ implements Decorator
 
 
     /**
-     * @see 
+     * @see com.github.technosf.smutpea.server.transcripts.Transcript.Decorator#write(Entry[], int)
+     */
+    @Override
+    public final void write(Entry[] entries, int count)
+    {
+        for (int i = 0; i < count; i++)
+        {
+            Entry entry = entries[i];
+            if (entry.isTimed())
+            {
+                timed++;
+                serverNanos += entry.nanos();
+                maxServerNanos = Math.max(maxServerNanos, entry.nanos());
+            }
+            process(entry);
+        }
+    } // write
+
+
+    /**
+     * Returns the number of timed replies written so far
+     * 
+     * @return the number of timed replies
+     */
+    int getTimed()
+    {
+        return timed;
+    }
+
+
+    /**
+     * Returns the total time the server took to reply, in nanoseconds
+     * 
+     * @return the total server time
+     */
+    long getServerNanos()
+    {
+        return serverNanos;
+    }
+
+
+    /**
+     * Returns the longest time the server took to reply, in nanoseconds
+     * 
+     * @return the maximum server time
+     */
+    long getMaxServerNanos()
+    {
+        return maxServerNanos;
+    }
+
+
+    /**
+     * @see com.github.technosf.smutpea.server.transcripts.Transcript.Decorator#flush()
      */
     @Override
-    public final void flush(LinkedList<Entry> stanzas) 
+    public final void flush() 
     {
-        process(stanzas);
+        finish();
         
         try {
             switch (destination)
@@ -104,11 +161,17 @@ implements Decorator
 
 
     /**
-     * Process the SMTP client-server stanzas 
+     * Process the next SMTP client-server stanza 
      * 
-     * @param stanzas
+     * @param stanza
+     */
+    abstract void process(Entry stanza);
+
+
+    /**
+     * Complete the dialogue once all stanzas are processed
      */
-    abstract void process(LinkedList<Entry> stanzas);
+    abstract void finish();
 
 
     /**
@@ -119,41 +182,74 @@ implements Decorator
     abstract String getDialogue();
 
 
+    /**
+     * Returns the SMTP client-server dialogue encoded as UTF-8
+     * 
+     * @return the dialogue bytes
+     */
+    byte[] getDialogueBytes()
+    {
+        return getDialogue().getBytes(StandardCharsets.UTF_8);
+    }
+
+
     //-------------------------------------------------------------
 
     /**
-     * Post dialogue to a HTTP URI
-     * 
-     * @throws InterruptedException
-     * @throws IOException
+     * Queue the dialogue to be posted to a HTTP URI by the shared shipper
      * 
      */
-    final void post() throws IOException, InterruptedException 
+    final void post() 
     {
         if ( Destination.HTTP != destination) return;
 
-        HttpClient client = HttpClient.newHttpClient();
-        HttpRequest request = HttpRequest.newBuilder()
-            .uri(URI.create(location))
-            .POST(HttpRequest.BodyPublishers.ofString(getDialogue()))
-            .build();
-            client.send(request, HttpResponse.BodyHandlers.discarding());
+        HttpShipper.get().ship(URI.create(location), getContentType(),
+                getSeparator(), getDialogueBytes());
     }
 
 
     /**
-     * Append dialogue to a file
+     * Returns the HTTP content type of the dialogue
      * 
-     * @throws IOException
+     * @return the content type
+     */
+    abstract String getContentType();
+
+
+    /**
+     * Returns the separator between dialogues posted together
+     * 
+     * @return the separator
+     */
+    abstract String getSeparator();
+
+
+    /**
+     * Queue the dialogue to be appended to a file through its shared sink,
+     * without waiting for the write, so the flusher feeds the sink's group
+     * commit rather than waiting on each one
      * 
      */
-    final void append() throws IOException 
+    final void append() 
     {
         if ( Destination.FILE != destination) return;
 
-        FileWriter file = new FileWriter(new File(URI.create(location)),true);
-        file.write(getDialogue());
-        file.flush();
+        appendTo(FileSink.get(Path.of(URI.create(location))))
+                .whenComplete((written, e) -> {
+                    if (e != null) logger.warn(CONST_ERROR_APPEND, location, e);
+                });
+    }
+
+
+    /**
+     * Queue the dialogue to be written to a file sink
+     * 
+     * @param sink the sink
+     * @return completes when the dialogue is written
+     */
+    CompletableFuture<Void> appendTo(FileSink sink)
+    {
+        return sink.append(getDialogueBytes());
     }
 
     /**
@@ -166,9 +262,8 @@ implements Decorator
     {
         if ( Destination.OUT != destination) return;
 
-        PrintWriter printer = new PrintWriter(System.out, true);
-        printer.write(getDialogue());
-        printer.flush();
+        System.out.write(getDialogueBytes());
+        System.out.flush();
     }
 
 }
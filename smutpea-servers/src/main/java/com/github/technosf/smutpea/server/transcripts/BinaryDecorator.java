@@ -0,0 +1,164 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.server.transcripts;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import com.github.technosf.smutpea.server.transcripts.Transcript.Entry;
+
+/**
+ * {@code BinaryDecorator}
+ * <p>
+ * Writes transcripts in the compact binary format of {@code BinaryEncoder}.
+ * <p>
+ * Transcripts appended to a file are encoded by the file's writer, in file
+ * order, against a dictionary of everything already in the file segment, so
+ * the greeting, domains and addresses a busy sink sees over and over are
+ * written once a segment. Entries are held until the flush for this; the
+ * {@code Transcript} limits bound how many. Transcripts printed or posted
+ * are self-contained records.
+ * <p>
+ * Records are read by {@code BinaryReader} and converted to Plain or JSON by
+ * {@code TranscriptConverter}.
+ *
+ * @author technosf
+ * @since 0.0.6
+ * @version 0.0.6
+ */
+public class BinaryDecorator
+        extends AbstractDecorator
+{
+    /*
+     * Working storage
+     */
+    private final Instant timestamp;
+    private final String mtaName;
+    private final String agentId;
+    private final String ephemeralId;
+
+    private final List<Entry> entries = new ArrayList<>();
+    private byte[] encoded;
+
+
+    /**
+     * 
+     * @param mtaName
+     * @param agentId
+     * @param ephemeralId
+     * @param location
+     */
+    BinaryDecorator(String mtaName, String agentId, String ephemeralId,
+            String location)
+    {
+        super(location);
+
+        this.timestamp = clock.instant();
+        this.mtaName = mtaName;
+        this.agentId = agentId;
+        this.ephemeralId = ephemeralId;
+    } // BinaryDecorator
+
+
+    @Override
+    void process(Entry stanza)
+    {
+        entries.add(stanza);
+    }
+
+
+    @Override
+    void finish()
+    {
+        // Encoded when written
+    }
+
+
+    /**
+     * Returns the dialogue rendered as plain text
+     */
+    @Override
+    String getDialogue()
+    {
+        try (BinaryReader reader = new BinaryReader(
+                new ByteArrayInputStream(getDialogueBytes())))
+        {
+            return new String(TranscriptConverter.convert(reader.read(),
+                    TranscriptConverter.Format.PLAIN),
+                    StandardCharsets.UTF_8);
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+
+    /**
+     * Returns the transcript as a self-contained record
+     */
+    @Override
+    byte[] getDialogueBytes()
+    {
+        if (encoded == null)
+        {
+            encoded = new BinaryEncoder().encode(timestamp, mtaName, agentId,
+                    ephemeralId, entries);
+        }
+        return encoded;
+    }
+
+
+    /**
+     * Encodes the transcript with the dictionary of the file segment it is
+     * written to
+     */
+    @Override
+    CompletableFuture<Void> appendTo(FileSink sink)
+    {
+        return sink.append(segment -> segment
+                .attachment(BinaryEncoder.class, BinaryEncoder::new)
+                .encode(timestamp, mtaName, agentId, ephemeralId, entries));
+    }
+
+
+    @Override
+    String getContentType()
+    {
+        return "application/octet-stream";
+    }
+
+
+    /**
+     * Records are self-delimiting
+     */
+    @Override
+    String getSeparator()
+    {
+        return "";
+    }
+
+
+    @Override
+    public String getName()
+    {
+        return "Binary";
+    }
+}
@@ -0,0 +1,377 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.server.transcripts;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.github.technosf.smutpea.core.rfc.ReplyCode;
+import com.github.technosf.smutpea.server.transcripts.Transcript.Entry;
+
+/**
+ * {@code BinaryEncoder}
+ * <p>
+ * Encodes transcript records in the compact binary format, within one
+ * dictionary scope: a file segment, or a single record shipped on its own.
+ * <p>
+ * Transcripts are mostly the same few replies, verbs, domains and addresses,
+ * so each line is written as one of:
+ * <ul>
+ * <li>a reference to the static dictionary of SMTP verbs, command prefixes
+ * and the standard {@code ReplyCode} replies, fixed for each format version
+ * <li>a reference to the dynamic dictionary of lines already written in the
+ * scope, such as the EHLO domain or the greeting
+ * <li>a static prefix and the rest of the line, such as
+ * <em>RCPT TO:&lt;</em> and an address
+ * <li>otherwise the line itself, length prefixed UTF-8
+ * </ul>
+ * Times are zigzag varint deltas, records from the previous record and
+ * entries from the previous entry, with a tag bit for no change. Replies
+ * timed by the server carry their time to reply in nanoseconds.
+ * 
+ * <pre>
+ * record  := "SMTB" version:u8 flags:u8 time:zigzag mta:line agent:line ephemeral:line entry* end
+ * flags   := reset:bit0 reserved:bits1-7
+ * time    := epoch nanoseconds less the previous record's in the scope
+ * line    := tag:u8 [delta:zigzag] [nanos:varint] payload
+ * tag     := client:bit0 kind:bits1-2 same-time:bit3 timed:bit4 reserved:bits5-7
+ * payload := string | index:varint | index:varint string
+ * string  := (length + 1):varint utf8, zero for null
+ * end     := tag of kind 3
+ * </pre>
+ * 
+ * A record with the reset flag starts a new scope. Lines not found in either
+ * dictionary, up to {@value #CONST_MAX_DYNAMIC_LENGTH} characters, are added
+ * to the dynamic dictionary; when it holds {@value #CONST_MAX_DYNAMIC} lines
+ * the next record resets the scope.
+ *
+ * @author technosf
+ * @since 0.0.6
+ * @version 0.0.6
+ */
+final class BinaryEncoder
+{
+    /*
+     * Format
+     */
+    static final byte[] CONST_MAGIC = { 'S', 'M', 'T', 'B' };
+    static final int CONST_VERSION = 1;
+
+    static final int CONST_FLAG_RESET = 0x01;
+    static final int CONST_FLAGS_RESERVED = 0xFE;
+
+    static final int CONST_TAG_CLIENT = 0x01;
+    static final int CONST_TAG_KIND_SHIFT = 1;
+    static final int CONST_TAG_KIND_MASK = 0x03;
+    static final int CONST_TAG_SAME_TIME = 0x08;
+    static final int CONST_TAG_TIMED = 0x10;
+    static final int CONST_TAG_RESERVED = 0xE0;
+
+    static final int CONST_KIND_LITERAL = 0;
+    static final int CONST_KIND_DICTIONARY = 1;
+    static final int CONST_KIND_PREFIX = 2;
+    static final int CONST_KIND_END = 3;
+
+    static final int CONST_MAX_DYNAMIC = 16384;
+    static final int CONST_MAX_DYNAMIC_LENGTH = 256;
+
+    private static final int CONST_MIN_PREFIX = 3;
+    private static final int CONST_CAPACITY = 1024;
+    private static final long CONST_NANOS = 1_000_000_000L;
+    private static final String CONST_REPLY = "%1$s %2$s ";
+
+    /**
+     * Replies in the static dictionary, in order
+     */
+    private static final int[] CONST_REPLY_CODES = { 211, 214, 220, 221, 250,
+            251, 252, 354, 421, 450, 451, 452, 500, 501, 502, 503, 504, 550,
+            551, 552, 553, 554, 455, 555, 521, 556 };
+
+    /**
+     * The static dictionary. Its order is part of the format: changing it
+     * needs a new format version.
+     */
+    static final String[] DICTIONARY;
+
+    private static final Map<String, Integer> INDEX = new HashMap<>();
+
+    /**
+     * Static dictionary indices by first character, longest first, for
+     * prefix matching
+     */
+    private static final int[][] PREFIXES = new int[128][];
+
+    static
+    {
+        List<String> words = new ArrayList<>(List.of("", ".", "DATA", "QUIT",
+                "RSET", "NOOP", "HELP", "EHLO ", "HELO ", "MAIL FROM:<",
+                "RCPT TO:<", "VRFY ", "EXPN ", "250-", "250 OK",
+                "250 Mail sent to /dev/null"));
+
+        for (int code : CONST_REPLY_CODES)
+        // Reply code prefix and the standard reply
+        {
+            words.add(code + " ");
+            words.add(String.format(CONST_REPLY, code,
+                    ReplyCode.findReplyCode(code).getDescription()));
+        }
+
+        DICTIONARY = words.toArray(new String[0]);
+
+        List<List<Integer>> prefixes = new ArrayList<>();
+        for (int c = 0; c < PREFIXES.length; c++) prefixes.add(new ArrayList<>());
+
+        for (int i = 0; i < DICTIONARY.length; i++)
+        {
+            String word = DICTIONARY[i];
+            INDEX.putIfAbsent(word, i);
+            if (word.length() >= CONST_MIN_PREFIX && word.charAt(0) < 128)
+            {
+                prefixes.get(word.charAt(0)).add(i);
+            }
+        }
+
+        for (int c = 0; c < PREFIXES.length; c++)
+        {
+            PREFIXES[c] = prefixes.get(c).stream()
+                    .sorted(Comparator.comparingInt(
+                            (Integer i) -> DICTIONARY[i].length()).reversed())
+                    .mapToInt(Integer::intValue).toArray();
+        }
+    }
+
+    /*
+     * Scope state
+     */
+    private final Map<String, Integer> dynamic = new HashMap<>();
+    private long time = 0;
+    private boolean reset = true;
+
+    private byte[] buffer = new byte[CONST_CAPACITY];
+    private int size;
+
+
+    /**
+     * Encodes a transcript record
+     *
+     * @param timestamp
+     *            when the transcript started
+     * @param mtaName
+     *            the MTA name
+     * @param agentId
+     *            the agent id
+     * @param ephemeralId
+     *            the session id
+     * @param entries
+     *            the transcript entries
+     * @return the record
+     */
+    byte[] encode(Instant timestamp, String mtaName, String agentId,
+            String ephemeralId, List<Entry> entries)
+    {
+        if (dynamic.size() >= CONST_MAX_DYNAMIC)
+        // Dictionary is full, start a new scope
+        {
+            dynamic.clear();
+            time = 0;
+            reset = true;
+        }
+
+        size = 0;
+        ensure(CONST_MAGIC.length + 2);
+        System.arraycopy(CONST_MAGIC, 0, buffer, 0, CONST_MAGIC.length);
+        size = CONST_MAGIC.length;
+        buffer[size++] = CONST_VERSION;
+        buffer[size++] = (byte) (reset ? CONST_FLAG_RESET : 0);
+        reset = false;
+
+        long nanos = timestamp.getEpochSecond() * CONST_NANOS
+                + timestamp.getNano();
+        zigzag(nanos - time);
+        time = nanos;
+
+        line(false, 0, Entry.CONST_UNTIMED, mtaName);
+        line(false, 0, Entry.CONST_UNTIMED, agentId);
+        line(false, 0, Entry.CONST_UNTIMED, ephemeralId);
+
+        long offset = 0;
+        for (Entry entry : entries)
+        {
+            line(entry.isClient(), entry.offset() - offset, entry.nanos(),
+                    entry.line());
+            offset = entry.offset();
+        }
+
+        ensure(1);
+        buffer[size++] = (byte) (CONST_KIND_END << CONST_TAG_KIND_SHIFT);
+
+        return Arrays.copyOf(buffer, size);
+    }
+
+
+    /**
+     * Whether a line not found in either dictionary joins the dynamic
+     * dictionary
+     *
+     * @param line
+     *            the line
+     * @param dynamicSize
+     *            the size of the dynamic dictionary
+     * @return true if the line is added
+     */
+    static boolean remember(String line, int dynamicSize)
+    {
+        return line != null && line.length() <= CONST_MAX_DYNAMIC_LENGTH
+                && dynamicSize < CONST_MAX_DYNAMIC;
+    }
+
+
+    /**
+     * Writes a line
+     */
+    private void line(boolean client, long delta, long nanos, String line)
+    {
+        int tag = (client ? CONST_TAG_CLIENT : 0)
+                | (delta == 0 ? CONST_TAG_SAME_TIME : 0)
+                | (nanos >= 0 ? CONST_TAG_TIMED : 0);
+
+        Integer index = INDEX.get(line);
+        if (index == null) index = dynamic.get(line);
+
+        if (index != null)
+        {
+            tag(tag, CONST_KIND_DICTIONARY, delta, nanos);
+            varint(index);
+            return;
+        }
+
+        int prefix = prefix(line);
+
+        if (prefix >= 0)
+        {
+            tag(tag, CONST_KIND_PREFIX, delta, nanos);
+            varint(prefix);
+            string(line.substring(DICTIONARY[prefix].length()));
+        }
+        else
+        {
+            tag(tag, CONST_KIND_LITERAL, delta, nanos);
+            string(line);
+        }
+
+        if (remember(line, dynamic.size()))
+        {
+            dynamic.put(line, DICTIONARY.length + dynamic.size());
+        }
+    }
+
+
+    /**
+     * Returns the longest static dictionary entry that is a proper prefix of
+     * the line
+     *
+     * @param line
+     *            the line
+     * @return the dictionary index, -1 if none
+     */
+    private static int prefix(String line)
+    {
+        if (line == null || line.isEmpty() || line.charAt(0) >= 128) return -1;
+
+        for (int index : PREFIXES[line.charAt(0)])
+        {
+            String word = DICTIONARY[index];
+            if (line.length() > word.length() && line.startsWith(word))
+            {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+
+    /**
+     * Writes a tag, the time delta if the time moved, and the time to reply
+     * if timed
+     */
+    private void tag(int tag, int kind, long delta, long nanos)
+    {
+        ensure(1);
+        buffer[size++] = (byte) (tag | (kind << CONST_TAG_KIND_SHIFT));
+        if (delta != 0) zigzag(delta);
+        if (nanos >= 0) varint(nanos);
+    }
+
+
+    /**
+     * Writes a length prefixed UTF-8 string, the length zero for null
+     */
+    private void string(String value)
+    {
+        if (value == null)
+        {
+            varint(0);
+            return;
+        }
+
+        byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+        varint(utf8.length + 1L);
+        ensure(utf8.length);
+        System.arraycopy(utf8, 0, buffer, size, utf8.length);
+        size += utf8.length;
+    }
+
+
+    /**
+     * Writes a signed varint, zigzag encoded
+     */
+    private void zigzag(long value)
+    {
+        varint((value << 1) ^ (value >> 63));
+    }
+
+
+    /**
+     * Writes an unsigned varint, seven bits a byte, least significant first
+     */
+    private void varint(long value)
+    {
+        ensure(10);
+        while ((value & ~0x7FL) != 0)
+        {
+            buffer[size++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[size++] = (byte) value;
+    }
+
+
+    /**
+     * Ensures there is room for more bytes
+     */
+    private void ensure(int more)
+    {
+        if (size + more > buffer.length)
+        {
+            buffer = Arrays.copyOf(buffer,
+                    Math.max(buffer.length << 1, size + more));
+        }
+    }
+}
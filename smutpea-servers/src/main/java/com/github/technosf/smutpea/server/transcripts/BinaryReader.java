@@ -0,0 +1,305 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.server.transcripts;
+
+import static com.github.technosf.smutpea.server.transcripts.BinaryEncoder.CONST_FLAG_RESET;
+import static com.github.technosf.smutpea.server.transcripts.BinaryEncoder.CONST_FLAGS_RESERVED;
+import static com.github.technosf.smutpea.server.transcripts.BinaryEncoder.CONST_KIND_DICTIONARY;
+import static com.github.technosf.smutpea.server.transcripts.BinaryEncoder.CONST_KIND_END;
+import static com.github.technosf.smutpea.server.transcripts.BinaryEncoder.CONST_KIND_LITERAL;
+import static com.github.technosf.smutpea.server.transcripts.BinaryEncoder.CONST_KIND_PREFIX;
+import static com.github.technosf.smutpea.server.transcripts.BinaryEncoder.DICTIONARY;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.github.technosf.smutpea.server.transcripts.Transcript.Entry;
+
+/**
+ * {@code BinaryReader}
+ * <p>
+ * Reads the transcript records written by {@code BinaryDecorator} from a
+ * stream, one at a time, keeping the dictionary scope from record to record
+ * as the writer did. A stream must start at a record that resets the scope,
+ * the start of a file segment or any record that was printed or posted.
+ *
+ * @author technosf
+ * @since 0.0.6
+ * @version 0.0.6
+ */
+public final class BinaryReader
+        implements AutoCloseable
+{
+    /*
+     * Constants
+     */
+    private static final String CONST_ERR_MAGIC = "Not a binary transcript";
+    private static final String CONST_ERR_VERSION =
+            "Unsupported binary transcript version %1$d";
+    private static final String CONST_ERR_TAG =
+            "Unsupported binary transcript tag 0x%1$02x";
+    private static final String CONST_ERR_INDEX =
+            "Dictionary index %1$d out of range";
+    private static final String CONST_ERR_FLAGS =
+            "Unsupported binary transcript flags 0x%1$02x";
+    private static final String CONST_ERR_HEADER = "Truncated record header";
+    private static final String CONST_ERR_VARINT = "Malformed varint";
+    private static final String CONST_ERR_LENGTH = "String too long";
+
+    /**
+     * A transcript record
+     *
+     * @param timestamp
+     *            when the transcript started
+     * @param mtaName
+     *            the MTA name
+     * @param agentId
+     *            the agent id
+     * @param ephemeralId
+     *            the session id
+     * @param entries
+     *            the transcript entries
+     */
+    public record Record(Instant timestamp, String mtaName, String agentId,
+            String ephemeralId, List<Entry> entries) {};
+
+    private final InputStream in;
+
+    /*
+     * Dictionary scope
+     */
+    private final List<String> dynamic = new ArrayList<>();
+    private long time = 0;
+
+
+    /**
+     * Constructor
+     *
+     * @param in
+     *            the stream of records
+     */
+    public BinaryReader(InputStream in)
+    {
+        this.in = in instanceof BufferedInputStream ? in
+                : new BufferedInputStream(in);
+    }
+
+
+    /**
+     * Reads the next record
+     *
+     * @return the record, or null at the end of the stream
+     * @throws IOException
+     *             the stream could not be read or is not a transcript
+     */
+    public Record read() throws IOException
+    {
+        int first = in.read();
+        if (first < 0) return null;
+
+        if (first != BinaryEncoder.CONST_MAGIC[0])
+            throw new StreamCorruptedException(CONST_ERR_MAGIC);
+        for (int i = 1; i < BinaryEncoder.CONST_MAGIC.length; i++)
+        {
+            if (u8() != BinaryEncoder.CONST_MAGIC[i])
+                throw new StreamCorruptedException(CONST_ERR_MAGIC);
+        }
+
+        int version = u8();
+        if (version != BinaryEncoder.CONST_VERSION)
+            throw new StreamCorruptedException(
+                    String.format(CONST_ERR_VERSION, version));
+
+        int flags = u8();
+        if ((flags & CONST_FLAGS_RESERVED) != 0)
+            throw new StreamCorruptedException(
+                    String.format(CONST_ERR_FLAGS, flags));
+
+        if ((flags & CONST_FLAG_RESET) != 0)
+        // New dictionary scope
+        {
+            dynamic.clear();
+            time = 0;
+        }
+
+        time += zigzag();
+        String mtaName = header();
+        String agentId = header();
+        String ephemeralId = header();
+
+        List<Entry> entries = new ArrayList<>();
+        long offset = 0;
+        int tag;
+
+        while (kind(tag = u8()) != CONST_KIND_END)
+        {
+            if ((tag & BinaryEncoder.CONST_TAG_SAME_TIME) == 0)
+            {
+                offset += zigzag();
+            }
+
+            long nanos = (tag & BinaryEncoder.CONST_TAG_TIMED) == 0
+                    ? Entry.CONST_UNTIMED : varint();
+
+            entries.add(new Entry(
+                    (tag & BinaryEncoder.CONST_TAG_CLIENT) != 0, offset,
+                    payload(tag), nanos));
+        }
+
+        return new Record(Instant.ofEpochSecond(0, time), mtaName,
+                agentId, ephemeralId, entries);
+    }
+
+
+    @Override
+    public void close() throws IOException
+    {
+        in.close();
+    }
+
+
+    /**
+     * Reads a header line, which has no time
+     */
+    private String header() throws IOException
+    {
+        int tag = u8();
+
+        if (kind(tag) == CONST_KIND_END)
+            throw new StreamCorruptedException(CONST_ERR_HEADER);
+        if ((tag & BinaryEncoder.CONST_TAG_SAME_TIME) == 0) zigzag();
+        if ((tag & BinaryEncoder.CONST_TAG_TIMED) != 0) varint();
+
+        return payload(tag);
+    }
+
+
+    /**
+     * Returns the kind of a tag, checking the reserved bits
+     */
+    private static int kind(int tag) throws IOException
+    {
+        if ((tag & BinaryEncoder.CONST_TAG_RESERVED) != 0)
+            throw new StreamCorruptedException(
+                    String.format(CONST_ERR_TAG, tag));
+
+        return (tag >>> BinaryEncoder.CONST_TAG_KIND_SHIFT)
+                & BinaryEncoder.CONST_TAG_KIND_MASK;
+    }
+
+
+    /**
+     * Reads a line payload, adding it to the dynamic dictionary as the
+     * writer did
+     */
+    private String payload(int tag) throws IOException
+    {
+        String line;
+
+        switch (kind(tag))
+        {
+            case CONST_KIND_DICTIONARY:
+                return lookup(varint());
+            case CONST_KIND_PREFIX:
+                line = lookup(varint()) + string();
+                break;
+            case CONST_KIND_LITERAL:
+            default:
+                line = string();
+                break;
+        }
+
+        if (BinaryEncoder.remember(line, dynamic.size())) dynamic.add(line);
+
+        return line;
+    }
+
+
+    /**
+     * Returns a static or dynamic dictionary entry
+     */
+    private String lookup(long index) throws IOException
+    {
+        if (index >= 0 && index < DICTIONARY.length)
+            return DICTIONARY[(int) index];
+
+        long at = index - DICTIONARY.length;
+        if (at >= 0 && at < dynamic.size()) return dynamic.get((int) at);
+
+        throw new StreamCorruptedException(
+                String.format(CONST_ERR_INDEX, index));
+    }
+
+
+    /**
+     * Reads a length prefixed UTF-8 string
+     */
+    private String string() throws IOException
+    {
+        long length = varint();
+        if (length == 0) return null;
+        if (length - 1 > Integer.MAX_VALUE)
+            throw new StreamCorruptedException(CONST_ERR_LENGTH);
+
+        byte[] utf8 = in.readNBytes((int) (length - 1));
+        if (utf8.length != length - 1) throw new EOFException();
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+
+
+    /**
+     * Reads a signed, zigzag encoded, varint
+     */
+    private long zigzag() throws IOException
+    {
+        long value = varint();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+
+    /**
+     * Reads an unsigned varint
+     */
+    private long varint() throws IOException
+    {
+        long value = 0;
+
+        for (int shift = 0; shift < 64; shift += 7)
+        {
+            int b = u8();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+
+        throw new StreamCorruptedException(CONST_ERR_VARINT);
+    }
+
+
+    /**
+     * Reads a byte, which must be there
+     */
+    private int u8() throws IOException
+    {
+        int b = in.read();
+        if (b < 0) throw new EOFException();
+        return b;
+    }
+}
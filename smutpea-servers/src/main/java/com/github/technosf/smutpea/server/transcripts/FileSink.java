@@ -0,0 +1,695 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.server.transcripts;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@code FileSink}
+ * <p>
+ * Appends transcripts to a file from a single writer thread, one sink per
+ * file, so concurrent sessions never interleave within a transcript.
+ * <p>
+ * Sessions add transcripts to a lock-free queue and wait for them to be
+ * written. The writer drains everything queued into one gathering write, a
+ * group commit, so many sessions share each write call. With
+ * <em>transcriptFileForce</em> set to zero each commit is forced to disk
+ * before sessions are released; set to a number of milliseconds the file is
+ * forced that often; unset it is left to the operating system.
+ * <p>
+ * The file is rotated when it would pass <em>transcriptFileRotateBytes</em>
+ * or is older than <em>transcriptFileRotateSeconds</em>, the old segment
+ * being renamed with a UTC timestamp suffix, and gzipped in the background
+ * if <em>transcriptFileCompress</em> is set.
+ * <p>
+ * Data can also be queued to be encoded on the writer thread, in file order,
+ * against state kept for the current file segment, such as a dictionary of
+ * what the segment already holds.
+ *
+ * @author technosf
+ * @since 0.0.6
+ * @version 0.0.6
+ */
+final class FileSink
+        implements Runnable
+{
+    private static final Logger logger = LoggerFactory
+            .getLogger(FileSink.class);
+
+    /*
+     * Constants
+     */
+    private static final String CONST_MSG_ROTATED = "Rotated {} to {}";
+    private static final String CONST_ERR_WRITE = "Error writing {}";
+    private static final String CONST_ERR_FORCE = "Error forcing {}";
+    private static final String CONST_ERR_COMPRESS = "Error compressing {}";
+    private static final String CONST_THREAD_NAME = "SMuTPea transcript file %1$s";
+    private static final String CONST_COMPRESS_THREAD_NAME =
+            "SMuTPea transcript compress";
+    private static final String CONST_GZ = ".gz";
+
+    private static final String CONST_FORCE_KEY = "transcriptFileForce";
+    private static final String CONST_ROTATE_BYTES_KEY =
+            "transcriptFileRotateBytes";
+    private static final String CONST_ROTATE_SECONDS_KEY =
+            "transcriptFileRotateSeconds";
+    private static final String CONST_COMPRESS_KEY = "transcriptFileCompress";
+
+    private static final DateTimeFormatter CONST_SUFFIX =
+            DateTimeFormatter.ofPattern("'.'yyyyMMdd-HHmmss-SSS");
+
+    private static final int CONST_BATCH = 1024;
+    private static final long CONST_PARK_NANOS =
+            TimeUnit.MILLISECONDS.toNanos(100);
+
+    /**
+     * Sinks by file
+     */
+    private static final ConcurrentHashMap<Path, FileSink> SINKS =
+            new ConcurrentHashMap<>();
+
+    /**
+     * Compresses rotated segments off the writer threads
+     */
+    private static final ExecutorService COMPRESSOR = Executors
+            .newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, CONST_COMPRESS_THREAD_NAME);
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    /**
+     * A transcript waiting to be written, either its bytes or to be encoded
+     */
+    private record Pending(ByteBuffer data, Deferred deferred,
+            CompletableFuture<Void> done) {};
+
+    /**
+     * Data encoded on the writer thread for the file segment it lands in, so
+     * it can refer to what was written before it in that segment
+     */
+    interface Deferred
+    {
+        /**
+         * Encodes the data
+         *
+         * @param segment
+         *            the state of the file segment being written
+         * @return the bytes to write
+         * @throws IOException
+         *             the data could not be encoded
+         */
+        byte[] encode(Segment segment) throws IOException;
+    }
+
+    /**
+     * State shared by the deferred data written to one file segment, from
+     * when the file is opened until it is rotated or closed
+     */
+    static final class Segment
+    {
+        private final Map<Class<?>, Object> attachments = new HashMap<>();
+
+
+        /**
+         * Returns the segment's attachment of a type, creating it if needed
+         *
+         * @param type
+         *            the attachment type
+         * @param factory
+         *            creates the attachment
+         * @return the attachment
+         */
+        <T> T attachment(Class<T> type, Supplier<T> factory)
+        {
+            return type.cast(
+                    attachments.computeIfAbsent(type, t -> factory.get()));
+        }
+    }
+
+    private final Path path;
+    private final long forceNanos;
+    private final long rotateBytes;
+    private final long rotateNanos;
+    private final boolean compress;
+
+    private final ConcurrentLinkedQueue<Pending> queue =
+            new ConcurrentLinkedQueue<>();
+    private final Thread writer;
+    private volatile boolean closed = false;
+
+    /*
+     * Writer thread state
+     */
+    private FileChannel channel;
+    private Segment segment;
+    private long size;
+    private long openedAt;
+    private long forcedAt;
+    private boolean dirty = false;
+
+
+    /**
+     * Returns the sink for a file, configured from System properties
+     *
+     * @param path
+     *            the file
+     * @return the sink
+     */
+    static FileSink get(Path path)
+    {
+        return SINKS.computeIfAbsent(path.toAbsolutePath().normalize(),
+                p -> new FileSink(p,
+                        Long.getLong(CONST_FORCE_KEY, -1),
+                        Long.getLong(CONST_ROTATE_BYTES_KEY, 0),
+                        TimeUnit.SECONDS.toMillis(
+                                Long.getLong(CONST_ROTATE_SECONDS_KEY, 0)),
+                        Boolean.getBoolean(CONST_COMPRESS_KEY)));
+    }
+
+
+    /**
+     * Constructor, starting the writer thread
+     *
+     * @param path
+     *            the file
+     * @param forceMillis
+     *            zero to force each commit, the force period, or negative
+     *            never to force
+     * @param rotateBytes
+     *            the file size to rotate at, zero or less never to
+     * @param rotateMillis
+     *            the file age to rotate at, zero or less never to
+     * @param compress
+     *            true to gzip rotated files
+     */
+    FileSink(Path path, long forceMillis, long rotateBytes, long rotateMillis,
+            boolean compress)
+    {
+        this.path = path;
+        this.forceNanos = forceMillis < 0 ? -1
+                : TimeUnit.MILLISECONDS.toNanos(forceMillis);
+        this.rotateBytes = rotateBytes;
+        this.rotateNanos = TimeUnit.MILLISECONDS.toNanos(rotateMillis);
+        this.compress = compress;
+
+        writer = new Thread(this,
+                String.format(CONST_THREAD_NAME, path.getFileName()));
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+
+    /**
+     * Queues data to be appended, returning when it is written
+     *
+     * @param data
+     *            the data
+     * @throws IOException
+     *             the data could not be written
+     */
+    void write(byte[] data) throws IOException
+    {
+        await(append(data));
+    }
+
+
+    /**
+     * Queues data to be encoded and appended, returning when it is written
+     *
+     * @param deferred
+     *            the data
+     * @throws IOException
+     *             the data could not be encoded or written
+     */
+    void write(Deferred deferred) throws IOException
+    {
+        await(append(deferred));
+    }
+
+
+    /**
+     * Returns when everything queued before it has been written
+     *
+     * @throws IOException
+     *             the sink is closed or could not write
+     */
+    void flush() throws IOException
+    {
+        write(new byte[0]);
+    }
+
+
+    /**
+     * Waits for every sink to write what is queued to it
+     *
+     * @param timeoutMillis
+     *            the longest to wait
+     * @return true if every sink has written its queue
+     */
+    static boolean drainAll(long timeoutMillis)
+    {
+        long deadline = System.nanoTime()
+                + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        List<CompletableFuture<Void>> barriers = new ArrayList<>();
+
+        for (FileSink sink : SINKS.values())
+        {
+            barriers.add(sink.append(new byte[0]));
+        }
+
+        try
+        {
+            CompletableFuture
+                    .allOf(barriers.toArray(new CompletableFuture<?>[0]))
+                    .get(Math.max(0, deadline - System.nanoTime()),
+                            TimeUnit.NANOSECONDS);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        catch (ExecutionException e)
+        // A sink failed, its sessions were told
+        {
+            return true;
+        }
+        catch (TimeoutException e)
+        {
+            return false;
+        }
+
+        return true;
+    }
+
+
+    /**
+     * Queues data to be appended
+     *
+     * @param data
+     *            the data
+     * @return completes when the data is written
+     */
+    CompletableFuture<Void> append(byte[] data)
+    {
+        return enqueue(new Pending(ByteBuffer.wrap(data), null,
+                new CompletableFuture<>()));
+    }
+
+
+    /**
+     * Queues data to be encoded and appended
+     *
+     * @param deferred
+     *            the data
+     * @return completes when the data is written
+     */
+    CompletableFuture<Void> append(Deferred deferred)
+    {
+        return enqueue(new Pending(null, deferred, new CompletableFuture<>()));
+    }
+
+
+    /**
+     * Waits for queued data to be written
+     */
+    private static void await(CompletableFuture<Void> done) throws IOException
+    {
+        try
+        {
+            done.get();
+        }
+        catch (ExecutionException e)
+        {
+            throw e.getCause() instanceof IOException io ? io
+                    : new IOException(e.getCause());
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+
+    /**
+     * Queues a pending write and wakes the writer. A write queued as the sink
+     * closes, and not taken by the writer, is failed.
+     */
+    private CompletableFuture<Void> enqueue(Pending pending)
+    {
+        if (closed)
+            return CompletableFuture.failedFuture(new ClosedChannelException());
+
+        queue.offer(pending);
+
+        if (closed && queue.remove(pending))
+        // The writer may have finished
+        {
+            pending.done().completeExceptionally(new ClosedChannelException());
+        }
+
+        LockSupport.unpark(writer);
+        return pending.done();
+    }
+
+
+    /**
+     * Writes out anything queued and closes the file
+     *
+     * @throws InterruptedException
+     */
+    void close() throws InterruptedException
+    {
+        closed = true;
+        SINKS.remove(path, this);
+        LockSupport.unpark(writer);
+        writer.join();
+    }
+
+
+    /*
+     * ------------------------------------------------------------------------
+     *
+     * Writer thread
+     *
+     * ------------------------------------------------------------------------
+     */
+
+    @Override
+    public void run()
+    {
+        List<Pending> batch = new ArrayList<>(CONST_BATCH);
+        Pending pending;
+
+        while (true)
+        {
+            while (batch.size() < CONST_BATCH
+                    && (pending = queue.poll()) != null)
+            {
+                batch.add(pending);
+            }
+
+            if (!batch.isEmpty())
+            {
+                try
+                {
+                    commit(batch);
+                }
+                catch (Throwable e)
+                // Keep writing for the other sessions
+                {
+                    logger.error(CONST_ERR_WRITE, path, e);
+                    closeChannel();
+                    fail(batch, e);
+                }
+                batch.clear();
+                continue;
+            }
+
+            if (closed && queue.isEmpty()) break;
+
+            // Idle - periodic work then wait for more
+            long now = System.nanoTime();
+            if (channel != null && rotateNanos > 0
+                    && now - openedAt >= rotateNanos)
+            {
+                rotate();
+            }
+            if (dirty && forceNanos > 0 && now - forcedAt >= forceNanos)
+            {
+                force();
+            }
+            LockSupport.parkNanos(CONST_PARK_NANOS);
+        }
+
+        if (dirty) force();
+        closeChannel();
+
+        while ((pending = queue.poll()) != null)
+        // Queued as the sink closed
+        {
+            pending.done().completeExceptionally(new ClosedChannelException());
+        }
+    }
+
+
+    /**
+     * Writes a batch with one gathering write and releases its sessions
+     */
+    private void commit(List<Pending> batch)
+    {
+        ByteBuffer[] buffers = new ByteBuffer[batch.size()];
+
+        try
+        {
+            if (channel == null) open();
+
+            if (size > 0 && rotateNanos > 0
+                    && System.nanoTime() - openedAt >= rotateNanos)
+            {
+                rotate();
+                if (channel == null) open();
+            }
+
+            long bytes = encode(batch, buffers);
+
+            if (size > 0 && rotateBytes > 0 && size + bytes > rotateBytes)
+            // Rotate, encoding again for the new segment
+            {
+                rotate();
+                if (channel == null) open();
+                bytes = encode(batch, buffers);
+            }
+
+            for (long written = 0; written < bytes;)
+            {
+                written += channel.write(buffers);
+            }
+            size += bytes;
+            dirty = true;
+
+            if (forceNanos == 0) force();
+
+            for (Pending pending : batch)
+            {
+                pending.done().complete(null);
+            }
+        }
+        catch (IOException e)
+        {
+            logger.error(CONST_ERR_WRITE, path, e);
+            closeChannel();
+            fail(batch, e);
+        }
+    }
+
+
+    /**
+     * Releases a batch's sessions with an error
+     */
+    private static void fail(List<Pending> batch, Throwable e)
+    {
+        for (Pending pending : batch)
+        {
+            pending.done().completeExceptionally(e);
+        }
+    }
+
+
+    /**
+     * Fills the buffers for a batch, encoding deferred data for the current
+     * segment
+     *
+     * @return the number of bytes to write
+     */
+    private long encode(List<Pending> batch, ByteBuffer[] buffers)
+            throws IOException
+    {
+        long bytes = 0;
+
+        for (int i = 0; i < buffers.length; i++)
+        {
+            Pending pending = batch.get(i);
+            try
+            {
+                buffers[i] = pending.deferred() == null ? pending.data()
+                        : ByteBuffer.wrap(pending.deferred().encode(segment));
+            }
+            catch (RuntimeException e)
+            {
+                throw new IOException(e);
+            }
+            bytes += buffers[i].remaining();
+        }
+
+        return bytes;
+    }
+
+
+    /**
+     * Opens the file for appending, starting a new segment
+     */
+    private void open() throws IOException
+    {
+        channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        size = channel.size();
+        segment = new Segment();
+        openedAt = forcedAt = System.nanoTime();
+    }
+
+
+    /**
+     * Forces written data to disk
+     */
+    private void force()
+    {
+        try
+        {
+            channel.force(false);
+        }
+        catch (IOException e)
+        {
+            logger.warn(CONST_ERR_FORCE, path, e);
+        }
+        dirty = false;
+        forcedAt = System.nanoTime();
+    }
+
+
+    /**
+     * Renames the current file aside, compressing it if configured. The next
+     * write opens a new file.
+     */
+    private void rotate()
+    {
+        if (dirty) force();
+        closeChannel();
+
+        try
+        {
+            if (!Files.exists(path) || Files.size(path) == 0) return;
+
+            String suffix = ZonedDateTime.now(ZoneOffset.UTC).format(CONST_SUFFIX);
+            Path rotated = path.resolveSibling(path.getFileName() + suffix);
+            for (int i = 1; Files.exists(rotated) || Files.exists(gz(rotated)); i++)
+            {
+                rotated = path.resolveSibling(path.getFileName() + suffix + "-" + i);
+            }
+
+            Files.move(path, rotated);
+            logger.info(CONST_MSG_ROTATED, path, rotated);
+
+            if (compress)
+            {
+                Path segment = rotated;
+                COMPRESSOR.execute(() -> compress(segment));
+            }
+        }
+        catch (IOException e)
+        {
+            logger.error(CONST_ERR_WRITE, path, e);
+        }
+    }
+
+
+    /**
+     * Closes the file, if open
+     */
+    private void closeChannel()
+    {
+        if (channel == null) return;
+
+        try
+        {
+            channel.close();
+        }
+        catch (IOException e)
+        {
+            logger.warn(CONST_ERR_WRITE, path, e);
+        }
+        channel = null;
+    }
+
+
+    /**
+     * Gzips a rotated segment, replacing it
+     *
+     * @param segment
+     *            the rotated file
+     */
+    static void compress(Path segment)
+    {
+        Path target = gz(segment);
+
+        try (InputStream in = Files.newInputStream(segment);
+                OutputStream out = new GZIPOutputStream(
+                        Files.newOutputStream(target)))
+        {
+            in.transferTo(out);
+        }
+        catch (IOException e)
+        {
+            logger.error(CONST_ERR_COMPRESS, segment, e);
+            return;
+        }
+
+        try
+        {
+            Files.delete(segment);
+        }
+        catch (IOException e)
+        {
+            logger.error(CONST_ERR_COMPRESS, segment, e);
+        }
+    }
+
+
+    private static Path gz(Path file)
+    {
+        return file.resolveSibling(file.getFileName() + CONST_GZ);
+    }
+}
@@ -0,0 +1,624 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.server.transcripts;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.ConnectException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpConnectTimeoutException;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPOutputStream;
+
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@code HttpShipper}
+ * <p>
+ * Ships transcripts to HTTP collectors from a single background thread, so
+ * the connection thread only ever queues a transcript and moves on.
+ * <p>
+ * One shipper, and one keep-alive {@code HttpClient}, serves the JVM.
+ * Transcripts are queued on a bounded queue; when it is full they are
+ * dropped and counted. The shipper batches transcripts for the same
+ * collector and content type, up to <em>transcriptHttpBatch</em> of them or
+ * for <em>transcriptHttpLinger</em> milliseconds after the first arrives,
+ * and posts each batch joined by the content separator, a newline for
+ * NDJSON. Bodies are gzipped if <em>transcriptHttpGzip</em> is set. Posts
+ * that could not connect, or were answered 429 or 5xx, are retried with
+ * exponential backoff up to <em>transcriptHttpRetries</em> times. A post
+ * that fails once sent is not retried, as the collector may already have
+ * it. The queue is sized with <em>transcriptHttpQueue</em>. At JVM shutdown,
+ * once the {@code TranscriptFlusher} has flushed the transcripts it holds,
+ * it waits up to <em>transcriptHttpShutdown</em> milliseconds for queued and
+ * in-flight transcripts to be shipped; the shipper has no hook of its own,
+ * as hooks run in no set order. Counters are exposed over JMX as a
+ * {@code HttpShipperMXBean}.
+ *
+ * @author technosf
+ * @since 0.0.6
+ * @version 0.0.6
+ */
+final class HttpShipper
+        implements HttpShipperMXBean, Runnable
+{
+    private static final Logger logger = LoggerFactory
+            .getLogger(HttpShipper.class);
+
+    /*
+     * Constants
+     */
+    private static final String CONST_MSG_DROPPED =
+            "Transcript queue full, {} transcripts dropped";
+    private static final String CONST_MSG_RETRY =
+            "Transcript post to {} failed ({}), retry {} in {}ms";
+    private static final String CONST_MSG_FAILED =
+            "Transcript post to {} failed ({}), {} transcripts lost";
+    private static final String CONST_MSG_UNSHIPPED =
+            "Shutdown with {} transcripts not shipped";
+    private static final String CONST_THREAD_NAME =
+            "SMuTPea transcript shipper";
+    private static final String CONST_OBJECT_NAME =
+            "com.github.technosf.smutpea:type=TranscriptShipper";
+    private static final String CONST_ERR_JMX =
+            "Could not register transcript shipper with JMX";
+    private static final String CONST_ERR_POST =
+            "Transcript post to {} failed, {} transcripts lost";
+    private static final String CONST_ERR_SHIPPER =
+            "Transcript shipper could not collect a batch";
+
+    private static final String CONST_QUEUE_KEY = "transcriptHttpQueue";
+    private static final String CONST_BATCH_KEY = "transcriptHttpBatch";
+    private static final String CONST_LINGER_KEY = "transcriptHttpLinger";
+    private static final String CONST_GZIP_KEY = "transcriptHttpGzip";
+    private static final String CONST_RETRIES_KEY = "transcriptHttpRetries";
+    private static final String CONST_SHUTDOWN_KEY = "transcriptHttpShutdown";
+
+    private static final String CONST_CONTENT_TYPE = "Content-Type";
+    private static final String CONST_CONTENT_ENCODING = "Content-Encoding";
+    private static final String CONST_GZIP = "gzip";
+
+    private static final int CONST_DEFAULT_QUEUE = 1024;
+    private static final int CONST_DEFAULT_BATCH = 100;
+    private static final long CONST_DEFAULT_LINGER = 200;
+    private static final int CONST_DEFAULT_RETRIES = 5;
+    private static final long CONST_DEFAULT_SHUTDOWN = 5000;
+    private static final long CONST_BACKOFF = 100;
+    private static final long CONST_MAX_BACKOFF = 30_000;
+    private static final Duration CONST_TIMEOUT = Duration.ofSeconds(30);
+
+    /**
+     * A transcript waiting to be shipped
+     */
+    private record Shipment(URI uri, String contentType, byte[] separator,
+            byte[] body)
+    {
+        boolean batchesWith(Shipment other)
+        {
+            return uri.equals(other.uri)
+                    && contentType.equals(other.contentType);
+        }
+    };
+
+    /**
+     * Lazily created JVM-wide shipper
+     */
+    private static final class Holder
+    {
+        static final HttpShipper INSTANCE = new HttpShipper(
+                Integer.getInteger(CONST_QUEUE_KEY, CONST_DEFAULT_QUEUE),
+                Integer.getInteger(CONST_BATCH_KEY, CONST_DEFAULT_BATCH),
+                Long.getLong(CONST_LINGER_KEY, CONST_DEFAULT_LINGER),
+                Boolean.getBoolean(CONST_GZIP_KEY),
+                Integer.getInteger(CONST_RETRIES_KEY, CONST_DEFAULT_RETRIES),
+                CONST_BACKOFF);
+
+        static
+        // Register with JMX
+        {
+            try
+            {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(
+                        INSTANCE, new ObjectName(CONST_OBJECT_NAME));
+            }
+            catch (Exception e)
+            {
+                logger.warn(CONST_ERR_JMX, e);
+            }
+
+            started = INSTANCE;
+        }
+    }
+
+    /*
+     * The JVM-wide shipper, once something has shipped through it
+     */
+    private static volatile HttpShipper started;
+
+    private final HttpClient client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(CONST_TIMEOUT).build();
+
+    private final BlockingQueue<Shipment> queue;
+    private final int batchSize;
+    private final long lingerNanos;
+    private final boolean gzip;
+    private final int retries;
+    private final long backoff;
+
+    /*
+     * Counters
+     */
+    private final LongAdder queued = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder shipped = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder retried = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private long reported = 0;
+
+    private Shipment next;
+
+
+    /**
+     * Returns the JVM-wide shipper, configured from System properties
+     *
+     * @return the shipper
+     */
+    static HttpShipper get()
+    {
+        return Holder.INSTANCE;
+    }
+
+
+    /**
+     * Constructor, starting the shipping thread
+     *
+     * @param capacity
+     *            the queue capacity
+     * @param batchSize
+     *            the most transcripts in one post
+     * @param lingerMillis
+     *            how long to wait to fill a batch
+     * @param gzip
+     *            true to gzip bodies
+     * @param retries
+     *            retries before a batch is given up
+     * @param backoffMillis
+     *            the delay before the first retry, doubling each time
+     */
+    HttpShipper(int capacity, int batchSize, long lingerMillis, boolean gzip,
+            int retries, long backoffMillis)
+    {
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, capacity));
+        this.batchSize = Math.max(1, batchSize);
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+        this.gzip = gzip;
+        this.retries = Math.max(0, retries);
+        this.backoff = Math.max(1, backoffMillis);
+
+        Thread shipper = new Thread(this, CONST_THREAD_NAME);
+        shipper.setDaemon(true);
+        shipper.start();
+    }
+
+
+    /**
+     * Queue a transcript for shipping, without waiting
+     *
+     * @param uri
+     *            the collector
+     * @param contentType
+     *            the transcript content type
+     * @param separator
+     *            the separator between transcripts in a batch
+     * @param body
+     *            the transcript
+     * @return true if queued, false if the queue was full and it was dropped
+     */
+    boolean ship(URI uri, String contentType, String separator, String body)
+    {
+        return ship(uri, contentType, separator,
+                body.getBytes(StandardCharsets.UTF_8));
+    }
+
+
+    /**
+     * Queue an encoded transcript for shipping, without waiting
+     *
+     * @param uri
+     *            the collector
+     * @param contentType
+     *            the transcript content type
+     * @param separator
+     *            the separator between transcripts in a batch
+     * @param body
+     *            the encoded transcript
+     * @return true if queued, false if the queue was full and it was dropped
+     */
+    boolean ship(URI uri, String contentType, String separator, byte[] body)
+    {
+        if (queue.offer(new Shipment(uri, contentType,
+                separator.getBytes(StandardCharsets.UTF_8), body)))
+        {
+            queued.increment();
+            return true;
+        }
+
+        dropped.increment();
+        return false;
+    }
+
+
+    /**
+     * Waits for every queued transcript to be shipped or given up on
+     *
+     * @param timeoutMillis
+     *            the longest to wait
+     * @return true if nothing is left to ship
+     */
+    boolean drain(long timeoutMillis)
+    {
+        long deadline = System.nanoTime()
+                + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+
+        while (getUnshipped() > 0)
+        {
+            if (System.nanoTime() - deadline >= 0) return false;
+
+            try
+            {
+                Thread.sleep(1);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return getUnshipped() == 0;
+            }
+        }
+
+        return true;
+    }
+
+
+    /**
+     * Returns the JVM-wide shipper, if anything has used it, with how long
+     * to wait for it at shutdown
+     *
+     * @return the shipper, {@literal null} if there is none
+     */
+    static HttpShipper started()
+    {
+        return started;
+    }
+
+
+    /**
+     * Returns how long to wait at shutdown for transcripts to be shipped
+     *
+     * @return the timeout in milliseconds
+     */
+    static long getShutdownTimeout()
+    {
+        return Long.getLong(CONST_SHUTDOWN_KEY, CONST_DEFAULT_SHUTDOWN);
+    }
+
+
+    /**
+     * Waits for the queue to drain, reporting what was not shipped
+     *
+     * @param timeoutMillis
+     *            the longest to wait
+     */
+    void shutdown(long timeoutMillis)
+    {
+        if (!drain(timeoutMillis))
+        {
+            logger.warn(CONST_MSG_UNSHIPPED, getUnshipped());
+        }
+    }
+
+
+    /*
+     * ------------------------------------------------------------------------
+     *
+     * Counters
+     *
+     * ------------------------------------------------------------------------
+     */
+
+    @Override
+    public long getQueued()
+    {
+        return queued.sum();
+    }
+
+
+    @Override
+    public long getDropped()
+    {
+        return dropped.sum();
+    }
+
+
+    @Override
+    public long getShipped()
+    {
+        return shipped.sum();
+    }
+
+
+    @Override
+    public long getBatches()
+    {
+        return batches.sum();
+    }
+
+
+    @Override
+    public long getRetried()
+    {
+        return retried.sum();
+    }
+
+
+    @Override
+    public long getFailed()
+    {
+        return failed.sum();
+    }
+
+
+    @Override
+    public int getQueueDepth()
+    {
+        return queue.size();
+    }
+
+
+    /**
+     * Returns the transcripts queued, batching or in flight
+     *
+     * @return the count
+     */
+    long getUnshipped()
+    {
+        return queued.sum() - shipped.sum() - failed.sum();
+    }
+
+
+    /*
+     * ------------------------------------------------------------------------
+     *
+     * Shipping
+     *
+     * ------------------------------------------------------------------------
+     */
+
+    @Override
+    public void run()
+    {
+        while (true)
+        {
+            try
+            {
+                List<Shipment> batch = batch();
+                reportDropped();
+                if (!batch.isEmpty()) send(batch);
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+            catch (RuntimeException e)
+            {
+                logger.error(CONST_ERR_SHIPPER, e);
+            }
+        }
+    }
+
+
+    /**
+     * Collects the next batch: transcripts for the same collector and
+     * content type, until the batch is full or has lingered long enough.
+     * A transcript for another batch is held over to start the next.
+     */
+    private List<Shipment> batch() throws InterruptedException
+    {
+        List<Shipment> batch = new ArrayList<>();
+        Shipment first = next != null ? next : queue.poll(1, TimeUnit.SECONDS);
+        next = null;
+
+        if (first == null) return batch;
+
+        batch.add(first);
+        long deadline = System.nanoTime() + lingerNanos;
+
+        while (batch.size() < batchSize)
+        {
+            Shipment shipment = queue.poll(
+                    Math.max(0, deadline - System.nanoTime()),
+                    TimeUnit.NANOSECONDS);
+
+            if (shipment == null) break;
+
+            if (!shipment.batchesWith(first))
+            {
+                next = shipment;
+                break;
+            }
+
+            batch.add(shipment);
+        }
+
+        return batch;
+    }
+
+
+    /**
+     * Posts a batch, counting it failed if posting it throws
+     */
+    private void send(List<Shipment> batch) throws InterruptedException
+    {
+        try
+        {
+            post(batch);
+        }
+        catch (RuntimeException e)
+        {
+            logger.error(CONST_ERR_POST, batch.get(0).uri(), batch.size(), e);
+            failed.add(batch.size());
+        }
+    }
+
+
+    /**
+     * Posts a batch, retrying with exponential backoff
+     */
+    private void post(List<Shipment> batch) throws InterruptedException
+    {
+        Shipment first = batch.get(0);
+        ByteArrayOutputStream joined = new ByteArrayOutputStream();
+
+        for (int i = 0; i < batch.size(); i++)
+        {
+            if (i > 0) joined.writeBytes(first.separator());
+            joined.writeBytes(batch.get(i).body());
+        }
+
+        HttpRequest.Builder builder = HttpRequest.newBuilder(first.uri())
+                .timeout(CONST_TIMEOUT)
+                .header(CONST_CONTENT_TYPE, first.contentType());
+        byte[] body = joined.toByteArray();
+
+        if (gzip)
+        {
+            builder.header(CONST_CONTENT_ENCODING, CONST_GZIP);
+            body = gzip(body);
+        }
+
+        HttpRequest request = builder
+                .POST(HttpRequest.BodyPublishers.ofByteArray(body)).build();
+
+        for (int attempt = 0;; attempt++)
+        {
+            String problem;
+            boolean retryable;
+
+            try
+            {
+                int status = client.send(request,
+                        HttpResponse.BodyHandlers.discarding()).statusCode();
+
+                if (status < 300)
+                {
+                    shipped.add(batch.size());
+                    batches.increment();
+                    return;
+                }
+
+                problem = String.valueOf(status);
+                retryable = status >= 500 || status == 429;
+            }
+            catch (ConnectException | HttpConnectTimeoutException e)
+            // Never sent
+            {
+                problem = e.toString();
+                retryable = true;
+            }
+            catch (IOException e)
+            // Possibly received, retrying could duplicate the batch
+            {
+                problem = e.toString();
+                retryable = false;
+            }
+
+            if (!retryable || attempt >= retries)
+            {
+                logger.warn(CONST_MSG_FAILED, first.uri(), problem,
+                        batch.size());
+                failed.add(batch.size());
+                return;
+            }
+
+            long delay = backoff(backoff, attempt);
+            delay += ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+            logger.debug(CONST_MSG_RETRY, first.uri(), problem, attempt + 1,
+                    delay);
+            retried.increment();
+            Thread.sleep(delay);
+        }
+    }
+
+
+    /**
+     * Returns the delay before a retry, before jitter, doubling each attempt
+     * up to the maximum
+     */
+    static long backoff(long base, int attempt)
+    {
+        return Math.min(CONST_MAX_BACKOFF, base << Math.min(attempt, 30));
+    }
+
+
+    /**
+     * Gzip a body
+     */
+    private static byte[] gzip(byte[] body)
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+                body.length / 4 + 64);
+
+        try (GZIPOutputStream out = new GZIPOutputStream(bytes))
+        {
+            out.write(body);
+        }
+        catch (IOException e)
+        {
+            throw new IllegalStateException(e); // In memory, cannot happen
+        }
+
+        return bytes.toByteArray();
+    }
+
+
+    /**
+     * Log any new drops
+     */
+    private void reportDropped()
+    {
+        long total = dropped.sum();
+
+        if (total > reported)
+        {
+            logger.warn(CONST_MSG_DROPPED, total - reported);
+            reported = total;
+        }
+    }
+}
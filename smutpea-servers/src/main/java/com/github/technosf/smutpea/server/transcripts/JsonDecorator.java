@@ -14,10 +14,9 @@
 package com.github.technosf.smutpea.server.transcripts;
 
 
-import java.util.LinkedList;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
 
-import com.github.cliftonlabs.json_simple.JsonArray;
-import com.github.cliftonlabs.json_simple.JsonObject;
 import com.github.technosf.smutpea.server.transcripts.Transcript.Entry;
 
 /**
@@ -46,10 +45,17 @@ import com.github.technosf.smutpea.server.transcripts.Transcript.Entry;
             "who" : "Server"
             "dialogue" : ["dialogue", "dialogue"]
             "ended" : milli 
+            "nanos" : time to reply, when timed
         },
     }
+,    "server.nanos" : total time to reply, when timed
+,    "server.max_nanos" : longest time to reply, when timed
 }
  * </code>    
+ * <p>
+ * The JSON is streamed into a {@code JsonEncoder} as stanzas arrive, in the
+ * member order, and with the escaping, that json-simple's {@code JsonObject}
+ * produced, so the output is unchanged byte for byte.
  * 
  * @author technosf
  * @since 0.0.6
@@ -69,13 +75,36 @@ extends AbstractDecorator
     private static final String CONST_JSON_AGENT_ID_EPHEMERAL = "agent.ephemeral_id";
 
 
+    private static final String CONST_JSON_TRANSCRIPT = "transcript";
+    private static final String CONST_JSON_DIALOGUE = "dialogue";
+    private static final String CONST_JSON_ENDED = "ended";
+    private static final String CONST_JSON_NANOS = "nanos";
+    private static final String CONST_JSON_WHO = "who";
+    private static final String CONST_JSON_SERVER_NANOS = "server.nanos";
+    private static final String CONST_JSON_SERVER_MAX_NANOS = "server.max_nanos";
+
+    private static final int CONST_CAPACITY = 4096;
+
+
     /*
      * Working storage
      */
 
+    private final JsonEncoder json = new JsonEncoder(CONST_CAPACITY);
 
-    //private final Transcript transcript;
-    private final JsonObject json = new JsonObject();
+    /*
+     * Members that follow the transcript in the output
+     */
+    private final String agentId;
+    private final String ephemeralId;
+    private final String mtaName;
+
+    /*
+     * Stanza state carried between entries
+     */
+    private boolean opened = false;
+    private long ended = -1;
+    private byte[] dialogue;
 
 
 
@@ -85,61 +114,128 @@ extends AbstractDecorator
      * @param key
      */
     JsonDecorator(String mtaName, String agentId, String ephemeralId, String location)
+    {
+        this(mtaName, agentId, ephemeralId, location, clock.instant());
+    } // JsonDecorator
+
+
+    /**
+     * Decorator for a transcript that started at a given time, as when
+     * converting a stored transcript
+     * 
+     * @param mtaName
+     * @param agentId
+     * @param ephemeralId
+     * @param location
+     * @param timestamp when the transcript started
+     */
+    JsonDecorator(String mtaName, String agentId, String ephemeralId, String location,
+            Instant timestamp)
     {
         super(location);
 
-        // Initialize JSON trnscript
-        json.put(CONST_JSON_TIMESTAMP,clock.instant().toString());
-        json.put(CONST_JSON_AGENT_TYPE,"SMuTPea");
-        json.put(CONST_JSON_AGENT_VERSION,"??");
-        json.put(CONST_JSON_AGENT_NAME,mtaName);
-        json.put(CONST_JSON_AGENT_ID,agentId);
-        json.put(CONST_JSON_AGENT_ID_EPHEMERAL,ephemeralId);
+        this.mtaName = mtaName;
+        this.agentId = agentId;
+        this.ephemeralId = ephemeralId;
+
+        // Open the JSON transcript, members in JsonObject order
+        json.raw('{')
+            .name(CONST_JSON_AGENT_TYPE).string("SMuTPea").raw(',')
+            .name(CONST_JSON_TIMESTAMP).string(timestamp.toString()).raw(',')
+            .name(CONST_JSON_TRANSCRIPT).raw('[');
 
     } // JsonDecorator
 
 
     /**
+     * The first stanza records only when the first entry ended; each
+     * following entry is a stanza of its own.
      * 
-     * @param stanzas
+     * @param stanza
      */
-    void process(LinkedList<Entry> stanzas) 
+    @Override
+    void process(Entry stanza) 
     {
-        String source;
-        String lastSource = "unset";
-        JsonArray jsonStanzas = new JsonArray();
-        JsonArray  jsonDialogue = new JsonArray();
-        JsonObject lastJsonStanza = new JsonObject();    
-        jsonStanzas.add(lastJsonStanza);
-        long ended = -1;
-
-        json.put("transcript", jsonStanzas);
+        if (dialogue != null) return;
 
-        for ( Entry stanza : stanzas ) 
+        if (ended > -1)
+        // Check that this isn't the first entry
         {
-            source = stanza.isClient() ? "Client" : "Server";
+            if (!opened) openTranscript();
 
-            if ( !source.equals(lastSource) && ended > -1)
-            // Check that this isn't the first change in speaker 
+            json.raw(',').raw('{')
+                .name(CONST_JSON_DIALOGUE).raw('[').string(stanza.line()).raw(']').raw(',')
+                .name(CONST_JSON_ENDED).number(stanza.offset()).raw(',');
+            if (stanza.isTimed())
             {
-                lastJsonStanza.put("ended",ended);
-                lastJsonStanza = new JsonObject();  
-                jsonStanzas.add(lastJsonStanza);
-                jsonDialogue = new JsonArray();
-                lastJsonStanza.put("who",source);
-                lastJsonStanza.put("dialogue",jsonDialogue);
-            }        
-            jsonDialogue.add( stanza.line()); 
-            ended = stanza.offset();
+                json.name(CONST_JSON_NANOS).number(stanza.nanos()).raw(',');
+            }
+            json.name(CONST_JSON_WHO).string(stanza.isClient() ? "Client" : "Server")
+                .raw('}');
         }
-        lastJsonStanza.put("ended",ended);
+        ended = stanza.offset();
+    }
+
+
+    @Override
+    void finish() 
+    {
+        if (dialogue != null) return;
+
+        if (!opened) openTranscript();
+
+        json.raw(']').raw(',');
+        if (getTimed() > 0)
+        {
+            json.name(CONST_JSON_SERVER_NANOS).number(getServerNanos()).raw(',')
+                .name(CONST_JSON_SERVER_MAX_NANOS).number(getMaxServerNanos()).raw(',');
+        }
+        json.name(CONST_JSON_AGENT_ID).string(agentId).raw(',')
+            .name(CONST_JSON_AGENT_ID_EPHEMERAL).string(ephemeralId).raw(',')
+            .name(CONST_JSON_AGENT_VERSION).string("??").raw(',')
+            .name(CONST_JSON_AGENT_NAME).string(mtaName)
+            .raw('}');
+        dialogue = json.toByteArray();
+    }
+
+
+    /**
+     * Writes the first stanza, which holds only when the first entry ended
+     */
+    private void openTranscript()
+    {
+        json.raw('{').name(CONST_JSON_ENDED).number(ended).raw('}');
+        opened = true;
     }
 
 
     @Override
     String getDialogue() 
     {
-        return json.toJson();
+        return dialogue == null ? json.toString()
+                : new String(dialogue, StandardCharsets.UTF_8);
+    }
+
+
+    @Override
+    byte[] getDialogueBytes() 
+    {
+        return dialogue == null ? json.toByteArray() : dialogue;
+    }
+
+    /**
+     * Dialogues are single line JSON, posted as NDJSON
+     */
+    @Override
+    String getContentType() 
+    {
+        return "application/x-ndjson";
+    }
+
+    @Override
+    String getSeparator() 
+    {
+        return "\n";
     }
 
     @Override
@@ -0,0 +1,319 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.server.transcripts;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * {@code JsonEncoder}
+ * <p>
+ * Writes JSON tokens as UTF-8 straight into a growable byte buffer, so a
+ * transcript is encoded as it is written rather than built as an object graph
+ * and serialized at the end.
+ * <p>
+ * Strings are escaped as <em>json-simple</em> escapes them, so output is
+ * byte for byte what its {@code toJson()} produced: the short escapes for
+ * quote, backslash, backspace, tab, newline, form feed and return, and
+ * {@code \}{@code uXXXX} for the C0 and C1 controls, DEL and U+2000 to
+ * U+20FF. Printable ASCII is copied without further checks.
+ * <p>
+ * The encoder writes tokens, it does not check their structure.
+ *
+ * @author technosf
+ * @since 0.0.6
+ * @version 0.0.6
+ */
+final class JsonEncoder
+{
+    /*
+     * Constants
+     */
+    private static final byte[] CONST_NULL = { 'n', 'u', 'l', 'l' };
+    private static final byte[] CONST_HEX =
+            "0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * The escape for each ASCII character: zero to copy, a letter for a short
+     * escape, or 'u' for a unicode escape
+     */
+    private static final byte[] ESCAPES = new byte[128];
+
+    static
+    {
+        for (int c = 0; c < 0x20; c++) ESCAPES[c] = 'u';
+        ESCAPES['\b'] = 'b';
+        ESCAPES['\t'] = 't';
+        ESCAPES['\n'] = 'n';
+        ESCAPES['\f'] = 'f';
+        ESCAPES['\r'] = 'r';
+        ESCAPES['"'] = '"';
+        ESCAPES['\\'] = '\\';
+        ESCAPES[0x7F] = 'u';
+    }
+
+    private byte[] buffer;
+    private int size = 0;
+
+
+    /**
+     * Constructor
+     *
+     * @param capacity
+     *            the initial buffer capacity
+     */
+    JsonEncoder(int capacity)
+    {
+        buffer = new byte[Math.max(16, capacity)];
+    }
+
+
+    /**
+     * Writes a structural character, such as a brace, bracket, colon or comma
+     *
+     * @param c
+     *            the ASCII character
+     * @return this encoder
+     */
+    JsonEncoder raw(char c)
+    {
+        ensure(1);
+        buffer[size++] = (byte) c;
+        return this;
+    }
+
+
+    /**
+     * Writes an object member name and its colon
+     *
+     * @param name
+     *            the member name
+     * @return this encoder
+     */
+    JsonEncoder name(String name)
+    {
+        return string(name).raw(':');
+    }
+
+
+    /**
+     * Writes a number
+     *
+     * @param value
+     *            the value
+     * @return this encoder
+     */
+    JsonEncoder number(long value)
+    {
+        if (value >= 0 && value < 10)
+        // Common case, single digit
+        {
+            return raw((char) ('0' + value));
+        }
+
+        String digits = Long.toString(value);
+        ensure(digits.length());
+        for (int i = 0; i < digits.length(); i++)
+        {
+            buffer[size++] = (byte) digits.charAt(i);
+        }
+        return this;
+    }
+
+
+    /**
+     * Writes a quoted, escaped string, or {@literal null}
+     *
+     * @param value
+     *            the string
+     * @return this encoder
+     */
+    JsonEncoder string(String value)
+    {
+        if (value == null)
+        {
+            ensure(CONST_NULL.length);
+            System.arraycopy(CONST_NULL, 0, buffer, size, CONST_NULL.length);
+            size += CONST_NULL.length;
+            return this;
+        }
+
+        int length = value.length();
+
+        // Room for the quotes and plain ASCII, grown again if needed
+        ensure(length + 2);
+        buffer[size++] = '"';
+
+        for (int i = 0; i < length; i++)
+        {
+            char c = value.charAt(i);
+
+            if (c < 0x80 && ESCAPES[c] == 0)
+            // Fast path
+            {
+                if (size == buffer.length) ensure(length - i + 1);
+                buffer[size++] = (byte) c;
+            }
+            else
+            {
+                i = escape(value, i, length);
+            }
+        }
+
+        ensure(1);
+        buffer[size++] = '"';
+        return this;
+    }
+
+
+    /**
+     * Returns the number of bytes written
+     *
+     * @return the size
+     */
+    int size()
+    {
+        return size;
+    }
+
+
+    /**
+     * Returns a copy of the bytes written
+     *
+     * @return the bytes
+     */
+    byte[] toByteArray()
+    {
+        return Arrays.copyOf(buffer, size);
+    }
+
+
+    /**
+     * Writes the bytes written to a stream
+     *
+     * @param out
+     *            the stream
+     * @throws IOException
+     */
+    void writeTo(OutputStream out) throws IOException
+    {
+        out.write(buffer, 0, size);
+    }
+
+
+    /**
+     * Returns the bytes written as a string
+     */
+    @Override
+    public String toString()
+    {
+        return new String(buffer, 0, size, StandardCharsets.UTF_8);
+    }
+
+
+    /**
+     * Writes a character that is escaped or is not ASCII
+     *
+     * @param value
+     *            the string
+     * @param i
+     *            the index of the character
+     * @param length
+     *            the string length
+     * @return the index of the last character consumed
+     */
+    private int escape(String value, int i, int length)
+    {
+        char c = value.charAt(i);
+
+        if (c < 0x80)
+        {
+            byte escape = ESCAPES[c];
+            if (escape == 'u')
+            {
+                unicode(c);
+            }
+            else
+            {
+                ensure(2);
+                buffer[size++] = '\\';
+                buffer[size++] = escape;
+            }
+        }
+        else if (c <= 0x9F || (c >= 0x2000 && c <= 0x20FF))
+        {
+            unicode(c);
+        }
+        else if (c < 0x800)
+        {
+            ensure(2);
+            buffer[size++] = (byte) (0xC0 | (c >> 6));
+            buffer[size++] = (byte) (0x80 | (c & 0x3F));
+        }
+        else if (Character.isHighSurrogate(c) && i + 1 < length
+                && Character.isLowSurrogate(value.charAt(i + 1)))
+        {
+            int cp = Character.toCodePoint(c, value.charAt(++i));
+            ensure(4);
+            buffer[size++] = (byte) (0xF0 | (cp >> 18));
+            buffer[size++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+            buffer[size++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+            buffer[size++] = (byte) (0x80 | (cp & 0x3F));
+        }
+        else if (Character.isSurrogate(c))
+        // Unpaired, replaced as String.getBytes does
+        {
+            raw('?');
+        }
+        else
+        {
+            ensure(3);
+            buffer[size++] = (byte) (0xE0 | (c >> 12));
+            buffer[size++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+            buffer[size++] = (byte) (0x80 | (c & 0x3F));
+        }
+
+        return i;
+    }
+
+
+    /**
+     * Writes a unicode escape
+     */
+    private void unicode(char c)
+    {
+        ensure(6);
+        buffer[size++] = '\\';
+        buffer[size++] = 'u';
+        buffer[size++] = CONST_HEX[(c >> 12) & 0xF];
+        buffer[size++] = CONST_HEX[(c >> 8) & 0xF];
+        buffer[size++] = CONST_HEX[(c >> 4) & 0xF];
+        buffer[size++] = CONST_HEX[c & 0xF];
+    }
+
+
+    /**
+     * Ensures there is room for more bytes
+     */
+    private void ensure(int more)
+    {
+        if (size + more > buffer.length)
+        {
+            buffer = Arrays.copyOf(buffer,
+                    Math.max(buffer.length << 1, size + more));
+        }
+    }
+}
@@ -13,8 +13,6 @@
 
  package com.github.technosf.smutpea.server.transcripts;
 
-import java.util.LinkedList;
-
 import com.github.technosf.smutpea.server.transcripts.Transcript.Decorator;
 import com.github.technosf.smutpea.server.transcripts.Transcript.Entry;
 
@@ -29,7 +27,14 @@ public class NullDecorator
     implements Decorator 
 {
     @Override
-    public void flush(LinkedList<Entry> entries) 
+    public void write(Entry[] entries, int count) 
+    {
+        // Mute
+    }
+
+
+    @Override
+    public void flush() 
     {
         logger.debug("Null decorator flush");
     }
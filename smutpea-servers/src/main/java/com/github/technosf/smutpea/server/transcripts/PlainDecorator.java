@@ -14,8 +14,6 @@
 package com.github.technosf.smutpea.server.transcripts;
 
 
-import java.util.LinkedList;
-
 import com.github.technosf.smutpea.server.transcripts.Transcript.Entry;
 
 /**
@@ -31,25 +29,40 @@ extends AbstractDecorator
 {
 
     private static final String CRLF = "\n";
+    private static final String CONST_SERVER_TIME =
+            "Server time :: %1$dns total, %2$dns max, %3$d replies";
     private final StringBuffer dialogue = new StringBuffer();
 
     PlainDecorator(String location) {
         super(location);
+        dialogue.append( CRLF );
     }
 
 
     @Override
-    void process(LinkedList<Entry> stanzas) 
+    void process(Entry stanza) 
     {
+        dialogue.append( stanza.isClient() ? "Client @ " : "Server @ " );
+        dialogue.append( stanza.offset() );
+        if (stanza.isTimed())
+        {
+            dialogue.append( " +" ).append( stanza.nanos() ).append( "ns" );
+        }
+        dialogue.append( "\t:: " );
+        dialogue.append( stanza.line() );
         dialogue.append( CRLF );
-        for ( Entry stanza : stanzas ) 
+    }
+
+
+    @Override
+    void finish() 
+    {
+        if (getTimed() > 0)
         {
-            dialogue.append( stanza.isClient() ? "Client @ " : "Server @ " );
-            dialogue.append( stanza.offset() );
-            dialogue.append( "\t:: " );
-            dialogue.append( stanza.line() );
+            dialogue.append( String.format(CONST_SERVER_TIME,
+                    getServerNanos(), getMaxServerNanos(), getTimed()) );
             dialogue.append( CRLF );
-        }        
+        }
         dialogue.append( CRLF );
     }
 
@@ -61,6 +74,18 @@ extends AbstractDecorator
     }
 
 
+    @Override
+    String getContentType() {
+        return "text/plain; charset=utf-8";
+    }
+
+
+    @Override
+    String getSeparator() {
+        return "";
+    }
+
+
     @Override
     public String getName() {
         return "Plain";
@@ -0,0 +1,246 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.server.transcripts;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * {@code Sampler}
+ * <p>
+ * Decides which sessions are transcribed in full. A session is sampled when
+ * it is one in every <em>transcriptSample</em> sessions, or when its client
+ * address is one of <em>transcriptSampleClients</em>, a comma separated
+ * list. The default samples every session.
+ * <p>
+ * Sessions that are not sampled keep their last
+ * <em>transcriptSampleRing</em> lines in a ring. Unless
+ * <em>transcriptSampleErrors</em> is false, a session that is sent a 4xx or
+ * 5xx reply, timeouts included, is promoted to a full transcript starting
+ * with its ring; otherwise its lines are discarded at close.
+ *
+ * @author technosf
+ * @since 0.0.6
+ * @version 0.0.6
+ */
+final class Sampler
+{
+    /*
+     * Constants
+     */
+    private static final String CONST_SAMPLE_KEY = "transcriptSample";
+    private static final String CONST_ERRORS_KEY = "transcriptSampleErrors";
+    private static final String CONST_CLIENTS_KEY = "transcriptSampleClients";
+    private static final String CONST_RING_KEY = "transcriptSampleRing";
+
+    private static final int CONST_DEFAULT_RING = 64;
+
+    /**
+     * Samples every session
+     */
+    static final Sampler ALL = new Sampler(1, true, Set.of(), 0);
+
+    /**
+     * Lazily configured JVM-wide sampler
+     */
+    private static final class Holder
+    {
+        static final Sampler INSTANCE = new Sampler(
+                Integer.getInteger(CONST_SAMPLE_KEY, 1),
+                !"false".equalsIgnoreCase(
+                        System.getProperty(CONST_ERRORS_KEY, "").strip()),
+                clients(System.getProperty(CONST_CLIENTS_KEY, "")),
+                Integer.getInteger(CONST_RING_KEY, CONST_DEFAULT_RING));
+    }
+
+    private final int every;
+    private final boolean onError;
+    private final Set<String> clients;
+    private final int ring;
+
+    private final AtomicLong sessions = new AtomicLong();
+    private final LongAdder sampled = new LongAdder();
+    private final LongAdder promoted = new LongAdder();
+    private final LongAdder discarded = new LongAdder();
+
+
+    /**
+     * Returns the sampler configured from System properties
+     *
+     * @return the sampler
+     */
+    static Sampler get()
+    {
+        return Holder.INSTANCE;
+    }
+
+
+    /**
+     * Constructor
+     *
+     * @param every
+     *            one in every this many sessions is sampled, none if zero or
+     *            less
+     * @param onError
+     *            true to promote sessions sent a 4xx or 5xx reply
+     * @param clients
+     *            client addresses whose sessions are all sampled
+     * @param ring
+     *            lines kept for sessions not sampled
+     */
+    Sampler(int every, boolean onError, Set<String> clients, int ring)
+    {
+        this.every = every;
+        this.onError = onError;
+        this.clients = clients;
+        this.ring = Math.max(0, ring);
+    }
+
+
+    /**
+     * Decides whether a session is sampled
+     *
+     * @param agentId
+     *            the server id of the session, holding the client address
+     * @return true if the session is transcribed in full
+     */
+    boolean sample(String agentId)
+    {
+        boolean sample = (!clients.isEmpty() && clients.contains(address(agentId)))
+                || (every > 0 && sessions.getAndIncrement() % every == 0);
+
+        if (sample) sampled.increment();
+        return sample;
+    }
+
+
+    /**
+     * Returns true if sessions sent a failure reply are promoted
+     *
+     * @return true to promote on error
+     */
+    boolean isOnError()
+    {
+        return onError;
+    }
+
+
+    /**
+     * Returns the number of lines kept for sessions not sampled
+     *
+     * @return the ring size
+     */
+    int getRing()
+    {
+        return ring;
+    }
+
+
+    /**
+     * Returns true if a server line is a 4xx or 5xx reply
+     *
+     * @param line
+     *            the server line
+     * @return true for a failure reply
+     */
+    static boolean isFailure(String line)
+    {
+        return line != null && line.length() >= 3
+                && (line.charAt(0) == '4' || line.charAt(0) == '5')
+                && Character.isDigit(line.charAt(1))
+                && Character.isDigit(line.charAt(2));
+    }
+
+
+    /**
+     * Record a session promoted to a full transcript
+     */
+    void promoted()
+    {
+        promoted.increment();
+    }
+
+
+    /**
+     * Record a session discarded at close
+     */
+    void discarded()
+    {
+        discarded.increment();
+    }
+
+
+    /**
+     * Returns the number of sessions sampled
+     *
+     * @return the count
+     */
+    long getSampled()
+    {
+        return sampled.sum();
+    }
+
+
+    /**
+     * Returns the number of sessions promoted
+     *
+     * @return the count
+     */
+    long getPromoted()
+    {
+        return promoted.sum();
+    }
+
+
+    /**
+     * Returns the number of sessions discarded
+     *
+     * @return the count
+     */
+    long getDiscarded()
+    {
+        return discarded.sum();
+    }
+
+
+    /**
+     * Returns the client address from a server id such as
+     * {@code host/192.0.2.1:25}
+     *
+     * @param agentId
+     *            the server id
+     * @return the address
+     */
+    static String address(String agentId)
+    {
+        if (agentId == null) return "";
+
+        int start = agentId.indexOf('/') + 1;
+        int end = agentId.lastIndexOf(':');
+        return agentId.substring(start, end > start ? end : agentId.length());
+    }
+
+
+    /**
+     * Parses a comma separated list of client addresses
+     */
+    private static Set<String> clients(String list)
+    {
+        return Arrays.stream(list.split(",")).map(String::strip)
+                .filter(s -> !s.isEmpty()).collect(Collectors.toSet());
+    }
+}
@@ -16,8 +16,10 @@ package com.github.technosf.smutpea.server.transcripts;
 import java.io.IOException;
 import java.net.URI;
 import java.time.Clock;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.Properties;
+import java.util.concurrent.Executor;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -29,8 +31,24 @@ import org.slf4j.LoggerFactory;
  * Format and output the transaction, if needed, using a
  * {@code Decorator} set in a System property.
  * <p>
- * Transcripts are stored in a set of {@code Entry} objects.
- *  
+ * Entries are collected in a small, fixed-size chunk and handed to the
+ * {@code Decorator} a chunk at a time as the session runs, so the transcript
+ * does not hold the whole dialogue. Oversized sessions are truncated: once a
+ * session passes <em>transcriptMaxLines</em> lines or
+ * <em>transcriptMaxBytes</em> characters, the chunk becomes a ring of the
+ * most recent entries, and at close a marker giving the number of lines and
+ * characters omitted is written followed by the ring, so the start and the
+ * end of the session are always kept. The chunk size is set with
+ * <em>transcriptChunk</em>.
+ * <p>
+ * Sessions can be sampled, see {@code Sampler}. A session that is not sampled
+ * keeps only its latest lines, in a preallocated ring, and writes nothing
+ * unless a failure reply promotes it, when the ring is written after a
+ * marker for the lines that had already left it.
+ * <p>
+ * Closing a transcript hands what remains, and the final flush, to the
+ * JVM-wide {@code TranscriptFlusher}, so the decorator's formatting and
+ * output do not hold up the connection thread.
  * 
  * @author technosf
  * @since 0.0.6
@@ -43,9 +61,39 @@ implements AutoCloseable
             .getLogger(Transcript.class);
 
     /**
-     * 
+     * A line of the dialogue, when it was said in milliseconds from the start
+     * of the session, and for a reply the nanoseconds the MTA took to
+     * produce it
      */
-    public record Entry( boolean isClient, long offset, String line) {};
+    public record Entry( boolean isClient, long offset, String line, long nanos) 
+    {
+        /**
+         * Time to reply of an entry that was not timed
+         */
+        public static final long CONST_UNTIMED = -1;
+
+        /**
+         * An untimed entry
+         * 
+         * @param isClient true if the client said it
+         * @param offset milliseconds from the start of the session
+         * @param line the line
+         */
+        public Entry(boolean isClient, long offset, String line)
+        {
+            this(isClient, offset, line, CONST_UNTIMED);
+        }
+
+        /**
+         * Returns true if the entry is a reply with a time to reply
+         * 
+         * @return true if timed
+         */
+        public boolean isTimed()
+        {
+            return nanos >= 0;
+        }
+    };
 
     /**
      * {@code Decorator} decorates a transcript into a given format, for example JSON
@@ -96,12 +144,30 @@ implements AutoCloseable
             }
         };
 
+        /**
+         * Format the next entries of the dialogue
+         * 
+         * @param entries array holding the entries, in order
+         * @param count the number of entries from the start of the array
+         */
+        public void write(Entry[] entries, int count);
+
+        /**
+         * Finish formatting and flush the dialogue to its destination
+         */
+        public void flush();
+
         /**
          * Format and flush data from an ordered list of {@code Entry} stanzas
          * 
          * @param stanzas stanzas of the dialogue 
          */
-        public void flush(LinkedList<Entry> stanzas);
+        public default void flush(LinkedList<Entry> stanzas)
+        {
+            Entry[] entries = stanzas.toArray(new Entry[stanzas.size()]);
+            write(entries, entries.length);
+            flush();
+        }
         
     };
 
@@ -111,6 +177,16 @@ implements AutoCloseable
     private static final String CONST_DBG_TRANSCRIPT = "Initiating for {}:{}:{}:{}";
     private static final String CONST_JSON_KEY = "transcriptJSON";
     private static final String CONST_PLAIN_KEY = "transcriptPlain";
+    private static final String CONST_BINARY_KEY = "transcriptBinary";
+    private static final String CONST_CHUNK_KEY = "transcriptChunk";
+    private static final String CONST_MAX_LINES_KEY = "transcriptMaxLines";
+    private static final String CONST_MAX_BYTES_KEY = "transcriptMaxBytes";
+    private static final String CONST_TRUNCATED =
+            "[Transcript truncated, %1$d lines of %2$d characters omitted]";
+
+    private static final int CONST_DEFAULT_CHUNK = 32;
+    private static final long CONST_DEFAULT_MAX_LINES = 10_000;
+    private static final long CONST_DEFAULT_MAX_BYTES = 1 << 20;
 
     //
     private static final Properties PROPS = System.getProperties();
@@ -133,9 +209,38 @@ implements AutoCloseable
     private final Decorator decorator;
 
     /*
-     * Ordered list of entries
+     * Chunk of entries not yet written, a ring of the latest once truncated
      */
-    private final LinkedList<Entry> entries = new LinkedList<Entry>();
+    private final Entry[] chunk;
+    private int count = 0;
+    private int head = 0;
+
+    /*
+     * Limits and what has been written and omitted
+     */
+    private final long maxLines;
+    private final long maxBytes;
+    private long lines = 0;
+    private long bytes = 0;
+    private boolean truncated = false;
+    private long omittedLines = 0;
+    private long omittedBytes = 0;
+    private long omittedOffset = 0;
+
+    /*
+     * Sampling: the flight recorder ring of a session not, or not yet,
+     * recorded
+     */
+    private final Sampler sampler;
+    private boolean recording;
+    private final Entry[] flight;
+    private int flightCount = 0;
+    private int flightHead = 0;
+
+    /*
+     * Runs the final write and flush
+     */
+    private final Executor flusher;
 
 
     /**
@@ -149,6 +254,7 @@ implements AutoCloseable
     public static Transcript getTranscript(String mtaName, String agentId, String ephemeralId)
     {
         Decorator d = new NullDecorator();
+        Sampler sampler = Sampler.get();
 
         if (PROPS.containsKey(CONST_PLAIN_KEY))
         {
@@ -160,7 +266,17 @@ implements AutoCloseable
             d = new JsonDecorator(  mtaName,  agentId,  ephemeralId, PROPS.getProperty(CONST_JSON_KEY).strip());
         }
 
-        Transcript t =  new Transcript(mtaName, agentId, ephemeralId, d);
+        if ( PROPS.containsKey(CONST_BINARY_KEY) )
+        {
+            d = new BinaryDecorator(  mtaName,  agentId,  ephemeralId, PROPS.getProperty(CONST_BINARY_KEY).strip());
+        }
+
+        Transcript t =  new Transcript(mtaName, agentId, ephemeralId, d,
+                Integer.getInteger(CONST_CHUNK_KEY, CONST_DEFAULT_CHUNK),
+                Long.getLong(CONST_MAX_LINES_KEY, CONST_DEFAULT_MAX_LINES),
+                Long.getLong(CONST_MAX_BYTES_KEY, CONST_DEFAULT_MAX_BYTES),
+                d instanceof NullDecorator ? Sampler.ALL : sampler,
+                TranscriptFlusher.get());
 
         return t;
     }
@@ -172,13 +288,62 @@ implements AutoCloseable
      * @param agentId
      * @param ephemeralId
      * @param decorator
+     * @param chunkSize entries held before writing to the decorator
+     * @param maxLines lines written before the transcript is truncated
+     * @param maxBytes characters written before the transcript is truncated
      */
-    private Transcript(String mtaName, String agentId, String ephemeralId, Decorator decorator)
+    Transcript(String mtaName, String agentId, String ephemeralId, Decorator decorator,
+            int chunkSize, long maxLines, long maxBytes)
     {
+        this(mtaName, agentId, ephemeralId, decorator, chunkSize, maxLines, maxBytes, Sampler.ALL);
+    }
+
+    /**
+     * Initialize a sampled Transcript, flushed on the closing thread
+     * 
+     * @param MtaName
+     * @param agentId
+     * @param ephemeralId
+     * @param decorator
+     * @param chunkSize entries held before writing to the decorator
+     * @param maxLines lines written before the transcript is truncated
+     * @param maxBytes characters written before the transcript is truncated
+     * @param sampler decides if the session is recorded
+     */
+    Transcript(String mtaName, String agentId, String ephemeralId, Decorator decorator,
+            int chunkSize, long maxLines, long maxBytes, Sampler sampler)
+    {
+        this(mtaName, agentId, ephemeralId, decorator, chunkSize, maxLines, maxBytes, sampler,
+                Runnable::run);
+    }
+
+    /**
+     * Initialize a sampled Transcript, flushed by the given executor
+     * 
+     * @param MtaName
+     * @param agentId
+     * @param ephemeralId
+     * @param decorator
+     * @param chunkSize entries held before writing to the decorator
+     * @param maxLines lines written before the transcript is truncated
+     * @param maxBytes characters written before the transcript is truncated
+     * @param sampler decides if the session is recorded
+     * @param flusher runs the final write and flush at close
+     */
+    Transcript(String mtaName, String agentId, String ephemeralId, Decorator decorator,
+            int chunkSize, long maxLines, long maxBytes, Sampler sampler, Executor flusher)
+    {
+        this.sampler = sampler;
+        this.flusher = flusher;
+        this.recording = sampler.sample(agentId);
+        this.flight = recording ? null : new Entry[sampler.getRing()];
         this.mtaName = mtaName;
         this.agentId = agentId;
         this.ephemeralId = ephemeralId;
         this.decorator = decorator;
+        this.chunk = new Entry[Math.max(1, chunkSize)];
+        this.maxLines = maxLines;
+        this.maxBytes = maxBytes;
 
         logger.debug(CONST_DBG_TRANSCRIPT, mtaName, agentId, ephemeralId, decorator.getName());
     }
@@ -191,7 +356,7 @@ implements AutoCloseable
      */
     public void client(String clientSays )
     {
-        entries.add(new Entry(true, clock.millis() + startOffset, clientSays));
+        add(new Entry(true, clock.millis() + startOffset, clientSays));
     }
 
 
@@ -202,17 +367,233 @@ implements AutoCloseable
      */
     public void server(String serverSays)
     {
-        entries.add(new Entry(false, clock.millis() + startOffset, serverSays));
+        server(serverSays, Entry.CONST_UNTIMED);
     }
 
 
     /**
-     * Send the Transcript to its final destination
+     * Process what the Server says in reply to the Client into the
+     * transcript, with the time the MTA took to produce the reply
+     * 
+     * @param serverSays what the server says
+     * @param nanos time to reply in nanoseconds
+     */
+    public void server(String serverSays, long nanos)
+    {
+        add(new Entry(false, clock.millis() + startOffset, serverSays, nanos));
+
+        if (!recording && sampler.isOnError() && Sampler.isFailure(serverSays))
+        // The session failed - record it from its flight recorder ring
+        {
+            promote();
+        }
+    }
+
+
+    /**
+     * Returns true if the session is being recorded, rather than only kept
+     * in the flight recorder ring
+     * 
+     * @return true if recording
+     */
+    public boolean isRecording()
+    {
+        return recording;
+    }
+
+
+    /**
+     * Start recording a session from its flight recorder ring, after a
+     * marker for the lines that had already left the ring
+     */
+    private void promote()
+    {
+        recording = true;
+        sampler.promoted();
+
+        if (omittedLines > 0)
+        {
+            add(new Entry(false, omittedOffset,
+                    String.format(CONST_TRUNCATED, omittedLines, omittedBytes)));
+            omittedLines = omittedBytes = omittedOffset = 0;
+        }
+
+        int first = flightCount < flight.length ? 0 : flightHead;
+        for (int i = 0; i < flightCount; i++)
+        {
+            add(flight[(first + i) % flight.length]);
+        }
+        Arrays.fill(flight, null);
+        flightCount = 0;
+    }
+
+
+    /**
+     * Add an entry to the chunk, writing the chunk out when it is full, or
+     * to the ring of latest entries once the transcript is truncated
+     * 
+     * @param entry the entry
+     */
+    private void add(Entry entry)
+    {
+        if (!recording)
+        {
+            record(entry);
+            return;
+        }
+
+        if (!truncated)
+        {
+            if (lines + 1 > maxLines || bytes + entry.line().length() > maxBytes)
+            // Over the limit - write out what is held and keep only the latest
+            {
+                write();
+                truncated = true;
+            }
+            else
+            {
+                lines++;
+                bytes += entry.line().length();
+                chunk[count++] = entry;
+                if (count == chunk.length) write();
+                return;
+            }
+        }
+
+        if (count == chunk.length)
+        // Ring is full, the oldest entry is omitted
+        {
+            Entry omitted = chunk[head];
+            omittedLines++;
+            omittedBytes += omitted.line().length();
+            omittedOffset = omitted.offset();
+        }
+        else
+        {
+            count++;
+        }
+
+        chunk[head] = entry;
+        head = (head + 1) % chunk.length;
+    }
+
+
+    /**
+     * Record an entry in the flight recorder ring, counting the oldest as
+     * omitted when the ring is full
+     * 
+     * @param entry the entry
+     */
+    private void record(Entry entry)
+    {
+        if (flight.length == 0 || flightCount == flight.length)
+        {
+            Entry omitted = flight.length == 0 ? entry : flight[flightHead];
+            omittedLines++;
+            omittedBytes += omitted.line() == null ? 0 : omitted.line().length();
+            omittedOffset = omitted.offset();
+        }
+        else
+        {
+            flightCount++;
+        }
+
+        if (flight.length == 0) return;
+
+        flight[flightHead] = entry;
+        flightHead = (flightHead + 1) % flight.length;
+    }
+
+
+    /**
+     * Write the chunk out to the decorator
+     */
+    private void write()
+    {
+        if (count > 0) decorator.write(chunk, count);
+        Arrays.fill(chunk, 0, count, null);
+        count = 0;
+    }
+
+
+    /**
+     * Returns the number of entries omitted from an oversized transcript
+     * 
+     * @return the number of entries omitted
+     */
+    public long getOmitted()
+    {
+        return omittedLines;
+    }
+
+
+    /**
+     * Hand the rest of the Transcript to the flusher, to be sent to its final
+     * destination
      */
 
     @Override
     public void close() throws IOException 
     {        
-        decorator.flush(entries);
+        if (!recording)
+        // Not sampled and never failed
+        {
+            sampler.discarded();
+            return;
+        }
+
+        Entry[] rest;
+        long entries = lines + omittedLines + (truncated ? count : 0);
+
+        if (truncated)
+        // The marker and the ring of latest entries, oldest first
+        {
+            int marker = omittedLines > 0 ? 1 : 0;
+            rest = new Entry[marker + count];
+            if (marker > 0)
+            {
+                rest[0] = new Entry(false, omittedOffset,
+                        String.format(CONST_TRUNCATED, omittedLines, omittedBytes));
+            }
+
+            int first = count < chunk.length ? 0 : head;
+            for (int i = 0; i < count; i++)
+            {
+                rest[marker + i] = chunk[(first + i) % chunk.length];
+            }
+        }
+        else
+        {
+            rest = Arrays.copyOf(chunk, count);
+        }
+
+        Arrays.fill(chunk, null);
+        count = 0;
+
+        flusher.execute(() -> flush(rest, entries));
+    }
+
+
+    /**
+     * Write the rest of the transcript and flush the decorator
+     * 
+     * @param rest the entries not yet written
+     * @param entries the number of entries in the session
+     */
+    private void flush(Entry[] rest, long entries)
+    {
+        TranscriptFlushEvent event = new TranscriptFlushEvent();
+        event.begin();
+
+        if (rest.length > 0) decorator.write(rest, rest.length);
+        decorator.flush();
+
+        if (event.shouldCommit())
+        {
+            event.session = ephemeralId;
+            event.decorator = decorator.getName();
+            event.entries = entries;
+            event.commit();
+        }
     }
 }
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.server.transcripts;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import com.github.technosf.smutpea.server.transcripts.Transcript.Entry;
+
+/**
+ * {@code TranscriptConverter}
+ * <p>
+ * Converts binary transcripts to the Plain or JSON transcripts the server
+ * would have written, from the command line:
+ * 
+ * <pre>
+ * java -cp smutpea-all.jar com.github.technosf.smutpea.server.transcripts.TranscriptConverter plain|json [file...]
+ * </pre>
+ * 
+ * Files, or standard input, are converted to standard output. JSON is one
+ * transcript a line.
+ *
+ * @author technosf
+ * @since 0.0.6
+ * @version 0.0.6
+ */
+public final class TranscriptConverter
+{
+    /*
+     * Constants
+     */
+    private static final String CONST_USAGE =
+            "Usage: TranscriptConverter plain|json [file...]";
+    private static final String CONST_ERR_FORMAT = "Unknown format: %1$s";
+
+    /**
+     * Target format
+     */
+    public enum Format
+    {
+        PLAIN, JSON;
+
+        /**
+         * Determine the Format for the given string
+         *
+         * @param format
+         *            the format name
+         * @return the Format
+         * @throws IllegalArgumentException
+         *             the format is not known
+         */
+        public static Format determine(String format)
+        {
+            try
+            {
+                return valueOf(format.strip().toUpperCase());
+            }
+            catch (RuntimeException e)
+            {
+                throw new IllegalArgumentException(
+                        String.format(CONST_ERR_FORMAT, format));
+            }
+        }
+    };
+
+
+    /**
+     * Converts binary transcript files from the command line
+     *
+     * @param args
+     *            the format followed by the files, standard input if none
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length == 0)
+        {
+            System.err.println(CONST_USAGE);
+            System.exit(1);
+        }
+
+        Format format = Format.determine(args[0]);
+        OutputStream out = new BufferedOutputStream(System.out);
+
+        if (args.length == 1)
+        {
+            convert(System.in, out, format);
+        }
+
+        for (int i = 1; i < args.length; i++)
+        {
+            try (InputStream in = Files.newInputStream(Path.of(args[i])))
+            {
+                convert(in, out, format);
+            }
+        }
+
+        out.flush();
+    }
+
+
+    /**
+     * Private constructor
+     */
+    private TranscriptConverter()
+    {
+    }
+
+
+    /**
+     * Converts a stream of binary transcripts
+     *
+     * @param in
+     *            the binary transcripts
+     * @param out
+     *            where the converted transcripts are written
+     * @param format
+     *            the format to convert to
+     * @return the number of transcripts converted
+     * @throws IOException
+     */
+    public static long convert(InputStream in, OutputStream out,
+            Format format) throws IOException
+    {
+        BinaryReader reader = new BinaryReader(in);
+        BinaryReader.Record record;
+        long count = 0;
+
+        while ((record = reader.read()) != null)
+        {
+            out.write(convert(record, format));
+            count++;
+        }
+
+        return count;
+    }
+
+
+    /**
+     * Converts one transcript
+     *
+     * @param record
+     *            the transcript
+     * @param format
+     *            the format to convert to
+     * @return the converted transcript, followed by its separator
+     */
+    static byte[] convert(BinaryReader.Record record, Format format)
+    {
+        AbstractDecorator decorator = format == Format.JSON
+                ? new JsonDecorator(record.mtaName(), record.agentId(),
+                        record.ephemeralId(), "", record.timestamp())
+                : new PlainDecorator("");
+
+        Entry[] entries = record.entries().toArray(new Entry[0]);
+        decorator.write(entries, entries.length);
+        decorator.finish();
+
+        byte[] dialogue = decorator.getDialogueBytes();
+        byte[] separator = decorator.getSeparator()
+                .getBytes(StandardCharsets.UTF_8);
+        byte[] converted = new byte[dialogue.length + separator.length];
+        System.arraycopy(dialogue, 0, converted, 0, dialogue.length);
+        System.arraycopy(separator, 0, converted, dialogue.length,
+                separator.length);
+        return converted;
+    }
+}
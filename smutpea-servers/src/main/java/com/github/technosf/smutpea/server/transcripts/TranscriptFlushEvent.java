@@ -0,0 +1,47 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.server.transcripts;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JFR event timing the flush of a {@code Transcript} through its
+ * {@code Decorator}, including formatting and output
+ *
+ * @author technosf
+ * @since 0.0.6
+ * @version 0.0.6
+ */
+@Name("com.github.technosf.smutpea.TranscriptFlush")
+@Label("SMTP Transcript Flush")
+@Category({ "SMuTPea", "Transcript" })
+@Description("A session transcript formatted and output by its decorator")
+@StackTrace(false)
+public final class TranscriptFlushEvent
+        extends jdk.jfr.Event
+{
+    @Label("Session")
+    @Description("Session identifier, the transcript ephemeral id")
+    public String session;
+
+    @Label("Decorator")
+    public String decorator;
+
+    @Label("Entries")
+    public long entries;
+}
@@ -0,0 +1,441 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.server.transcripts;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@code TranscriptFlusher}
+ * <p>
+ * Flushes closed transcripts through their decorators from a single
+ * background thread, so formatting and file or HTTP output happen after the
+ * connection thread has moved on and closed its socket.
+ * <p>
+ * One flusher serves the JVM. Transcripts wait on a bounded queue of
+ * <em>transcriptFlushQueue</em> entries. When it is full the
+ * <em>transcriptFlushPolicy</em> decides: <em>block</em> (the default) makes
+ * the connection thread wait for room, <em>drop-oldest</em> discards the
+ * transcript that has waited longest and <em>drop-newest</em> discards the
+ * one being closed. Drops are counted and logged. File transcripts are
+ * queued to their {@code FileSink} without waiting, so the sink's group
+ * commit is fed rather than waited on. A shutdown hook flushes what is
+ * queued, and waits for the file sinks to write it, for up to
+ * <em>transcriptFlushShutdown</em> milliseconds, and transcripts closed after
+ * it starts are flushed on their own thread. The hook then waits for the
+ * {@code HttpShipper} to ship what the flush gave it, so the order of the
+ * two is never left to the JVM.
+ * Counters are exposed over JMX as a {@code TranscriptFlusherMXBean}.
+ *
+ * @author technosf
+ * @since 0.0.6
+ * @version 0.0.6
+ */
+final class TranscriptFlusher
+        implements TranscriptFlusherMXBean, Executor, Runnable
+{
+    private static final Logger logger = LoggerFactory
+            .getLogger(TranscriptFlusher.class);
+
+    /*
+     * Constants
+     */
+    private static final String CONST_MSG_DROPPED =
+            "Transcript flush queue full, {} transcripts dropped";
+    private static final String CONST_MSG_UNFLUSHED =
+            "Shutdown with {} transcripts not flushed";
+    private static final String CONST_MSG_UNWRITTEN =
+            "Shutdown with transcripts not written to file";
+    private static final String CONST_THREAD_NAME =
+            "SMuTPea transcript flusher";
+    private static final String CONST_HOOK_NAME =
+            "SMuTPea transcript flusher shutdown";
+    private static final String CONST_OBJECT_NAME =
+            "com.github.technosf.smutpea:type=TranscriptFlusher";
+    private static final String CONST_ERR_JMX =
+            "Could not register transcript flusher with JMX";
+
+    private static final String CONST_QUEUE_KEY = "transcriptFlushQueue";
+    private static final String CONST_POLICY_KEY = "transcriptFlushPolicy";
+    private static final String CONST_SHUTDOWN_KEY = "transcriptFlushShutdown";
+
+    private static final int CONST_DEFAULT_QUEUE = 1024;
+    private static final long CONST_DEFAULT_SHUTDOWN = 5000;
+
+    /**
+     * What to do with a transcript when the queue is full
+     */
+    enum Policy
+    {
+        BLOCK, DROP_OLDEST, DROP_NEWEST;
+
+        /**
+         * Determine the Policy for the given string, defaulting to
+         * {@code BLOCK}
+         *
+         * @param policy
+         *            the policy name, dashes or underscores
+         * @return the Policy
+         */
+        static Policy determine(String policy)
+        {
+            if (policy == null) return BLOCK;
+
+            try
+            {
+                return valueOf(policy.strip().replace('-', '_').toUpperCase());
+            }
+            catch (IllegalArgumentException e)
+            {
+                return BLOCK;
+            }
+        }
+    };
+
+    /**
+     * Lazily created JVM-wide flusher
+     */
+    private static final class Holder
+    {
+        static final TranscriptFlusher INSTANCE = new TranscriptFlusher(
+                Integer.getInteger(CONST_QUEUE_KEY, CONST_DEFAULT_QUEUE),
+                Policy.determine(System.getProperty(CONST_POLICY_KEY)));
+
+        static
+        // Register with JMX and flush on shutdown
+        {
+            try
+            {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(
+                        INSTANCE, new ObjectName(CONST_OBJECT_NAME));
+            }
+            catch (Exception e)
+            {
+                logger.warn(CONST_ERR_JMX, e);
+            }
+
+            long timeout = Long.getLong(CONST_SHUTDOWN_KEY,
+                    CONST_DEFAULT_SHUTDOWN);
+            Runtime.getRuntime().addShutdownHook(new Thread(
+                    () -> INSTANCE.shutdown(timeout, HttpShipper.started()),
+                    CONST_HOOK_NAME));
+        }
+    }
+
+    private final BlockingQueue<Runnable> queue;
+    private final Policy policy;
+
+    private volatile boolean shutdown = false;
+
+    /*
+     * Counters
+     */
+    private final AtomicLong pending = new AtomicLong();
+    private final LongAdder queued = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder blocked = new LongAdder();
+    private final LongAdder flushed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private long reported = 0;
+
+
+    /**
+     * Returns the JVM-wide flusher, configured from System properties
+     *
+     * @return the flusher
+     */
+    static TranscriptFlusher get()
+    {
+        return Holder.INSTANCE;
+    }
+
+
+    /**
+     * Constructor, starting the flushing thread
+     *
+     * @param capacity
+     *            the queue capacity
+     * @param policy
+     *            what to do when the queue is full
+     */
+    TranscriptFlusher(int capacity, Policy policy)
+    {
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, capacity));
+        this.policy = policy;
+
+        Thread flusher = new Thread(this, CONST_THREAD_NAME);
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+
+    /**
+     * Queue a transcript flush, applying the overflow policy if the queue is
+     * full. Once shutting down the flush is run on the calling thread.
+     *
+     * @param flush
+     *            the flush
+     */
+    @Override
+    public void execute(Runnable flush)
+    {
+        if (shutdown)
+        {
+            pending.incrementAndGet();
+            flush(flush);
+            return;
+        }
+
+        pending.incrementAndGet();
+
+        if (queue.offer(flush))
+        {
+            queued.increment();
+            return;
+        }
+
+        switch (policy)
+        {
+            case DROP_NEWEST:
+                drop();
+                return;
+
+            case DROP_OLDEST:
+                while (!queue.offer(flush))
+                {
+                    if (queue.poll() != null) drop();
+                }
+                queued.increment();
+                return;
+
+            default:
+                blocked.increment();
+                try
+                {
+                    queue.put(flush);
+                    queued.increment();
+                }
+                catch (InterruptedException e)
+                // Do not lose the transcript, flush it here
+                {
+                    Thread.currentThread().interrupt();
+                    flush(flush);
+                }
+        }
+    }
+
+
+    /**
+     * Waits for every queued flush to complete
+     *
+     * @param timeoutMillis
+     *            the longest to wait
+     * @return true if nothing is left to flush
+     */
+    boolean drain(long timeoutMillis)
+    {
+        long deadline = System.nanoTime()
+                + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+
+        while (pending.get() > 0)
+        {
+            if (System.nanoTime() - deadline >= 0) return false;
+
+            try
+            {
+                Thread.sleep(1);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return pending.get() == 0;
+            }
+        }
+
+        return true;
+    }
+
+
+    /**
+     * Stops queueing, so later transcripts flush on their own thread, waits
+     * for the queue to drain and the file sinks to write it, and then for
+     * the shipper to ship what the flush gave it
+     *
+     * @param timeoutMillis
+     *            the longest to wait for the flush and the files
+     * @param shipper
+     *            the shipper, {@literal null} if there is none
+     */
+    void shutdown(long timeoutMillis, HttpShipper shipper)
+    {
+        shutdown = true;
+        long deadline = System.nanoTime()
+                + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+
+        if (!drain(timeoutMillis))
+        {
+            logger.warn(CONST_MSG_UNFLUSHED, pending.get());
+        }
+        else if (!FileSink.drainAll(Math.max(0, TimeUnit.NANOSECONDS
+                .toMillis(deadline - System.nanoTime()))))
+        // Files are written after the flush, by their sinks
+        {
+            logger.warn(CONST_MSG_UNWRITTEN);
+        }
+        reportDropped();
+
+        if (shipper != null) shipper.shutdown(HttpShipper.getShutdownTimeout());
+    }
+
+
+    /*
+     * ------------------------------------------------------------------------
+     *
+     * Counters
+     *
+     * ------------------------------------------------------------------------
+     */
+
+    @Override
+    public long getQueued()
+    {
+        return queued.sum();
+    }
+
+
+    @Override
+    public long getDropped()
+    {
+        return dropped.sum();
+    }
+
+
+    @Override
+    public long getBlocked()
+    {
+        return blocked.sum();
+    }
+
+
+    @Override
+    public long getFlushed()
+    {
+        return flushed.sum();
+    }
+
+
+    @Override
+    public long getFailed()
+    {
+        return failed.sum();
+    }
+
+
+    @Override
+    public int getQueueDepth()
+    {
+        return queue.size();
+    }
+
+
+    @Override
+    public String getPolicy()
+    {
+        return policy.name();
+    }
+
+
+    /*
+     * ------------------------------------------------------------------------
+     *
+     * Flushing
+     *
+     * ------------------------------------------------------------------------
+     */
+
+    @Override
+    public void run()
+    {
+        while (true)
+        {
+            try
+            {
+                Runnable flush = queue.poll(1, TimeUnit.SECONDS);
+                reportDropped();
+                if (flush != null) flush(flush);
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+        }
+    }
+
+
+    /**
+     * Runs a flush, counting it
+     */
+    private void flush(Runnable flush)
+    {
+        try
+        {
+            flush.run();
+            flushed.increment();
+        }
+        catch (RuntimeException e)
+        {
+            failed.increment();
+            logger.error(CONST_THREAD_NAME, e);
+        }
+        finally
+        {
+            pending.decrementAndGet();
+        }
+    }
+
+
+    /**
+     * Count a dropped transcript
+     */
+    private void drop()
+    {
+        dropped.increment();
+        pending.decrementAndGet();
+    }
+
+
+    /**
+     * Log any new drops
+     */
+    private synchronized void reportDropped()
+    {
+        long total = dropped.sum();
+
+        if (total > reported)
+        {
+            logger.warn(CONST_MSG_DROPPED, total - reported);
+            reported = total;
+        }
+    }
+}
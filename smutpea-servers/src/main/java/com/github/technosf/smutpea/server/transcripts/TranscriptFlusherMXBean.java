@@ -0,0 +1,62 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.server.transcripts;
+
+/**
+ * {@code TranscriptFlusherMXBean}
+ * <p>
+ * JMX view of the shared transcript flusher, registered as
+ * <em>com.github.technosf.smutpea:type=TranscriptFlusher</em>.
+ *
+ * @author technosf
+ * @since 0.0.6
+ * @version 0.0.6
+ */
+public interface TranscriptFlusherMXBean
+{
+    /**
+     * @return transcripts accepted onto the queue
+     */
+    long getQueued();
+
+    /**
+     * @return transcripts dropped under the overflow policy
+     */
+    long getDropped();
+
+    /**
+     * @return times a connection thread waited for room on the queue
+     */
+    long getBlocked();
+
+    /**
+     * @return transcripts flushed
+     */
+    long getFlushed();
+
+    /**
+     * @return transcripts whose flush threw
+     */
+    long getFailed();
+
+    /**
+     * @return transcripts waiting on the queue
+     */
+    int getQueueDepth();
+
+    /**
+     * @return the overflow policy
+     */
+    String getPolicy();
+}
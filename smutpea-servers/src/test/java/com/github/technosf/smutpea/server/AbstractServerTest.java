@@ -0,0 +1,188 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.server;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.stream.Stream;
+
+import org.testng.annotations.Test;
+
+import com.github.technosf.smutpea.core.MTA;
+import com.github.technosf.smutpea.core.exceptions.MTAException;
+import com.github.technosf.smutpea.mta.impl.CaptureMTA;
+import com.github.technosf.smutpea.mta.mime.AttachmentExtractor;
+import com.github.technosf.smutpea.mta.store.CaptureStore;
+
+public class AbstractServerTest
+{
+
+    /**
+     * A client that sends a message, stopping partway through a base64
+     * attachment, and then resets the connection or closes it
+     */
+    private static final class Client
+            extends InputStream
+    {
+        private final byte[] sent;
+        private final boolean reset;
+        private int position;
+        private boolean skipped;
+        private int drained;
+
+
+        Client(boolean reset)
+        {
+            String attachment = Base64.getMimeEncoder()
+                    .encodeToString(new byte[10_000]);
+            sent = String.join("\r\n",
+                    "EHLO client.test",
+                    "MAIL FROM:<a@client.test>",
+                    "RCPT TO:<b@capture.test>",
+                    "DATA",
+                    "Subject: Attached",
+                    "Content-Type: multipart/mixed; boundary=b",
+                    "",
+                    "--b",
+                    "Content-Type: application/octet-stream",
+                    "Content-Transfer-Encoding: base64",
+                    "Content-Disposition: attachment; filename=data.bin",
+                    "",
+                    attachment.substring(0, attachment.length() / 2),
+                    "").getBytes(StandardCharsets.US_ASCII);
+            this.reset = reset;
+        }
+
+
+        /**
+         * Nothing is waiting when the server flushes its input, nor when the
+         * decoder has just taken the last of the data, so it hands its lines
+         * over; after that there is always something, so the server reads
+         * the drop
+         */
+        @Override
+        public int available()
+        {
+            if (!skipped)
+            {
+                skipped = true;
+                return 0;
+            }
+            if (position < sent.length) return sent.length - position;
+            return drained++ == 0 ? 0 : 1;
+        }
+
+
+        @Override
+        public int read() throws IOException
+        {
+            if (position < sent.length) return sent[position++] & 0xff;
+            if (reset) throw new SocketException("Connection reset");
+            return -1;
+        }
+    }
+
+
+    private static final class Server
+            extends AbstractServer
+    {
+        private final CaptureStore store;
+        private final Path directory;
+        private MTA mta;
+
+
+        Server(InputStream in, CaptureStore store, Path directory)
+        {
+            super(in, new ByteArrayOutputStream());
+            this.store = store;
+            this.directory = directory;
+        }
+
+
+        @Override
+        public String getServerId()
+        {
+            return "test";
+        }
+
+
+        @Override
+        public MTA getMTA()
+        {
+            try
+            {
+                mta = new CaptureMTA("capture.test", store,
+                        new AttachmentExtractor(directory));
+                return mta;
+            }
+            catch (MTAException e)
+            {
+                throw new IllegalStateException(e);
+            }
+        }
+
+
+        @Override
+        public void cleanup()
+        {
+            // NOOP
+        }
+    }
+
+
+    private static long files(Path directory) throws IOException
+    {
+        try (Stream<Path> files = Files.list(directory))
+        {
+            return files.count();
+        }
+    }
+
+
+    private static void dropped(boolean reset) throws IOException
+    {
+        Path directory = Files.createTempDirectory("parts");
+        CaptureStore store = new CaptureStore(1, 0, 0, false);
+        Server server = new Server(new Client(reset), store, directory);
+
+        server.open();
+
+        assertTrue(server.mta.isClosed());
+        assertEquals(store.size(), 0);
+        assertEquals(files(directory), 0, "Part cut off by the drop deleted");
+    }
+
+
+    @Test
+    public void testReset() throws IOException
+    {
+        dropped(true);
+    }
+
+
+    @Test
+    public void testClosed() throws IOException
+    {
+        dropped(false);
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.server;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.Test;
+
+import com.github.technosf.smutpea.server.DialogueLog.Mode;
+
+public class DialogueLogTest
+{
+
+    @Test
+    public void testDetermine()
+    {
+        assertEquals(Mode.determine(null), Mode.SYNC);
+        assertEquals(Mode.determine(""), Mode.SYNC);
+        assertEquals(Mode.determine("bogus"), Mode.SYNC);
+        assertEquals(Mode.determine("sync"), Mode.SYNC);
+        assertEquals(Mode.determine(" ASYNC "), Mode.ASYNC);
+        assertEquals(Mode.determine("Off"), Mode.OFF);
+    }
+
+
+    @Test
+    public void testInteractions()
+    {
+        for (Mode mode : Mode.values())
+        {
+            DialogueLog log = DialogueLog.open(1, mode, 1);
+
+            log.server("220 Hello");
+            log.client("EHLO client");
+            log.server("250 OK");
+
+            assertEquals(log.getInteractions(), 3, mode.name());
+            log.close();
+        }
+    }
+
+
+    /**
+     * Counts the lines permitted at a time
+     */
+    private static int permitted(DialogueLog log, long now)
+    {
+        int lines = 0;
+        while (log.permit(now)) lines++;
+        return lines;
+    }
+
+
+    @Test
+    public void testRateLimit()
+    {
+        // Ten lines a second, with a burst of one second's worth
+        DialogueLog log = DialogueLog.open(1, Mode.SYNC, 10);
+        long now = System.nanoTime();
+
+        assertEquals(permitted(log, now), 10, "Burst");
+        assertEquals(log.getSuppressed(), 1);
+        assertFalse(log.permit(now));
+        assertEquals(log.getSuppressed(), 2);
+
+        // A quarter second earns two and a half lines
+        now += TimeUnit.MILLISECONDS.toNanos(250);
+        assertTrue(log.permit(now));
+        assertEquals(log.getSuppressed(), 0, "Reported once permitted");
+        assertTrue(log.permit(now));
+        assertFalse(log.permit(now));
+        assertEquals(log.getSuppressed(), 1);
+    }
+
+
+    @Test
+    public void testBurstRefill()
+    {
+        DialogueLog log = DialogueLog.open(1, Mode.SYNC, 10);
+        long now = System.nanoTime();
+
+        assertEquals(permitted(log, now), 10);
+
+        // A long idle refills no more than the burst
+        now += TimeUnit.SECONDS.toNanos(60);
+        assertEquals(permitted(log, now), 10);
+
+        now += TimeUnit.MILLISECONDS.toNanos(500);
+        assertEquals(permitted(log, now), 5);
+    }
+
+
+    @Test
+    public void testUnlimited()
+    {
+        DialogueLog log = DialogueLog.open(1, Mode.SYNC, 0);
+        long now = System.nanoTime();
+
+        for (int i = 0; i < 1000; i++)
+        {
+            assertTrue(log.permit(now));
+        }
+        assertEquals(log.getSuppressed(), 0);
+    }
+
+
+    @Test
+    public void testRingDropped()
+    {
+        // Not drained, so the ring fills
+        DialogueLog.Ring ring = new DialogueLog.Ring(4, false);
+
+        for (int i = 0; i < 6; i++)
+        {
+            ring.publish(1, i, true, "line " + i);
+        }
+
+        assertEquals(ring.getDropped(), 2);
+        assertFalse(ring.drain(10));
+    }
+
+
+    @Test
+    public void testRingDrain()
+    {
+        DialogueLog.Ring ring = new DialogueLog.Ring(8, true);
+
+        for (int i = 0; i < 3; i++)
+        {
+            ring.publish(1, i, false, "line " + i);
+        }
+
+        assertTrue(ring.drain(5000));
+        assertEquals(ring.getDropped(), 0);
+    }
+}
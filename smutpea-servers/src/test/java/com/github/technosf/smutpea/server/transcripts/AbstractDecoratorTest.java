@@ -139,6 +139,7 @@ abstract class AbstractDecoratorTest
         // new file
         classUnderTest = getClassUnderTest(tmpFileUri.toString());
         classUnderTest.flush(entries);   
+        written(path);
          
         assertTrue( Files.exists(path), "File should exist"); 
         assertEquals( Files.size(path), getDialogueSize(), "File length"); 
@@ -146,6 +147,7 @@ abstract class AbstractDecoratorTest
         // append file
         classUnderTest = getClassUnderTest(tmpFileUri.toString());
         classUnderTest.flush(entries);   
+        written(path);
 
         assertTrue( Files.exists(path), "File appended should exist"); 
         assertEquals( Files.size(path), 2*getDialogueSize(), "File append length"); 
@@ -153,6 +155,14 @@ abstract class AbstractDecoratorTest
         // Files.delete(path);     // Let OS process delete temp file
     }
 
+    /**
+     * Waits for the transcripts queued to a file to be written
+     */
+    static void written(Path path) throws IOException
+    {
+        FileSink.get(path).flush();
+    }
+
     @Test
     public void testFlush_Http() throws InterruptedException 
     {
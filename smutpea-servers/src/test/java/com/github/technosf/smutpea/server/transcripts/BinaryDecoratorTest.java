@@ -0,0 +1,79 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.server.transcripts;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.testng.annotations.Test;
+
+import com.github.technosf.smutpea.server.transcripts.Transcript.Decorator;
+
+public class BinaryDecoratorTest extends AbstractDecoratorTest 
+{
+    @Override
+    Decorator getClassUnderTest(String location) {
+        return new BinaryDecorator("FlushTest", "anMTA", "99",location);
+    }
+
+    @Override
+    long getDialogueSize() {
+        return 319;
+    }
+
+    @Test
+    public void testFlush_Out() throws IOException {
+        super.testFlush_Out();
+    }
+
+    /**
+     * The second transcript appended refers to the file dictionary, so is
+     * smaller than the first
+     */
+    @Test
+    public void testFlush_File() throws IOException, URISyntaxException {
+        File tmpFile = new File(TMP + FILEBASE + System.currentTimeMillis() + ".bin");
+        Path path = tmpFile.toPath();
+
+        classUnderTest = getClassUnderTest(tmpFile.toURI().toString());
+        classUnderTest.flush(entries);
+        written(path);
+        assertEquals( Files.size(path), getDialogueSize(), "File length");
+
+        classUnderTest = getClassUnderTest(tmpFile.toURI().toString());
+        classUnderTest.flush(entries);
+        written(path);
+        long appended = Files.size(path) - getDialogueSize();
+        assertTrue( appended > 0 && appended < getDialogueSize() / 2, "Appended length " + appended);
+
+        try (BinaryReader reader = new BinaryReader(Files.newInputStream(path)))
+        {
+            assertEquals( reader.read().entries(), entries);
+            assertEquals( reader.read().entries(), entries);
+            assertNull( reader.read());
+        }
+    }
+
+    @Test
+    public void testFlush_Http() throws InterruptedException {
+        super.testFlush_Http();
+    }
+}
@@ -0,0 +1,288 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.server.transcripts;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.testng.annotations.Test;
+
+import com.github.technosf.smutpea.server.transcripts.BinaryReader.Record;
+import com.github.technosf.smutpea.server.transcripts.Transcript.Entry;
+import com.github.technosf.smutpea.server.transcripts.TranscriptConverter.Format;
+
+public class BinaryReaderTest
+{
+    private static final List<Entry> ENTRIES = List.of(
+            new Entry(false, 0, "220 dummy.server ESMTP Dummy MTA"),
+            new Entry(true, 3, "EHLO faux.smtp.client"),
+            new Entry(false, 3, "250 Requested mail action okay, completed ", 1234),
+            new Entry(true, 5, "MAIL FROM:<test@test.qwerty>"),
+            new Entry(false, 5, "250 Requested mail action okay, completed "),
+            new Entry(true, 9, "RCPT TO:<dummy@dummy.mta>"),
+            new Entry(false, 9, "250 Requested mail action okay, completed "),
+            new Entry(true, 12, "DATA"),
+            new Entry(false, 12, "354 Start mail input; end with <CRLF>.<CRLF> ", 0),
+            new Entry(true, 14, "Subject: café € 😀"),
+            new Entry(true, 14, ""),
+            new Entry(true, 14, "Subject: café € 😀"),
+            new Entry(true, 15, "."),
+            new Entry(false, 15, "250 Mail sent to /dev/null", 5_000_000_000L),
+            new Entry(false, 2, "[Transcript truncated, 1 lines of 3 characters omitted]"),
+            new Entry(true, 1_000_000_000L, null),
+            new Entry(true, 1_000_000_000L, "QUIT"),
+            new Entry(false, 1_000_000_001L, "221 Bye"));
+
+
+    @Test
+    public void testRoundTrip() throws IOException
+    {
+        BinaryDecorator decorator = decorator("mta", null, "42");
+        Record record = read(decorator.getDialogueBytes()).get(0);
+
+        assertEquals(record.mtaName(), "mta");
+        assertNull(record.agentId());
+        assertEquals(record.ephemeralId(), "42");
+        assertEquals(record.entries(), ENTRIES);
+    }
+
+
+    @Test
+    public void testConcatenated() throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < 3; i++)
+        {
+            out.write(decorator("mta", "agent", String.valueOf(i))
+                    .getDialogueBytes());
+        }
+
+        List<Record> records = read(out.toByteArray());
+        assertEquals(records.size(), 3);
+        for (int i = 0; i < 3; i++)
+        {
+            assertEquals(records.get(i).ephemeralId(), String.valueOf(i));
+            assertEquals(records.get(i).entries(), ENTRIES);
+        }
+    }
+
+
+    @Test
+    public void testDynamicDictionaryLimit() throws IOException
+    {
+        List<Entry> entries = new ArrayList<>();
+        for (int i = 0; i < BinaryEncoder.CONST_MAX_DYNAMIC + 100; i++)
+        {
+            entries.add(new Entry(true, i, "line " + i));
+            entries.add(new Entry(false, i, "line " + (i / 2)));
+        }
+        entries.add(new Entry(true, 0, "x".repeat(1000)));
+        entries.add(new Entry(true, 0, "x".repeat(1000)));
+
+        BinaryDecorator decorator = new BinaryDecorator("m", "a", "e", "");
+        decorator.write(entries.toArray(new Entry[0]), entries.size());
+        decorator.finish();
+
+        assertEquals(read(decorator.getDialogueBytes()).get(0).entries(),
+                entries);
+    }
+
+
+    @Test
+    public void testConvert() throws IOException
+    {
+        BinaryDecorator decorator = decorator("mta", "agent", "42");
+        Record record = read(decorator.getDialogueBytes()).get(0);
+
+        JsonDecorator json = new JsonDecorator("mta", "agent", "42", "",
+                record.timestamp());
+        PlainDecorator plain = new PlainDecorator("");
+        for (AbstractDecorator expected : List.of(json, plain))
+        {
+            expected.write(ENTRIES.toArray(new Entry[0]), ENTRIES.size());
+            expected.finish();
+        }
+
+        assertEquals(new String(TranscriptConverter.convert(record, Format.JSON),
+                StandardCharsets.UTF_8), json.getDialogue() + "\n");
+        assertEquals(TranscriptConverter.convert(record, Format.PLAIN),
+                plain.getDialogueBytes());
+        assertEquals(decorator.getDialogue(), plain.getDialogue());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] twice = concat(decorator.getDialogueBytes(),
+                decorator.getDialogueBytes());
+        assertEquals(TranscriptConverter.convert(
+                new ByteArrayInputStream(twice), out, Format.JSON), 2);
+        assertEquals(out.toString(StandardCharsets.UTF_8),
+                json.getDialogue() + "\n" + json.getDialogue() + "\n");
+    }
+
+
+    @Test
+    public void testFileDictionary() throws Exception
+    {
+        Path dir = Files.createTempDirectory("BinaryReaderTest");
+        FileSink sink = new FileSink(dir.resolve("transcripts.bin"), -1,
+                0, 0, false);
+        long plain = 0, json = 0;
+
+        for (int i = 0; i < 100; i++)
+        {
+            BinaryDecorator decorator = decorator("mta", "agent", "id" + i);
+            decorator.appendTo(sink);
+            plain += plain(ENTRIES).getDialogueBytes().length;
+            json += json(ENTRIES).getDialogueBytes().length;
+        }
+        sink.close();
+
+        byte[] file = Files.readAllBytes(dir.resolve("transcripts.bin"));
+        assertTrue(file.length * 10 < plain, file.length + " vs plain " + plain);
+        assertTrue(file.length * 10 < json, file.length + " vs json " + json);
+
+        List<Record> records = read(file);
+        assertEquals(records.size(), 100);
+        for (int i = 0; i < 100; i++)
+        {
+            assertEquals(records.get(i).ephemeralId(), "id" + i);
+            assertEquals(records.get(i).entries(), ENTRIES);
+        }
+    }
+
+
+    @Test
+    public void testFileRotation() throws Exception
+    {
+        Path dir = Files.createTempDirectory("BinaryReaderTest");
+        Path file = dir.resolve("transcripts.bin");
+        FileSink sink = new FileSink(file, -1, 1024, 0, false);
+
+        for (int i = 0; i < 50; i++)
+        {
+            decorator("mta", "agent", "id" + i).appendTo(sink);
+        }
+        sink.close();
+
+        int count = 0;
+        try (Stream<Path> segments = Files.list(dir))
+        {
+            for (Path segment : segments.collect(Collectors.toList()))
+            // Each segment reads on its own
+            {
+                for (Record record : read(Files.readAllBytes(segment)))
+                {
+                    assertEquals(record.entries(), ENTRIES);
+                    count++;
+                }
+            }
+        }
+        assertEquals(count, 50);
+    }
+
+
+    @Test(expectedExceptions = EOFException.class)
+    public void testTruncated() throws IOException
+    {
+        byte[] bytes = decorator("mta", "agent", "42").getDialogueBytes();
+        read(Arrays.copyOf(bytes, bytes.length - 1));
+    }
+
+
+    @Test(expectedExceptions = StreamCorruptedException.class)
+    public void testNotBinary() throws IOException
+    {
+        read("{\"json\":true}".getBytes(StandardCharsets.UTF_8));
+    }
+
+
+    @Test(expectedExceptions = StreamCorruptedException.class)
+    public void testReservedTag() throws IOException
+    {
+        byte[] bytes = decorator("mta", "agent", "42").getDialogueBytes();
+        bytes[bytes.length - 1] |= 0x20;
+        read(bytes);
+    }
+
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testUnknownFormat()
+    {
+        Format.determine("xml");
+    }
+
+
+    private static PlainDecorator plain(List<Entry> entries)
+    {
+        PlainDecorator decorator = new PlainDecorator("");
+        decorator.write(entries.toArray(new Entry[0]), entries.size());
+        decorator.finish();
+        return decorator;
+    }
+
+
+    private static JsonDecorator json(List<Entry> entries)
+    {
+        JsonDecorator decorator = new JsonDecorator("mta", "agent", "42", "");
+        decorator.write(entries.toArray(new Entry[0]), entries.size());
+        decorator.finish();
+        return decorator;
+    }
+
+
+    private static BinaryDecorator decorator(String mtaName, String agentId,
+            String ephemeralId)
+    {
+        BinaryDecorator decorator =
+                new BinaryDecorator(mtaName, agentId, ephemeralId, "");
+        decorator.write(ENTRIES.toArray(new Entry[0]), ENTRIES.size());
+        decorator.finish();
+        return decorator;
+    }
+
+
+    private static List<Record> read(byte[] bytes) throws IOException
+    {
+        List<Record> records = new ArrayList<>();
+        try (BinaryReader reader =
+                new BinaryReader(new ByteArrayInputStream(bytes)))
+        {
+            Record record;
+            while ((record = reader.read()) != null) records.add(record);
+        }
+        return records;
+    }
+
+
+    private static byte[] concat(byte[] a, byte[] b)
+    {
+        byte[] joined = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, joined, a.length, b.length);
+        return joined;
+    }
+}
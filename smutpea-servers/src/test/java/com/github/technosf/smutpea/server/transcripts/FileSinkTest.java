@@ -0,0 +1,253 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.server.transcripts;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class FileSinkTest
+{
+    private Path dir;
+    private Path file;
+
+
+    @BeforeMethod
+    public void beforeMethod() throws IOException
+    {
+        dir = Files.createTempDirectory("FileSinkTest");
+        file = dir.resolve("transcripts.log");
+    }
+
+
+    @Test
+    public void testConcurrentWriters() throws Exception
+    {
+        FileSink sink = new FileSink(file, -1, 0, 0, false);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<?>> futures = new ArrayList<>();
+
+        for (int t = 0; t < 8; t++)
+        {
+            int thread = t;
+            futures.add(executor.submit(() -> {
+                for (int i = 0; i < 500; i++)
+                {
+                    sink.write(record(thread, i));
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) future.get(30, TimeUnit.SECONDS);
+        executor.shutdown();
+        sink.close();
+
+        List<String> lines = Files.readAllLines(file);
+        assertEquals(lines.size(), 8 * 500 * 2);
+
+        Set<String> seen = new HashSet<>();
+        for (int i = 0; i < lines.size(); i += 2)
+        // Each record's two lines stay together
+        {
+            String head = lines.get(i);
+            assertTrue(head.startsWith("begin "), head);
+            assertEquals(lines.get(i + 1), "end " + head.substring(6));
+            assertTrue(seen.add(head), "Duplicate " + head);
+        }
+    }
+
+
+    @Test
+    public void testForceEachCommit() throws Exception
+    {
+        FileSink sink = new FileSink(file, 0, 0, 0, false);
+
+        sink.write(record(0, 0));
+        assertEquals(Files.size(file), record(0, 0).length);
+
+        sink.close();
+    }
+
+
+    @Test
+    public void testRotateBySize() throws Exception
+    {
+        byte[] record = record(0, 0);
+        FileSink sink = new FileSink(file, -1, record.length * 3, 0, false);
+
+        for (int i = 0; i < 10; i++)
+        {
+            sink.write(record(0, i));
+        }
+        sink.close();
+
+        List<Path> rotated = rotated();
+        assertEquals(rotated.size(), 3, "Rotated segments");
+        assertEquals(Files.size(file), record.length, "Current segment");
+        for (Path segment : rotated)
+        {
+            assertEquals(Files.size(segment), record.length * 3);
+        }
+    }
+
+
+    @Test
+    public void testRotateByTimeCompressed() throws Exception
+    {
+        FileSink sink = new FileSink(file, -1, 0, 200, true);
+
+        sink.write(record(0, 0));
+        Thread.sleep(600);
+        sink.write(record(0, 1));
+        sink.close();
+
+        Path gz = null;
+        for (int i = 0; i < 50 && gz == null; i++)
+        // Compressed in the background
+        {
+            gz = rotated().stream()
+                    .filter(p -> p.toString().endsWith(".gz")).findFirst()
+                    .orElse(null);
+            if (gz == null) Thread.sleep(100);
+        }
+
+        assertTrue(gz != null, "Compressed segment");
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(gz)))
+        {
+            assertEquals(in.readAllBytes(), record(0, 0));
+        }
+        assertEquals(Files.readAllBytes(file), record(0, 1));
+    }
+
+
+    @Test(expectedExceptions = IOException.class)
+    public void testClosed() throws Exception
+    {
+        FileSink sink = new FileSink(file, -1, 0, 0, false);
+        sink.close();
+        sink.write(record(0, 0));
+    }
+
+
+    @Test
+    public void testEncoderError() throws Exception
+    {
+        FileSink sink = new FileSink(file, -1, 0, 0, false);
+
+        try
+        {
+            sink.write(segment -> {
+                throw new AssertionError("Encoder failed");
+            });
+            fail("Expected IOException");
+        }
+        catch (IOException e)
+        {
+            assertTrue(e.getCause() instanceof AssertionError);
+        }
+
+        sink.write("after\n".getBytes(StandardCharsets.UTF_8));
+        sink.close();
+
+        assertEquals(Files.readString(file), "after\n", "Writer survived");
+    }
+
+
+    @Test
+    public void testCloseWhileAppending() throws Exception
+    {
+        FileSink sink = new FileSink(file, -1, 0, 0, false);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<List<CompletableFuture<Void>>>> appenders =
+                new ArrayList<>();
+
+        for (int t = 0; t < 4; t++)
+        {
+            appenders.add(executor.submit(() -> {
+                List<CompletableFuture<Void>> appended = new ArrayList<>();
+                for (int i = 0; i < 2000; i++)
+                {
+                    appended.add(sink.append(new byte[] { 'x' }));
+                }
+                return appended;
+            }));
+        }
+
+        sink.close();
+        executor.shutdown();
+
+        for (Future<List<CompletableFuture<Void>>> appender : appenders)
+        {
+            for (CompletableFuture<Void> appended : appender.get())
+            {
+                // Written or failed, never left waiting
+                appended.handle((v, e) -> null).get(5, TimeUnit.SECONDS);
+            }
+        }
+    }
+
+
+    @Test
+    public void testDrainAll() throws Exception
+    {
+        FileSink sink = FileSink.get(file);
+
+        for (int i = 0; i < 100; i++)
+        {
+            sink.append("line\n".getBytes(StandardCharsets.UTF_8));
+        }
+
+        assertTrue(FileSink.drainAll(5000));
+        assertEquals(Files.size(file), 500, "Written without waiting each");
+        sink.close();
+    }
+
+
+    private List<Path> rotated() throws IOException
+    {
+        try (Stream<Path> files = Files.list(dir))
+        {
+            return files.filter(p -> !p.equals(file))
+                    .collect(Collectors.toList());
+        }
+    }
+
+
+    private static byte[] record(int thread, int i)
+    {
+        return String.format("begin %1$d-%2$04d%nend %1$d-%2$04d%n", thread, i)
+                .getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.server.transcripts;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.github.technosf.smutpea.server.transcripts.TranscriptFlusher.Policy;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+public class HttpShipperTest
+{
+    private static final String NDJSON = "application/x-ndjson";
+
+    /**
+     * A request the collector received
+     */
+    record Received(String contentType, String encoding, byte[] body) {};
+
+    private HttpServer collector;
+    private URI uri;
+    private final BlockingQueue<Received> received = new LinkedBlockingQueue<>();
+
+    // Statuses to answer with before answering 200
+    private final AtomicInteger failures = new AtomicInteger();
+    private volatile CountDownLatch hold = new CountDownLatch(0);
+
+
+    @BeforeMethod
+    public void beforeMethod() throws IOException
+    {
+        received.clear();
+        failures.set(0);
+        hold = new CountDownLatch(0);
+
+        collector = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        collector.createContext("/collect", this::handle);
+        collector.start();
+        uri = URI.create("http://localhost:" + collector.getAddress().getPort()
+                + "/collect");
+    }
+
+
+    @AfterMethod
+    public void afterMethod()
+    {
+        hold.countDown();
+        collector.stop(0);
+    }
+
+
+    private void handle(HttpExchange exchange) throws IOException
+    {
+        try (InputStream in = exchange.getRequestBody())
+        {
+            hold.await(10, TimeUnit.SECONDS);
+            byte[] body = in.readAllBytes();
+
+            if (failures.getAndDecrement() > 0)
+            {
+                exchange.sendResponseHeaders(503, -1);
+                return;
+            }
+
+            received.add(new Received(
+                    exchange.getRequestHeaders().getFirst("Content-Type"),
+                    exchange.getRequestHeaders().getFirst("Content-Encoding"),
+                    body));
+            exchange.sendResponseHeaders(200, -1);
+        }
+        catch (InterruptedException e)
+        {
+            exchange.sendResponseHeaders(500, -1);
+        }
+        finally
+        {
+            exchange.close();
+        }
+    }
+
+
+    @Test
+    public void testBatch() throws InterruptedException
+    {
+        HttpShipper shipper = new HttpShipper(16, 10, 500, false, 0, 10);
+
+        shipper.ship(uri, NDJSON, "\n", "{\"a\":1}");
+        shipper.ship(uri, NDJSON, "\n", "{\"b\":2}");
+        shipper.ship(uri, NDJSON, "\n", "{\"c\":3}");
+
+        Received request = received.poll(5, TimeUnit.SECONDS);
+
+        assertEquals(new String(request.body(), StandardCharsets.UTF_8),
+                "{\"a\":1}\n{\"b\":2}\n{\"c\":3}");
+        assertEquals(request.contentType(), NDJSON);
+
+        // Counted once the response is back
+        for (int i = 0; i < 50 && shipper.getBatches() == 0; i++)
+        {
+            Thread.sleep(100);
+        }
+        assertEquals(shipper.getShipped(), 3);
+        assertEquals(shipper.getBatches(), 1);
+    }
+
+
+    @Test
+    public void testBatchByCount() throws InterruptedException
+    {
+        HttpShipper shipper = new HttpShipper(16, 2, 500, false, 0, 10);
+
+        for (int i = 0; i < 5; i++)
+        {
+            shipper.ship(uri, NDJSON, "\n", String.valueOf(i));
+        }
+
+        assertEquals(body(), "0\n1");
+        assertEquals(body(), "2\n3");
+        assertEquals(body(), "4");
+    }
+
+
+    @Test
+    public void testGzip() throws InterruptedException, IOException
+    {
+        HttpShipper shipper = new HttpShipper(16, 10, 0, true, 0, 10);
+
+        shipper.ship(uri, NDJSON, "\n", "{\"gzip\":true}");
+
+        Received request = received.poll(5, TimeUnit.SECONDS);
+
+        assertEquals(request.encoding(), "gzip");
+        try (InputStream in = new GZIPInputStream(
+                new ByteArrayInputStream(request.body())))
+        {
+            assertEquals(new String(in.readAllBytes(), StandardCharsets.UTF_8),
+                    "{\"gzip\":true}");
+        }
+    }
+
+
+    @Test
+    public void testPostThrows() throws InterruptedException
+    {
+        HttpShipper shipper = new HttpShipper(16, 10, 0, false, 0, 10);
+
+        shipper.ship(URI.create("ftp://collector.test/"), NDJSON, "\n",
+                "{\"lost\":true}");
+
+        assertTrue(shipper.drain(5000), "Counted, not left unshipped");
+        assertEquals(shipper.getFailed(), 1);
+        assertEquals(shipper.getShipped(), 0);
+
+        // Still shipping
+        shipper.ship(uri, NDJSON, "\n", "{\"after\":true}");
+        assertEquals(body(), "{\"after\":true}");
+    }
+
+
+    @Test
+    public void testRetry() throws InterruptedException
+    {
+        HttpShipper shipper = new HttpShipper(16, 10, 0, false, 3, 10);
+        failures.set(2);
+
+        shipper.ship(uri, NDJSON, "\n", "retried");
+
+        assertEquals(body(), "retried");
+        assertEquals(shipper.getRetried(), 2);
+        assertEquals(shipper.getFailed(), 0);
+    }
+
+
+    @Test
+    public void testGiveUp() throws InterruptedException
+    {
+        HttpShipper shipper = new HttpShipper(16, 10, 0, false, 1, 10);
+        failures.set(2);
+
+        shipper.ship(uri, NDJSON, "\n", "lost");
+        shipper.ship(uri, "text/plain", "", "next");
+
+        assertEquals(body(), "next");
+        assertEquals(shipper.getFailed(), 1);
+    }
+
+
+    @Test
+    public void testOverflow() throws InterruptedException
+    {
+        hold = new CountDownLatch(1);
+        HttpShipper shipper = new HttpShipper(2, 1, 0, false, 0, 10);
+
+        long start = System.nanoTime();
+        int accepted = 0;
+        for (int i = 0; i < 10; i++)
+        {
+            if (shipper.ship(uri, NDJSON, "\n", String.valueOf(i))) accepted++;
+        }
+
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1),
+                "Shipping should not wait on the collector");
+        assertTrue(shipper.getDropped() > 0, "Dropped");
+        assertEquals(shipper.getDropped() + accepted, 10);
+        assertFalse(accepted > 3, "At most queue capacity plus one in flight");
+
+        hold.countDown();
+    }
+
+
+    @Test
+    public void testDrain() throws InterruptedException
+    {
+        hold = new CountDownLatch(1);
+        HttpShipper shipper = new HttpShipper(16, 10, 0, false, 0, 10);
+
+        shipper.ship(uri, NDJSON, "\n", "one");
+        shipper.ship(uri, NDJSON, "\n", "two");
+
+        assertFalse(shipper.drain(100), "Held by the collector");
+        assertEquals(shipper.getUnshipped(), 2);
+
+        hold.countDown();
+        assertTrue(shipper.drain(5000));
+        assertEquals(shipper.getUnshipped(), 0);
+        assertEquals(shipper.getShipped(), 2);
+    }
+
+
+    @Test
+    public void testShutdownAfterFlush() throws InterruptedException
+    {
+        HttpShipper shipper = new HttpShipper(16, 10, 0, false, 0, 10);
+        TranscriptFlusher flusher = new TranscriptFlusher(16, Policy.BLOCK);
+
+        for (int i = 0; i < 3; i++)
+        {
+            String body = "closed-" + i;
+            flusher.execute(() ->
+            {
+                try
+                {
+                    Thread.sleep(50);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+                shipper.ship(uri, NDJSON, "\n", body);
+            });
+        }
+
+        assertTrue(shipper.drain(0), "A shipper shutdown alone sees nothing");
+        flusher.shutdown(5000, shipper);
+
+        assertEquals(shipper.getUnshipped(), 0, "Shipped after the flush");
+        assertEquals(shipper.getShipped(), 3);
+        assertEquals(shipper.getFailed(), 0);
+    }
+
+
+    @Test
+    public void testBackoff()
+    {
+        assertEquals(HttpShipper.backoff(100, 0), 100);
+        assertEquals(HttpShipper.backoff(100, 3), 800);
+        assertEquals(HttpShipper.backoff(100, 30), 30_000);
+        assertEquals(HttpShipper.backoff(100, 64), 30_000, "Not wrapped");
+        assertEquals(HttpShipper.backoff(100, 63), 30_000, "Not negative");
+    }
+
+
+    private String body() throws InterruptedException
+    {
+        Received request = received.poll(5, TimeUnit.SECONDS);
+        return request == null ? null
+                : new String(request.body(), StandardCharsets.UTF_8);
+    }
+}
@@ -13,12 +13,16 @@
 
 package com.github.technosf.smutpea.server.transcripts;
 
+import static org.testng.Assert.assertEquals;
+
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.time.Instant;
 
 import org.testng.annotations.Test;
 
 import com.github.technosf.smutpea.server.transcripts.Transcript.Decorator;
+import com.github.technosf.smutpea.server.transcripts.Transcript.Entry;
 
 public class JsonDecoratorTest extends AbstractDecoratorTest 
 {
@@ -46,4 +50,31 @@ public class JsonDecoratorTest extends AbstractDecoratorTest
     public void testFlush_Http() throws InterruptedException {
         super.testFlush_Http();
     }
+
+
+    @Test
+    public void testTimed()
+    {
+        JsonDecorator decorator = new JsonDecorator("mta", "agent", "1", "",
+                Instant.EPOCH);
+        Entry[] entries = {
+                new Entry(false, 0, "220 Hello"),
+                new Entry(true, 1, "NOOP"),
+                new Entry(false, 1, "250 OK", 1500),
+                new Entry(true, 2, "QUIT"),
+                new Entry(false, 2, "221 Bye", 500) };
+        decorator.write(entries, entries.length);
+        decorator.finish();
+
+        assertEquals(decorator.getDialogue(), "{\"agent.type\":\"SMuTPea\","
+                + "\"@timestamp\":\"1970-01-01T00:00:00Z\",\"transcript\":["
+                + "{\"ended\":0},"
+                + "{\"dialogue\":[\"NOOP\"],\"ended\":1,\"who\":\"Client\"},"
+                + "{\"dialogue\":[\"250 OK\"],\"ended\":1,\"nanos\":1500,\"who\":\"Server\"},"
+                + "{\"dialogue\":[\"QUIT\"],\"ended\":2,\"who\":\"Client\"},"
+                + "{\"dialogue\":[\"221 Bye\"],\"ended\":2,\"nanos\":500,\"who\":\"Server\"}],"
+                + "\"server.nanos\":2000,\"server.max_nanos\":1500,"
+                + "\"agent.id\":\"agent\",\"agent.ephemeral_id\":\"1\","
+                + "\"agent.version\":\"??\",\"agent.name\":\"mta\"}");
+    }
 }
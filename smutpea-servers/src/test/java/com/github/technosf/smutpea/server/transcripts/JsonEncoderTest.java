@@ -0,0 +1,160 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.server.transcripts;
+
+import static org.testng.Assert.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.testng.annotations.Test;
+
+import com.github.cliftonlabs.json_simple.JsonArray;
+import com.github.cliftonlabs.json_simple.JsonObject;
+import com.github.cliftonlabs.json_simple.Jsoner;
+import com.github.technosf.smutpea.server.transcripts.Transcript.Entry;
+
+/**
+ * Checks {@code JsonEncoder} and {@code JsonDecorator} output against the
+ * json-simple object graph they replace, byte for byte.
+ */
+public class JsonEncoderTest
+{
+    private static final Pattern TIMESTAMP =
+            Pattern.compile("\"@timestamp\":\"([^\"]*)\"");
+
+
+    @Test
+    public void testEscapeEveryChar()
+    {
+        for (int c = 0; c <= Character.MAX_VALUE; c++)
+        {
+            if (Character.isSurrogate((char) c)) continue;
+
+            String value = "a" + (char) c + "z";
+            assertEquals(new JsonEncoder(1).string(value).toByteArray(),
+                    Jsoner.serialize(value).getBytes(StandardCharsets.UTF_8),
+                    Integer.toHexString(c));
+        }
+    }
+
+
+    @Test
+    public void testSurrogates()
+    {
+        for (String value : new String[] { "😀 grin", "lone \uD83D",
+                "lone \uDE00 low", "\uDE00\uD83D" })
+        {
+            assertEquals(new JsonEncoder(1).string(value).toByteArray(),
+                    Jsoner.serialize(value).getBytes(StandardCharsets.UTF_8),
+                    value);
+        }
+    }
+
+
+    @Test
+    public void testTokens()
+    {
+        JsonEncoder encoder = new JsonEncoder(1);
+        encoder.raw('[').number(0).raw(',').number(-1).raw(',')
+                .number(Long.MAX_VALUE).raw(',').string(null).raw(']');
+
+        assertEquals(encoder.toString(),
+                "[0,-1,9223372036854775807,null]");
+        assertEquals(encoder.size(), encoder.toByteArray().length);
+    }
+
+
+    @Test
+    public void testTranscripts()
+    {
+        List<Entry> entries = new ArrayList<>();
+
+        assertTranscript(entries);
+
+        entries.add(new Entry(false, 0, "220 dummy.server ESMTP"));
+        assertTranscript(entries);
+
+        entries.add(new Entry(true, 3, "EHLO \"quoted\" \\ / \t tab"));
+        entries.add(new Entry(false, 12, "250 café   € 😀"));
+        entries.add(new Entry(true, 12, "\u0000\u001f\u007f\u0085"));
+        entries.add(new Entry(true, 1234567, ""));
+        assertTranscript(entries);
+    }
+
+
+    /**
+     * Compares the decorator with the json-simple graph it replaces
+     */
+    private static void assertTranscript(List<Entry> entries)
+    {
+        JsonDecorator decorator =
+                new JsonDecorator("mta \"name\"", "agent/id", null, "");
+        decorator.write(entries.toArray(new Entry[0]), entries.size());
+        decorator.finish();
+
+        String actual = decorator.getDialogue();
+        Matcher matcher = TIMESTAMP.matcher(actual);
+        matcher.find();
+
+        assertEquals(decorator.getDialogueBytes(),
+                reference(matcher.group(1), entries)
+                        .getBytes(StandardCharsets.UTF_8),
+                actual);
+    }
+
+
+    /**
+     * The transcript as json-simple built it
+     */
+    private static String reference(String timestamp, List<Entry> entries)
+    {
+        JsonObject json = new JsonObject();
+        json.put("@timestamp", timestamp);
+        json.put("agent.type", "SMuTPea");
+        json.put("agent.version", "??");
+        json.put("agent.name", "mta \"name\"");
+        json.put("agent.id", "agent/id");
+        json.put("agent.ephemeral_id", null);
+
+        JsonArray stanzas = new JsonArray();
+        JsonArray dialogue = new JsonArray();
+        JsonObject last = new JsonObject();
+        stanzas.add(last);
+        json.put("transcript", stanzas);
+
+        long ended = -1;
+        for (Entry entry : entries)
+        {
+            String source = entry.isClient() ? "Client" : "Server";
+            if (!source.equals("unset") && ended > -1)
+            {
+                last.put("ended", ended);
+                last = new JsonObject();
+                stanzas.add(last);
+                dialogue = new JsonArray();
+                last.put("who", source);
+                last.put("dialogue", dialogue);
+            }
+            dialogue.add(entry.line());
+            ended = entry.offset();
+        }
+        last.put("ended", ended);
+
+        return json.toJson();
+    }
+}
@@ -13,12 +13,15 @@
 
 package com.github.technosf.smutpea.server.transcripts;
 
+import static org.testng.Assert.assertEquals;
+
 import java.io.IOException;
 import java.net.URISyntaxException;
 
 import org.testng.annotations.Test;
 
 import com.github.technosf.smutpea.server.transcripts.Transcript.Decorator;
+import com.github.technosf.smutpea.server.transcripts.Transcript.Entry;
 
 public class PlainDecoratorTest 
 extends AbstractDecoratorTest
@@ -48,4 +51,25 @@ extends AbstractDecoratorTest
         super.testFlush_Http();
     }
 
+
+    @Test
+    public void testTimed()
+    {
+        PlainDecorator decorator = new PlainDecorator("");
+        Entry[] entries = {
+                new Entry(true, 1, "NOOP"),
+                new Entry(false, 1, "250 OK", 1500),
+                new Entry(true, 2, "QUIT"),
+                new Entry(false, 2, "221 Bye", 500) };
+        decorator.write(entries, entries.length);
+        decorator.finish();
+
+        assertEquals(decorator.getDialogue(), "\n"
+                + "Client @ 1\t:: NOOP\n"
+                + "Server @ 1 +1500ns\t:: 250 OK\n"
+                + "Client @ 2\t:: QUIT\n"
+                + "Server @ 2 +500ns\t:: 221 Bye\n"
+                + "Server time :: 2000ns total, 1500ns max, 2 replies\n"
+                + "\n");
+    }
 }
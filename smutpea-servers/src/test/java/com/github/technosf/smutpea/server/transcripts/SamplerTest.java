@@ -0,0 +1,86 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.server.transcripts;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Set;
+
+import org.testng.annotations.Test;
+
+public class SamplerTest
+{
+
+    @Test
+    public void testEvery()
+    {
+        Sampler sampler = new Sampler(3, true, Set.of(), 8);
+        int sampled = 0;
+
+        for (int i = 0; i < 30; i++)
+        {
+            if (sampler.sample("/192.0.2.1:1000")) sampled++;
+        }
+
+        assertEquals(sampled, 10);
+        assertEquals(sampler.getSampled(), 10);
+    }
+
+
+    @Test
+    public void testNone()
+    {
+        Sampler sampler = new Sampler(0, true, Set.of(), 8);
+
+        assertFalse(sampler.sample("/192.0.2.1:1000"));
+        assertFalse(sampler.sample("/192.0.2.1:1000"));
+    }
+
+
+    @Test
+    public void testClients()
+    {
+        Sampler sampler = new Sampler(0, true, Set.of("192.0.2.7", "::1"), 8);
+
+        assertTrue(sampler.sample("host.example/192.0.2.7:2525"));
+        assertFalse(sampler.sample("/192.0.2.70:2525"));
+        assertFalse(sampler.sample("smutpea CLISinkServer"));
+    }
+
+
+    @Test
+    public void testAddress()
+    {
+        assertEquals(Sampler.address("/192.0.2.1:25"), "192.0.2.1");
+        assertEquals(Sampler.address("host/192.0.2.1:25"), "192.0.2.1");
+        assertEquals(Sampler.address("/0:0:0:0:0:0:0:1:25"), "0:0:0:0:0:0:0:1");
+        assertEquals(Sampler.address("smutpea CLISinkServer"),
+                "smutpea CLISinkServer");
+        assertEquals(Sampler.address(null), "");
+    }
+
+
+    @Test
+    public void testFailure()
+    {
+        assertTrue(Sampler.isFailure("421 Error: timeout exceeded"));
+        assertTrue(Sampler.isFailure("550-Mailbox"));
+        assertFalse(Sampler.isFailure("250 OK"));
+        assertFalse(Sampler.isFailure("4"));
+        assertFalse(Sampler.isFailure("5xx"));
+        assertFalse(Sampler.isFailure(null));
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.server.transcripts;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.github.technosf.smutpea.server.transcripts.TranscriptFlusher.Policy;
+
+public class TranscriptFlusherTest
+{
+    private final List<Integer> flushed = new CopyOnWriteArrayList<>();
+    private CountDownLatch started;
+    private CountDownLatch release;
+
+
+    @BeforeMethod
+    public void beforeMethod()
+    {
+        flushed.clear();
+        started = new CountDownLatch(1);
+        release = new CountDownLatch(1);
+    }
+
+
+    @AfterMethod
+    public void afterMethod()
+    {
+        release.countDown();
+    }
+
+
+    /**
+     * Occupies the flushing thread until released
+     */
+    private void hold(TranscriptFlusher flusher) throws InterruptedException
+    {
+        flusher.execute(() ->
+        {
+            started.countDown();
+            try
+            {
+                release.await();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+    }
+
+
+    private Runnable flush(int i)
+    {
+        return () -> flushed.add(i);
+    }
+
+
+    @Test
+    public void testDetermine()
+    {
+        assertEquals(Policy.determine(null), Policy.BLOCK);
+        assertEquals(Policy.determine("bogus"), Policy.BLOCK);
+        assertEquals(Policy.determine(" drop-oldest "), Policy.DROP_OLDEST);
+        assertEquals(Policy.determine("DROP_NEWEST"), Policy.DROP_NEWEST);
+    }
+
+
+    @Test
+    public void testFlushed()
+    {
+        TranscriptFlusher flusher = new TranscriptFlusher(16, Policy.BLOCK);
+
+        for (int i = 0; i < 10; i++)
+        {
+            flusher.execute(flush(i));
+        }
+
+        assertTrue(flusher.drain(5000));
+        assertEquals(flushed, List.of(0, 1, 2, 3, 4, 5, 6, 7, 8, 9));
+        assertEquals(flusher.getQueued(), 10);
+        assertEquals(flusher.getFlushed(), 10);
+        assertEquals(flusher.getQueueDepth(), 0);
+    }
+
+
+    @Test
+    public void testDropNewest() throws InterruptedException
+    {
+        TranscriptFlusher flusher = new TranscriptFlusher(2, Policy.DROP_NEWEST);
+        hold(flusher);
+
+        for (int i = 0; i < 4; i++)
+        {
+            flusher.execute(flush(i));
+        }
+
+        assertEquals(flusher.getQueueDepth(), 2);
+        assertEquals(flusher.getDropped(), 2);
+
+        release.countDown();
+        assertTrue(flusher.drain(5000));
+        assertEquals(flushed, List.of(0, 1));
+    }
+
+
+    @Test
+    public void testDropOldest() throws InterruptedException
+    {
+        TranscriptFlusher flusher = new TranscriptFlusher(2, Policy.DROP_OLDEST);
+        hold(flusher);
+
+        for (int i = 0; i < 4; i++)
+        {
+            flusher.execute(flush(i));
+        }
+
+        assertEquals(flusher.getDropped(), 2);
+
+        release.countDown();
+        assertTrue(flusher.drain(5000));
+        assertEquals(flushed, List.of(2, 3));
+    }
+
+
+    @Test
+    public void testBlock() throws InterruptedException
+    {
+        TranscriptFlusher flusher = new TranscriptFlusher(1, Policy.BLOCK);
+        hold(flusher);
+        flusher.execute(flush(0));
+
+        Thread closer = new Thread(() -> flusher.execute(flush(1)));
+        closer.start();
+        closer.join(200);
+
+        assertTrue(closer.isAlive(), "Waiting for room");
+        assertEquals(flusher.getBlocked(), 1);
+
+        release.countDown();
+        closer.join(5000);
+        assertFalse(closer.isAlive());
+        assertTrue(flusher.drain(5000));
+        assertEquals(flushed, List.of(0, 1));
+        assertEquals(flusher.getDropped(), 0);
+    }
+
+
+    @Test
+    public void testShutdown() throws InterruptedException
+    {
+        TranscriptFlusher flusher = new TranscriptFlusher(4, Policy.BLOCK);
+        hold(flusher);
+        flusher.execute(flush(0));
+
+        flusher.shutdown(100, null);
+        assertEquals(flushed, List.of(), "Timed out behind the held flush");
+
+        flusher.execute(flush(1));
+        assertEquals(flushed, List.of(1), "Flushed on the closing thread");
+
+        release.countDown();
+        assertTrue(flusher.drain(5000));
+        assertEquals(flushed, List.of(1, 0));
+    }
+
+
+    @Test
+    public void testFailed()
+    {
+        TranscriptFlusher flusher = new TranscriptFlusher(4, Policy.BLOCK);
+
+        flusher.execute(() ->
+        {
+            throw new IllegalStateException("Expected");
+        });
+        flusher.execute(flush(0));
+
+        assertTrue(flusher.drain(5000));
+        assertEquals(flusher.getFailed(), 1);
+        assertEquals(flushed, List.of(0));
+    }
+}
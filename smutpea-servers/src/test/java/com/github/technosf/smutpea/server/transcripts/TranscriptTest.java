@@ -0,0 +1,258 @@
+/*
+ * Copyright 2023 technosf [https://github.com/technosf]
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.github.technosf.smutpea.server.transcripts;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.github.technosf.smutpea.server.transcripts.Transcript.Decorator;
+import com.github.technosf.smutpea.server.transcripts.Transcript.Entry;
+
+public class TranscriptTest
+{
+
+    /**
+     * Decorator recording what it is written
+     */
+    static class CaptureDecorator
+            implements Decorator
+    {
+        final List<String> lines = new ArrayList<>();
+        int writes = 0;
+        int largestWrite = 0;
+        boolean flushed = false;
+
+
+        @Override
+        public void write(Entry[] entries, int count)
+        {
+            writes++;
+            largestWrite = Math.max(largestWrite, count);
+            for (int i = 0; i < count; i++)
+            {
+                lines.add(entries[i].line());
+            }
+        }
+
+
+        @Override
+        public void flush()
+        {
+            flushed = true;
+        }
+
+
+        @Override
+        public String getName()
+        {
+            return "Capture";
+        }
+    }
+
+    private CaptureDecorator decorator;
+
+
+    @BeforeMethod
+    public void beforeMethod()
+    {
+        decorator = new CaptureDecorator();
+    }
+
+
+    @Test
+    public void testChunked() throws IOException
+    {
+        Transcript transcript = new Transcript("mta", "agent", "1", decorator,
+                4, 100, 10_000);
+
+        for (int i = 0; i < 10; i++)
+        {
+            transcript.client("line " + i);
+        }
+
+        assertEquals(decorator.lines.size(), 8, "Written as chunks fill");
+        assertEquals(decorator.largestWrite, 4);
+
+        transcript.close();
+
+        assertEquals(decorator.lines.size(), 10);
+        assertEquals(decorator.lines.get(9), "line 9");
+        assertEquals(transcript.getOmitted(), 0);
+        assertTrue(decorator.flushed);
+    }
+
+
+    @Test
+    public void testTruncatedByLines() throws IOException
+    {
+        Transcript transcript = new Transcript("mta", "agent", "1", decorator,
+                4, 6, 10_000);
+
+        for (int i = 0; i < 20; i++)
+        {
+            transcript.server("line " + i);
+        }
+        transcript.close();
+
+        // Head of 6, marker, tail of 4
+        assertEquals(decorator.lines.size(), 11);
+        assertEquals(decorator.lines.get(5), "line 5");
+        assertEquals(decorator.lines.get(6),
+                "[Transcript truncated, 10 lines of 66 characters omitted]");
+        assertEquals(decorator.lines.get(7), "line 16");
+        assertEquals(decorator.lines.get(10), "line 19");
+        assertEquals(transcript.getOmitted(), 10);
+    }
+
+
+    @Test
+    public void testTruncatedByBytes() throws IOException
+    {
+        Transcript transcript = new Transcript("mta", "agent", "1", decorator,
+                2, 100, 10);
+
+        transcript.client("12345");
+        transcript.client("67890");
+        transcript.client("abcde");
+        transcript.client("fghij");
+        transcript.client("klmno");
+        transcript.close();
+
+        assertEquals(decorator.lines,
+                List.of("12345", "67890",
+                        "[Transcript truncated, 1 lines of 5 characters omitted]",
+                        "fghij", "klmno"));
+    }
+
+
+    @Test
+    public void testTailWithinChunk() throws IOException
+    {
+        Transcript transcript = new Transcript("mta", "agent", "1", decorator,
+                4, 2, 10_000);
+
+        transcript.client("a");
+        transcript.client("b");
+        transcript.client("c");
+        transcript.close();
+
+        assertEquals(decorator.lines, List.of("a", "b", "c"),
+                "Nothing omitted while the tail fits the chunk");
+    }
+
+
+    @Test
+    public void testUnsampledDiscarded() throws IOException
+    {
+        Sampler sampler = new Sampler(0, true, Set.of(), 3);
+        Transcript transcript = new Transcript("mta", "agent", "1", decorator,
+                4, 100, 10_000, sampler);
+
+        transcript.server("220 Hello");
+        transcript.client("QUIT");
+        transcript.server("221 Bye");
+        transcript.close();
+
+        assertFalse(transcript.isRecording());
+        assertTrue(decorator.lines.isEmpty());
+        assertFalse(decorator.flushed, "Nothing flushed");
+        assertEquals(sampler.getDiscarded(), 1);
+    }
+
+
+    @Test
+    public void testPromotedOnFailure() throws IOException
+    {
+        Sampler sampler = new Sampler(0, true, Set.of(), 3);
+        Transcript transcript = new Transcript("mta", "agent", "1", decorator,
+                4, 100, 10_000, sampler);
+
+        for (int i = 0; i < 5; i++)
+        {
+            transcript.client("line " + i);
+        }
+        transcript.server("550 No");
+        transcript.client("QUIT");
+        transcript.close();
+
+        assertTrue(transcript.isRecording());
+        assertEquals(decorator.lines,
+                List.of("[Transcript truncated, 3 lines of 18 characters omitted]",
+                        "line 3", "line 4", "550 No", "QUIT"));
+        assertTrue(decorator.flushed);
+        assertEquals(sampler.getPromoted(), 1);
+    }
+
+
+    @Test
+    public void testNotPromotedWithoutErrors() throws IOException
+    {
+        Transcript transcript = new Transcript("mta", "agent", "1", decorator,
+                4, 100, 10_000, new Sampler(0, false, Set.of(), 3));
+
+        transcript.server("421 Timeout");
+        transcript.close();
+
+        assertTrue(decorator.lines.isEmpty());
+    }
+
+
+    @Test
+    public void testPromotedWithoutRing() throws IOException
+    {
+        Transcript transcript = new Transcript("mta", "agent", "1", decorator,
+                4, 100, 10_000, new Sampler(0, true, Set.of(), 0));
+
+        transcript.client("EHLO x");
+        transcript.server("421 Timeout");
+        transcript.close();
+
+        assertEquals(decorator.lines,
+                List.of("[Transcript truncated, 2 lines of 17 characters omitted]"));
+    }
+
+
+    @Test
+    public void testFlushedByExecutor() throws IOException
+    {
+        List<Runnable> flushes = new ArrayList<>();
+        Transcript transcript = new Transcript("mta", "agent", "1", decorator,
+                4, 100, 10_000, Sampler.ALL, flushes::add);
+
+        for (int i = 0; i < 6; i++)
+        {
+            transcript.client("line " + i);
+        }
+        transcript.close();
+
+        assertEquals(decorator.lines.size(), 4, "Only full chunks written");
+        assertFalse(decorator.flushed, "Flush deferred to the executor");
+        assertEquals(flushes.size(), 1);
+
+        flushes.get(0).run();
+
+        assertEquals(decorator.lines.size(), 6);
+        assertEquals(decorator.lines.get(5), "line 5");
+        assertTrue(decorator.flushed);
+    }
+}